@@ -17,15 +17,11 @@
 package it.unipi.di.acube.batframework.systemPlugins;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.StringReader;
 import java.util.Calendar;
 import java.util.HashSet;
 
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.StringBody;
@@ -35,6 +31,7 @@ import it.unipi.di.acube.batframework.problems.C2WSystem;
 import it.unipi.di.acube.batframework.utils.AnnotationException;
 import it.unipi.di.acube.batframework.utils.FreebaseApi;
 import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+import it.acubelab.smaph.net.HttpClientPool;
 
 /**
  * An interface to a generic ERD System, as defined in <a
@@ -89,41 +86,17 @@ public class ERDSystem implements C2WSystem {
 		lastTime = Calendar.getInstance().getTimeInMillis();
 		HashSet<Tag> res = new HashSet<Tag>();
 		try {
-			URL erdApi = new URL(url);
-
-			HttpURLConnection connection = (HttpURLConnection) erdApi
-					.openConnection();
-			connection.setDoOutput(true);
-			connection.setRequestMethod("POST");
-
+			HttpPost request = new HttpPost(url);
 			MultipartEntity multipartEntity = new MultipartEntity(
 					HttpMultipartMode.STRICT);
 			multipartEntity.addPart("runID", new StringBody(this.run));
 			multipartEntity.addPart("TextID",
 					new StringBody("" + text.hashCode()));
 			multipartEntity.addPart("Text", new StringBody(text));
+			request.setEntity(multipartEntity);
 
-			connection.setRequestProperty("Content-Type", multipartEntity
-					.getContentType().getValue());
-			OutputStream out = connection.getOutputStream();
-			try {
-				multipartEntity.writeTo(out);
-			} finally {
-				out.close();
-			}
-
-			int status = ((HttpURLConnection) connection).getResponseCode();
-			if (status != 200) {
-				BufferedReader br = new BufferedReader(new InputStreamReader(
-						connection.getErrorStream()));
-				String line = null;
-				while ((line = br.readLine()) != null)
-					System.err.println(line);
-				throw new RuntimeException();
-			}
-
-			BufferedReader br = new BufferedReader(new InputStreamReader(
-					connection.getInputStream()));
+			BufferedReader br = new BufferedReader(new StringReader(
+					HttpClientPool.executeForString(request)));
 			String line = null;
 			while ((line = br.readLine()) != null) {
 				String mid = line.split("\t")[2];
@@ -19,7 +19,14 @@ package it.unipi.di.acube.batframework.systemPlugins;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -37,11 +44,23 @@ import it.unipi.di.acube.batframework.utils.AnnotationException;
 import it.unipi.di.acube.batframework.utils.ProblemReduction;
 import it.acubelab.smaph.SmaphAnnotatorDebugger;
 import it.acubelab.smaph.SmaphUtils;
+import it.acubelab.smaph.cache.MigrateWatCache;
+import it.acubelab.smaph.cache.WatCacheKey;
+import it.acubelab.smaph.net.CircuitBreaker;
+import it.acubelab.smaph.net.HedgingPolicy;
+import it.acubelab.smaph.net.HttpClientPool;
+import it.acubelab.smaph.net.OfflineReplay;
+import it.acubelab.smaph.net.Resilience;
+import it.acubelab.smaph.net.RetryPolicy;
 
 public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		CandidatesSpotter {
+	public static final String DEFAULT_HOST = "wikisense.mkapp.it";
+	public static final int DEFAULT_PORT = 80;
 	private static final int RETRY_N = 2;
-	private long lastTime = 0;
+	private static final RetryPolicy RETRY_POLICY = new RetryPolicy(
+			RETRY_N + 1, 1000, 10000);
+	private volatile long lastTime = 0;
 	private boolean useContext, useTagger, bogusFilter;
 	private final String urlTag;
 	private final String urlSpot;
@@ -49,36 +68,344 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 	private final String method, relatedness, windowSize, minCommonness,
 			minLinkProbability, epsilon, kappa;
 	private String sortBy;
-	private HashMap<String, HashMap<String, Double>> additionalInfo = new HashMap<>();
-	private HashMap<String, List<HashMap<String, Double>>> additionalCandidatesInfo = new HashMap<>();
 	private boolean brutalD2WReduction = false;
-	private static HashMap<String, byte[]> url2jsonCache = new HashMap<>();
-	private static long flushCounter = 0;
+	private static volatile ConcurrentHashMap<String, byte[]> url2jsonCache = new ConcurrentHashMap<>();
+	private static final AtomicLong flushCounter = new AtomicLong();
 	private static final int FLUSH_EVERY = 200;
 	private static String resultsCacheFilename = null;
+	private static volatile ConcurrentHashMap<String, BoldInfo> boldCache = null;
+	private static String boldCacheFilename = null;
+	private static final Object flushLock = new Object();
+	private static final AtomicLong d2wCount = new AtomicLong();
+	private static final AtomicLong d2wAvoidedCount = new AtomicLong();
+	private static volatile HedgingPolicy hedging = null;
+
+	/**
+	 * What WAT returned for a single mention: the entity it was linked to and
+	 * the features of the mention and of its candidates.
+	 */
+	private static final class BoldInfo implements Serializable {
+		private static final long serialVersionUID = 1L;
+		/** The entity, or -1 if WAT did not annotate the mention. */
+		private final int id;
+		private final HashMap<String, Double> mentionInfo;
+		private final Vector<HashMap<String, Double>> candidatesInfo;
+
+		private BoldInfo(int id, Map<String, Double> mentionInfo,
+				List<Map<String, Double>> candidatesInfo) {
+			this.id = id;
+			this.mentionInfo = mentionInfo == null ? null : new HashMap<>(
+					mentionInfo);
+			if (candidatesInfo == null)
+				this.candidatesInfo = null;
+			else {
+				this.candidatesInfo = new Vector<>();
+				for (Map<String, Double> candidate : candidatesInfo)
+					this.candidatesInfo.add(new HashMap<>(candidate));
+			}
+		}
+	}
 
-	public static synchronized void increaseFlushCounter()
-			throws FileNotFoundException, IOException {
-		flushCounter++;
-		if ((flushCounter % FLUSH_EVERY) == 0)
-			flush();
+	/**
+	 * The result of a D2W call: the annotations, plus the features WAT
+	 * returned for each mention and for each candidate entity of a mention.
+	 * Results are immutable, so that one WATAnnotator can serve concurrent
+	 * calls.
+	 */
+	public static final class D2WResult {
+		private final Set<Annotation> annotations;
+		private final Map<String, Map<String, Double>> mentionInfo;
+		private final Map<String, List<Map<String, Double>>> candidatesInfo;
+		private final long time;
+
+		/**
+		 * @param annotations
+		 *            the annotations of the mentions given as input.
+		 * @param mentionInfo
+		 *            the features of each mention. The maps are wrapped, not
+		 *            copied.
+		 * @param candidatesInfo
+		 *            the features of the candidate entities of each mention,
+		 *            by rank. The maps are wrapped, not copied.
+		 * @param time
+		 *            the time taken to annotate the text, in milliseconds.
+		 */
+		public D2WResult(Set<Annotation> annotations,
+				Map<String, Map<String, Double>> mentionInfo,
+				Map<String, List<Map<String, Double>>> candidatesInfo, long time) {
+			this.annotations = Collections.unmodifiableSet(annotations);
+			for (String mention : mentionInfo.keySet())
+				mentionInfo.put(mention,
+						Collections.unmodifiableMap(mentionInfo.get(mention)));
+			this.mentionInfo = Collections.unmodifiableMap(mentionInfo);
+			for (String mention : candidatesInfo.keySet()) {
+				List<Map<String, Double>> candidates = new Vector<>();
+				for (Map<String, Double> candidate : candidatesInfo
+						.get(mention))
+					candidates.add(Collections.unmodifiableMap(candidate));
+				candidatesInfo.put(mention,
+						Collections.unmodifiableList(candidates));
+			}
+			this.candidatesInfo = Collections.unmodifiableMap(candidatesInfo);
+			this.time = time;
+		}
+
+		/**
+		 * @return the annotations of the mentions given as input.
+		 */
+		public Set<Annotation> getAnnotations() {
+			return annotations;
+		}
+
+		/**
+		 * @return a mapping from each mention spotted by WAT to its features
+		 *         (lp, commonness, rhoScore, ambiguity, localCoherence,
+		 *         pageRank).
+		 */
+		public Map<String, Map<String, Double>> getMentionInfo() {
+			return mentionInfo;
+		}
+
+		/**
+		 * @return a mapping from each mention spotted by WAT to the features of
+		 *         its candidate entities, by rank.
+		 */
+		public Map<String, List<Map<String, Double>>> getCandidatesInfo() {
+			return candidatesInfo;
+		}
+
+		/**
+		 * @return the time WAT took to annotate the text, in milliseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
 	}
 
-	public static synchronized void flush() throws FileNotFoundException,
+	public static void increaseFlushCounter() throws FileNotFoundException,
 			IOException {
-		if (flushCounter > 0 && resultsCacheFilename != null) {
-			SmaphAnnotatorDebugger.out.print("Flushing WikiSense cache... ");
-			new File(resultsCacheFilename).createNewFile();
-			ObjectOutputStream oos = new ObjectOutputStream(
-					new FileOutputStream(resultsCacheFilename));
-			oos.writeObject(url2jsonCache);
-			oos.close();
-			SmaphAnnotatorDebugger.out
-					.println("Flushing WikiSense cache Done.");
+		if ((flushCounter.incrementAndGet() % FLUSH_EVERY) == 0)
+			flush();
+	}
+
+	/**
+	 * Write the caches to their files. The caches are copied under the class
+	 * lock and written outside of it, so that lookups are not blocked while
+	 * the files are written. Each file is written to a temporary file first,
+	 * then renamed.
+	 * 
+	 * @throws FileNotFoundException
+	 *             if a file could not be open for writing.
+	 * @throws IOException
+	 *             if something went wrong while writing a file.
+	 */
+	public static void flush() throws FileNotFoundException, IOException {
+		String resultsFile, boldFile;
+		HashMap<String, byte[]> resultsSnapshot = null;
+		HashMap<String, BoldInfo> boldSnapshot = null;
+		synchronized (WATAnnotator.class) {
+			if (flushCounter.get() == 0)
+				return;
+			resultsFile = resultsCacheFilename;
+			boldFile = boldCacheFilename;
+			if (resultsFile != null)
+				resultsSnapshot = new HashMap<>(url2jsonCache);
+			if (boldFile != null && boldCache != null)
+				boldSnapshot = new HashMap<>(boldCache);
+		}
+		synchronized (flushLock) {
+			if (resultsSnapshot != null) {
+				SmaphAnnotatorDebugger.out
+						.print("Flushing WikiSense cache... ");
+				writeCache(resultsFile, resultsSnapshot);
+				SmaphAnnotatorDebugger.out
+						.println("Flushing WikiSense cache Done.");
+			}
+			if (boldSnapshot != null)
+				writeCache(boldFile, boldSnapshot);
+		}
+	}
+
+	private static void writeCache(String cacheFilename, Object cache)
+			throws FileNotFoundException, IOException {
+		File file = new File(cacheFilename);
+		File tmp = new File(cacheFilename + ".tmp");
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(tmp))) {
+			oos.writeObject(cache);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to "
+						+ file);
+		}
+	}
+
+	/**
+	 * Enable the bold cache: the result of WAT for each single mention is
+	 * cached, keyed by the text of the mention, the texts of the mentions
+	 * disambiguated with it and the WAT parameters. A D2W call whose mentions
+	 * are all cached is answered from the cache, without calling WAT. WAT
+	 * disambiguates the mentions of a text jointly, so that the features of a
+	 * mention (e.g. rho and local coherence) depend on the other mentions:
+	 * the entries are only reused by calls with the same mention texts,
+	 * possibly in another order or in another text.
+	 * 
+	 * @param cacheFilename
+	 *            the file the bold cache is read from and flushed to, or null
+	 *            to keep the bold cache in memory only.
+	 * @throws FileNotFoundException
+	 *             if the file could not be open for reading.
+	 * @throws IOException
+	 *             if something went wrong while reading the file.
+	 * @throws ClassNotFoundException
+	 *             is the file contained an object of the wrong class.
+	 */
+	public static synchronized void setBoldCache(String cacheFilename)
+			throws FileNotFoundException, IOException, ClassNotFoundException {
+		if (boldCache != null
+				&& (cacheFilename == null ? boldCacheFilename == null
+						: cacheFilename.equals(boldCacheFilename)))
+			return;
+		boldCacheFilename = cacheFilename;
+		ConcurrentHashMap<String, BoldInfo> cache = new ConcurrentHashMap<>();
+		if (cacheFilename != null && new File(cacheFilename).exists()) {
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+					cacheFilename));
+			cache.putAll((HashMap<String, BoldInfo>) ois.readObject());
+			ois.close();
+		}
+		boldCache = cache;
+	}
+
+	/**
+	 * Disable the bold cache and reset its statistics.
+	 */
+	public static synchronized void unSetBoldCache() {
+		boldCache = null;
+		boldCacheFilename = null;
+		d2wCount.set(0);
+		d2wAvoidedCount.set(0);
+	}
+
+	/**
+	 * Hedge the calls to WAT: a call that has not answered within a
+	 * percentile of the observed latencies is issued again, and the first
+	 * response is taken (see {@link HedgingPolicy}). Hedging happens within
+	 * each retry. By default, calls are not hedged.
+	 * 
+	 * @param hedging
+	 *            the hedging policy, or null to disable hedging.
+	 */
+	public static void setHedging(HedgingPolicy hedging) {
+		WATAnnotator.hedging = hedging;
+	}
+
+	/**
+	 * @return the policy hedging the calls to WAT, or null if calls are not
+	 *         hedged.
+	 */
+	public static HedgingPolicy getHedging() {
+		return hedging;
+	}
+
+	/**
+	 * @return the number of D2W calls.
+	 */
+	public static long getD2WCount() {
+		return d2wCount.get();
+	}
+
+	/**
+	 * @return the number of D2W calls answered by the bold cache, without
+	 *         calling WAT.
+	 */
+	public static long getD2WAvoidedCount() {
+		return d2wAvoidedCount.get();
+	}
+
+	/**
+	 * @return the texts of the mentions of a D2W call, sorted, one per line.
+	 *         It is the same for the same mention texts in any order.
+	 */
+	private static String boldContext(String text, Set<Mention> mentions) {
+		List<String> bolds = new Vector<>();
+		for (Mention m : mentions)
+			bolds.add(text.substring(m.getPosition(),
+					m.getPosition() + m.getLength()));
+		Collections.sort(bolds);
+		StringBuilder context = new StringBuilder();
+		for (String bold : bolds)
+			context.append(bold).append('\n');
+		return context.toString();
+	}
+
+	private static String boldCacheKey(String getParameters, String bold,
+			String context) {
+		return WatCacheKey.canonicalParameters(getParameters) + "\n" + bold
+				+ "\n\n" + context;
+	}
+
+	/**
+	 * @return the result of a D2W call built from the bold cache, or null if
+	 *         the bold cache is disabled or does not contain all mentions.
+	 */
+	private static D2WResult getBoldCached(String text,
+			Set<Mention> mentions, String getParameters) {
+		ConcurrentHashMap<String, BoldInfo> boldCache = WATAnnotator.boldCache;
+		if (boldCache == null)
+			return null;
+		String context = boldContext(text, mentions);
+		HashSet<Annotation> annotations = new HashSet<>();
+		HashMap<String, Map<String, Double>> mentionInfo = new HashMap<>();
+		HashMap<String, List<Map<String, Double>>> candidatesInfo = new HashMap<>();
+		for (Mention m : mentions) {
+			String bold = text.substring(m.getPosition(),
+					m.getPosition() + m.getLength());
+			BoldInfo info = boldCache.get(boldCacheKey(getParameters, bold,
+					context));
+			if (info == null)
+				return null;
+			if (info.id >= 0)
+				annotations.add(new Annotation(m.getPosition(), m
+						.getLength(), info.id));
+			if (info.mentionInfo != null)
+				mentionInfo.put(bold, new HashMap<>(info.mentionInfo));
+			if (info.candidatesInfo != null) {
+				List<Map<String, Double>> candidates = new Vector<>();
+				for (HashMap<String, Double> candidate : info.candidatesInfo)
+					candidates.add(new HashMap<>(candidate));
+				candidatesInfo.put(bold, candidates);
+			}
+		}
+		return new D2WResult(annotations, mentionInfo, candidatesInfo, 0);
+	}
+
+	/**
+	 * Add the result of a D2W call to the bold cache, one entry per mention.
+	 */
+	private static void putBoldCached(String text, Set<Mention> mentions,
+			String getParameters, D2WResult result) {
+		ConcurrentHashMap<String, BoldInfo> boldCache = WATAnnotator.boldCache;
+		if (boldCache == null)
+			return;
+		String context = boldContext(text, mentions);
+		HashMap<Mention, Integer> mentionToId = new HashMap<>();
+		for (Annotation a : result.getAnnotations())
+			mentionToId.put(new Mention(a.getPosition(), a.getLength()),
+					a.getConcept());
+		for (Mention m : mentions) {
+			String bold = text.substring(m.getPosition(),
+					m.getPosition() + m.getLength());
+			Integer id = mentionToId.get(m);
+			boldCache.put(boldCacheKey(getParameters, bold, context), new BoldInfo(
+					id == null ? -1 : id, result.getMentionInfo().get(bold),
+					result.getCandidatesInfo().get(bold)));
 		}
 	}
 
-	public static void setCache(String cacheFilename)
+	public static synchronized void setCache(String cacheFilename)
 			throws FileNotFoundException, IOException, ClassNotFoundException {
 		if (resultsCacheFilename != null
 				&& resultsCacheFilename.equals(cacheFilename))
@@ -88,16 +415,40 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		if (new File(resultsCacheFilename).exists()) {
 			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
 					resultsCacheFilename));
-			url2jsonCache = (HashMap<String, byte[]>) ois.readObject();
+			HashMap<String, byte[]> cache = (HashMap<String, byte[]>) ois
+					.readObject();
 			ois.close();
+			if (MigrateWatCache.needsMigration(cache)) {
+				System.out.println("Migrating wikisense cache keys...");
+				cache = MigrateWatCache.migrate(cache);
+			}
+			url2jsonCache = new ConcurrentHashMap<>(cache);
 		}
 	}
 
-	public static void unSetCache() {
-		url2jsonCache = new HashMap<>();
+	private static byte[] getCached(String cacheKey) {
+		return url2jsonCache.get(cacheKey);
+	}
+
+	private static void putCached(String cacheKey, byte[] value) {
+		url2jsonCache.put(cacheKey, value);
+	}
+
+	public static synchronized void unSetCache() {
+		url2jsonCache = new ConcurrentHashMap<>();
+		resultsCacheFilename = null;
+		flushCounter.set(0);
 		System.gc();
 	}
 
+	/**
+	 * For disambiguators that offer the same operations without querying
+	 * WAT. Such subclasses must override every operation they support.
+	 */
+	protected WATAnnotator() {
+		this(DEFAULT_HOST, DEFAULT_PORT, "");
+	}
+
 	public WATAnnotator(String ip, int port, String method) {
 		this(ip, port, method, "PAGERANK", "mw", "", "");
 	}
@@ -151,19 +502,22 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		return lastTime;
 	}
 
-	public HashSet<Annotation> solveD2WParams(String text,
-			HashSet<Mention> mentions, String newMinCommonness,
-			String newEpsilon, String kappa) throws JSONException {
+	public D2WResult solveD2WParams(String text, Set<Mention> mentions,
+			String newMinCommonness, String newEpsilon, String kappa)
+			throws JSONException {
 		System.out.println(text.substring(0, Math.min(30, text.length())));
 		HashSet<Annotation> res = new HashSet<Annotation>();
+		HashMap<String, Map<String, Double>> additionalInfo = new HashMap<>();
+		HashMap<String, List<Map<String, Double>>> additionalCandidatesInfo = new HashMap<>();
 		JSONObject obj = null;
+		long time;
 
 		try {
 			obj = queryJson(text, mentions, urlD2W,
-					generateGetParameters(newMinCommonness, newEpsilon, kappa),
-					RETRY_N);
+					generateGetParameters(newMinCommonness, newEpsilon, kappa));
 			System.out.println(obj);
-			lastTime = obj.getJSONObject("time").getInt("total");
+			time = obj.getJSONObject("time").getInt("total");
+			lastTime = time;
 
 		} catch (Exception e) {
 			System.err
@@ -225,26 +579,84 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 				values.put("ambiguity", (double) ambiguity);
 				if (!additionalCandidatesInfo.containsKey(mention))
 					additionalCandidatesInfo.put(mention,
-							new Vector<HashMap<String, Double>>());
+							new Vector<Map<String, Double>>());
 				additionalCandidatesInfo.get(mention).add(values);
 				rank++;
 			}
 		}
-		return res;
+		return new D2WResult(res, additionalInfo, additionalCandidatesInfo,
+				time);
 	}
 
-	@Override
-	public HashSet<Annotation> solveD2W(String text, HashSet<Mention> mentions)
+	/**
+	 * Disambiguate a set of mentions. Unlike {@link #solveD2W(String, HashSet)}
+	 * , the features of mentions and candidates are returned along with the
+	 * annotations. This method is thread-safe.
+	 * 
+	 * @param text
+	 *            the text.
+	 * @param mentions
+	 *            the mentions to disambiguate.
+	 * @return the annotations and the features of mentions and candidates,
+	 *         possibly from the bold cache (see {@link #setBoldCache(String)}
+	 *         ). The features are empty when the D2W problem is reduced to Sa2W
+	 *         (see {@link #setBrutalD2WReduction()}).
+	 * @throws AnnotationException
+	 *             if WAT could not be queried.
+	 */
+	public D2WResult solveD2WWithInfo(String text, HashSet<Mention> mentions)
 			throws AnnotationException {
 		if (brutalD2WReduction)
-			return ProblemReduction.Sa2WToD2W(this.solveSa2W(text), mentions,
-					-1f);
+			return new D2WResult(ProblemReduction.Sa2WToD2W(
+					this.solveSa2W(text), mentions, -1f),
+					new HashMap<String, Map<String, Double>>(),
+					new HashMap<String, List<Map<String, Double>>>(), lastTime);
+		d2wCount.incrementAndGet();
+		String getParameters = generateGetParameters(minCommonness, epsilon,
+				kappa);
+		D2WResult result = getBoldCached(text, mentions, getParameters);
+		if (result != null) {
+			d2wAvoidedCount.incrementAndGet();
+			return result;
+		}
 		try {
-			return solveD2WParams(text, mentions, minCommonness, epsilon, kappa);
+			result = solveD2WParams(text, mentions, minCommonness, epsilon,
+					kappa);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
 		}
+		putBoldCached(text, mentions, getParameters, result);
+		return result;
+	}
+
+	/**
+	 * Issue {@link #solveD2WWithInfo(String, HashSet)} on an executor and
+	 * return at once, so that the caller can do other work while WAT is
+	 * queried.
+	 * 
+	 * @param text
+	 *            the text.
+	 * @param mentions
+	 *            the mentions to disambiguate.
+	 * @param executor
+	 *            the executor running the call.
+	 * @return the pending result of the call.
+	 */
+	public Future<D2WResult> solveD2WAsync(final String text,
+			final HashSet<Mention> mentions, ExecutorService executor) {
+		return executor.submit(new Callable<D2WResult>() {
+			@Override
+			public D2WResult call() throws Exception {
+				return solveD2WWithInfo(text, mentions);
+			}
+		});
+	}
+
+	@Override
+	public HashSet<Annotation> solveD2W(String text, HashSet<Mention> mentions)
+			throws AnnotationException {
+		return new HashSet<>(solveD2WWithInfo(text, mentions).getAnnotations());
 	}
 
 	@Override
@@ -262,7 +674,7 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		if (!minCommonness.equals(""))
 			getParameters += String.format("&minCommonness=%s", minCommonness);
 		try {
-			obj = queryJson(text, null, urlTag, getParameters, RETRY_N);
+			obj = queryJson(text, null, urlTag, getParameters);
 			lastTime = obj.getJSONObject("time").getInt("total");
 
 		} catch (Exception e) {
@@ -304,8 +716,7 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		JSONObject obj = null;
 		try {
 			obj = queryJson(text, null, urlTag,
-					generateGetParameters(minCommonness, epsilon, kappa),
-					RETRY_N);
+					generateGetParameters(minCommonness, epsilon, kappa));
 			lastTime = obj.getJSONObject("time").getInt("total");
 
 		} catch (Exception e) {
@@ -346,7 +757,7 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		JSONObject obj = null;
 		String getParameters = String.format("lang=%s", "en", method);
 		try {
-			obj = queryJson(text, null, urlSpot, getParameters, RETRY_N);
+			obj = queryJson(text, null, urlSpot, getParameters);
 			// System.out.println(obj);
 		} catch (Exception e) {
 			System.out
@@ -403,12 +814,12 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 	}
 
 	private JSONObject queryJson(String text, Set<Mention> mentions,
-			String url, String getParameters, int retry) throws Exception {
+			String url, String getParameters) throws Exception {
 
 		JSONObject parameters = new JSONObject();
 		if (mentions != null) {
 			JSONArray mentionsJson = new JSONArray();
-			for (Mention m : mentions) {
+			for (Mention m : WatCacheKey.sortedMentions(mentions)) {
 				JSONObject mentionJson = new JSONObject();
 				mentionJson.put("start", m.getPosition());
 				mentionJson.put("end", m.getPosition() + m.getLength());
@@ -420,67 +831,41 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		System.out.println(getParameters);
 		System.out.println(parameters.toString());
 
-		String resultStr = null;
-		try {
-			URL wikiSenseApi = new URL(String.format("%s?%s", url,
-					getParameters));
-
-			String cacheKey = wikiSenseApi.toExternalForm()
-					+ parameters.toString();
-			byte[] compressed = url2jsonCache.get(cacheKey);
-			if (compressed != null)
-				return new JSONObject(SmaphUtils.decompress(compressed));
-
-			HttpURLConnection slConnection = (HttpURLConnection) wikiSenseApi
-					.openConnection();
-			slConnection.setReadTimeout(0);
-			slConnection.setDoOutput(true);
-			slConnection.setDoInput(true);
-			slConnection.setRequestMethod("POST");
-			slConnection.setRequestProperty("Content-Type", "application/json");
-			slConnection.setRequestProperty("Content-Length", ""
-					+ parameters.toString().getBytes().length);
-
-			slConnection.setUseCaches(false);
-
-			DataOutputStream wr = new DataOutputStream(
-					slConnection.getOutputStream());
-			wr.write(parameters.toString().getBytes());
-			wr.flush();
-			wr.close();
-
-			if (slConnection.getResponseCode() != 200) {
-				Scanner s = new Scanner(slConnection.getErrorStream())
-						.useDelimiter("\\A");
-				System.err.printf("Got HTTP error %d. Message is: %s%n",
-						slConnection.getResponseCode(), s.next());
-				s.close();
-			}
-
-			Scanner s = new Scanner(slConnection.getInputStream())
-					.useDelimiter("\\A");
-			resultStr = s.hasNext() ? s.next() : "";
-
-			JSONObject obj = new JSONObject(resultStr);
-			url2jsonCache.put(cacheKey, SmaphUtils.compress(obj.toString()));
-			increaseFlushCounter();
-
-			return obj;
-
-		} catch (Exception e) {
-			e.printStackTrace();
-			try {
-				Thread.sleep(3000);
-				if (retry > 0)
-					return queryJson(text, mentions, url, getParameters,
-							retry - 1);
-				else
-					throw e;
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
-				throw new RuntimeException(e1);
+		final URL wikiSenseApi = new URL(String.format("%s?%s", url,
+				getParameters));
+		final String body = parameters.toString();
+		String cacheKey = WatCacheKey.forRequest(wikiSenseApi.getPath(),
+				getParameters, body);
+		byte[] compressed = getCached(cacheKey);
+		if (compressed != null)
+			return new JSONObject(SmaphUtils.decompress(compressed));
+
+		if (OfflineReplay.isEnabled())
+			throw OfflineReplay.miss("wat", wikiSenseApi.toExternalForm() + " "
+					+ body);
+		final Callable<JSONObject> call = new Callable<JSONObject>() {
+			@Override
+			public JSONObject call() throws Exception {
+				HttpPost request = new HttpPost(wikiSenseApi.toExternalForm());
+				StringEntity entity = new StringEntity(body, "UTF-8");
+				entity.setContentType("application/json");
+				request.setEntity(entity);
+				return new JSONObject(HttpClientPool.executeForString(request));
 			}
-		}
+		};
+		final HedgingPolicy hedging = WATAnnotator.hedging;
+		JSONObject obj = Resilience.call(
+				CircuitBreaker.forService(wikiSenseApi.getAuthority()),
+				RETRY_POLICY, hedging == null ? call
+						: new Callable<JSONObject>() {
+							@Override
+							public JSONObject call() throws Exception {
+								return hedging.call(call);
+							}
+						});
+		putCached(cacheKey, SmaphUtils.compress(obj.toString()));
+		increaseFlushCounter();
+		return obj;
 	}
 
 	@Override
@@ -490,7 +875,7 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		String getParameters = String.format(
 				"lang=%s&includeEntities=true&sortBy=SCORE", "en");
 		try {
-			obj = queryJson(text, null, urlSpot, getParameters, RETRY_N);
+			obj = queryJson(text, null, urlSpot, getParameters);
 		} catch (Exception e) {
 			System.out
 					.print("Got error while querying WikiSense API with GET parameters: "
@@ -524,20 +909,6 @@ public class WATAnnotator implements Sa2WSystem, MentionSpotter,
 		return res;
 	}
 
-	public HashMap<String, HashMap<String, Double>> getLastQueryAdditionalInfo() {
-		HashMap<String, HashMap<String, Double>> clone = new HashMap<>(
-				additionalInfo);
-		additionalInfo.clear();
-		return clone;
-	}
-
-	public HashMap<String, List<HashMap<String, Double>>> getLastQueryAdditionalCandidatesInfo() {
-		HashMap<String, List<HashMap<String, Double>>> clone = new HashMap<>(
-				additionalCandidatesInfo);
-		additionalCandidatesInfo.clear();
-		return clone;
-	}
-
 	public void setBrutalD2WReduction() {
 		this.brutalD2WReduction = true;
 	}
@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.unipi.di.acube.batframework.utils;
+
+import it.acubelab.smaph.wikipedia.TitleDictionary;
+
+import java.util.List;
+
+/**
+ * A {@link WikipediaApiInterface} that never calls the Wikipedia API: titles,
+ * ids and redirects are looked up in a {@link TitleDictionary}. Pages that
+ * are not in the dictionary are treated as missing: their id is -1 and their
+ * title is null. Prefetching and flushing do nothing. This class is
+ * thread-safe.
+ */
+public class LocalWikipediaApiInterface extends WikipediaApiInterface {
+	private final TitleDictionary dictionary;
+
+	/**
+	 * @param dictionary
+	 *            the title dictionary.
+	 */
+	public LocalWikipediaApiInterface(TitleDictionary dictionary) {
+		super(null, null);
+		this.dictionary = dictionary;
+	}
+
+	@Override
+	public int getIdByTitle(String title) {
+		return dictionary.getId(title);
+	}
+
+	@Override
+	public String getTitlebyId(int wid) {
+		return dictionary.getTitle(wid);
+	}
+
+	@Override
+	public int dereference(int wid) {
+		return dictionary.dereference(wid);
+	}
+
+	@Override
+	public boolean isRedirect(int wid) {
+		return dereference(wid) != wid;
+	}
+
+	@Override
+	public void prefetchTitles(List<String> titles) {
+	}
+
+	@Override
+	public void prefetchWids(List<Integer> wids) {
+	}
+
+	@Override
+	public void flush() {
+	}
+}
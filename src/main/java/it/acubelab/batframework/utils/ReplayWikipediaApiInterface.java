@@ -0,0 +1,74 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.unipi.di.acube.batframework.utils;
+
+import it.acubelab.smaph.net.OfflineReplay;
+import it.acubelab.smaph.net.ReplayMissException;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link WikipediaApiInterface} that honors the offline replay mode (see
+ * {@link OfflineReplay}): while the mode is enabled, lookups are served only
+ * from the cache files, and a lookup of a title or id that is not cached
+ * fails with a {@link ReplayMissException} instead of calling the Wikipedia
+ * API. Otherwise it behaves as a {@link WikipediaApiInterface}.
+ */
+public class ReplayWikipediaApiInterface extends WikipediaApiInterface {
+
+	/**
+	 * @param bidiTitle2widCacheFile
+	 *            the cache file of title-id mappings.
+	 * @param wid2redirectCacheFile
+	 *            the cache file of redirects.
+	 */
+	public ReplayWikipediaApiInterface(String bidiTitle2widCacheFile,
+			String wid2redirectCacheFile) {
+		super(bidiTitle2widCacheFile, wid2redirectCacheFile);
+	}
+
+	@Override
+	public void prefetchTitles(List<String> titles) throws IOException,
+			ParserConfigurationException, SAXException,
+			XPathExpressionException {
+		if (!OfflineReplay.isEnabled()) {
+			super.prefetchTitles(titles);
+			return;
+		}
+		for (String title : titles)
+			if (!bidiTitle2wid.hasObject(normalize(title)))
+				throw OfflineReplay.miss("wikipedia-title", title);
+	}
+
+	@Override
+	public void prefetchWids(List<Integer> wids) throws IOException,
+			ParserConfigurationException, SAXException,
+			XPathExpressionException {
+		if (!OfflineReplay.isEnabled()) {
+			super.prefetchWids(wids);
+			return;
+		}
+		for (int wid : wids)
+			if (!bidiTitle2wid.hasInt(wid) || !wid2redirect.containsKey(wid))
+				throw OfflineReplay.miss("wikipedia-id", Integer.toString(wid));
+	}
+}
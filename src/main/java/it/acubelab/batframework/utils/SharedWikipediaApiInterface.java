@@ -0,0 +1,248 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.unipi.di.acube.batframework.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link WikipediaApiInterface} meant to be shared by all the requests of a
+ * JVM. Titles, ids and redirects already looked up or prefetched are served
+ * from concurrent maps, without locking, including those of missing pages;
+ * the others are looked up by the {@link WikipediaApiInterface}, one thread
+ * at a time, and then added to the maps. {@link #flush()} does not write the cache files: they are written in
+ * the background, at a fixed interval, if new lookups were made. This class
+ * is thread-safe.
+ */
+public class SharedWikipediaApiInterface extends WikipediaApiInterface
+		implements Closeable {
+	public static final long DEFAULT_FLUSH_INTERVAL = 60000;
+	/**
+	 * Stands for the title of a missing page in {@link #idToTitle}, that
+	 * does not accept null values. Compared by reference.
+	 */
+	private static final String MISSING_TITLE = new String();
+
+	private final ConcurrentHashMap<String, Integer> titleToId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, String> idToTitle = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Integer> redirects = new ConcurrentHashMap<>();
+	private final Object lock = new Object();
+	private final ScheduledExecutorService flusher;
+	private volatile boolean dirty = false;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+
+	/**
+	 * @param bidiTitle2widCacheFile
+	 *            the cache file of title-id mappings.
+	 * @param wid2redirectCacheFile
+	 *            the cache file of redirects.
+	 * @param flushInterval
+	 *            how often the cache files are written, in milliseconds.
+	 */
+	public SharedWikipediaApiInterface(String bidiTitle2widCacheFile,
+			String wid2redirectCacheFile, long flushInterval) {
+		super(bidiTitle2widCacheFile, wid2redirectCacheFile);
+		if (flushInterval <= 0)
+			throw new IllegalArgumentException(
+					"Flush interval must be positive.");
+		flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Wikipedia cache flush");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushNow();
+				} catch (IOException e) {
+					System.err.printf(
+							"Flush of the Wikipedia cache failed (%s).%n", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public int getIdByTitle(String title) throws IOException {
+		Integer wid = titleToId.get(title);
+		if (wid != null) {
+			hitCount.incrementAndGet();
+			return wid;
+		}
+		missCount.incrementAndGet();
+		int res;
+		synchronized (lock) {
+			res = super.getIdByTitle(title);
+		}
+		titleToId.put(title, res);
+		return res;
+	}
+
+	@Override
+	public String getTitlebyId(int wid) throws IOException {
+		String title = idToTitle.get(wid);
+		if (title != null) {
+			hitCount.incrementAndGet();
+			return title == MISSING_TITLE ? null : title;
+		}
+		missCount.incrementAndGet();
+		synchronized (lock) {
+			title = super.getTitlebyId(wid);
+		}
+		idToTitle.put(wid, title == null ? MISSING_TITLE : title);
+		return title;
+	}
+
+	@Override
+	public int dereference(int wid) throws IOException {
+		Integer target = redirects.get(wid);
+		if (target != null) {
+			hitCount.incrementAndGet();
+			return target;
+		}
+		missCount.incrementAndGet();
+		int res;
+		synchronized (lock) {
+			res = super.dereference(wid);
+		}
+		redirects.put(wid, res);
+		return res;
+	}
+
+	@Override
+	public void prefetchTitles(List<String> titles) throws IOException,
+			ParserConfigurationException, SAXException,
+			XPathExpressionException {
+		List<String> missing = new Vector<>();
+		for (String title : titles)
+			if (!titleToId.containsKey(title))
+				missing.add(title);
+		if (missing.isEmpty())
+			return;
+		synchronized (lock) {
+			super.prefetchTitles(missing);
+			for (String title : missing) {
+				String normalized = normalize(title);
+				if (bidiTitle2wid.hasObject(normalized))
+					titleToId.put(title, bidiTitle2wid.getByObject(normalized));
+			}
+		}
+	}
+
+	@Override
+	public void prefetchWids(List<Integer> wids) throws IOException,
+			ParserConfigurationException, SAXException,
+			XPathExpressionException {
+		List<Integer> missing = new Vector<>();
+		for (int wid : wids)
+			if (!idToTitle.containsKey(wid))
+				missing.add(wid);
+		if (missing.isEmpty())
+			return;
+		synchronized (lock) {
+			super.prefetchWids(missing);
+			for (int wid : missing)
+				idToTitle.put(wid, bidiTitle2wid.hasInt(wid) ? bidiTitle2wid
+						.getByInt(wid) : MISSING_TITLE);
+		}
+	}
+
+	/**
+	 * Schedule the cache files to be written by the background flush. It is
+	 * also called by {@link WikipediaApiInterface} while looking up pages,
+	 * so it does not block.
+	 */
+	@Override
+	public void flush() {
+		dirty = true;
+	}
+
+	/**
+	 * Write the cache files now, if new lookups were made since the last
+	 * write.
+	 *
+	 * @throws IOException
+	 *             if the files could not be written.
+	 */
+	public void flushNow() throws IOException {
+		synchronized (lock) {
+			if (!dirty)
+				return;
+			dirty = false;
+			super.flush();
+		}
+		flushCount.incrementAndGet();
+	}
+
+	/**
+	 * Stop the background flush and write the cache files.
+	 */
+	@Override
+	public void close() throws IOException {
+		flusher.shutdownNow();
+		flushNow();
+	}
+
+	/**
+	 * @return the number of lookups served by the concurrent maps.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of lookups served by the
+	 *         {@link WikipediaApiInterface}.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of times the cache files were written.
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d flushes=%d",
+				hitCount.get(), missCount.get(), flushCount.get());
+	}
+}
@@ -0,0 +1,708 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jettison.json.*;
+
+/**
+ * The data SMAPH needs from a response of the Bing Composite API: the URL and
+ * the description of each web result, with the position of the bolds (the
+ * highlighted words) in the description, the estimated number of pages
+ * found, and the related searches. A response is cached as a compact binary
+ * record (see {@link #toBytes()}), so that a cache hit needs no JSON parsing.
+ * The raw JSON response can optionally be kept in the record for debugging,
+ * and the time the response was fetched is kept to tell whether it is stale.
+ */
+public class BingResponse {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] MAGIC = { 'B', 'R' };
+	private static final byte VERSION = 2;
+	public static final char BOLD_START = '\ue000';
+	public static final char BOLD_STOP = '\ue001';
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+	private final boolean valid;
+	private final double webTotal;
+	private final String[] urls;
+	private final String[] snippets;
+	private final int[][] boldPositions;
+	private final String[] relatedSearch;
+	private final byte[] compressedJson;
+	private final long fetchTime;
+
+	private BingResponse(boolean valid, double webTotal, String[] urls,
+			String[] snippets, int[][] boldPositions, String[] relatedSearch,
+			byte[] compressedJson, long fetchTime) {
+		this.valid = valid;
+		this.webTotal = webTotal;
+		this.urls = urls;
+		this.snippets = snippets;
+		this.boldPositions = boldPositions;
+		this.relatedSearch = relatedSearch;
+		this.compressedJson = compressedJson;
+		this.fetchTime = fetchTime;
+	}
+
+	/**
+	 * Build a response from the fields extracted from Bing's reply.
+	 *
+	 * @param valid
+	 *            whether the reply was complete (if not, the query has to be
+	 *            re-issued).
+	 * @param webTotal
+	 *            the WebTotal field.
+	 * @param urls
+	 *            the Url field of the web results.
+	 * @param descriptions
+	 *            the Description field of the web results, including the
+	 *            highlighting markers.
+	 * @param relatedSearch
+	 *            the Title field of the related searches.
+	 * @param compressedJson
+	 *            the gzipped JSON reply, or null if it is not kept. The fetch
+	 *            time of the response is unknown (see
+	 *            {@link #withFetchTime(long)}).
+	 */
+	BingResponse(boolean valid, double webTotal, List<String> urls,
+			List<String> descriptions, List<String> relatedSearch,
+			byte[] compressedJson) {
+		this.valid = valid;
+		this.webTotal = webTotal;
+		this.urls = urls.toArray(new String[urls.size()]);
+		this.snippets = new String[descriptions.size()];
+		this.boldPositions = new int[descriptions.size()][];
+		BoldScanner scanner = new BoldScanner();
+		for (int i = 0; i < descriptions.size(); i++) {
+			snippets[i] = scanner.scan(descriptions.get(i));
+			boldPositions[i] = scanner.getBoldPositions();
+		}
+		this.relatedSearch = relatedSearch.toArray(new String[relatedSearch
+				.size()]);
+		this.compressedJson = compressedJson;
+		this.fetchTime = 0;
+	}
+
+	/**
+	 * Extract the data from a reply of the Bing Composite API.
+	 *
+	 * @param reply
+	 *            the reply.
+	 * @param keepJson
+	 *            whether to keep the reply itself (see {@link #getJson()}).
+	 * @return the response.
+	 * @throws JSONException
+	 *             if the reply could not be read.
+	 * @throws IOException
+	 *             if the reply could not be compressed.
+	 */
+	public static BingResponse fromJson(JSONObject reply, boolean keepJson)
+			throws JSONException, IOException {
+		byte[] compressedJson = keepJson ? gzip(reply.toString()) : null;
+		List<String> urls = new Vector<>();
+		List<String> descriptions = new Vector<>();
+		List<String> relatedSearch = new Vector<>();
+		JSONObject data = reply.optJSONObject("d");
+		JSONArray resultsArray = data == null ? null : data
+				.optJSONArray("results");
+		JSONObject results = resultsArray == null ? null : resultsArray
+				.optJSONObject(0);
+		JSONArray webResults = results == null ? null : results
+				.optJSONArray("Web");
+		String webTotal = results == null ? "" : results.optString("WebTotal");
+		if (webResults == null || webTotal.equals(""))
+			return new BingResponse(false, Double.NaN, urls, descriptions,
+					relatedSearch, compressedJson);
+
+		for (int i = 0; i < webResults.length(); i++) {
+			JSONObject resI = webResults.getJSONObject(i);
+			urls.add(resI.getString("Url"));
+			descriptions.add(resI.getString("Description"));
+		}
+		JSONArray relatedSearchResults = results.optJSONArray("RelatedSearch");
+		if (relatedSearchResults != null)
+			for (int i = 0; i < relatedSearchResults.length(); i++)
+				relatedSearch.add(relatedSearchResults.getJSONObject(i)
+						.getString("Title"));
+		return new BingResponse(true, Double.parseDouble(webTotal), urls,
+				descriptions, relatedSearch, compressedJson);
+	}
+
+	/**
+	 * Read a reply of the Bing Composite API from a stream, extracting only
+	 * the needed fields while the reply is parsed. The reply is read once, and
+	 * is never stored as a whole unless it has to be kept: in that case the
+	 * bytes read are compressed as they stream by.
+	 *
+	 * @param in
+	 *            the stream of the reply. It is read to the end, but not
+	 *            closed.
+	 * @param keepJson
+	 *            whether to keep the reply itself (see {@link #getJson()}).
+	 * @return the response.
+	 * @throws IOException
+	 *             if the stream could not be read or did not contain a valid
+	 *             reply.
+	 */
+	public static BingResponse parse(InputStream in, boolean keepJson)
+			throws IOException {
+		ByteArrayOutputStream compressed = null;
+		GZIPOutputStream gzip = null;
+		if (keepJson) {
+			compressed = new ByteArrayOutputStream();
+			gzip = new GZIPOutputStream(compressed);
+			in = new TeeInputStream(in, gzip);
+		}
+
+		List<String> urls = new Vector<>();
+		List<String> descriptions = new Vector<>();
+		List<String> relatedSearch = new Vector<>();
+		String webTotal = "";
+		boolean hasWeb = false;
+		JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		expect(parser, JsonToken.START_OBJECT);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			parser.nextToken();
+			if (!parser.getCurrentName().equals("d")
+					|| parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				parser.nextToken();
+				if (!parser.getCurrentName().equals("results")
+						|| parser.getCurrentToken() != JsonToken.START_ARRAY) {
+					parser.skipChildren();
+					continue;
+				}
+				boolean first = true;
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					if (!first
+							|| parser.getCurrentToken() != JsonToken.START_OBJECT) {
+						parser.skipChildren();
+						continue;
+					}
+					first = false;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.getCurrentName();
+						JsonToken value = parser.nextToken();
+						if (field.equals("WebTotal") && value.isScalarValue())
+							webTotal = parser.getText();
+						else if (field.equals("Web")
+								&& value == JsonToken.START_ARRAY) {
+							hasWeb = true;
+							for (Map<String, String> fields : readObjects(parser)) {
+								urls.add(require(parser, fields, "Url"));
+								descriptions.add(require(parser, fields,
+										"Description"));
+							}
+						} else if (field.equals("RelatedSearch")
+								&& value == JsonToken.START_ARRAY)
+							for (Map<String, String> fields : readObjects(parser))
+								relatedSearch.add(require(parser, fields,
+										"Title"));
+						else
+							parser.skipChildren();
+					}
+				}
+			}
+		}
+		parser.close();
+
+		byte[] compressedJson = null;
+		if (keepJson) {
+			byte[] buf = new byte[8192];
+			while (in.read(buf) >= 0)
+				;
+			gzip.close();
+			compressedJson = compressed.toByteArray();
+		}
+		boolean valid = hasWeb && !webTotal.equals("");
+		return new BingResponse(valid, valid ? Double.parseDouble(webTotal)
+				: Double.NaN, valid ? urls : new Vector<String>(),
+				valid ? descriptions : new Vector<String>(), valid ? relatedSearch
+						: new Vector<String>(), compressedJson);
+	}
+
+	private static void expect(JsonParser parser, JsonToken token)
+			throws IOException {
+		if (parser.nextToken() != token)
+			throw new JsonParseException("Expected " + token + " in Bing reply",
+					parser.getCurrentLocation());
+	}
+
+	/**
+	 * Read the scalar fields of the objects in the array the parser is at,
+	 * skipping everything else.
+	 */
+	private static List<Map<String, String>> readObjects(JsonParser parser)
+			throws IOException {
+		List<Map<String, String>> objects = new Vector<>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			Map<String, String> fields = new HashMap<>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				if (parser.nextToken().isScalarValue())
+					fields.put(field, parser.getText());
+				else
+					parser.skipChildren();
+			}
+			objects.add(fields);
+		}
+		return objects;
+	}
+
+	private static String require(JsonParser parser,
+			Map<String, String> fields, String field) throws IOException {
+		String value = fields.get(field);
+		if (value == null)
+			throw new JsonParseException("Missing field " + field
+					+ " in Bing reply", parser.getCurrentLocation());
+		return value;
+	}
+
+	/**
+	 * An input stream that copies the bytes read to an output stream.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				copy.write(b, off, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buf = new byte[(int) Math.min(n, 8192)];
+			int read = read(buf, 0, buf.length);
+			return read < 0 ? 0 : read;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the highlighting markers from descriptions, finding the position
+	 * of the bolds in a single pass. A bold is the text between a start marker
+	 * and the following stop marker. A stop marker, any character and a start
+	 * marker become a space, so that bolds separated by a single character are
+	 * merged. Stop markers outside a bold, and a start marker that is never
+	 * closed, are kept as text. The buffers are reused across calls.
+	 */
+	static class BoldScanner {
+		private final StringBuilder snippet = new StringBuilder();
+		private int[] positions = new int[16];
+		private int size = 0;
+
+		/**
+		 * @param description
+		 *            the description of a web result.
+		 * @return the snippet, i.e. the description without markers. The
+		 *         position of the bolds is given by
+		 *         {@link #getBoldPositions()}.
+		 */
+		String scan(String description) {
+			snippet.setLength(0);
+			size = 0;
+			int boldStart = -1;
+			int length = description.length();
+			for (int i = 0; i < length; i++) {
+				char c = description.charAt(i);
+				if (c == BOLD_STOP) {
+					int merged = mergedLength(description, i);
+					if (merged > 0) {
+						snippet.append(' ');
+						i += merged - 1;
+					} else if (boldStart >= 0) {
+						addBold(boldStart, snippet.length() - boldStart);
+						boldStart = -1;
+					} else
+						snippet.append(c);
+				} else if (c == BOLD_START && boldStart < 0)
+					boldStart = snippet.length();
+				else
+					snippet.append(c);
+			}
+			if (boldStart >= 0)
+				snippet.insert(boldStart, BOLD_START);
+			return snippet.toString();
+		}
+
+		/**
+		 * @return the number of characters made of the stop marker at
+		 *         position i, the character that follows and a start marker,
+		 *         or 0 if there is no such sequence.
+		 */
+		private static int mergedLength(String description, int i) {
+			int next = i + 1;
+			if (next >= description.length()
+					|| isLineTerminator(description.charAt(next)))
+				return 0;
+			int afterNext = next
+					+ Character.charCount(description.codePointAt(next));
+			if (afterNext < description.length()
+					&& description.charAt(afterNext) == BOLD_START)
+				return afterNext - i + 1;
+			return 0;
+		}
+
+		private static boolean isLineTerminator(char c) {
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+					|| c == '\u2029';
+		}
+
+		private void addBold(int position, int length) {
+			if (size + 2 > positions.length)
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			positions[size++] = position;
+			positions[size++] = length;
+		}
+
+		/**
+		 * @return the position and the length of each bold found by the last
+		 *         call to {@link #scan(String)}, interleaved.
+		 */
+		int[] getBoldPositions() {
+			return Arrays.copyOf(positions, size);
+		}
+	}
+
+	/**
+	 * @param fetchTime
+	 *            the time the response was fetched from Bing, in milliseconds
+	 *            since the epoch.
+	 * @return a copy of this response with the given fetch time.
+	 */
+	public BingResponse withFetchTime(long fetchTime) {
+		return new BingResponse(valid, webTotal, urls, snippets,
+				boldPositions, relatedSearch, compressedJson, fetchTime);
+	}
+
+	/**
+	 * @return the time the response was fetched from Bing, in milliseconds
+	 *         since the epoch, or 0 if unknown (e.g. for records written
+	 *         before fetch times were kept).
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	/**
+	 * @return false if Bing's reply was incomplete and the query has to be
+	 *         re-issued.
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * @return the number of pages found by Bing.
+	 */
+	public double getWebTotal() {
+		return webTotal;
+	}
+
+	/**
+	 * @return the number of web results.
+	 */
+	public int getResultCount() {
+		return urls.length;
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @return the URL of the result.
+	 */
+	public String getUrl(int rank) {
+		return urls[rank];
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @return the description of the result, without highlighting markers.
+	 */
+	public String getSnippet(int rank) {
+		return snippets[rank];
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @return the number of bolds in the description of the result.
+	 */
+	public int getBoldCount(int rank) {
+		return boldPositions[rank].length / 2;
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @param bold
+	 *            the index of a bold in the description of the result.
+	 * @return the position of the bold in the snippet.
+	 */
+	public int getBoldPosition(int rank, int bold) {
+		return boldPositions[rank][2 * bold];
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @param bold
+	 *            the index of a bold in the description of the result.
+	 * @return the length of the bold.
+	 */
+	public int getBoldLength(int rank, int bold) {
+		return boldPositions[rank][2 * bold + 1];
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of a web result.
+	 * @param bold
+	 *            the index of a bold in the description of the result.
+	 * @return the bold.
+	 */
+	public String getBold(int rank, int bold) {
+		int pos = getBoldPosition(rank, bold);
+		return snippets[rank].substring(pos, pos + getBoldLength(rank, bold));
+	}
+
+	/**
+	 * @return the titles of the related searches.
+	 */
+	public List<String> getRelatedSearch() {
+		return Collections.unmodifiableList(Arrays.asList(relatedSearch));
+	}
+
+	/**
+	 * @return the JSON reply of Bing, or null if it was not kept.
+	 * @throws JSONException
+	 *             if the reply could not be parsed.
+	 * @throws IOException
+	 *             if the reply could not be decompressed.
+	 */
+	public JSONObject getJson() throws JSONException, IOException {
+		if (compressedJson == null)
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				compressedJson))) {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = in.read(buf)) >= 0)
+				out.write(buf, 0, read);
+		}
+		return new JSONObject(new String(out.toByteArray(), UTF8));
+	}
+
+	/**
+	 * Rebuild a reply of the Bing Composite API carrying the data of this
+	 * response, with the bolds of the descriptions surrounded by highlighting
+	 * markers. Parsing the reply gives back an equivalent response. Fields
+	 * that SMAPH does not read are not included.
+	 *
+	 * @return the reply, or a reply with no results if this response is not
+	 *         valid.
+	 * @throws JSONException
+	 *             if the reply could not be built.
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject results = new JSONObject();
+		if (valid) {
+			results.put("WebTotal", webTotal == Math.rint(webTotal) ? String
+					.valueOf((long) webTotal) : String.valueOf(webTotal));
+			JSONArray web = new JSONArray();
+			for (int i = 0; i < urls.length; i++) {
+				StringBuilder description = new StringBuilder(snippets[i]);
+				for (int b = boldPositions[i].length - 2; b >= 0; b -= 2) {
+					description.insert(
+							boldPositions[i][b] + boldPositions[i][b + 1],
+							BOLD_STOP);
+					description.insert(boldPositions[i][b], BOLD_START);
+				}
+				JSONObject result = new JSONObject();
+				result.put("Url", urls[i]);
+				result.put("Description", description.toString());
+				web.put(result);
+			}
+			results.put("Web", web);
+			JSONArray related = new JSONArray();
+			for (String title : relatedSearch)
+				related.put(new JSONObject().put("Title", title));
+			results.put("RelatedSearch", related);
+		}
+		return new JSONObject().put("d",
+				new JSONObject().put("results", new JSONArray().put(results)));
+	}
+
+	private static byte[] gzip(String str) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(str.getBytes(UTF8));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param data
+	 *            a cached value.
+	 * @return true iff the value is a record written by {@link #toBytes()},
+	 *         as opposed to a gzipped JSON reply (the old cache format).
+	 */
+	public static boolean isRecord(byte[] data) {
+		return data.length > MAGIC.length && data[0] == MAGIC[0]
+				&& data[1] == MAGIC[1];
+	}
+
+	/**
+	 * @return the binary record of this response. The record is made of: the
+	 *         magic bytes "BR", the format version (byte), the fetch time
+	 *         (long, only since version 2), valid (boolean),
+	 *         webTotal (double), the number of results (int), and for each
+	 *         result its URL, its snippet, the number of bolds (int) and the
+	 *         position and length of each bold (int, int); then the number of
+	 *         related searches (int) and their titles, the length of the
+	 *         gzipped JSON reply (int, -1 if not kept) and the reply. Strings
+	 *         are stored as their length in bytes (int) followed by their
+	 *         UTF-8 encoding.
+	 */
+	public byte[] toBytes() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(fetchTime);
+			out.writeBoolean(valid);
+			out.writeDouble(webTotal);
+			out.writeInt(urls.length);
+			for (int i = 0; i < urls.length; i++) {
+				writeString(out, urls[i]);
+				writeString(out, snippets[i]);
+				out.writeInt(boldPositions[i].length / 2);
+				for (int pos : boldPositions[i])
+					out.writeInt(pos);
+			}
+			out.writeInt(relatedSearch.length);
+			for (String rs : relatedSearch)
+				writeString(out, rs);
+			if (compressedJson == null)
+				out.writeInt(-1);
+			else {
+				out.writeInt(compressedJson.length);
+				out.write(compressedJson);
+			}
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// Cannot happen on a byte array.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param record
+	 *            a record written by {@link #toBytes()}, in the current or
+	 *            in an older version.
+	 * @return the response stored in the record.
+	 */
+	public static BingResponse fromBytes(byte[] record) {
+		ByteBuffer in = ByteBuffer.wrap(record);
+		in.position(MAGIC.length);
+		byte version = in.get();
+		if (version < 1 || version > VERSION)
+			throw new IllegalArgumentException(
+					"Unknown Bing response record version " + version);
+		long fetchTime = version >= 2 ? in.getLong() : 0;
+		boolean valid = in.get() != 0;
+		double webTotal = in.getDouble();
+		int results = in.getInt();
+		String[] urls = new String[results];
+		String[] snippets = new String[results];
+		int[][] boldPositions = new int[results][];
+		for (int i = 0; i < results; i++) {
+			urls[i] = readString(in);
+			snippets[i] = readString(in);
+			boldPositions[i] = new int[in.getInt() * 2];
+			for (int j = 0; j < boldPositions[i].length; j++)
+				boldPositions[i][j] = in.getInt();
+		}
+		String[] relatedSearch = new String[in.getInt()];
+		for (int i = 0; i < relatedSearch.length; i++)
+			relatedSearch[i] = readString(in);
+		byte[] compressedJson = null;
+		int jsonLength = in.getInt();
+		if (jsonLength >= 0) {
+			compressedJson = new byte[jsonLength];
+			in.get(compressedJson);
+		}
+		return new BingResponse(valid, webTotal, urls, snippets,
+				boldPositions, relatedSearch, compressedJson, fetchTime);
+	}
+
+	private static void writeString(DataOutputStream out, String str)
+			throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		String str = new String(in.array(), in.position(), length, UTF8);
+		in.position(in.position() + length);
+		return str;
+	}
+}
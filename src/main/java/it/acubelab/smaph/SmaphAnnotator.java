@@ -19,36 +19,65 @@ package it.acubelab.smaph;
 import it.unipi.di.acube.batframework.data.*;
 import it.unipi.di.acube.batframework.problems.Sa2WSystem;
 import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator.D2WResult;
 import it.unipi.di.acube.batframework.utils.*;
 import it.acubelab.smaph.boldfilters.*;
+import it.acubelab.smaph.cache.BingCacheKey;
+import it.acubelab.smaph.cache.CacheLog;
+import it.acubelab.smaph.cache.MigrateBingCache;
+import it.acubelab.smaph.cache.StaleWhileRevalidate;
+import it.acubelab.smaph.cache.TinyLfuCache;
 import it.acubelab.smaph.entityfilters.*;
 import it.acubelab.smaph.linkback.LinkBack;
 import it.acubelab.smaph.main.ERDDatasetFilter;
+import it.acubelab.smaph.net.CircuitBreaker;
+import it.acubelab.smaph.net.CircuitOpenException;
+import it.acubelab.smaph.net.HedgingPolicy;
+import it.acubelab.smaph.net.HttpClientPool;
+import it.acubelab.smaph.net.OfflineReplay;
+import it.acubelab.smaph.net.ReplayMissException;
+import it.acubelab.smaph.net.Resilience;
+import it.acubelab.smaph.net.RetryPolicy;
+import it.acubelab.smaph.wikipedia.ResolvedEntities;
 import it.cnr.isti.hpc.erd.WikipediaToFreebase;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import java.util.concurrent.*;
 
 import org.apache.commons.lang3.tuple.ImmutableTriple;
 import org.apache.commons.lang3.tuple.Triple;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
 import org.codehaus.jettison.json.*;
-import org.xml.sax.SAXException;
 
 import com.sun.org.apache.xml.internal.security.utils.Base64;
 
 public class SmaphAnnotator implements Sa2WSystem {
 	private static final String WIKI_URL_LEADING = "http://en.wikipedia.org/wiki/";
+	public static final String DEFAULT_BING_ENDPOINT = "https://api.datamarket.azure.com/Bing/Search/v1/Composite";
 	private static final int BING_RETRY = 3;
+	private static final RetryPolicy BING_RETRY_POLICY = new RetryPolicy(
+			BING_RETRY + 1, 500, 8000);
+	private static final RetryPolicy BING_REFRESH_POLICY = new RetryPolicy(1,
+			0, 0);
+	private static final int REFRESH_THREADS = 2;
 	private String bingKey;
-	private static final int FLUSH_EVERY = 50;
+	private String bingEndpoint = DEFAULT_BING_ENDPOINT;
+	private ExecutorService searchExecutor;
+	private boolean earlyDisambiguation = true;
 	public static final String WIKITITLE_ENDPAR_REGEX = "\\s*\\([^\\)]*\\)\\s*$";
-	private static HashMap<String, byte[]> url2jsonCache = new HashMap<>();
+	public static final long DEFAULT_CACHE_MEMORY = 256L * 1024 * 1024;
+	public static final int DEFAULT_SEARCH_THREADS = 32;
+	private static volatile TinyLfuCache url2jsonCache = new TinyLfuCache(
+			DEFAULT_CACHE_MEMORY);
+	private static final ConcurrentHashMap<String, FutureTask<BingResponse>> inFlightQueries = new ConcurrentHashMap<>();
+	private static volatile boolean keepRawResponses = false;
 	private static String resultsCacheFilename;
-	private static int flushCounter = 0;
+	private static volatile CacheLog bingCacheLog;
+	private static volatile StaleWhileRevalidate bingCacheRefresher;
+	private static volatile HedgingPolicy bingHedging;
 	private WikipediaApiInterface wikiApi;
 
 	private WATAnnotator auxDisambiguator;
@@ -112,23 +141,111 @@ public class SmaphAnnotator implements Sa2WSystem {
 
 	/**
 	 * Set an optional debugger to gather data about the process of a query.
+	 * Setting a debugger makes Bing responses fetched from now on keep their
+	 * raw JSON (see {@link #setKeepRawResponses(boolean)}).
 	 * 
 	 * @param debugger
 	 *            the debugger.
 	 */
 	public void setDebugger(SmaphAnnotatorDebugger debugger) {
 		this.debugger = debugger;
+		if (debugger != null)
+			setKeepRawResponses(true);
+	}
+
+	/**
+	 * Set the executor used to issue the searches to Bing. If an executor is
+	 * set, the normal search, the Wikipedia search and the related search of a
+	 * query are issued concurrently and joined before the bolds are filtered.
+	 * If it is null (the default), they are issued one after the other.
+	 * 
+	 * @param searchExecutor
+	 *            the executor, or null to issue the searches sequentially.
+	 */
+	public void setSearchExecutor(ExecutorService searchExecutor) {
+		this.searchExecutor = searchExecutor;
+	}
+
+	/**
+	 * Set whether the disambiguation of the bolds (Source 1) is issued as
+	 * soon as the normal search returns, on the search executor, so that it
+	 * overlaps the Wikipedia search and the related search. Otherwise, it is
+	 * issued after all searches returned. Has no effect if no search
+	 * executor is set. Defaults to true.
+	 * 
+	 * @param earlyDisambiguation
+	 *            whether to overlap the disambiguation and the searches.
+	 */
+	public void setEarlyDisambiguation(boolean earlyDisambiguation) {
+		this.earlyDisambiguation = earlyDisambiguation;
+	}
+
+	/**
+	 * Set the URL of the Bing Composite search API.
+	 * 
+	 * @param bingEndpoint
+	 *            the URL of the API, without the query string.
+	 */
+	public void setBingEndpoint(String bingEndpoint) {
+		this.bingEndpoint = bingEndpoint;
+	}
+
+	/**
+	 * Set whether the Bing responses fetched from now on should keep Bing's
+	 * raw JSON reply in the cache, besides the extracted data. The raw reply
+	 * is only used by the debugger, and is not kept by default.
+	 * 
+	 * @param keep
+	 *            whether to keep the raw replies.
+	 */
+	public static void setKeepRawResponses(boolean keep) {
+		keepRawResponses = keep;
 	}
 
-	private static synchronized void increaseFlushCounter()
-			throws FileNotFoundException, IOException {
-		flushCounter++;
-		if (flushCounter % FLUSH_EVERY == 0)
-			flush();
+	/**
+	 * Look up a response in the Bing cache: first in memory, then in the cache
+	 * log (if a cache file is set). Responses read from the log are kept in
+	 * memory for later requests.
+	 * 
+	 * @param key
+	 *            the key of the response.
+	 * @return the cached response (a {@link BingResponse} record, or gzipped
+	 *         JSON if cached in the old format), or null if it is not cached.
+	 * @throws IOException
+	 *             if the response could not be read from the log.
+	 */
+	private static byte[] getCachedResponse(String key) throws IOException {
+		TinyLfuCache memoryCache = url2jsonCache;
+		byte[] record = memoryCache.get(key);
+		CacheLog log = bingCacheLog;
+		if (record == null && log != null) {
+			record = log.get(key);
+			if (record != null)
+				memoryCache.put(key, record);
+		}
+		return record;
+	}
+
+	/**
+	 * Add a response to the Bing cache. The response is appended to the cache
+	 * log (if a cache file is set) by a background writer.
+	 * 
+	 * @param key
+	 *            the key of the response.
+	 * @param record
+	 *            the response, as a {@link BingResponse} record.
+	 */
+	private static void cacheResponse(String key, byte[] record) {
+		url2jsonCache.put(key, record);
+		CacheLog log = bingCacheLog;
+		if (log != null)
+			log.append(key, record);
 	}
 
 	/**
-	 * Flushes the cache of the Bing api.
+	 * Flushes the cache of the Bing api, blocking until all responses cached
+	 * so far have been written to disk. Responses are written in the
+	 * background anyway: calling this method is only needed before exiting.
 	 * 
 	 * @throws FileNotFoundException
 	 *             if the file exists but is a directory rather than a regular
@@ -137,15 +254,11 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * @throws IOException
 	 *             if an I/O error occurred.
 	 */
-	public static synchronized void flush() throws FileNotFoundException,
-			IOException {
-		if (flushCounter > 0 && resultsCacheFilename != null) {
+	public static void flush() throws FileNotFoundException, IOException {
+		CacheLog log = bingCacheLog;
+		if (log != null) {
 			SmaphAnnotatorDebugger.out.print("Flushing Bing cache... ");
-			new File(resultsCacheFilename).createNewFile();
-			ObjectOutputStream oos = new ObjectOutputStream(
-					new FileOutputStream(resultsCacheFilename));
-			oos.writeObject(url2jsonCache);
-			oos.close();
+			log.flush();
 			SmaphAnnotatorDebugger.out.println("Flushing Bing cache Done.");
 		}
 	}
@@ -183,49 +296,32 @@ public class SmaphAnnotator implements Sa2WSystem {
 	}
 
 	/**
-	 * Call the disambiguator and disambiguate the bolds.
+	 * Map the bolds to the annotations found by the disambiguator.
 	 * 
 	 * @param text
 	 *            concatenated bolds.
-	 * @param mentions
-	 *            mentions (one per bold).
+	 * @param result
+	 *            the result of the disambiguator for the concatenated bolds.
 	 * @return a triple that has: additional info returned by the annotator for
 	 *         the query as left element; the mapping from bold to annotation as
 	 *         middle element; additional candidates info as right element.
-	 * @throws IOException
-	 * @throws XPathExpressionException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
 	 */
-	private Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>> disambiguateBolds(
-			String text, HashSet<Mention> mentions) throws IOException,
-			XPathExpressionException, ParserConfigurationException,
-			SAXException {
-		HashSet<Annotation> anns;
-		anns = auxDisambiguator.solveD2W(text, mentions);
-		if (anns == null)
-			return new Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>>(
-					new HashMap<String, HashMap<String, Double>>(),
-					new HashMap<String, Annotation>());
-
-		List<Integer> widsToPrefetch = new Vector<>();
-		for (Annotation ann : anns)
-			widsToPrefetch.add(ann.getConcept());
-		wikiApi.prefetchWids(widsToPrefetch);
-
-		HashMap<String, List<HashMap<String, Double>>> additionalCandidatesInfo = auxDisambiguator
-				.getLastQueryAdditionalCandidatesInfo();
-		for (String mention : additionalCandidatesInfo.keySet())
-			additionalCandidatesInfo.put(mention,
-					additionalCandidatesInfo.get(mention));
+	private static Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>> disambiguateBolds(
+			String text, D2WResult result) {
+		Set<Annotation> anns = result.getAnnotations();
 
 		HashMap<String, Annotation> spotToAnnotation = new HashMap<>();
 		for (Annotation ann : anns)
 			spotToAnnotation.put(
 					text.substring(ann.getPosition(),
 							ann.getPosition() + ann.getLength()), ann);
+		HashMap<String, HashMap<String, Double>> additionalInfo = new HashMap<>();
+		for (Map.Entry<String, Map<String, Double>> e : result.getMentionInfo()
+				.entrySet())
+			additionalInfo.put(e.getKey(),
+					new HashMap<String, Double>(e.getValue()));
 		return new Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>>(
-				auxDisambiguator.getLastQueryAdditionalInfo(), spotToAnnotation);
+				additionalInfo, spotToAnnotation);
 	}
 
 	@Override
@@ -237,6 +333,12 @@ public class SmaphAnnotator implements Sa2WSystem {
 		HashSet<ScoredAnnotation> annotations = new HashSet<>();
 		try {
 
+			/** Issue all searches to bing */
+			List<Future<BingSearch>> searchFutures = startBingSearches(query,
+					true);
+			BingSearch[] searches = new BingSearch[searchFutures.size()];
+			searches[0] = awaitSearch(searchFutures, 0);
+
 			/** Search the query on bing */
 			List<Pair<String, Integer>> bingBoldsAndRankNS = null;
 			List<String> urls = null;
@@ -248,20 +350,16 @@ public class SmaphAnnotator implements Sa2WSystem {
 			HashMap<Integer, Integer> rankToIdNS = null;
 			HashMap<Integer, HashSet<String>> rankToBoldsNS = null;
 			List<Pair<String, Vector<Pair<Integer, Integer>>>> snippetsToBolds = null;
-			if (includeSourceAnnotator || includeSourceWikiSearch
-					|| includeSourceRelatedSearch || includeSourceNormalSearch) {
-				bingBoldsAndRankNS = new Vector<>();
-				urls = new Vector<>();
-				relatedSearchRes = new Vector<>();
-				snippetsToBolds = new Vector<>();
-				resCountAndWebTotalNS = takeBingData(query, bingBoldsAndRankNS,
-						urls, relatedSearchRes, snippetsToBolds,
-						Integer.MAX_VALUE, false);
+			if (searches[0] != null) {
+				bingBoldsAndRankNS = searches[0].boldsAndRanks;
+				urls = searches[0].urls;
+				relatedSearchRes = searches[0].relatedSearch;
+				snippetsToBolds = searches[0].snippetsToBolds;
+				resCountAndWebTotalNS = searches[0].resCountAndWebTotal;
 				resultsCount = resCountAndWebTotalNS.getLeft();
 				webTotalNS = resCountAndWebTotalNS.getMiddle();
 				filteredBolds = boldFilter.filterBolds(query,
 						bingBoldsAndRankNS, resultsCount);
-				rankToIdNS = urlsToRankID(urls);
 				rankToBoldsNS = new HashMap<>();
 				SmaphUtils.mapRankToBoldsLC(bingBoldsAndRankNS, rankToBoldsNS,
 						null);
@@ -271,12 +369,42 @@ public class SmaphAnnotator implements Sa2WSystem {
 							bingBoldsAndRankNS);
 					debugger.addSnippets(query, snippetsToBolds);
 					debugger.addBoldFilterOutput(query, filteredBolds);
-					debugger.addSource2SearchResult(query, rankToIdNS, urls);
 					debugger.addBingResponseNormalSearch(query,
 							resCountAndWebTotalNS.getRight());
 				}
 			}
 
+			/**
+			 * Disambiguate the bolds while the other searches are in flight
+			 */
+			Pair<String, HashSet<Mention>> annInput = null;
+			Future<D2WResult> disambiguation = null;
+			if (includeSourceAnnotator) {
+				annInput = concatenateBolds(filteredBolds);
+				disambiguation = startDisambiguation(annInput);
+			}
+			try {
+				for (int i = 1; i < searches.length; i++)
+					searches[i] = awaitSearch(searchFutures, i);
+			} catch (Exception e) {
+				if (disambiguation != null)
+					disambiguation.cancel(true);
+				throw e;
+			}
+			D2WResult disambiguationResult = null;
+			if (includeSourceAnnotator)
+				disambiguationResult = awaitDisambiguation(disambiguation,
+						annInput);
+
+			/** Resolve the Wikipedia pages found by all sources at once */
+			ResolvedEntities entities = resolveEntities(searches,
+					disambiguationResult);
+			if (searches[0] != null) {
+				rankToIdNS = urlsToRankID(urls, entities);
+				if (debugger != null)
+					debugger.addSource2SearchResult(query, rankToIdNS, urls);
+			}
+
 			/** Do the WikipediaSearch on bing. */
 			List<String> wikiSearchUrls = new Vector<>();
 			List<Pair<String, Integer>> bingBoldsAndRankWS = new Vector<>();
@@ -284,11 +412,13 @@ public class SmaphAnnotator implements Sa2WSystem {
 			Triple<Integer, Double, JSONObject> resCountAndWebTotalWS = null;
 			HashMap<Integer, HashSet<String>> rankToBoldsWS = null;
 			double webTotalWS = Double.NaN;
-			if (includeSourceWikiSearch | includeSourceNormalSearch) {
-				resCountAndWebTotalWS = takeBingData(query, bingBoldsAndRankWS,
-						wikiSearchUrls, null, null, topKWikiSearch, true);
+			if (searches[1] != null) {
+				wikiSearchUrls = searches[1].urls;
+				bingBoldsAndRankWS = searches[1].boldsAndRanks;
+				resCountAndWebTotalWS = searches[1].resCountAndWebTotal;
 				webTotalWS = resCountAndWebTotalWS.getMiddle();
-				HashMap<Integer, Integer> rankToIdWikiSearch = urlsToRankID(wikiSearchUrls);
+				HashMap<Integer, Integer> rankToIdWikiSearch = urlsToRankID(
+						wikiSearchUrls, entities);
 				rankToBoldsWS = new HashMap<>();
 				SmaphUtils.mapRankToBoldsLC(bingBoldsAndRankWS, rankToBoldsWS,
 						null);
@@ -299,7 +429,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 							resCountAndWebTotalWS.getRight());
 
 				}
-				annTitlesToIdAndRankWS = adjustTitles(rankToIdWikiSearch);
+				annTitlesToIdAndRankWS = adjustTitles(rankToIdWikiSearch,
+						entities);
 			}
 
 			/** Do the RelatedSearch on bing */
@@ -310,16 +441,16 @@ public class SmaphAnnotator implements Sa2WSystem {
 			HashMap<String, Pair<Integer, Integer>> annTitlesToIdAndRankRS = null;
 			double webTotalRelatedSearch = Double.NaN;
 			HashMap<Integer, HashSet<String>> rankToBoldsRS = null;
-			if (includeSourceRelatedSearch) {
+			if (searches[2] != null) {
 				relatedSearch = getRelatedSearch(relatedSearchRes, query);
-				relatedSearchUrls = new Vector<>();
-				bingBoldsAndRankRS = new Vector<>();
-				Triple<Integer, Double, JSONObject> resCountAndWebTotalRS = takeBingData(
-						query, bingBoldsAndRankRS, relatedSearchUrls, null,
-						null, topKRelatedSearch, false);
+				relatedSearchUrls = searches[2].urls;
+				bingBoldsAndRankRS = searches[2].boldsAndRanks;
+				Triple<Integer, Double, JSONObject> resCountAndWebTotalRS = searches[2].resCountAndWebTotal;
 				webTotalRelatedSearch = resCountAndWebTotalRS.getMiddle();
-				rankToIdRelatedSearch = urlsToRankID(relatedSearchUrls);
-				annTitlesToIdAndRankRS = adjustTitles(rankToIdRelatedSearch);
+				rankToIdRelatedSearch = urlsToRankID(relatedSearchUrls,
+						entities);
+				annTitlesToIdAndRankRS = adjustTitles(rankToIdRelatedSearch,
+						entities);
 				rankToBoldsRS = new HashMap<>();
 				SmaphUtils.mapRankToBoldsLC(bingBoldsAndRankRS, rankToBoldsRS,
 						null);
@@ -330,11 +461,9 @@ public class SmaphAnnotator implements Sa2WSystem {
 			Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>> infoAndAnnotations = null;
 			HashMap<String, Annotation> spotToAnnotation = null;
 			HashMap<String, HashMap<String, Double>> additionalInfo = null;
-			Pair<String, HashSet<Mention>> annInput = null;
 			if (includeSourceAnnotator) {
-				annInput = concatenateBolds(filteredBolds);
 				infoAndAnnotations = disambiguateBolds(annInput.first,
-						annInput.second);
+						disambiguationResult);
 				spotToAnnotation = infoAndAnnotations.second;
 				additionalInfo = infoAndAnnotations.first;
 
@@ -376,7 +505,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 					int wid = rankToIdNS.get(rank);
 					HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 							query, wid, rank, webTotalNS, webTotalWS,
-							bingBoldsAndRankNS, 2);
+							bingBoldsAndRankNS, 2, entities);
 					HashSet<String> bolds = rankToBoldsNS.get(rank);
 					boolean accept = entityFilter.filterEntity(ESFeatures);
 					if (accept)
@@ -400,7 +529,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 					int rank = annTitlesToIdAndRankWS.get(annotatedTitleWS).second;
 					HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 							query, wid, rank, webTotalNS, webTotalWS,
-							bingBoldsAndRankWS, 3);
+							bingBoldsAndRankWS, 3, entities);
 
 					HashSet<String> bolds = rankToBoldsWS.get(rank);
 					boolean accept = entityFilter.filterEntity(ESFeatures);
@@ -426,7 +555,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 					int rank = annTitlesToIdAndRankRS.get(annotatedTitleRS).second;
 					HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 							relatedSearch, wid, rank, webTotalNS,
-							webTotalRelatedSearch, bingBoldsAndRankRS, 5);
+							webTotalRelatedSearch, bingBoldsAndRankRS, 5,
+							entities);
 
 					HashSet<String> bolds = rankToBoldsRS.get(rank);
 					boolean accept = entityFilter.filterEntity(ESFeatures);
@@ -438,7 +568,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 
 			/** Link entities back to query mentions */
 
-			annotations = linkBack.linkBack(query, boldsToAcceptedEntity);
+			annotations = linkBack.linkBack(query, boldsToAcceptedEntity,
+					entities);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -489,23 +620,20 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * @param rankToIdWS
 	 *            a mapping from a rank (position in the search engine result)
 	 *            to the Wikipedia ID of the page in that rank.
+	 * @param entities
+	 *            the Wikipedia pages resolved for the query.
 	 * @return a mapping from adjusted titles to a pair <wid, rank>
 	 */
-	private HashMap<String, Pair<Integer, Integer>> adjustTitles(
-			HashMap<Integer, Integer> rankToIdWS) {
+	private static HashMap<String, Pair<Integer, Integer>> adjustTitles(
+			HashMap<Integer, Integer> rankToIdWS, ResolvedEntities entities) {
 		HashMap<String, Pair<Integer, Integer>> res = new HashMap<>();
 		for (int rank : rankToIdWS.keySet()) {
 			int wid = rankToIdWS.get(rank);
-			try {
-				String title = wikiApi.getTitlebyId(wid);
-				if (title != null) {
-					title = title.replaceAll(WIKITITLE_ENDPAR_REGEX, "");
+			String title = entities.getTitle(wid);
+			if (title != null) {
+				title = title.replaceAll(WIKITITLE_ENDPAR_REGEX, "");
 
-					res.put(title, new Pair<Integer, Integer>(wid, rank));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				throw new RuntimeException();
+				res.put(title, new Pair<Integer, Integer>(wid, rank));
 			}
 		}
 		return res;
@@ -535,26 +663,221 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * @param bingReply
 	 *            Bing's reply.
 	 * @return whether the query to bing failed and has to be re-issued.
-	 * @throws JSONException
-	 *             if the Bing result could not be read.
 	 */
-	private static boolean recacheNeeded(JSONObject bingReply)
-			throws JSONException {
-		if (bingReply == null)
-			return true;
-		JSONObject data = (JSONObject) bingReply.get("d");
-		if (data == null)
-			return true;
-		JSONObject results = (JSONObject) ((JSONArray) data.get("results"))
-				.get(0);
-		if (results == null)
-			return true;
-		JSONArray webResults = (JSONArray) results.get("Web");
-		if (webResults == null)
-			return true;
-		if (((String) results.get("WebTotal")).equals(""))
-			return true;
-		return false;
+	private static boolean recacheNeeded(BingResponse bingReply) {
+		return bingReply == null || !bingReply.isValid();
+	}
+
+	/**
+	 * The data extracted from a single search issued to Bing.
+	 */
+	static class BingSearch {
+		List<Pair<String, Integer>> boldsAndRanks = new Vector<>();
+		List<String> urls = new Vector<>();
+		List<String> relatedSearch;
+		List<Pair<String, Vector<Pair<Integer, Integer>>>> snippetsToBolds;
+		Triple<Integer, Double, JSONObject> resCountAndWebTotal;
+	}
+
+	/**
+	 * @param query
+	 *            the query to be issued to Bing
+	 * @param takeRelatedSearch
+	 *            whether to store the "related search" suggestions.
+	 * @param takeSnippets
+	 *            whether to store the snippets and the bolds found in them.
+	 * @param topk
+	 *            limit to top-k results.
+	 * @param wikisearch
+	 *            whether to append the word "wikipedia" to the query or not.
+	 * @return a task that issues the search to Bing and extracts its data.
+	 */
+	private Callable<BingSearch> bingSearchTask(final String query,
+			final boolean takeRelatedSearch, final boolean takeSnippets,
+			final int topk, final boolean wikisearch) {
+		return new Callable<BingSearch>() {
+			@Override
+			public BingSearch call() throws Exception {
+				BingSearch search = new BingSearch();
+				if (takeRelatedSearch)
+					search.relatedSearch = new Vector<>();
+				if (takeSnippets)
+					search.snippetsToBolds = new Vector<>();
+				search.resCountAndWebTotal = takeBingData(query,
+						search.boldsAndRanks, search.urls,
+						search.relatedSearch, search.snippetsToBolds, topk,
+						wikisearch);
+				return search;
+			}
+		};
+	}
+
+	/**
+	 * Issue to Bing all the searches needed by the enabled sources. The
+	 * searches do not depend on each other: if a search executor has been set,
+	 * they are issued concurrently, otherwise one after the other.
+	 * 
+	 * @param query
+	 *            the input query.
+	 * @param takeSnippets
+	 *            whether to store the snippets of the normal search.
+	 * @return an array holding the normal search, the Wikipedia search and the
+	 *         related search, in this order. An element is null if the search
+	 *         was not needed.
+	 * @throws Exception
+	 *             if something went wrong while querying Bing.
+	 */
+	BingSearch[] searchBing(String query, boolean takeSnippets)
+			throws Exception {
+		List<Future<BingSearch>> futures = startBingSearches(query,
+				takeSnippets);
+		BingSearch[] searches = new BingSearch[futures.size()];
+		for (int i = 0; i < futures.size(); i++)
+			searches[i] = awaitSearch(futures, i);
+		return searches;
+	}
+
+	/**
+	 * Start the searches of {@link #searchBing(String, boolean)}. If a search
+	 * executor has been set, the searches are submitted to it, otherwise
+	 * each search is run when it is awaited (see
+	 * {@link #awaitSearch(List, int)}).
+	 * 
+	 * @return the pending normal search, Wikipedia search and related search,
+	 *         in this order. An element is null if the search is not needed.
+	 */
+	private List<Future<BingSearch>> startBingSearches(String query,
+			boolean takeSnippets) {
+		List<Callable<BingSearch>> tasks = new Vector<>();
+		tasks.add(includeSourceAnnotator || includeSourceWikiSearch
+				|| includeSourceRelatedSearch || includeSourceNormalSearch ? bingSearchTask(
+				query, true, takeSnippets, Integer.MAX_VALUE, false) : null);
+		tasks.add(includeSourceWikiSearch | includeSourceNormalSearch ? bingSearchTask(
+				query, false, false, topKWikiSearch, true) : null);
+		tasks.add(includeSourceRelatedSearch ? bingSearchTask(query, false,
+				false, topKRelatedSearch, false) : null);
+
+		List<Future<BingSearch>> futures = new Vector<>();
+		for (Callable<BingSearch> task : tasks)
+			if (task == null)
+				futures.add(null);
+			else if (searchExecutor == null)
+				futures.add(new FutureTask<>(task));
+			else
+				futures.add(searchExecutor.submit(task));
+		return futures;
+	}
+
+	/**
+	 * Wait for a search started by {@link #startBingSearches(String, boolean)}
+	 * , running it if it was not submitted to an executor. If the search
+	 * failed, all searches are cancelled.
+	 * 
+	 * @param futures
+	 *            the pending searches.
+	 * @param i
+	 *            the index of the search to wait for.
+	 * @return the search, or null if it was not needed.
+	 * @throws Exception
+	 *             if something went wrong while querying Bing.
+	 */
+	private static BingSearch awaitSearch(List<Future<BingSearch>> futures,
+			int i) throws Exception {
+		Future<BingSearch> future = futures.get(i);
+		if (future == null)
+			return null;
+		if (future instanceof FutureTask && !future.isDone())
+			((FutureTask<BingSearch>) future).run();
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			for (Future<BingSearch> f : futures)
+				if (f != null)
+					f.cancel(true);
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Issue the disambiguation of the bolds on the search executor, if early
+	 * disambiguation is enabled (see {@link #setEarlyDisambiguation(boolean)}
+	 * ).
+	 * 
+	 * @param annInput
+	 *            the concatenated bolds and their mentions.
+	 * @return the pending disambiguation, or null if it has to be issued
+	 *         later, by {@link #awaitDisambiguation(Future, Pair)}.
+	 */
+	private Future<D2WResult> startDisambiguation(
+			Pair<String, HashSet<Mention>> annInput) {
+		if (searchExecutor == null || !earlyDisambiguation)
+			return null;
+		return auxDisambiguator.solveD2WAsync(annInput.first,
+				annInput.second, searchExecutor);
+	}
+
+	/**
+	 * @param disambiguation
+	 *            the pending disambiguation returned by
+	 *            {@link #startDisambiguation(Pair)}.
+	 * @param annInput
+	 *            the concatenated bolds and their mentions.
+	 * @return the result of the disambiguation of the bolds.
+	 * @throws Exception
+	 *             if something went wrong while querying the disambiguator.
+	 */
+	private D2WResult awaitDisambiguation(Future<D2WResult> disambiguation,
+			Pair<String, HashSet<Mention>> annInput) throws Exception {
+		if (disambiguation == null)
+			return auxDisambiguator.solveD2WWithInfo(annInput.first,
+					annInput.second);
+		try {
+			return disambiguation.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Issue the Bing searches and the disambiguation of the bolds that
+	 * {@link #solveSa2W(String)} needs for a query, without annotating it. The
+	 * responses end up in the caches, so that annotating the query later
+	 * needs no call to Bing nor to the disambiguator. The Wikipedia API is
+	 * not called.
+	 * 
+	 * @param query
+	 *            the query.
+	 * @throws Exception
+	 *             if something went wrong while querying Bing or the
+	 *             disambiguator.
+	 */
+	public void warmUp(String query) throws Exception {
+		List<Future<BingSearch>> searchFutures = startBingSearches(query,
+				false);
+		BingSearch normalSearch = awaitSearch(searchFutures, 0);
+		Pair<String, HashSet<Mention>> annInput = null;
+		Future<D2WResult> disambiguation = null;
+		if (includeSourceAnnotator && normalSearch != null) {
+			List<String> filteredBolds = boldFilter.filterBolds(query,
+					normalSearch.boldsAndRanks,
+					normalSearch.resCountAndWebTotal.getLeft());
+			annInput = concatenateBolds(filteredBolds);
+			disambiguation = startDisambiguation(annInput);
+		}
+		try {
+			for (int i = 1; i < searchFutures.size(); i++)
+				awaitSearch(searchFutures, i);
+		} catch (Exception e) {
+			if (disambiguation != null)
+				disambiguation.cancel(true);
+			throw e;
+		}
+		if (annInput != null)
+			awaitDisambiguation(disambiguation, annInput);
 	}
 
 	/**
@@ -574,7 +897,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 *            that snippet&gt;
 	 * @return a triple &lt;results, webTotal, bingReply&gt; where results is
 	 *         the number of results returned by Bing, webTotal is the number of
-	 *         pages found by Bing, and bingReply is the raw Bing reply.
+	 *         pages found by Bing, and bingReply is the raw Bing reply (only
+	 *         if a debugger is set and the reply was kept, null otherwise).
 	 * @param topk
 	 *            limit to top-k results.
 	 * @param wikisearch
@@ -594,27 +918,16 @@ public class SmaphAnnotator implements Sa2WSystem {
 			throw new RuntimeException("urls must be empty");
 		if (wikisearch)
 			query += " wikipedia";
-		JSONObject bingReply = queryBing(query, BING_RETRY);
-		JSONObject data = (JSONObject) bingReply.get("d");
-		JSONObject results = (JSONObject) ((JSONArray) data.get("results"))
-				.get(0);
-		JSONArray webResults = (JSONArray) results.get("Web");
-		double webTotal = new Double((String) results.get("WebTotal"));
-
-		getBoldsAndUrls(webResults, topk, boldsAndRanks, urls, snippetsToBolds);
-
-		if (relatedSearch != null) {
-			JSONArray relatedSearchResults = (JSONArray) results
-					.get("RelatedSearch");
-			for (int i = 0; i < relatedSearchResults.length(); i++) {
-				JSONObject resI = (JSONObject) relatedSearchResults.get(i);
-				String rsI = (String) resI.get("Title");
-				relatedSearch.add(rsI);
-			}
-		}
+		BingResponse bingReply = queryBing(query);
+
+		getBoldsAndUrls(bingReply, topk, boldsAndRanks, urls, snippetsToBolds);
+
+		if (relatedSearch != null)
+			relatedSearch.addAll(bingReply.getRelatedSearch());
 
 		return new ImmutableTriple<Integer, Double, JSONObject>(
-				webResults.length(), webTotal, bingReply);
+				bingReply.getResultCount(), bingReply.getWebTotal(),
+				debugger != null ? bingReply.getJson() : null);
 	}
 
 	/**
@@ -645,8 +958,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 	/**
 	 * From the bing results extract the bolds and the urls.
 	 * 
-	 * @param webResults
-	 *            the web results returned by Bing.
+	 * @param bingReply
+	 *            the response returned by Bing.
 	 * @param topk
 	 *            limit the extraction to the first topk results.
 	 * @param boldsAndRanks
@@ -656,126 +969,237 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * @param snippetsToBolds
 	 *            storage for the list of pairs &lt;snippets, the bolds found in
 	 *            that snippet&gt;
-	 * @throws JSONException
-	 *             if the json returned by Bing could not be read.
 	 */
-	private static void getBoldsAndUrls(JSONArray webResults, double topk,
+	private static void getBoldsAndUrls(BingResponse bingReply, double topk,
 			List<Pair<String, Integer>> boldsAndRanks, List<String> urls,
-			List<Pair<String, Vector<Pair<Integer, Integer>>>> snippetsToBolds)
-			throws JSONException {
-		for (int i = 0; i < Math.min(webResults.length(), topk); i++) {
-			String snippet = "";
-			JSONObject resI = (JSONObject) webResults.get(i);
-			String descI = (String) resI.get("Description");
-			String url = (String) resI.get("Url");
-			urls.add(url);
-
-			byte[] startByte = new byte[] { (byte) 0xee, (byte) 0x80,
-					(byte) 0x80 };
-			byte[] stopByte = new byte[] { (byte) 0xee, (byte) 0x80,
-					(byte) 0x81 };
-			String start = new String(startByte);
-			String stop = new String(stopByte);
-			descI = descI.replaceAll(stop + "." + start, " ");
-			int startIdx = descI.indexOf(start);
-			int stopIdx = descI.indexOf(stop, startIdx);
-			int lastStop = -1;
+			List<Pair<String, Vector<Pair<Integer, Integer>>>> snippetsToBolds) {
+		for (int i = 0; i < Math.min(bingReply.getResultCount(), topk); i++) {
+			urls.add(bingReply.getUrl(i));
 			Vector<Pair<Integer, Integer>> boldPosInSnippet = new Vector<>();
-			while (startIdx != -1 && stopIdx != -1) {
-				String spot = descI.subSequence(startIdx + 1, stopIdx)
-						.toString();
+			for (int j = 0; j < bingReply.getBoldCount(i); j++) {
+				String spot = bingReply.getBold(i, j);
 				boldsAndRanks.add(new Pair<String, Integer>(spot, i));
-				SmaphAnnotatorDebugger.out.printf("Rank:%d Bold:%s%n", i, spot);
-				snippet += descI.substring(lastStop + 1, startIdx);
-				boldPosInSnippet.add(new Pair<Integer, Integer>(snippet
-						.length(), spot.length()));
-				snippet += spot;
-				lastStop = stopIdx;
-				startIdx = descI.indexOf(start, startIdx + 1);
-				stopIdx = descI.indexOf(stop, startIdx + 1);
+				boldPosInSnippet.add(new Pair<Integer, Integer>(bingReply
+						.getBoldPosition(i, j), bingReply.getBoldLength(i, j)));
 			}
-			snippet += descI.substring(lastStop + 1);
 			if (snippetsToBolds != null)
 				snippetsToBolds
 						.add(new Pair<String, Vector<Pair<Integer, Integer>>>(
-								snippet, boldPosInSnippet));
-
+								bingReply.getSnippet(i), boldPosInSnippet));
 		}
 	}
 
 	/**
-	 * Issue the query to bing, return the json object.
+	 * Issue the query to bing, return its response. The query is
+	 * canonicalized, and responses are cached by canonical query (see
+	 * {@link BingCacheKey}). Reading the cache never blocks; concurrent calls
+	 * that miss the cache for the same query share a single call to the API.
+	 * Calls to the API go through the Bing circuit breaker and are retried
+	 * with exponential backoff, also if the response is incomplete. While the
+	 * breaker is open, or in offline replay mode (see {@link OfflineReplay}),
+	 * only cached responses are served. If a cache TTL is set, a cached
+	 * response older than the TTL is served as is, and refreshed in the
+	 * background (see {@link #setCacheTtl(long, double)}).
 	 * 
 	 * @param query
 	 *            the query.
-	 * @param retryLeft
-	 *            how many retry left we have (if zero, will return an empty
-	 *            object in case of failure).
-	 * @return the JSON object as returned by the Bing Api.
+	 * @return the response of the Bing Api.
+	 * @throws CircuitOpenException
+	 *             if the response is not cached and the Bing circuit breaker
+	 *             is open.
+	 * @throws ReplayMissException
+	 *             if the response is not cached and the offline replay mode
+	 *             is enabled.
 	 * @throws Exception
 	 *             is the call to the API failed.
 	 */
-	private synchronized JSONObject queryBing(String query, int retryLeft)
-			throws Exception {
-		boolean forceCacheOverride = retryLeft < BING_RETRY;
-		if (forceCacheOverride)
-			Thread.sleep(1000);
-		String accountKeyAuth = Base64.encode(
-				(bingKey + ":" + bingKey).getBytes(), 0);
-
-		URL url = new URL(
-				"https://api.datamarket.azure.com/Bing/Search/v1/Composite?Sources=%27web%2Bspell%2BRelatedSearch%27&Query=%27"
-						+ URLEncoder.encode(query, "utf8")
-						+ "%27&Options=%27EnableHighlighting%27&Market=%27en-US%27&Adult=%27Off%27&$format=Json");
-
-		JSONObject result = null;
-		byte[] compressed = url2jsonCache.get(url.toExternalForm());
-		if (compressed != null)
-			result = new JSONObject(SmaphUtils.decompress(compressed));
-
-		boolean cached = !forceCacheOverride && result != null;
-		SmaphAnnotatorDebugger.out.printf("%s%s %s%n",
-				forceCacheOverride ? "<forceCacheOverride>" : "",
-				cached ? "<cached>" : "Querying", url);
-		if (!cached) {
-			HttpURLConnection connection = (HttpURLConnection) url
-					.openConnection();
-			connection.setConnectTimeout(0);
-			connection.setRequestProperty("Authorization", "Basic "
-					+ accountKeyAuth);
-			connection.setRequestProperty("Accept", "*/*");
-			connection
-					.setRequestProperty("Content-Type", "multipart/form-data");
-
-			connection.setUseCaches(false);
-
-			if (connection.getResponseCode() != 200) {
-				Scanner s = new Scanner(connection.getErrorStream())
-						.useDelimiter("\\A");
-				System.err.printf("Got HTTP error %d. Message is: %s%n",
-						connection.getResponseCode(), s.next());
-				s.close();
-				throw new RuntimeException("Got response code:"
-						+ connection.getResponseCode());
+	private BingResponse queryBing(String query) throws Exception {
+		final String key = BingCacheKey.forQuery(query);
+		final URL url = new URL(bingEndpoint + "?Query=%27"
+				+ URLEncoder.encode(BingCacheKey.canonicalQuery(query), "utf8")
+				+ "%27&" + BingCacheKey.REQUEST_PARAMETERS);
+
+		byte[] cachedRecord = getCachedResponse(key);
+		if (cachedRecord != null) {
+			BingResponse result = readCachedResponse(key, cachedRecord);
+			if (!recacheNeeded(result)) {
+				SmaphAnnotatorDebugger.out.printf("<cached> %s%n", url);
+				StaleWhileRevalidate refresher = bingCacheRefresher;
+				if (refresher != null
+						&& !OfflineReplay.isEnabled()
+						&& refresher.isStale(fetchTime(key, result),
+								System.currentTimeMillis()))
+					refresher.refresh(key, new Callable<BingResponse>() {
+						@Override
+						public BingResponse call() throws Exception {
+							return Resilience.call(CircuitBreaker
+									.forService(url.getAuthority()),
+									BING_REFRESH_POLICY,
+									completeResponseTask(key, url));
+						}
+					});
+				return result;
 			}
-
-			Scanner s = new Scanner(connection.getInputStream())
-					.useDelimiter("\\A");
-			String resultStr = s.hasNext() ? s.next() : "";
-			result = new JSONObject(resultStr);
-			url2jsonCache.put(url.toExternalForm(),
-					SmaphUtils.compress(result.toString()));
-			increaseFlushCounter();
 		}
 
-		if (recacheNeeded(result) && retryLeft > 0)
-			return queryBing(query, retryLeft - 1);
+		if (OfflineReplay.isEnabled())
+			throw OfflineReplay.miss("bing", BingCacheKey.canonicalQuery(query));
+		SmaphAnnotatorDebugger.out.printf("Querying %s%n", url);
+		return Resilience.call(CircuitBreaker.forService(url.getAuthority()),
+				BING_RETRY_POLICY, completeResponseTask(key, url));
+	}
+
+	/**
+	 * @param key
+	 *            the cache key of the query.
+	 * @param url
+	 *            the url of the Bing Api.
+	 * @return a task that fetches the response of the Bing Api, failing if
+	 *         the response is incomplete.
+	 */
+	private Callable<BingResponse> completeResponseTask(final String key,
+			final URL url) {
+		return new Callable<BingResponse>() {
+			@Override
+			public BingResponse call() throws Exception {
+				BingResponse result = fetchBingCoalesced(key, url);
+				if (recacheNeeded(result))
+					throw new IOException(
+							"Bing returned an incomplete response.");
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Read a cached Bing response. Responses cached in the old format
+	 * (gzipped JSON) are converted, and the cache is updated with the
+	 * converted response.
+	 * 
+	 * @param key
+	 *            the key of the response.
+	 * @param cachedRecord
+	 *            the cached response.
+	 * @return the response.
+	 * @throws Exception
+	 *             if the cached response could not be read.
+	 */
+	private static BingResponse readCachedResponse(String key,
+			byte[] cachedRecord) throws Exception {
+		if (BingResponse.isRecord(cachedRecord))
+			return BingResponse.fromBytes(cachedRecord);
+		BingResponse response = BingResponse.fromJson(
+				new JSONObject(SmaphUtils.decompress(cachedRecord)),
+				keepRawResponses).withFetchTime(fetchTime(key, null));
+		cacheResponse(key, response.toBytes());
+		return response;
+	}
+
+	/**
+	 * @param key
+	 *            the key of a cached response.
+	 * @param response
+	 *            the response, or null.
+	 * @return the time the response was fetched. For responses cached before
+	 *         fetch times were kept, the time the response was written to the
+	 *         cache log; 0 if that is not known either.
+	 */
+	private static long fetchTime(String key, BingResponse response) {
+		if (response != null && response.getFetchTime() > 0)
+			return response.getFetchTime();
+		CacheLog log = bingCacheLog;
+		return log == null ? 0 : log.getWriteTime(key);
+	}
+
+	/**
+	 * Fetch the response of the Bing Api for an URL, joining the call that is
+	 * already fetching the same query, if any.
+	 * 
+	 * @param key
+	 *            the cache key of the query.
+	 * @param url
+	 *            the url of the Bing Api.
+	 * @return the response of the Bing Api.
+	 * @throws Exception
+	 *             is the call to the API failed.
+	 */
+	private BingResponse fetchBingCoalesced(final String key, final URL url)
+			throws Exception {
+		FutureTask<BingResponse> task = new FutureTask<>(
+				new Callable<BingResponse>() {
+					@Override
+					public BingResponse call() throws Exception {
+						return fetchBing(key, url);
+					}
+				});
+		FutureTask<BingResponse> running = inFlightQueries.putIfAbsent(key,
+				task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				inFlightQueries.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
 
+	/**
+	 * Call the Bing Api and add its response to the cache, if it is complete.
+	 * 
+	 * @param key
+	 *            the cache key of the query.
+	 * @param url
+	 *            the url of the Bing Api.
+	 * @return the response of the Bing Api.
+	 * @throws Exception
+	 *             is the call to the API failed.
+	 */
+	private BingResponse fetchBing(String key, final URL url) throws Exception {
+		Callable<BingResponse> call = new Callable<BingResponse>() {
+			@Override
+			public BingResponse call() throws Exception {
+				String accountKeyAuth = Base64.encode(
+						(bingKey + ":" + bingKey).getBytes(), 0);
+
+				HttpGet request = new HttpGet(url.toExternalForm());
+				request.setHeader("Authorization", "Basic " + accountKeyAuth);
+				request.setHeader("Accept", "*/*");
+				request.setHeader("Content-Type", "multipart/form-data");
+
+				HttpEntity entity = HttpClientPool.execute(request).getEntity();
+				try (InputStream in = entity.getContent()) {
+					return BingResponse.parse(in, keepRawResponses)
+							.withFetchTime(System.currentTimeMillis());
+				}
+			}
+		};
+		HedgingPolicy hedging = bingHedging;
+		BingResponse result = hedging == null ? call.call() : hedging
+				.call(call);
+		if (!recacheNeeded(result))
+			cacheResponse(key, result.toBytes());
 		return result;
 	}
 
 	/**
-	 * Set the file to which the Bing responses cache is bound.
+	 * Set the file to which the Bing responses cache is bound. Responses are
+	 * stored in an append-only log whose segments are named
+	 * <code>cacheFilename.N.log</code> (see {@link CacheLog}). If there is no
+	 * such log but cacheFilename is a cache in the old format (a serialized
+	 * HashMap), its content is imported in a new log, with keys migrated (see
+	 * {@link MigrateBingCache}). The old file is left untouched. Responses are
+	 * read from the log on demand, and only the most requested ones are kept
+	 * in memory (see {@link #setCacheMemory(long)}). Several processes can
+	 * bind to the same file at once: they share the responses on disk through
+	 * the page cache, and see the responses stored by each other.
 	 * 
 	 * @param cacheFilename
 	 *            the cache file name.
@@ -786,40 +1210,140 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * @throws ClassNotFoundException
 	 *             is the file contained an object of the wrong class.
 	 */
-	public static void setCache(String cacheFilename)
+	public static synchronized void setCache(String cacheFilename)
 			throws FileNotFoundException, IOException, ClassNotFoundException {
 		if (resultsCacheFilename != null
 				&& resultsCacheFilename.equals(cacheFilename))
 			return;
 		System.out.println("Loading bing cache...");
+		if (bingCacheLog != null)
+			bingCacheLog.close();
+		boolean importOldCache = !CacheLog.exists(cacheFilename)
+				&& new File(cacheFilename).exists();
+		CacheLog log = new CacheLog(cacheFilename);
+		if (importOldCache) {
+			System.out.printf("Importing old bing cache %s...%n",
+					cacheFilename);
+			MigrateBingCache.importLegacyCache(cacheFilename, log);
+		} else if (MigrateBingCache.needsMigration(log))
+			System.err.printf(
+					"Bing cache %s has keys in the old format, that will not be found. Migrate it with %s.%n",
+					cacheFilename, MigrateBingCache.class.getName());
 		resultsCacheFilename = cacheFilename;
-		if (new File(resultsCacheFilename).exists()) {
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
-					resultsCacheFilename));
-			url2jsonCache = (HashMap<String, byte[]>) ois.readObject();
-			ois.close();
-		}
+		bingCacheLog = log;
+		url2jsonCache.clear();
+		System.out.printf("Bing cache has %d responses.%n", log.size());
+	}
+
+	/**
+	 * Set the maximum number of bytes of Bing responses kept in memory. When
+	 * the bound is exceeded, the least frequently requested responses are
+	 * dropped from memory (they are still read from the cache file, if set).
+	 * If the bound changes, the responses currently in memory are discarded.
+	 * 
+	 * @param bytes
+	 *            the memory bound, in bytes.
+	 */
+	public static synchronized void setCacheMemory(long bytes) {
+		if (url2jsonCache.getMaxWeight() != bytes)
+			url2jsonCache = new TinyLfuCache(bytes);
+	}
+
+	/**
+	 * Set a time-to-live for the cached Bing responses. A response fetched
+	 * longer ago than the TTL is stale: it is still served at once, and it is
+	 * fetched again in the background, at a bounded rate (see
+	 * {@link StaleWhileRevalidate}). Refreshes go through the Bing circuit
+	 * breaker and are not retried; a response whose refresh failed stays in
+	 * the cache. By default, responses never expire. If the TTL and the rate
+	 * are unchanged, the refreshes currently running are kept.
+	 * 
+	 * @param ttl
+	 *            the TTL in milliseconds, or 0 for responses that never
+	 *            expire.
+	 * @param refreshesPerSecond
+	 *            the maximum number of refreshes started per second.
+	 */
+	public static synchronized void setCacheTtl(long ttl,
+			double refreshesPerSecond) {
+		StaleWhileRevalidate old = bingCacheRefresher;
+		if (old == null ? ttl <= 0 : old.getTtl() == ttl
+				&& old.getRefreshesPerSecond() == refreshesPerSecond)
+			return;
+		bingCacheRefresher = ttl > 0 ? new StaleWhileRevalidate(ttl,
+				refreshesPerSecond, REFRESH_THREADS) : null;
+		if (old != null)
+			old.shutdown();
+	}
+
+	/**
+	 * Hedge the calls to the Bing Api: a call that has not answered within a
+	 * percentile of the observed latencies is issued again, and the first
+	 * response is taken (see {@link HedgingPolicy}). By default, calls are not
+	 * hedged.
+	 * 
+	 * @param hedging
+	 *            the hedging policy, or null to disable hedging.
+	 */
+	public static void setBingHedging(HedgingPolicy hedging) {
+		bingHedging = hedging;
+	}
+
+	/**
+	 * @return the policy hedging the calls to the Bing Api, that exposes
+	 *         hedging counters, or null if calls are not hedged.
+	 */
+	public static HedgingPolicy getBingHedging() {
+		return bingHedging;
+	}
+
+	/**
+	 * @return the policy refreshing stale Bing responses, that exposes
+	 *         refresh counters, or null if responses never expire.
+	 */
+	public static StaleWhileRevalidate getCacheRefresher() {
+		return bingCacheRefresher;
+	}
+
+	/**
+	 * @return the in-memory tier of the Bing cache, that exposes hit, miss
+	 *         and eviction counters.
+	 */
+	public static TinyLfuCache getMemoryCache() {
+		return url2jsonCache;
 	}
 
 	/**
 	 * Add all records contained in the cache passed by argument to the static
-	 * cache, overwriting in case of conflicting keys.
+	 * cache, overwriting in case of conflicting keys. Keys in the old format
+	 * (request URLs) are migrated.
 	 * 
 	 * @param newCache
 	 *            the cache whose records are added.
 	 */
-	public static void mergeCache(HashMap<String, byte[]> newCache) {
+	public static synchronized void mergeCache(HashMap<String, byte[]> newCache) {
 		for (String key : newCache.keySet()) {
-			url2jsonCache.put(key, newCache.get(key));
-			flushCounter++;
+			String newKey = MigrateBingCache.LEGACY_KEY_MAPPER.map(key);
+			if (newKey != null)
+				cacheResponse(newKey, newCache.get(key));
 		}
 	}
 
 	/**
-	 * Clear the Bing response cache and call the garbage collector.
+	 * Clear the Bing response cache, unbind it from its file and call the
+	 * garbage collector. Pending writes to the file are completed.
 	 */
-	public static void unSetCache() {
-		url2jsonCache = new HashMap<>();
+	public static synchronized void unSetCache() {
+		if (bingCacheLog != null)
+			try {
+				bingCacheLog.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+		bingCacheLog = null;
+		resultsCacheFilename = null;
+		url2jsonCache = new TinyLfuCache(url2jsonCache.getMaxWeight());
 		System.gc();
 	}
 
@@ -830,9 +1354,12 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 * 
 	 * @param urls
 	 *            a list of urls.
+	 * @param entities
+	 *            the Wikipedia pages resolved for the query.
 	 * @return a mapping from position to Wikipedia page IDs.
 	 */
-	private HashMap<Integer, Integer> urlsToRankID(List<String> urls) {
+	private static HashMap<Integer, Integer> urlsToRankID(List<String> urls,
+			ResolvedEntities entities) {
 		HashMap<Integer, Integer> result = new HashMap<>();
 		HashMap<Integer, String> rankToTitle = new HashMap<>();
 		for (int i = 0; i < urls.size(); i++) {
@@ -841,19 +1368,8 @@ public class SmaphAnnotator implements Sa2WSystem {
 				rankToTitle.put(i, title);
 		}
 
-		try {
-			wikiApi.prefetchTitles(new Vector<String>(rankToTitle.values()));
-		} catch (XPathExpressionException | IOException
-				| ParserConfigurationException | SAXException e) {
-			throw new RuntimeException(e);
-		}
 		for (int rank : rankToTitle.keySet()) {
-			int wid;
-			try {
-				wid = wikiApi.getIdByTitle(rankToTitle.get(rank));
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+			int wid = entities.getId(rankToTitle.get(rank));
 			if (wid != -1) {
 				result.put(rank, wid);
 				SmaphAnnotatorDebugger.out.printf(
@@ -867,6 +1383,38 @@ public class SmaphAnnotator implements Sa2WSystem {
 		return result;
 	}
 
+	/**
+	 * Resolve, in a single batch, the titles of the Wikipedia pages found by
+	 * the searches and the Wikipedia IDs of the entities found by the
+	 * disambiguator.
+	 * 
+	 * @param searches
+	 *            the searches issued to Bing, as returned by
+	 *            {@link #searchBing(String, boolean)}.
+	 * @param disambiguation
+	 *            the result of the disambiguator for the bolds, or null if
+	 *            Source 1 is not enabled.
+	 * @return the resolved Wikipedia pages.
+	 * @throws IOException
+	 *             if the lookups to Wikipedia failed.
+	 */
+	private ResolvedEntities resolveEntities(BingSearch[] searches,
+			D2WResult disambiguation) throws IOException {
+		List<String> titles = new Vector<>();
+		for (BingSearch search : searches)
+			if (search != null)
+				for (String url : search.urls) {
+					String title = decodeWikiUrl(url);
+					if (title != null)
+						titles.add(title);
+				}
+		List<Integer> wids = new Vector<>();
+		if (disambiguation != null)
+			for (Annotation ann : disambiguation.getAnnotations())
+				wids.add(ann.getConcept());
+		return ResolvedEntities.resolve(wikiApi, titles, wids);
+	}
+
 	/**
 	 * Generates the Entity Selection features for an entity drawn from Source 1
 	 * (Annotator)
@@ -928,12 +1476,14 @@ public class SmaphAnnotator implements Sa2WSystem {
 	 *            the list of bolds spotted by Bing for the Wikisearch plus their position.
 	 * @param source
 	 *            Source id (3 for WikiSearch)
+	 * @param entities
+	 *            the Wikipedia pages resolved for the query.
 	 * @return a mapping between feature name and its value.
 	 */
-	private HashMap<String, Double> generateEntitySelectionFeaturesSearch(
+	private static HashMap<String, Double> generateEntitySelectionFeaturesSearch(
 			String query, int wid, int rank, double webTotal,
 			double wikiWebTotal, List<Pair<String, Integer>> bingBoldsWS,
-			int source) {
+			int source, ResolvedEntities entities) {
 
 		String sourceName = "s" + source;
 		HashMap<String, Double> result = new HashMap<>();
@@ -941,12 +1491,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 		result.put(sourceName + "_rank", (double) rank);
 		result.put(sourceName + "_webTotal", (double) webTotal);
 		result.put(sourceName + "_wikiWebTotal", (double) wikiWebTotal);
-		String title;
-		try {
-			title = wikiApi.getTitlebyId(wid);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		String title = entities.getTitle(wid);
 		result.put(sourceName + "_editDistanceTitle",
 				SmaphUtils.getMinEditDist(query, title));
 		result.put(
@@ -1002,6 +1547,9 @@ public class SmaphAnnotator implements Sa2WSystem {
 			boolean discardNE, WikipediaToFreebase wikiToFreeb)
 			throws Exception {
 
+		/** Issue all searches to bing */
+		BingSearch[] searches = searchBing(query, false);
+
 		/** Search the query on bing */
 		List<Pair<String, Integer>> bingBoldsAndRankNS = null;
 		List<String> urls = null;
@@ -1011,40 +1559,56 @@ public class SmaphAnnotator implements Sa2WSystem {
 		double webTotalNS = Double.NaN;
 		List<String> filteredBolds = null;
 		HashMap<Integer, Integer> rankToIdNS = null;
-		if (includeSourceAnnotator || includeSourceWikiSearch
-				|| includeSourceRelatedSearch || includeSourceNormalSearch) {
-			bingBoldsAndRankNS = new Vector<>();
-			urls = new Vector<>();
-			relatedSearchRes = new Vector<>();
-			resCountAndWebTotal = takeBingData(query, bingBoldsAndRankNS, urls,
-					relatedSearchRes, null, Integer.MAX_VALUE, false);
+		if (searches[0] != null) {
+			bingBoldsAndRankNS = searches[0].boldsAndRanks;
+			urls = searches[0].urls;
+			relatedSearchRes = searches[0].relatedSearch;
+			resCountAndWebTotal = searches[0].resCountAndWebTotal;
 			resultsCount = resCountAndWebTotal.getLeft();
 			webTotalNS = resCountAndWebTotal.getMiddle();
 			filteredBolds = boldFilter.filterBolds(query, bingBoldsAndRankNS,
 					resultsCount);
-			rankToIdNS = urlsToRankID(urls);
 
 			if (debugger != null) {
 				debugger.addBoldPositionEditDistance(query, bingBoldsAndRankNS);
 				debugger.addBoldFilterOutput(query, filteredBolds);
-				debugger.addSource2SearchResult(query, rankToIdNS, urls);
 				debugger.addBingResponseNormalSearch(query,
 						resCountAndWebTotal.getRight());
 
 			}
 		}
 
+		/** Annotate bolds on the annotator */
+		Pair<String, HashSet<Mention>> annInput = null;
+		D2WResult disambiguationResult = null;
+		if (includeSourceAnnotator) {
+			annInput = concatenateBolds(filteredBolds);
+			disambiguationResult = auxDisambiguator.solveD2WWithInfo(
+					annInput.first, annInput.second);
+		}
+
+		/** Resolve the Wikipedia pages found by all sources at once */
+		ResolvedEntities entities = resolveEntities(searches,
+				disambiguationResult);
+		if (searches[0] != null) {
+			rankToIdNS = urlsToRankID(urls, entities);
+			if (debugger != null)
+				debugger.addSource2SearchResult(query, rankToIdNS, urls);
+		}
+
 		/** Do the wikipedia-search on bing. */
 		List<String> wikiSearchUrls = new Vector<>();
 		List<Pair<String, Integer>> bingBoldsAndRankWS = new Vector<>();
 		HashMap<String, Pair<Integer, Integer>> annTitlesToIdAndRankWS = null;
 		Triple<Integer, Double, JSONObject> resCountAndWebTotalWS = null;
 		double webTotalWS = Double.NaN;
-		if (includeSourceWikiSearch | includeSourceNormalSearch) {
-			resCountAndWebTotalWS = takeBingData(query, bingBoldsAndRankWS,
-					wikiSearchUrls, null, null, topKWikiSearch, true);
+		if (searches[1] != null) {
+			wikiSearchUrls = searches[1].urls;
+			bingBoldsAndRankWS = searches[1].boldsAndRanks;
+			resCountAndWebTotalWS = searches[1].resCountAndWebTotal;
 			webTotalWS = resCountAndWebTotalWS.getMiddle();
-			HashMap<Integer, Integer> rankToIdWikiSearch = urlsToRankID(wikiSearchUrls);
+			HashMap<Integer, Integer> rankToIdWikiSearch = urlsToRankID(
+					wikiSearchUrls, entities);
 			if (debugger != null) {
 				debugger.addSource3SearchResult(query, rankToIdWikiSearch,
 						wikiSearchUrls);
@@ -1052,7 +1616,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 						resCountAndWebTotal.getRight());
 
 			}
-			annTitlesToIdAndRankWS = adjustTitles(rankToIdWikiSearch);
+			annTitlesToIdAndRankWS = adjustTitles(rankToIdWikiSearch, entities);
 		}
 
 		/** Do the RelatedSearch on bing */
@@ -1062,27 +1626,24 @@ public class SmaphAnnotator implements Sa2WSystem {
 		HashMap<Integer, Integer> rankToIdRelatedSearch = null;
 		HashMap<String, Pair<Integer, Integer>> annTitlesToIdAndRankRS = null;
 		double webTotalRelatedSearch = Double.NaN;
-		if (includeSourceRelatedSearch) {
+		if (searches[2] != null) {
 			relatedSearch = getRelatedSearch(relatedSearchRes, query);
-			relatedSearchUrls = new Vector<>();
-			bingBoldsAndRankRS = new Vector<>();
-			Triple<Integer, Double, JSONObject> resCountAndWebTotalRS = takeBingData(
-					query, bingBoldsAndRankRS, relatedSearchUrls, null, null,
-					topKRelatedSearch, false);
+			relatedSearchUrls = searches[2].urls;
+			bingBoldsAndRankRS = searches[2].boldsAndRanks;
+			Triple<Integer, Double, JSONObject> resCountAndWebTotalRS = searches[2].resCountAndWebTotal;
 			webTotalRelatedSearch = resCountAndWebTotalRS.getMiddle();
-			rankToIdRelatedSearch = urlsToRankID(relatedSearchUrls);
-			annTitlesToIdAndRankRS = adjustTitles(rankToIdRelatedSearch);
+			rankToIdRelatedSearch = urlsToRankID(relatedSearchUrls, entities);
+			annTitlesToIdAndRankRS = adjustTitles(rankToIdRelatedSearch,
+					entities);
 		}
 
-		/** Annotate bolds on the annotator */
+		/** Map the bolds to the annotations */
 		Pair<HashMap<String, HashMap<String, Double>>, HashMap<String, Annotation>> infoAndAnnotations = null;
 		HashMap<String, Annotation> spotToAnnotation = null;
 		HashMap<String, HashMap<String, Double>> additionalInfo = null;
-		Pair<String, HashSet<Mention>> annInput = null;
 		if (includeSourceAnnotator) {
-			annInput = concatenateBolds(filteredBolds);
 			infoAndAnnotations = disambiguateBolds(annInput.first,
-					annInput.second);
+					disambiguationResult);
 			spotToAnnotation = infoAndAnnotations.second;
 			additionalInfo = infoAndAnnotations.first;
 
@@ -1112,7 +1673,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 				int wid = rankToIdNS.get(rank);
 				HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 						query, wid, rank, webTotalNS, webTotalWS,
-						bingBoldsAndRankNS, 2);
+						bingBoldsAndRankNS, 2, entities);
 				Tag tag = new Tag(wid);
 				widToEFFtrVect.add(new Pair<Tag, HashMap<String, Double>>(tag,
 						ESFeatures));
@@ -1126,7 +1687,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 				int rank = annTitlesToIdAndRankWS.get(annotatedTitleWS).second;
 				HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 						query, wid, rank, webTotalNS, webTotalWS,
-						bingBoldsAndRankWS, 3);
+						bingBoldsAndRankWS, 3, entities);
 
 				Tag tag = new Tag(wid);
 				widToEFFtrVect.add(new Pair<Tag, HashMap<String, Double>>(tag,
@@ -1141,7 +1702,7 @@ public class SmaphAnnotator implements Sa2WSystem {
 				int rank = annTitlesToIdAndRankRS.get(annotatedTitleRS).second;
 				HashMap<String, Double> ESFeatures = generateEntitySelectionFeaturesSearch(
 						relatedSearch, wid, rank, webTotalNS,
-						webTotalRelatedSearch, bingBoldsAndRankRS, 5);
+						webTotalRelatedSearch, bingBoldsAndRankRS, 5, entities);
 
 				Tag tag = new Tag(wid);
 				widToEFFtrVect.add(new Pair<Tag, HashMap<String, Double>>(tag,
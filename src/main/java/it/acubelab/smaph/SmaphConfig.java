@@ -17,6 +17,12 @@
 package it.acubelab.smaph;
 
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -25,6 +31,11 @@ import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import it.acubelab.smaph.anchors.AnchorDisambiguator;
+import it.acubelab.smaph.net.HedgingPolicy;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.utils.LocalWikipediaApiInterface;
+
 import org.w3c.dom.Document;
 
 public class SmaphConfig {
@@ -33,6 +44,22 @@ public class SmaphConfig {
 	private static String defaultTagmeHost;
 	private static String configFile;
 	private static String defaultBingCache;
+	private static String defaultBingCacheMemory;
+	private static String defaultBingCacheTtl;
+	private static String defaultBingRefreshRate;
+	private static String defaultBingEndpoint;
+	private static String defaultSearchThreads;
+	private static ExecutorService defaultSearchExecutor;
+	private static String defaultWatHost;
+	private static String defaultWatPort;
+	private static String defaultWatBoldCache;
+	private static String defaultAnchorDictionary;
+	private static String defaultTitleDictionary;
+	private static String defaultHedgingPercentile;
+	private static String defaultHedgingBudget;
+	private static HedgingPolicy defaultBingHedgingPolicy;
+	private static HedgingPolicy defaultWatHedgingPolicy;
+	private static boolean hedgingPoliciesInitialized = false;
 
 	/**
 	 * Set the configuration file.
@@ -101,6 +128,26 @@ public class SmaphConfig {
 			defaultTagmeKey = getConfigValue("tagme", "key", doc);
 			defaultTagmeHost = getConfigValue("tagme", "host", doc);
 			defaultBingCache = getConfigValue("cache", "bing-cache", doc);
+			defaultBingCacheMemory = getConfigValue("cache",
+					"bing-cache-memory-mb", doc);
+			defaultBingCacheTtl = getConfigValue("cache",
+					"bing-cache-ttl-hours", doc);
+			defaultBingRefreshRate = getConfigValue("cache",
+					"bing-refresh-per-second", doc);
+			defaultBingEndpoint = getConfigValue("bing", "endpoint", doc);
+			defaultSearchThreads = getConfigValue("bing", "search-threads",
+					doc);
+			defaultWatHost = getConfigValue("wat", "host", doc);
+			defaultWatPort = getConfigValue("wat", "port", doc);
+			defaultWatBoldCache = getConfigValue("cache", "wat-bold-cache",
+					doc);
+			defaultAnchorDictionary = getConfigValue("wat",
+					"anchor-dictionary", doc);
+			defaultTitleDictionary = getConfigValue("wikipedia",
+					"title-dictionary", doc);
+			defaultHedgingPercentile = getConfigValue("hedging",
+					"percentile", doc);
+			defaultHedgingBudget = getConfigValue("hedging", "budget", doc);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
@@ -122,4 +169,217 @@ public class SmaphConfig {
 		return defaultBingCache.isEmpty() ? null : defaultBingCache;
 	}
 
+	/**
+	 * @return the number of bytes of Bing responses to keep in memory, as set
+	 *         in the configuration file (in megabytes), or
+	 *         {@link SmaphAnnotator#DEFAULT_CACHE_MEMORY} if unset.
+	 */
+	public static long getDefaultBingCacheMemory() {
+		if (defaultBingCacheMemory == null)
+			initialize();
+		return defaultBingCacheMemory.isEmpty() ? SmaphAnnotator.DEFAULT_CACHE_MEMORY
+				: Long.parseLong(defaultBingCacheMemory) * 1024 * 1024;
+	}
+
+	/**
+	 * @return the time-to-live of the cached Bing responses, as set in the
+	 *         configuration file (in hours), in milliseconds, or 0 (responses
+	 *         never expire) if unset.
+	 */
+	public static long getDefaultBingCacheTtl() {
+		if (defaultBingCacheTtl == null)
+			initialize();
+		return defaultBingCacheTtl.isEmpty() ? 0 : (long) (Double
+				.parseDouble(defaultBingCacheTtl) * 3600 * 1000);
+	}
+
+	/**
+	 * @return the maximum number of stale Bing responses refreshed per
+	 *         second, as set in the configuration file, or 1 if unset.
+	 */
+	public static double getDefaultBingRefreshRate() {
+		if (defaultBingRefreshRate == null)
+			initialize();
+		return defaultBingRefreshRate.isEmpty() ? 1 : Double
+				.parseDouble(defaultBingRefreshRate);
+	}
+
+	/**
+	 * @return the URL of the Bing Composite API, as set in the configuration
+	 *         file, or {@link SmaphAnnotator#DEFAULT_BING_ENDPOINT} if unset.
+	 */
+	public static String getDefaultBingEndpoint() {
+		if (defaultBingEndpoint == null)
+			initialize();
+		return defaultBingEndpoint.isEmpty() ? SmaphAnnotator.DEFAULT_BING_ENDPOINT
+				: defaultBingEndpoint;
+	}
+
+	/**
+	 * @return the number of threads issuing the searches to Bing for all
+	 *         requests, as set in the configuration file, or
+	 *         {@link SmaphAnnotator#DEFAULT_SEARCH_THREADS} if unset.
+	 */
+	public static int getDefaultSearchThreads() {
+		if (defaultSearchThreads == null)
+			initialize();
+		return defaultSearchThreads.isEmpty() ? SmaphAnnotator.DEFAULT_SEARCH_THREADS
+				: Integer.parseInt(defaultSearchThreads);
+	}
+
+	/**
+	 * @return the executor of the searches to Bing (see
+	 *         {@link SmaphAnnotator#setSearchExecutor(ExecutorService)}),
+	 *         shared by all requests of the JVM. It runs at most
+	 *         {@link #getDefaultSearchThreads()} searches at once and queues
+	 *         the others.
+	 */
+	public static synchronized ExecutorService getDefaultSearchExecutor() {
+		if (defaultSearchExecutor == null) {
+			int threads = getDefaultSearchThreads();
+			defaultSearchExecutor = new ThreadPoolExecutor(threads, threads,
+					0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Bing search");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return defaultSearchExecutor;
+	}
+
+	/**
+	 * @return the host of the WAT API, as set in the configuration file, or
+	 *         {@link WATAnnotator#DEFAULT_HOST} if unset.
+	 */
+	public static String getDefaultWatHost() {
+		if (defaultWatHost == null)
+			initialize();
+		return defaultWatHost.isEmpty() ? WATAnnotator.DEFAULT_HOST
+				: defaultWatHost;
+	}
+
+	/**
+	 * @return the port of the WAT API, as set in the configuration file, or
+	 *         {@link WATAnnotator#DEFAULT_PORT} if unset.
+	 */
+	public static int getDefaultWatPort() {
+		if (defaultWatPort == null)
+			initialize();
+		return defaultWatPort.isEmpty() ? WATAnnotator.DEFAULT_PORT : Integer
+				.parseInt(defaultWatPort);
+	}
+
+	/**
+	 * @return the file of the WAT bold cache (see
+	 *         {@link WATAnnotator#setBoldCache(String)}), as set in the
+	 *         configuration file, or null if the bold cache is disabled.
+	 */
+	public static String getDefaultWatBoldCache() {
+		if (defaultWatBoldCache == null)
+			initialize();
+		return defaultWatBoldCache.isEmpty() ? null : defaultWatBoldCache;
+	}
+
+	/**
+	 * Load the WAT bold cache set in the configuration file (see
+	 * {@link #getDefaultWatBoldCache()}), if any. Called by every entry point
+	 * that builds annotators, whether or not they query WAT.
+	 */
+	public static void initializeWatBoldCache() {
+		String boldCache = getDefaultWatBoldCache();
+		if (boldCache == null)
+			return;
+		try {
+			WATAnnotator.setBoldCache(boldCache);
+		} catch (ClassNotFoundException | IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the file of the anchor dictionary that replaces WAT (see
+	 *         {@link AnchorDisambiguator}), as set in the configuration file,
+	 *         or null if WAT is queried.
+	 */
+	public static String getDefaultAnchorDictionary() {
+		if (defaultAnchorDictionary == null)
+			initialize();
+		return defaultAnchorDictionary.isEmpty() ? null
+				: defaultAnchorDictionary;
+	}
+
+	/**
+	 * @return the file of the title dictionary that replaces the Wikipedia
+	 *         API (see {@link LocalWikipediaApiInterface}), as set in the
+	 *         configuration file, or null if the Wikipedia API is queried.
+	 */
+	public static String getDefaultTitleDictionary() {
+		if (defaultTitleDictionary == null)
+			initialize();
+		return defaultTitleDictionary.isEmpty() ? null
+				: defaultTitleDictionary;
+	}
+
+	/**
+	 * @return the percentile of the observed latencies after which a call to
+	 *         Bing or WAT is hedged (see {@link HedgingPolicy}), as set in the
+	 *         configuration file, or -1 if hedging is disabled.
+	 */
+	public static double getDefaultHedgingPercentile() {
+		if (defaultHedgingPercentile == null)
+			initialize();
+		return defaultHedgingPercentile.isEmpty() ? -1 : Double
+				.parseDouble(defaultHedgingPercentile);
+	}
+
+	/**
+	 * @return the maximum fraction of calls that are hedged, as set in the
+	 *         configuration file, or 0.05 if unset.
+	 */
+	public static double getDefaultHedgingBudget() {
+		if (defaultHedgingBudget == null)
+			initialize();
+		return defaultHedgingBudget.isEmpty() ? 0.05 : Double
+				.parseDouble(defaultHedgingBudget);
+	}
+
+	private static synchronized void initializeHedgingPolicies() {
+		if (hedgingPoliciesInitialized)
+			return;
+		double percentile = getDefaultHedgingPercentile();
+		if (percentile >= 0) {
+			defaultBingHedgingPolicy = new HedgingPolicy(percentile,
+					getDefaultHedgingBudget());
+			defaultWatHedgingPolicy = new HedgingPolicy(percentile,
+					getDefaultHedgingBudget());
+		}
+		hedgingPoliciesInitialized = true;
+	}
+
+	/**
+	 * @return the hedging policy of the calls to Bing as set in the
+	 *         configuration file, or null if hedging is disabled. The policy
+	 *         is created once, so that its latency window is shared by all
+	 *         requests.
+	 */
+	public static HedgingPolicy getDefaultBingHedgingPolicy() {
+		initializeHedgingPolicies();
+		return defaultBingHedgingPolicy;
+	}
+
+	/**
+	 * @return the hedging policy of the calls to WAT as set in the
+	 *         configuration file, or null if hedging is disabled. It is a
+	 *         different policy than the Bing one, since latencies are tracked
+	 *         per policy, and it is created once as well.
+	 */
+	public static HedgingPolicy getDefaultWatHedgingPolicy() {
+		initializeHedgingPolicies();
+		return defaultWatHedgingPolicy;
+	}
 }
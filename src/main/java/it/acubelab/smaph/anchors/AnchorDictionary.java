@@ -0,0 +1,404 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.anchors;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A read-only dictionary of the anchors of Wikipedia: for each anchor, the
+ * number of times its text occurs in Wikipedia, the number of times it occurs
+ * as a link, and the entities it links to, with the number of links to each.
+ * The dictionary is a file mapped in memory, so that opening it is immediate
+ * and lookups (a binary search over the anchors) read only the pages they
+ * touch. Anchors are normalized (see {@link #normalize(String)}).
+ *
+ * The file is built offline from a dump (see {@link #build(String, String)}).
+ * Its layout is: a header (magic number, version, number of anchors, maximum
+ * number of words of an anchor); the offsets of the anchor records, sorted by
+ * anchor; the records. A record has the anchor in UTF-8, the number of
+ * occurrences, the number of links, and the candidate entities with their
+ * number of links, by decreasing number of links.
+ */
+public class AnchorDictionary implements Closeable {
+	private static final int MAGIC = 0x534d4144;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+	private final ByteBuffer buffer;
+	private final int anchorCount;
+	private final int maxAnchorWords;
+
+	/**
+	 * An anchor and its candidate entities, by decreasing commonness.
+	 */
+	public static final class Anchor {
+		private final String text;
+		private final int occurrences;
+		private final int linkCount;
+		private final int[] wids;
+		private final int[] links;
+
+		private Anchor(String text, int occurrences, int linkCount,
+				int[] wids, int[] links) {
+			this.text = text;
+			this.occurrences = occurrences;
+			this.linkCount = linkCount;
+			this.wids = wids;
+			this.links = links;
+		}
+
+		/**
+		 * @return the normalized anchor.
+		 */
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * @return the number of times the anchor occurs in Wikipedia, as a
+		 *         link or not.
+		 */
+		public int getOccurrences() {
+			return occurrences;
+		}
+
+		/**
+		 * @return the number of times the anchor occurs as a link.
+		 */
+		public int getLinkCount() {
+			return linkCount;
+		}
+
+		/**
+		 * @return the probability that an occurrence of the anchor is a link.
+		 */
+		public double getLinkProbability() {
+			return occurrences == 0 ? 0.0 : (double) linkCount / occurrences;
+		}
+
+		/**
+		 * @return the number of candidate entities.
+		 */
+		public int getCandidateCount() {
+			return wids.length;
+		}
+
+		/**
+		 * @param rank
+		 *            the rank of a candidate, starting from 0.
+		 * @return the Wikipedia id of the candidate.
+		 */
+		public int getCandidate(int rank) {
+			return wids[rank];
+		}
+
+		/**
+		 * @param rank
+		 *            the rank of a candidate, starting from 0.
+		 * @return the fraction of the links of the anchor that point to the
+		 *         candidate.
+		 */
+		public double getCommonness(int rank) {
+			return linkCount == 0 ? 0.0 : (double) links[rank] / linkCount;
+		}
+	}
+
+	/**
+	 * Open a dictionary.
+	 *
+	 * @param filename
+	 *            the dictionary file.
+	 * @throws IOException
+	 *             if the file could not be read, is not a dictionary, or is
+	 *             larger than 2 GB.
+	 */
+	public AnchorDictionary(String filename) throws IOException {
+		file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Anchor dictionary " + filename
+						+ " is larger than 2 GB.");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+				throw new IOException(filename
+						+ " is not an anchor dictionary.");
+			if (buffer.getInt(4) != VERSION)
+				throw new IOException("Unsupported version of anchor dictionary "
+						+ filename + ".");
+			anchorCount = buffer.getInt(8);
+			maxAnchorWords = buffer.getInt(12);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param anchor
+	 *            an anchor.
+	 * @return the anchor in the form used as key of the dictionary: lower
+	 *         case, with runs of spaces collapsed to a single space and no
+	 *         leading or trailing spaces.
+	 */
+	public static String normalize(String anchor) {
+		return anchor.toLowerCase(Locale.ENGLISH).trim()
+				.replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * @return the number of anchors.
+	 */
+	public int size() {
+		return anchorCount;
+	}
+
+	/**
+	 * @return the maximum number of words of an anchor.
+	 */
+	public int getMaxAnchorWords() {
+		return maxAnchorWords;
+	}
+
+	private int recordOffset(int i) {
+		return (int) buffer.getLong(HEADER_SIZE + 8 * i);
+	}
+
+	/**
+	 * Compare the anchor of a record with a key, byte by byte (unsigned).
+	 */
+	private int compareAnchor(int offset, byte[] key) {
+		int length = buffer.getInt(offset);
+		int start = offset + 4;
+		for (int i = 0; i < Math.min(length, key.length); i++) {
+			int diff = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * Look up an anchor. This method is thread-safe.
+	 *
+	 * @param anchor
+	 *            the anchor. It is normalized before the lookup.
+	 * @return the anchor and its candidate entities, or null if the anchor is
+	 *         not in the dictionary.
+	 */
+	public Anchor lookup(String anchor) {
+		String text = normalize(anchor);
+		byte[] key = text.getBytes(UTF8);
+		int low = 0;
+		int high = anchorCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int offset = recordOffset(mid);
+			int cmp = compareAnchor(offset, key);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return readAnchor(text, offset + 4 + key.length);
+		}
+		return null;
+	}
+
+	private Anchor readAnchor(String text, int offset) {
+		int occurrences = buffer.getInt(offset);
+		int linkCount = buffer.getInt(offset + 4);
+		int candidates = buffer.getInt(offset + 8);
+		int[] wids = new int[candidates];
+		int[] links = new int[candidates];
+		for (int i = 0; i < candidates; i++) {
+			wids[i] = buffer.getInt(offset + 12 + 8 * i);
+			links[i] = buffer.getInt(offset + 16 + 8 * i);
+		}
+		return new Anchor(text, occurrences, linkCount, wids, links);
+	}
+
+	/**
+	 * Close the dictionary file. The memory mapping is released when the
+	 * dictionary is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * What the dump says about an anchor, merged over its lines.
+	 */
+	private static final class AnchorCounts {
+		private long occurrences = 0;
+		private final Map<Integer, Long> links = new HashMap<>();
+	}
+
+	private static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < Math.min(a.length, b.length); i++) {
+				int diff = (a[i] & 0xff) - (b[i] & 0xff);
+				if (diff != 0)
+					return diff;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	private static int saturate(long value) {
+		return (int) Math.min(value, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Build a dictionary from a dump. Each line of the dump is an anchor, the
+	 * number of times its text occurs in Wikipedia (as a link or not), and
+	 * the entities it links to with the number of links, separated by tabs:
+	 * <code>anchor&lt;TAB&gt;occurrences&lt;TAB&gt;wid:links[ wid:links]*</code>.
+	 * Lines whose anchors are the same once normalized are merged. The
+	 * number of occurrences is raised to the number of links, if lower. The
+	 * dump is loaded in memory. The dictionary is written to a temporary file
+	 * that is then renamed, so that a dictionary in use is never seen half
+	 * written.
+	 *
+	 * @param dumpFile
+	 *            the dump.
+	 * @param dictionaryFile
+	 *            the dictionary file to write.
+	 * @return the number of anchors written.
+	 * @throws IOException
+	 *             if the dump could not be read, has a malformed line, or the
+	 *             dictionary could not be written.
+	 */
+	public static int build(String dumpFile, String dictionaryFile)
+			throws IOException {
+		TreeMap<byte[], AnchorCounts> anchors = new TreeMap<>(UNSIGNED_ORDER);
+		int maxWords = 0;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(dumpFile), UTF8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = r.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty())
+					continue;
+				String[] fields = line.split("\t");
+				String anchor = normalize(fields[0]);
+				if (fields.length != 3 || anchor.isEmpty())
+					throw new IOException(String.format(
+							"Malformed line %d of %s.", lineNumber, dumpFile));
+				byte[] key = anchor.getBytes(UTF8);
+				AnchorCounts counts = anchors.get(key);
+				if (counts == null) {
+					counts = new AnchorCounts();
+					anchors.put(key, counts);
+					maxWords = Math.max(maxWords, anchor.split(" ").length);
+				}
+				try {
+					counts.occurrences += Long.parseLong(fields[1]);
+					for (String candidate : fields[2].trim().split(" ")) {
+						int colon = candidate.indexOf(':');
+						int wid = Integer.parseInt(candidate.substring(0, colon));
+						long links = Long.parseLong(candidate
+								.substring(colon + 1));
+						Long old = counts.links.get(wid);
+						counts.links.put(wid, old == null ? links : old
+								+ links);
+					}
+				} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+					throw new IOException(String.format(
+							"Malformed line %d of %s.", lineNumber, dumpFile),
+							e);
+				}
+			}
+		}
+
+		File tmp = new File(dictionaryFile + ".building");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(anchors.size());
+			out.writeInt(maxWords);
+			long offset = HEADER_SIZE + 8L * anchors.size();
+			for (Map.Entry<byte[], AnchorCounts> e : anchors.entrySet()) {
+				out.writeLong(offset);
+				offset += 4 + e.getKey().length + 12 + 8L
+						* e.getValue().links.size();
+			}
+			if (offset > Integer.MAX_VALUE)
+				throw new IOException("Anchor dictionary would be larger than 2 GB.");
+			for (Map.Entry<byte[], AnchorCounts> e : anchors.entrySet())
+				writeRecord(out, e.getKey(), e.getValue());
+		}
+		if (!tmp.renameTo(new File(dictionaryFile))) {
+			new File(dictionaryFile).delete();
+			if (!tmp.renameTo(new File(dictionaryFile)))
+				throw new IOException("Could not rename " + tmp + " to "
+						+ dictionaryFile);
+		}
+		return anchors.size();
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] anchor,
+			AnchorCounts counts) throws IOException {
+		Integer[] wids = counts.links.keySet().toArray(new Integer[0]);
+		final Map<Integer, Long> links = counts.links;
+		Arrays.sort(wids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int cmp = Long.compare(links.get(b), links.get(a));
+				return cmp != 0 ? cmp : Integer.compare(a, b);
+			}
+		});
+		long linkCount = 0;
+		for (long l : links.values())
+			linkCount += l;
+
+		out.writeInt(anchor.length);
+		out.write(anchor);
+		out.writeInt(saturate(Math.max(counts.occurrences, linkCount)));
+		out.writeInt(saturate(linkCount));
+		out.writeInt(wids.length);
+		for (int wid : wids) {
+			out.writeInt(wid);
+			out.writeInt(saturate(links.get(wid)));
+		}
+	}
+}
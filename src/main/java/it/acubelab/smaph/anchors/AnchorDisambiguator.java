@@ -0,0 +1,242 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.anchors;
+
+import it.acubelab.smaph.anchors.AnchorDictionary.Anchor;
+import it.unipi.di.acube.batframework.data.Annotation;
+import it.unipi.di.acube.batframework.data.Mention;
+import it.unipi.di.acube.batframework.data.MultipleAnnotation;
+import it.unipi.di.acube.batframework.data.ScoredAnnotation;
+import it.unipi.di.acube.batframework.data.ScoredTag;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.utils.AnnotationException;
+import it.unipi.di.acube.batframework.utils.ProblemReduction;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A disambiguator that runs in process, without querying WAT: each mention is
+ * linked to its most common entity according to an {@link AnchorDictionary}.
+ * It offers the operations that {@link it.acubelab.smaph.SmaphAnnotator}
+ * uses from {@link WATAnnotator}, with the same mention and candidate
+ * features, computed from the dictionary:
+ * <ul>
+ * <li>lp: the link probability of the anchor;</li>
+ * <li>commonness: the commonness of the chosen entity;</li>
+ * <li>ambiguity: one over the number of candidate entities;</li>
+ * <li>rhoScore: the commonness of the chosen entity, that is the confidence
+ * of this disambiguator;</li>
+ * <li>localCoherence and pageRank: 0, since the dictionary has no link
+ * graph.</li>
+ * </ul>
+ * Mentions that are not anchors are not annotated, and have no features.
+ * This class is thread-safe.
+ */
+public class AnchorDisambiguator extends WATAnnotator {
+	private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+	private final AnchorDictionary dictionary;
+	private final double minLinkProbability;
+	private volatile long lastTime = 0;
+
+	/**
+	 * @param dictionary
+	 *            the anchor dictionary.
+	 * @param minLinkProbability
+	 *            the minimum link probability of the anchors spotted by
+	 *            {@link #getSpottedCandidates(String)}. Mentions given to
+	 *            {@link #solveD2WWithInfo(String, HashSet)} are disambiguated
+	 *            regardless of their link probability.
+	 */
+	public AnchorDisambiguator(AnchorDictionary dictionary,
+			double minLinkProbability) {
+		this.dictionary = dictionary;
+		this.minLinkProbability = minLinkProbability;
+	}
+
+	@Override
+	public String getName() {
+		return String.format("Anchor commonness (minLinkProbability=%s)",
+				minLinkProbability);
+	}
+
+	@Override
+	public long getLastAnnotationTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return the features of a mention linked to the top candidate of an
+	 *         anchor, as returned by WAT.
+	 */
+	private static HashMap<String, Double> mentionInfo(Anchor anchor) {
+		HashMap<String, Double> info = new HashMap<>();
+		info.put("lp", anchor.getLinkProbability());
+		info.put("commonness", anchor.getCommonness(0));
+		info.put("rhoScore", anchor.getCommonness(0));
+		info.put("ambiguity", 1.0 / anchor.getCandidateCount());
+		info.put("localCoherence", 0.0);
+		info.put("pageRank", 0.0);
+		return info;
+	}
+
+	/**
+	 * @return the features of the candidates of an anchor, by rank, as
+	 *         returned by WAT.
+	 */
+	private static List<Map<String, Double>> candidatesInfo(Anchor anchor) {
+		List<Map<String, Double>> candidates = new Vector<>();
+		for (int rank = 0; rank < anchor.getCandidateCount(); rank++) {
+			HashMap<String, Double> values = new HashMap<>();
+			values.put("id", (double) anchor.getCandidate(rank));
+			values.put("rank", (double) rank);
+			values.put("commonness", anchor.getCommonness(rank));
+			values.put("score", anchor.getCommonness(rank));
+			values.put("pageRank", 0.0);
+			values.put("synonimy", 0.0);
+			values.put("lp", anchor.getLinkProbability());
+			values.put("ambiguity", 1.0 / anchor.getCandidateCount());
+			candidates.add(values);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Disambiguate a set of mentions, linking each to its most common entity.
+	 * The bold cache and the hedging of {@link WATAnnotator} are not used.
+	 */
+	@Override
+	public D2WResult solveD2WWithInfo(String text, HashSet<Mention> mentions) {
+		long start = System.nanoTime();
+		HashSet<Annotation> annotations = new HashSet<>();
+		HashMap<String, Map<String, Double>> mentionInfo = new HashMap<>();
+		HashMap<String, List<Map<String, Double>>> candidatesInfo = new HashMap<>();
+		for (Mention m : mentions) {
+			String mention = text.substring(m.getPosition(), m.getPosition()
+					+ m.getLength());
+			Anchor anchor = dictionary.lookup(mention);
+			if (anchor == null || anchor.getCandidateCount() == 0)
+				continue;
+			annotations.add(new Annotation(m.getPosition(), m.getLength(),
+					anchor.getCandidate(0)));
+			mentionInfo.put(mention, mentionInfo(anchor));
+			candidatesInfo.put(mention, candidatesInfo(anchor));
+		}
+		long time = (System.nanoTime() - start) / 1000000;
+		lastTime = time;
+		return new D2WResult(annotations, mentionInfo, candidatesInfo, time);
+	}
+
+	/**
+	 * Disambiguation takes no I/O, so it is run at once in the calling
+	 * thread rather than on the executor.
+	 */
+	@Override
+	public Future<D2WResult> solveD2WAsync(final String text,
+			final HashSet<Mention> mentions, ExecutorService executor) {
+		FutureTask<D2WResult> task = new FutureTask<>(
+				new Callable<D2WResult>() {
+					@Override
+					public D2WResult call() throws Exception {
+						return solveD2WWithInfo(text, mentions);
+					}
+				});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Spot the anchors in a text, from left to right, taking at each word the
+	 * longest anchor that starts there and whose link probability is at least
+	 * the minimum.
+	 */
+	@Override
+	public HashSet<MultipleAnnotation> getSpottedCandidates(String text) {
+		long start = System.nanoTime();
+		List<int[]> words = new Vector<>();
+		Matcher m = WORD.matcher(text);
+		while (m.find())
+			words.add(new int[] { m.start(), m.end() });
+
+		HashSet<MultipleAnnotation> res = new HashSet<>();
+		int i = 0;
+		while (i < words.size()) {
+			int spotted = 0;
+			Anchor anchor = null;
+			for (int n = Math.min(dictionary.getMaxAnchorWords(),
+					words.size() - i); n > 0 && spotted == 0; n--) {
+				anchor = dictionary.lookup(text.substring(words.get(i)[0],
+						words.get(i + n - 1)[1]));
+				if (anchor != null && anchor.getCandidateCount() > 0
+						&& anchor.getLinkProbability() >= minLinkProbability)
+					spotted = n;
+			}
+			if (spotted == 0) {
+				i++;
+				continue;
+			}
+			int[] candidates = new int[anchor.getCandidateCount()];
+			for (int rank = 0; rank < candidates.length; rank++)
+				candidates[rank] = anchor.getCandidate(rank);
+			int mentionStart = words.get(i)[0];
+			res.add(new MultipleAnnotation(mentionStart, words.get(i
+					+ spotted - 1)[1]
+					- mentionStart, candidates));
+			i += spotted;
+		}
+		lastTime = (System.nanoTime() - start) / 1000000;
+		return res;
+	}
+
+	@Override
+	public HashSet<Mention> getSpottedMentions(String text) {
+		return new HashSet<Mention>(getSpottedCandidates(text));
+	}
+
+	/**
+	 * Link each spotted anchor to its most common entity, scored by
+	 * commonness times link probability.
+	 */
+	@Override
+	public HashSet<ScoredAnnotation> solveSa2W(String text)
+			throws AnnotationException {
+		HashSet<ScoredAnnotation> res = new HashSet<>();
+		for (MultipleAnnotation spot : getSpottedCandidates(text)) {
+			Anchor anchor = dictionary.lookup(text.substring(
+					spot.getPosition(), spot.getPosition() + spot.getLength()));
+			res.add(new ScoredAnnotation(spot.getPosition(), spot.getLength(),
+					anchor.getCandidate(0), (float) (anchor.getCommonness(0) * anchor
+							.getLinkProbability())));
+		}
+		return res;
+	}
+
+	@Override
+	public HashSet<ScoredTag> solveSc2W(String text) throws AnnotationException {
+		return ProblemReduction.Sa2WToSc2W(solveSa2W(text));
+	}
+}
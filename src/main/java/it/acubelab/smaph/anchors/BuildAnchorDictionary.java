@@ -0,0 +1,44 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.anchors;
+
+import java.io.IOException;
+
+/**
+ * Builds an {@link AnchorDictionary} from an anchor dump (see
+ * {@link AnchorDictionary#build(String, String)} for the format).
+ */
+public class BuildAnchorDictionary {
+	/**
+	 * Usage: BuildAnchorDictionary dump-file dictionary-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err
+					.println("Usage: BuildAnchorDictionary dump-file dictionary-file");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		int anchors = AnchorDictionary.build(args[0], args[1]);
+		try (AnchorDictionary dictionary = new AnchorDictionary(args[1])) {
+			System.out.printf(
+					"Wrote %d anchors (up to %d words) to %s in %.1f s.%n",
+					anchors, dictionary.getMaxAnchorWords(), args[1],
+					(System.currentTimeMillis() - start) / 1000.0);
+		}
+	}
+}
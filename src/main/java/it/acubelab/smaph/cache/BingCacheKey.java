@@ -0,0 +1,122 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Keys of the Bing response cache. Queries are canonicalized (Unicode NFKC
+ * normalization, lower case, collapsed whitespace), so that queries Bing
+ * treats the same way share a cache entry. The key of a query is a 128-bit
+ * hash of the canonical query and of the request parameters, written as 32
+ * hex digits.
+ * 
+ * Caches written before this scheme used the whole URL of the request as
+ * key; see {@link #fromLegacyKey(String)}.
+ */
+public class BingCacheKey {
+	/**
+	 * The parameters of the requests issued to the Bing Composite API, except
+	 * the query.
+	 */
+	public static final String REQUEST_PARAMETERS = "Sources=%27web%2Bspell%2BRelatedSearch%27&Options=%27EnableHighlighting%27&Market=%27en-US%27&Adult=%27Off%27&$format=Json";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+",
+			Pattern.UNICODE_CHARACTER_CLASS);
+	private static final Pattern HASHED_KEY = Pattern.compile("[0-9a-f]{32}");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String LEGACY_QUERY_START = "Query=%27";
+	private static final String LEGACY_QUERY_END = "%27&Options=";
+
+	/**
+	 * @param query
+	 *            a query.
+	 * @return the canonical form of the query.
+	 */
+	public static String canonicalQuery(String query) {
+		String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC)
+				.toLowerCase(Locale.ENGLISH);
+		return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+	}
+
+	/**
+	 * @param query
+	 *            a query.
+	 * @return the cache key of the query.
+	 */
+	public static String forQuery(String query) {
+		return hash(canonicalQuery(query) + "\n" + REQUEST_PARAMETERS);
+	}
+
+	/**
+	 * @param s
+	 *            a string.
+	 * @return the 128-bit hash of the string, written as 32 hex digits.
+	 */
+	static String hash(String s) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+		byte[] hash = md5.digest(s.getBytes(UTF8));
+		char[] key = new char[2 * hash.length];
+		for (int i = 0; i < hash.length; i++) {
+			key[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			key[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(key);
+	}
+
+	/**
+	 * @param key
+	 *            a cache key.
+	 * @return true iff the key has the form of keys returned by
+	 *         {@link #forQuery(String)}.
+	 */
+	public static boolean isHashedKey(String key) {
+		return HASHED_KEY.matcher(key).matches();
+	}
+
+	/**
+	 * @param legacyKey
+	 *            a key of the old cache format, i.e. the URL of a request to
+	 *            the Composite API.
+	 * @return the key of the same query in the new format, or null if the
+	 *         query could not be found in the URL.
+	 */
+	public static String fromLegacyKey(String legacyKey) {
+		int start = legacyKey.indexOf(LEGACY_QUERY_START);
+		int end = legacyKey.lastIndexOf(LEGACY_QUERY_END);
+		if (start == -1 || end < start + LEGACY_QUERY_START.length())
+			return null;
+		try {
+			return forQuery(URLDecoder.decode(legacyKey.substring(start
+					+ LEGACY_QUERY_START.length(), end), "utf8"));
+		} catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,880 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.cache;
+
+import it.acubelab.smaph.SmaphAnnotatorDebugger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An append-only, crash-safe persistent map from strings to byte arrays. The
+ * records are appended to a sequence of segment files named
+ * <code>base.N.log</code>; a record written later overrides the records with
+ * the same key written before. Appends are queued and written by a background
+ * thread, so they never block the caller on I/O. An in-memory index maps each
+ * key to the position of its latest record and is rebuilt by scanning the
+ * segments when the log is opened. A record that was only partly written
+ * (e.g. because the process crashed) fails its checksum and is discarded,
+ * together with anything that follows it in the same segment. Records
+ * overridden by later ones are removed by {@link #compact(String)}, that must
+ * be run offline.
+ *
+ * To make opening fast, the index of each segment is also saved in a file
+ * <code>base.N.idx</code> when the segment is full and when the log is
+ * closed. Opening the log only reads these files (and scans whatever was
+ * appended to a segment after its index was saved); values are read on demand
+ * from memory-mapped segments.
+ *
+ * Several processes can open the same log at once. Values are read through
+ * memory-mapped segments, so the operating system keeps a single copy of them
+ * in the page cache for all processes. Each process writes its records while
+ * holding an exclusive lock on the file <code>base.lock</code>. Before
+ * writing, it first reads the records that other processes appended since
+ * it last looked. When idle, the background writer picks up the records
+ * appended by other processes within {@link #REFRESH_INTERVAL} milliseconds;
+ * {@link #refresh()} does it at once.
+ *
+ * A record is made of: key length (int), value length (int), write time
+ * (long), key (UTF-8), value, CRC32 of all the preceding fields (int). An
+ * index file is made of: the length of the segment it refers to (long), the
+ * number of entries (int), the entries, CRC32 of all the preceding fields
+ * (int). An entry is made of: key length (int), key (UTF-8), value offset
+ * (long), value length (int), write time (long).
+ */
+public class CacheLog implements Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_SIZE = 16;
+	private static final int TRAILER_SIZE = 4;
+	private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String LOCK_SUFFIX = ".lock";
+	public static final long REFRESH_INTERVAL = 100;
+	/**
+	 * File locks are held on behalf of the whole JVM: logs open on the same
+	 * files in the same JVM must also lock each other out in memory.
+	 */
+	private static final ConcurrentHashMap<String, ReentrantLock> JVM_LOCKS = new ConcurrentHashMap<>();
+
+	private final String base;
+	private final ConcurrentHashMap<String, RecordLocation> index = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, byte[]> pending = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, MappedByteBuffer> mappedSegments = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+	private final Object writtenLock = new Object();
+	private long enqueued = 0;
+	private long written = 0;
+	private IOException writeError;
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private final FileChannel lockChannel;
+	private final ReentrantLock jvmLock;
+
+	private volatile int currentSegment;
+	private FileOutputStream currentFile;
+	private DataOutputStream currentOut;
+	private volatile long currentSize;
+
+	/**
+	 * The position of a record in the log.
+	 */
+	static class RecordLocation {
+		final int segment;
+		final long valueOffset;
+		final int valueLength;
+		final long writeTime;
+
+		RecordLocation(int segment, long valueOffset, int valueLength,
+				long writeTime) {
+			this.segment = segment;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.writeTime = writeTime;
+		}
+	}
+
+	/**
+	 * A record waiting to be written.
+	 */
+	private static class Record {
+		final String key;
+		final byte[] value;
+		final long writeTime;
+
+		Record(String key, byte[] value, long writeTime) {
+			this.key = key;
+			this.value = value;
+			this.writeTime = writeTime;
+		}
+	}
+
+	/**
+	 * Open the log whose segments are named <code>base.N.log</code>,
+	 * creating it if it does not exist.
+	 *
+	 * @param base
+	 *            the base name of the segment files.
+	 * @throws IOException
+	 *             if the segments could not be read.
+	 */
+	public CacheLog(String base) throws IOException {
+		this.base = base;
+		File lockFile = new File(base + LOCK_SUFFIX).getAbsoluteFile();
+		ReentrantLock newLock = new ReentrantLock();
+		ReentrantLock oldLock = JVM_LOCKS.putIfAbsent(lockFile.getPath(),
+				newLock);
+		jvmLock = oldLock == null ? newLock : oldLock;
+		lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+		FileLock lock = lockFile();
+		try {
+			List<Integer> segments = listSegments(base);
+			for (int i = 0; i < segments.size(); i++) {
+				int segment = segments.get(i);
+				boolean last = i == segments.size() - 1;
+				long indexedLength = readIndex(segment);
+				if (indexedLength < segmentFile(base, segment).length())
+					scanSegment(segment, indexedLength, last);
+			}
+			currentSegment = segments.isEmpty() ? 0 : segments.get(segments
+					.size() - 1);
+			openCurrentSegment();
+		} finally {
+			unlockFile(lock);
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "CacheLog writer " + base);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param base
+	 *            the base name of the segment files.
+	 * @return true iff at least one segment of the log exists.
+	 */
+	public static boolean exists(String base) {
+		return !listSegments(base).isEmpty();
+	}
+
+	private static File segmentFile(String base, int segment) {
+		return new File(base + "." + segment + SEGMENT_SUFFIX);
+	}
+
+	private static File indexFile(String base, int segment) {
+		return new File(base + "." + segment + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Acquire the lock on the log, waiting for other processes (and other
+	 * logs open on the same files in this JVM) to release it.
+	 */
+	private FileLock lockFile() throws IOException {
+		jvmLock.lock();
+		try {
+			return lockChannel.lock();
+		} catch (IOException | RuntimeException e) {
+			jvmLock.unlock();
+			throw e;
+		}
+	}
+
+	private void unlockFile(FileLock lock) throws IOException {
+		try {
+			lock.release();
+		} finally {
+			jvmLock.unlock();
+		}
+	}
+
+	/**
+	 * Add to the index the records appended by other processes since the
+	 * last call, and move to the last segment if other processes created new
+	 * ones. Must be called while holding the lock.
+	 */
+	private void catchUp() throws IOException {
+		boolean newSegments = segmentFile(base, currentSegment + 1).exists();
+		if (segmentFile(base, currentSegment).length() > currentSize)
+			currentSize = scanSegment(currentSegment, currentSize,
+					!newSegments);
+		if (!newSegments)
+			return;
+		List<Integer> segments = listSegments(base);
+		for (int i = 0; i < segments.size(); i++) {
+			int segment = segments.get(i);
+			if (segment <= currentSegment)
+				continue;
+			long indexedLength = readIndex(segment);
+			if (indexedLength < segmentFile(base, segment).length())
+				scanSegment(segment, indexedLength, i == segments.size() - 1);
+		}
+		currentOut.close();
+		currentSegment = segments.get(segments.size() - 1);
+		openCurrentSegment();
+	}
+
+	/**
+	 * @return true iff other processes have probably appended records since
+	 *         the last call to {@link #catchUp()}. This is only a hint, as
+	 *         the lock is not held.
+	 */
+	private boolean hasForeignRecords() {
+		return segmentFile(base, currentSegment).length() > currentSize
+				|| segmentFile(base, currentSegment + 1).exists();
+	}
+
+	/**
+	 * Make the records appended by other processes visible at once.
+	 *
+	 * @throws IOException
+	 *             if the records could not be read.
+	 */
+	public void refresh() throws IOException {
+		FileLock lock = lockFile();
+		try {
+			catchUp();
+		} finally {
+			unlockFile(lock);
+		}
+	}
+
+	/**
+	 * Load the saved index of a segment, if it exists and is valid.
+	 *
+	 * @return the length of the segment covered by the loaded index (0 if no
+	 *         index was loaded).
+	 */
+	private long readIndex(int segment) throws IOException {
+		File file = indexFile(base, segment);
+		if (!file.exists())
+			return 0;
+		byte[] data = new byte[(int) file.length()];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(
+				file))) {
+			in.readFully(data);
+		}
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		if (data.length < 16)
+			return 0;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - TRAILER_SIZE);
+		long segmentLength = buf.getLong();
+		if ((int) crc.getValue() != buf.getInt(data.length - TRAILER_SIZE)
+				|| segmentLength > segmentFile(base, segment).length()) {
+			SmaphAnnotatorDebugger.out.printf("Ignoring invalid index %s%n",
+					file);
+			return 0;
+		}
+		int entries = buf.getInt();
+		for (int i = 0; i < entries; i++) {
+			byte[] key = new byte[buf.getInt()];
+			buf.get(key);
+			long valueOffset = buf.getLong();
+			int valueLength = buf.getInt();
+			long writeTime = buf.getLong();
+			index.put(new String(key, UTF8), new RecordLocation(segment,
+					valueOffset, valueLength, writeTime));
+		}
+		return segmentLength;
+	}
+
+	/**
+	 * Save the index of a segment. The index is written to a temporary file
+	 * that is then renamed, so that a crash never leaves a partial index.
+	 *
+	 * @param segment
+	 *            the segment.
+	 * @param segmentLength
+	 *            the length of the segment, all of which must have been
+	 *            written and added to the index.
+	 */
+	private void writeIndex(int segment, long segmentLength)
+			throws IOException {
+		File file = indexFile(base, segment);
+		File tmp = new File(file.getPath() + ".tmp");
+		List<Map.Entry<String, RecordLocation>> entries = new Vector<>();
+		for (Map.Entry<String, RecordLocation> e : index.entrySet())
+			if (e.getValue().segment == segment)
+				entries.add(e);
+		CRC32 crc = new CRC32();
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new CheckedOutputStream(fos, crc),
+							1 << 16));
+			out.writeLong(segmentLength);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, RecordLocation> e : entries) {
+				byte[] key = e.getKey().getBytes(UTF8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeLong(e.getValue().valueOffset);
+				out.writeInt(e.getValue().valueLength);
+				out.writeLong(e.getValue().writeTime);
+			}
+			out.flush();
+			new DataOutputStream(fos).writeInt((int) crc.getValue());
+			fos.getChannel().force(false);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to "
+						+ file);
+		}
+	}
+
+	/**
+	 * @param base
+	 *            the base name of the segment files.
+	 * @return the sorted ids of the segments of the log.
+	 */
+	private static List<Integer> listSegments(String base) {
+		File baseFile = new File(base).getAbsoluteFile();
+		final String prefix = baseFile.getName() + ".";
+		String[] names = baseFile.getParentFile().list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix)
+						&& name.endsWith(SEGMENT_SUFFIX)
+						&& name.substring(prefix.length(),
+								name.length() - SEGMENT_SUFFIX.length())
+								.matches("\\d+");
+			}
+		});
+		List<Integer> segments = new Vector<>();
+		if (names != null)
+			for (String name : names)
+				segments.add(Integer.parseInt(name.substring(prefix.length(),
+						name.length() - SEGMENT_SUFFIX.length())));
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Read all valid records of a segment starting from a given position and
+	 * add them to the index. If the segment ends with an invalid record and it
+	 * is the last segment, it is truncated to its last valid record so that
+	 * new records can be appended. Must be called while holding the lock.
+	 *
+	 * @return the length of the valid part of the segment.
+	 */
+	private long scanSegment(int segment, long start, boolean last)
+			throws IOException {
+		File file = segmentFile(base, segment);
+		long validSize = start;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			long fileSize = file.length();
+			in.skipBytes((int) start);
+			CRC32 crc = new CRC32();
+			while (validSize + HEADER_SIZE + TRAILER_SIZE <= fileSize) {
+				byte[] header = new byte[HEADER_SIZE];
+				in.readFully(header);
+				ByteBuffer headerBuf = ByteBuffer.wrap(header);
+				int keyLength = headerBuf.getInt();
+				int valueLength = headerBuf.getInt();
+				long writeTime = headerBuf.getLong();
+				if (keyLength < 0
+						|| valueLength < 0
+						|| validSize + HEADER_SIZE + keyLength + valueLength
+								+ TRAILER_SIZE > fileSize)
+					break;
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				byte[] value = new byte[valueLength];
+				in.readFully(value);
+				int checksum = in.readInt();
+				crc.reset();
+				crc.update(header);
+				crc.update(key);
+				crc.update(value);
+				if ((int) crc.getValue() != checksum)
+					break;
+				index.put(new String(key, UTF8), new RecordLocation(segment,
+						validSize + HEADER_SIZE + keyLength, valueLength,
+						writeTime));
+				validSize += HEADER_SIZE + keyLength + valueLength
+						+ TRAILER_SIZE;
+			}
+		}
+		if (validSize < file.length()) {
+			SmaphAnnotatorDebugger.out.printf(
+					"Discarding %d trailing bytes of invalid records in %s%n",
+					file.length() - validSize, file);
+			if (last)
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(validSize);
+				}
+		}
+		return validSize;
+	}
+
+	private void openCurrentSegment() throws IOException {
+		File file = segmentFile(base, currentSegment);
+		if (!file.exists())
+			indexFile(base, currentSegment).delete();
+		currentFile = new FileOutputStream(file, true);
+		currentOut = new DataOutputStream(new BufferedOutputStream(
+				currentFile, 1 << 16));
+		currentSize = file.length();
+	}
+
+	private void writeLoop() {
+		List<Record> batch = new Vector<>();
+		List<RecordLocation> locations = new Vector<>();
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Record first = queue.poll(REFRESH_INTERVAL,
+						TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (!closed && hasForeignRecords())
+						refresh();
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch);
+				FileLock lock = lockFile();
+				try {
+					catchUp();
+					try {
+						int published = 0;
+						for (Record r : batch) {
+							if (isSegmentFull(r)) {
+								publish(batch, locations, published);
+								published = locations.size();
+								rollSegment();
+							}
+							locations.add(writeRecord(r));
+						}
+						publish(batch, locations, published);
+					} catch (IOException e) {
+						abandonSegment();
+						throw e;
+					}
+				} finally {
+					unlockFile(lock);
+				}
+				synchronized (writtenLock) {
+					writeError = null;
+				}
+			} catch (InterruptedException e) {
+				continue;
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (batch.isEmpty())
+					continue;
+				dropUnpublished(batch);
+				synchronized (writtenLock) {
+					writeError = e;
+				}
+			}
+			synchronized (writtenLock) {
+				written += batch.size();
+				writtenLock.notifyAll();
+			}
+			batch.clear();
+			locations.clear();
+		}
+	}
+
+	/**
+	 * Give up the records of a batch that could not be written: they are no
+	 * longer served from memory, and a later request computes them again.
+	 * Records of the batch that were published are already out of the
+	 * pending map.
+	 */
+	private void dropUnpublished(List<Record> batch) {
+		for (Record r : batch)
+			pending.remove(r.key, r.value);
+	}
+
+	/**
+	 * Move to a new segment after a failed write, so that records written
+	 * later do not follow a partly written record. The partly written record
+	 * is discarded when the log is opened. Called with the file lock held.
+	 */
+	private void abandonSegment() {
+		try {
+			currentOut.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		currentSegment++;
+		try {
+			openCurrentSegment();
+		} catch (IOException e) {
+			e.printStackTrace();
+			currentSegment--;
+		}
+	}
+
+	/**
+	 * Flush and sync the current segment, then make the records written
+	 * since the last call readable from disk.
+	 */
+	private void publish(List<Record> batch, List<RecordLocation> locations,
+			int from) throws IOException {
+		currentOut.flush();
+		currentFile.getChannel().force(false);
+		for (int i = from; i < locations.size(); i++) {
+			index.put(batch.get(i).key, locations.get(i));
+			pending.remove(batch.get(i).key, batch.get(i).value);
+		}
+	}
+
+	private boolean isSegmentFull(Record r) {
+		return currentSize > 0
+				&& currentSize + HEADER_SIZE + r.key.length() * 3
+						+ r.value.length + TRAILER_SIZE > MAX_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Close the current segment, save its index and move to a new segment.
+	 * All records written so far must have been published.
+	 */
+	private void rollSegment() throws IOException {
+		currentOut.close();
+		writeIndex(currentSegment, currentSize);
+		currentSegment++;
+		openCurrentSegment();
+	}
+
+	/**
+	 * Write a record to the current segment.
+	 *
+	 * @return the location of the written record.
+	 */
+	private RecordLocation writeRecord(Record r) throws IOException {
+		byte[] key = r.key.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(key.length);
+		header.putInt(r.value.length);
+		header.putLong(r.writeTime);
+		CRC32 crc = new CRC32();
+		crc.update(header.array());
+		crc.update(key);
+		crc.update(r.value);
+		currentOut.write(header.array());
+		currentOut.write(key);
+		currentOut.write(r.value);
+		currentOut.writeInt((int) crc.getValue());
+
+		RecordLocation loc = new RecordLocation(currentSegment, currentSize
+				+ HEADER_SIZE + key.length, r.value.length, r.writeTime);
+		currentSize += HEADER_SIZE + key.length + r.value.length
+				+ TRAILER_SIZE;
+		return loc;
+	}
+
+	/**
+	 * Append a record to the log. The record is written by a background
+	 * thread; this method does not block.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value.
+	 */
+	public void append(String key, byte[] value) {
+		if (closed)
+			throw new IllegalStateException("Cache log " + base
+					+ " is closed.");
+		pending.put(key, value);
+		synchronized (writtenLock) {
+			enqueued++;
+		}
+		queue.add(new Record(key, value, System.currentTimeMillis()));
+	}
+
+	/**
+	 * @param key
+	 *            the key.
+	 * @return true iff the log contains a record for the key.
+	 */
+	public boolean containsKey(String key) {
+		return pending.containsKey(key) || index.containsKey(key);
+	}
+
+	/**
+	 * @return the keys of all records in the log.
+	 */
+	public Set<String> keySet() {
+		Set<String> keys = new HashSet<>(index.keySet());
+		keys.addAll(pending.keySet());
+		return keys;
+	}
+
+	/**
+	 * @return the number of distinct keys in the log.
+	 */
+	public int size() {
+		int size = index.size();
+		for (String key : pending.keySet())
+			if (!index.containsKey(key))
+				size++;
+		return size;
+	}
+
+	/**
+	 * @param key
+	 *            the key.
+	 * @return the value of the latest record for the key, or null if there is
+	 *         no such record.
+	 * @throws IOException
+	 *             if the record could not be read.
+	 */
+	public byte[] get(String key) throws IOException {
+		byte[] value = pending.get(key);
+		if (value != null)
+			return value;
+		RecordLocation loc = index.get(key);
+		if (loc == null)
+			return null;
+		return read(loc);
+	}
+
+	/**
+	 * @param key
+	 *            the key.
+	 * @return the time the latest record for the key was appended, in
+	 *         milliseconds since the epoch; the current time if the record is
+	 *         still waiting to be written; 0 if there is no such record.
+	 */
+	public long getWriteTime(String key) {
+		if (pending.containsKey(key))
+			return System.currentTimeMillis();
+		RecordLocation loc = index.get(key);
+		return loc == null ? 0 : loc.writeTime;
+	}
+
+	private byte[] read(RecordLocation loc) throws IOException {
+		MappedByteBuffer mapped = mappedSegments.get(loc.segment);
+		if (mapped == null
+				|| mapped.capacity() < loc.valueOffset + loc.valueLength) {
+			// The segment is mapped up to its current length; the current
+			// segment is mapped again when it has grown.
+			try (RandomAccessFile raf = new RandomAccessFile(segmentFile(base,
+					loc.segment), "r")) {
+				mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						0, raf.length());
+			}
+			if (mapped.capacity() < loc.valueOffset + loc.valueLength)
+				throw new EOFException("Truncated record in segment "
+						+ loc.segment + " of " + base);
+			mappedSegments.put(loc.segment, mapped);
+		}
+		ByteBuffer buf = mapped.duplicate();
+		buf.position((int) loc.valueOffset);
+		byte[] value = new byte[loc.valueLength];
+		buf.get(value);
+		return value;
+	}
+
+	/**
+	 * Block until all records appended so far have been written and synced to
+	 * disk, or given up.
+	 *
+	 * @throws IOException
+	 *             if the last batch of the background writer failed. Its
+	 *             records are given up, and the error is thrown only once.
+	 */
+	public void flush() throws IOException {
+		synchronized (writtenLock) {
+			long target = enqueued;
+			while (written < target)
+				try {
+					writtenLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			if (writeError != null) {
+				IOException e = writeError;
+				writeError = null;
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Write all pending records and close the log.
+	 *
+	 * @throws IOException
+	 *             if the pending records could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		FileLock lock = lockFile();
+		try {
+			catchUp();
+			currentOut.close();
+			writeIndex(currentSegment, currentSize);
+		} finally {
+			unlockFile(lock);
+			lockChannel.close();
+		}
+		mappedSegments.clear();
+	}
+
+	/**
+	 * A function rewriting the keys of a log, see
+	 * {@link CacheLog#compact(String, KeyMapper)}.
+	 */
+	public interface KeyMapper {
+		/**
+		 * @param key
+		 *            a key of the log.
+		 * @return the key the record must have in the rewritten log, or null
+		 *         to drop the record.
+		 */
+		String map(String key);
+	}
+
+	/**
+	 * Rewrite a log keeping only the latest record of each key. The new
+	 * records are written to fresh segments before the old segments are
+	 * deleted, so a crash during compaction never loses data. The log must
+	 * not be open, in any process, while it is compacted.
+	 *
+	 * @param base
+	 *            the base name of the segment files.
+	 * @throws IOException
+	 *             if the log could not be read or written.
+	 */
+	public static void compact(String base) throws IOException {
+		compact(base, null);
+	}
+
+	/**
+	 * Rewrite a log keeping only the latest record of each key, and changing
+	 * the keys of the records. If several keys are mapped to the same new key,
+	 * the record appended last is kept. See {@link #compact(String)}.
+	 *
+	 * @param base
+	 *            the base name of the segment files.
+	 * @param mapper
+	 *            the function giving the new key of each record, or null to
+	 *            keep the keys.
+	 * @throws IOException
+	 *             if the log could not be read or written.
+	 */
+	public static void compact(String base, KeyMapper mapper)
+			throws IOException {
+		List<Integer> oldSegments = listSegments(base);
+		if (oldSegments.isEmpty())
+			return;
+		// Leftovers of an interrupted compaction.
+		for (int segment : listSegments(base + ".compacting")) {
+			segmentFile(base + ".compacting", segment).delete();
+			indexFile(base + ".compacting", segment).delete();
+		}
+
+		CacheLog source = new CacheLog(base);
+		int firstNewSegment = source.currentSegment + 1;
+		CacheLog target = new CacheLog(base + ".compacting");
+		List<String> keys = new Vector<>(source.index.keySet());
+		if (mapper != null) {
+			final Map<String, RecordLocation> index = source.index;
+			Collections.sort(keys, new Comparator<String>() {
+				@Override
+				public int compare(String k1, String k2) {
+					RecordLocation l1 = index.get(k1);
+					RecordLocation l2 = index.get(k2);
+					if (l1.segment != l2.segment)
+						return Integer.compare(l1.segment, l2.segment);
+					return Long.compare(l1.valueOffset, l2.valueOffset);
+				}
+			});
+		}
+		for (String key : keys) {
+			RecordLocation loc = source.index.get(key);
+			String newKey = mapper == null ? key : mapper.map(key);
+			if (newKey == null)
+				continue;
+			target.queue.add(new Record(newKey, source.read(loc),
+					loc.writeTime));
+			synchronized (target.writtenLock) {
+				target.enqueued++;
+			}
+			target.flushIfLarge();
+		}
+		source.close();
+		target.close();
+		new File(base + ".compacting" + LOCK_SUFFIX).delete();
+
+		List<Integer> newSegments = listSegments(base + ".compacting");
+		for (int i = 0; i < newSegments.size(); i++) {
+			// The index is renamed first: a segment without an index is
+			// scanned, an index without a segment is ignored.
+			indexFile(base + ".compacting", newSegments.get(i)).renameTo(
+					indexFile(base, firstNewSegment + i));
+			if (!segmentFile(base + ".compacting", newSegments.get(i))
+					.renameTo(segmentFile(base, firstNewSegment + i)))
+				throw new IOException("Could not rename compacted segment "
+						+ newSegments.get(i));
+		}
+		for (int segment : oldSegments) {
+			indexFile(base, segment).delete();
+			if (!segmentFile(base, segment).delete())
+				throw new IOException("Could not delete old segment "
+						+ segment);
+		}
+	}
+
+	/**
+	 * Wait for the writer if too many records are queued.
+	 */
+	private void flushIfLarge() throws IOException {
+		if (queue.size() > 10000)
+			flush();
+	}
+
+	/**
+	 * Compact the log given as argument. Usage: CacheLog compact base-name
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 || !args[0].equals("compact")) {
+			System.err.println("Usage: CacheLog compact base-name");
+			System.exit(1);
+		}
+		System.out.printf("Compacting %s...%n", args[1]);
+		compact(args[1]);
+		System.out.println("Done.");
+	}
+}
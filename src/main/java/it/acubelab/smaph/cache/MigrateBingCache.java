@@ -0,0 +1,118 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+
+/**
+ * Rewrites a Bing response cache so that its keys are those given by
+ * {@link BingCacheKey}. Both kinds of old caches are handled: a serialized
+ * HashMap keyed by request URL, that is imported in a new {@link CacheLog}
+ * with the same base name, and a {@link CacheLog} keyed by request URL, that
+ * is compacted in place. Entries whose key can not be migrated are dropped.
+ */
+public class MigrateBingCache {
+	/**
+	 * The key mapper turning URL keys into hashed keys. Keys that are already
+	 * hashed are kept.
+	 */
+	public static final CacheLog.KeyMapper LEGACY_KEY_MAPPER = new CacheLog.KeyMapper() {
+		@Override
+		public String map(String key) {
+			if (BingCacheKey.isHashedKey(key))
+				return key;
+			return BingCacheKey.fromLegacyKey(key);
+		}
+	};
+
+	/**
+	 * Import a cache in the old format (a serialized HashMap keyed by request
+	 * URL) in a log, with migrated keys.
+	 * 
+	 * @param cacheFilename
+	 *            the file of the old cache.
+	 * @param log
+	 *            the log.
+	 * @return the number of imported entries.
+	 * @throws IOException
+	 *             if the old cache could not be read.
+	 * @throws ClassNotFoundException
+	 *             if the file contained an object of the wrong class.
+	 */
+	public static int importLegacyCache(String cacheFilename, CacheLog log)
+			throws IOException, ClassNotFoundException {
+		HashMap<String, byte[]> oldCache;
+		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+				cacheFilename))) {
+			oldCache = (HashMap<String, byte[]>) ois.readObject();
+		}
+		int imported = 0;
+		for (String key : oldCache.keySet()) {
+			String newKey = LEGACY_KEY_MAPPER.map(key);
+			if (newKey != null) {
+				log.append(newKey, oldCache.get(key));
+				imported++;
+			}
+		}
+		log.flush();
+		return imported;
+	}
+
+	/**
+	 * @param log
+	 *            a log.
+	 * @return true iff the log has keys that must be migrated.
+	 */
+	public static boolean needsMigration(CacheLog log) {
+		for (String key : log.keySet())
+			if (!BingCacheKey.isHashedKey(key))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Migrate the cache given as argument. Usage: MigrateBingCache
+	 * cache-file
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		if (args.length != 1) {
+			System.err.println("Usage: MigrateBingCache cache-file");
+			System.exit(1);
+		}
+		String base = args[0];
+		if (CacheLog.exists(base)) {
+			System.out.printf("Migrating cache log %s...%n", base);
+			CacheLog.compact(base, LEGACY_KEY_MAPPER);
+		} else if (new File(base).exists()) {
+			System.out.printf("Importing old cache %s...%n", base);
+			try (CacheLog log = new CacheLog(base)) {
+				importLegacyCache(base, log);
+			}
+		} else {
+			System.err.printf("No cache found at %s.%n", base);
+			System.exit(1);
+		}
+		try (CacheLog log = new CacheLog(base)) {
+			System.out.printf("Done. The cache has %d responses.%n",
+					log.size());
+		}
+	}
+}
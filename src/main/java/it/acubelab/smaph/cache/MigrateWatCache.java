@@ -0,0 +1,98 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rewrites a WAT response cache (a serialized HashMap) so that its keys are
+ * those given by {@link WatCacheKey}. Entries whose key can not be migrated
+ * are dropped.
+ */
+public class MigrateWatCache {
+	/**
+	 * @param cache
+	 *            a WAT cache.
+	 * @return true iff the cache has keys that must be migrated.
+	 */
+	public static boolean needsMigration(Map<String, byte[]> cache) {
+		for (String key : cache.keySet())
+			if (!WatCacheKey.isHashedKey(key))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param cache
+	 *            a WAT cache.
+	 * @return a new cache with the same entries, keyed by
+	 *         {@link WatCacheKey}. Keys that are already hashed are kept.
+	 */
+	public static HashMap<String, byte[]> migrate(Map<String, byte[]> cache) {
+		HashMap<String, byte[]> migrated = new HashMap<>();
+		for (Map.Entry<String, byte[]> entry : cache.entrySet()) {
+			String key = entry.getKey();
+			String newKey = WatCacheKey.isHashedKey(key) ? key : WatCacheKey
+					.fromLegacyKey(key);
+			if (newKey != null)
+				migrated.put(newKey, entry.getValue());
+		}
+		return migrated;
+	}
+
+	/**
+	 * Migrate the cache given as argument. The new cache is written to a
+	 * temporary file that then replaces the old one. Usage: MigrateWatCache
+	 * cache-file
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		if (args.length != 1) {
+			System.err.println("Usage: MigrateWatCache cache-file");
+			System.exit(1);
+		}
+		File cacheFile = new File(args[0]);
+		if (!cacheFile.exists()) {
+			System.err.printf("No cache found at %s.%n", cacheFile);
+			System.exit(1);
+		}
+		HashMap<String, byte[]> cache;
+		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+				cacheFile))) {
+			cache = (HashMap<String, byte[]>) ois.readObject();
+		}
+		System.out.printf("Migrating cache %s...%n", cacheFile);
+		HashMap<String, byte[]> migrated = migrate(cache);
+		File tmp = new File(cacheFile.getPath() + ".migrating");
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(tmp))) {
+			oos.writeObject(migrated);
+		}
+		if (!tmp.renameTo(cacheFile))
+			throw new IOException("Could not replace " + cacheFile);
+		System.out.printf(
+				"Done. The cache has %d responses (%d could not be migrated).%n",
+				migrated.size(), cache.size() - migrated.size());
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.cache;
+
+import it.acubelab.smaph.net.RateLimiter;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A time-to-live policy for cached entries. An entry older than the TTL is
+ * stale: it is still served, while a refresh of the entry is run in the
+ * background, so that a stale entry never costs latency to the request that
+ * finds it. Refreshes are started at a bounded rate; a stale entry whose
+ * refresh was not started because the rate was exceeded is refreshed when it
+ * is requested again. At most one refresh per key runs at a time.
+ */
+public class StaleWhileRevalidate {
+	private final long ttl;
+	private final double refreshesPerSecond;
+	private final RateLimiter refreshBudget;
+	private final ExecutorService executor;
+	private final Set<String> refreshing = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicLong staleCount = new AtomicLong();
+	private final AtomicLong startedCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong succeededCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * @param ttl
+	 *            the age after which an entry is stale, in milliseconds.
+	 * @param refreshesPerSecond
+	 *            the maximum number of refreshes started per second.
+	 * @param threads
+	 *            the number of threads running the refreshes.
+	 */
+	public StaleWhileRevalidate(long ttl, double refreshesPerSecond,
+			int threads) {
+		if (ttl <= 0)
+			throw new IllegalArgumentException("TTL must be positive.");
+		this.ttl = ttl;
+		this.refreshesPerSecond = refreshesPerSecond;
+		this.refreshBudget = new RateLimiter(refreshesPerSecond);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Cache refresh");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * @return the age after which an entry is stale, in milliseconds.
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @return the maximum number of refreshes started per second.
+	 */
+	public double getRefreshesPerSecond() {
+		return refreshesPerSecond;
+	}
+
+	/**
+	 * @param writeTime
+	 *            the time an entry was written, in milliseconds since the
+	 *            epoch, or 0 if unknown.
+	 * @param now
+	 *            the current time, in milliseconds since the epoch.
+	 * @return true iff the entry is stale. Entries written at an unknown time
+	 *         are never stale.
+	 */
+	public boolean isStale(long writeTime, long now) {
+		return writeTime > 0 && now - writeTime > ttl;
+	}
+
+	/**
+	 * Refresh a stale entry in the background, unless it is already being
+	 * refreshed or the refresh rate is exceeded. This method does not block.
+	 *
+	 * @param key
+	 *            the key of the entry.
+	 * @param refresh
+	 *            the task that fetches the entry again and updates the cache.
+	 * @return true iff a refresh was started.
+	 */
+	public boolean refresh(final String key, final Callable<?> refresh) {
+		staleCount.incrementAndGet();
+		if (!refreshing.add(key))
+			return false;
+		if (!refreshBudget.tryAcquire()) {
+			refreshing.remove(key);
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh.call();
+						succeededCount.incrementAndGet();
+					} catch (Exception e) {
+						failedCount.incrementAndGet();
+						System.err.printf("Refresh of %s failed (%s).%n", key,
+								e);
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key);
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		startedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Stop running refreshes. Refreshes already started are interrupted.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param timeout
+	 *            the maximum time to wait, in milliseconds.
+	 * @return true iff no refresh is running after the wait.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!refreshing.isEmpty() && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		return refreshing.isEmpty();
+	}
+
+	/**
+	 * @return the number of stale entries served.
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	/**
+	 * @return the number of refreshes started.
+	 */
+	public long getStartedCount() {
+		return startedCount.get();
+	}
+
+	/**
+	 * @return the number of refreshes not started because the refresh rate
+	 *         was exceeded.
+	 */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/**
+	 * @return the number of refreshes that succeeded.
+	 */
+	public long getSucceededCount() {
+		return succeededCount.get();
+	}
+
+	/**
+	 * @return the number of refreshes that failed.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of refreshes running or waiting for a thread.
+	 */
+	public int getRunningCount() {
+		return refreshing.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ttl=%d stale=%d refreshes started=%d skipped=%d succeeded=%d failed=%d running=%d",
+				ttl, staleCount.get(), startedCount.get(), skippedCount.get(),
+				succeededCount.get(), failedCount.get(), refreshing.size());
+	}
+}
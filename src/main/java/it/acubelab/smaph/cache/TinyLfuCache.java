@@ -0,0 +1,442 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.cache;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory cache from strings to byte arrays bounded by the number of
+ * bytes it holds, with a W-TinyLFU eviction policy. New entries enter a small
+ * LRU window; entries leaving the window are admitted in the main area only
+ * if they have been requested more often than the entry they would evict,
+ * according to an approximate frequency sketch that is periodically aged. The
+ * main area is a segmented LRU: entries hit while in probation are promoted to
+ * the protected segment. This way a burst of one-off keys only flushes the
+ * window, while frequently requested keys stay in the main area.
+ * <p>
+ * Reads do not lock: entries are served from a concurrent map, and each read
+ * is recorded in a small ring buffer. The recorded reads are applied to the
+ * sketch and to the LRU order by whichever thread finds the buffer filled
+ * enough and the policy lock free; reads are dropped when the buffer is full,
+ * which only makes the policy a little less accurate. Writes take the policy
+ * lock.
+ */
+public class TinyLfuCache {
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final double WINDOW_RATIO = 0.01;
+	private static final double PROTECTED_RATIO = 0.8;
+	private static final int AVERAGE_ENTRY_WEIGHT = 4096;
+	private static final int READ_BUFFER_SIZE = 128;
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+	private final long maxWeight;
+	private final long maxWindowWeight;
+	private final long maxProtectedWeight;
+
+	private final ConcurrentHashMap<String, byte[]> data = new ConcurrentHashMap<>();
+	private final AtomicReferenceArray<String> readBuffer = new AtomicReferenceArray<>(
+			READ_BUFFER_SIZE);
+	private final AtomicLong readBufferWrites = new AtomicLong();
+	private volatile long readBufferReads = 0;
+
+	/*
+	 * The eviction policy, guarded by policyLock.
+	 */
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final LinkedHashMap<String, byte[]> window = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private final LinkedHashMap<String, byte[]> protect = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private long windowWeight = 0;
+	private long probationWeight = 0;
+	private long protectedWeight = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxWeight
+	 *            the maximum number of bytes held by the cache, including an
+	 *            estimate of the per-entry overhead.
+	 */
+	public TinyLfuCache(long maxWeight) {
+		if (maxWeight <= 0)
+			throw new IllegalArgumentException("Cache weight must be positive.");
+		this.maxWeight = maxWeight;
+		this.maxWindowWeight = Math.max(1, (long) (maxWeight * WINDOW_RATIO));
+		this.maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * PROTECTED_RATIO);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 24,
+				Math.max(1024, maxWeight / AVERAGE_ENTRY_WEIGHT)));
+	}
+
+	/**
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value.
+	 * @return the number of bytes accounted for the entry.
+	 */
+	static long weight(String key, byte[] value) {
+		return ENTRY_OVERHEAD + 2L * key.length() + value.length;
+	}
+
+	/**
+	 * Look up a key. This method does not block.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the value bound to the key, or null if the key is not cached.
+	 */
+	public byte[] get(String key) {
+		byte[] value = data.get(key);
+		if (value == null)
+			missCount.incrementAndGet();
+		else
+			hitCount.incrementAndGet();
+		recordRead(key);
+		return value;
+	}
+
+	/**
+	 * Add a read to the read buffer, unless it is full, and drain the buffer
+	 * if enough reads are waiting and no other thread holds the policy lock.
+	 */
+	private void recordRead(String key) {
+		long tail = readBufferWrites.get();
+		long waiting = tail - readBufferReads;
+		if (waiting < READ_BUFFER_SIZE
+				&& readBufferWrites.compareAndSet(tail, tail + 1))
+			readBuffer.lazySet((int) (tail & (READ_BUFFER_SIZE - 1)), key);
+		if (waiting >= READ_BUFFER_DRAIN_THRESHOLD && policyLock.tryLock())
+			try {
+				drainReadBuffer();
+			} finally {
+				policyLock.unlock();
+			}
+	}
+
+	/**
+	 * Apply the buffered reads to the sketch and to the LRU order. Must be
+	 * called while holding the policy lock. A slot that is not written yet is
+	 * skipped, as if the read had been dropped.
+	 */
+	private void drainReadBuffer() {
+		long head = readBufferReads;
+		long tail = readBufferWrites.get();
+		for (; head < tail; head++) {
+			String key = readBuffer.getAndSet(
+					(int) (head & (READ_BUFFER_SIZE - 1)), null);
+			if (key != null)
+				onRead(key);
+		}
+		readBufferReads = head;
+	}
+
+	private void onRead(String key) {
+		sketch.increment(key);
+		if (window.get(key) != null || protect.get(key) != null)
+			return;
+		byte[] value = probation.remove(key);
+		if (value != null) {
+			long w = weight(key, value);
+			probationWeight -= w;
+			protect.put(key, value);
+			protectedWeight += w;
+			demoteProtected();
+		}
+	}
+
+	/**
+	 * Bind a value to a key. Entries heavier than the whole cache are not
+	 * stored.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param value
+	 *            the value.
+	 */
+	public void put(String key, byte[] value) {
+		policyLock.lock();
+		try {
+			drainReadBuffer();
+			removeLocked(key);
+			long w = weight(key, value);
+			if (w > maxWeight)
+				return;
+			sketch.increment(key);
+			data.put(key, value);
+			window.put(key, value);
+			windowWeight += w;
+			while ((windowWeight > maxWindowWeight || weightedSizeLocked() > maxWeight)
+					&& !window.isEmpty()) {
+				Map.Entry<String, byte[]> candidate = removeEldest(window);
+				windowWeight -= weight(candidate.getKey(), candidate.getValue());
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Move an entry leaving the window to the probation segment, if it is
+	 * requested more often than the entries that must be evicted to make room
+	 * for it. The entry is rejected if it does not fit even with the probation
+	 * and protected segments empty.
+	 */
+	private void admit(String key, byte[] value) {
+		long w = weight(key, value);
+		int candidateFreq = sketch.frequency(key);
+		while (windowWeight + probationWeight + protectedWeight + w > maxWeight) {
+			LinkedHashMap<String, byte[]> victims = probation.isEmpty() ? protect
+					: probation;
+			if (victims.isEmpty()) {
+				reject(key, value);
+				return;
+			}
+			String victim = victims.keySet().iterator().next();
+			if (candidateFreq <= sketch.frequency(victim)) {
+				reject(key, value);
+				return;
+			}
+			evictionCount.incrementAndGet();
+			removeLocked(victim);
+		}
+		probation.put(key, value);
+		probationWeight += w;
+	}
+
+	private void reject(String key, byte[] value) {
+		evictionCount.incrementAndGet();
+		data.remove(key, value);
+	}
+
+	private void demoteProtected() {
+		while (protectedWeight > maxProtectedWeight) {
+			Map.Entry<String, byte[]> demoted = removeEldest(protect);
+			long w = weight(demoted.getKey(), demoted.getValue());
+			protectedWeight -= w;
+			probation.put(demoted.getKey(), demoted.getValue());
+			probationWeight += w;
+		}
+	}
+
+	private static Map.Entry<String, byte[]> removeEldest(
+			LinkedHashMap<String, byte[]> map) {
+		Iterator<Map.Entry<String, byte[]>> it = map.entrySet().iterator();
+		Map.Entry<String, byte[]> eldest = it.next();
+		Map.Entry<String, byte[]> copy = new AbstractMap.SimpleImmutableEntry<>(
+				eldest);
+		it.remove();
+		return copy;
+	}
+
+	/**
+	 * Remove a key from the cache.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return the value that was bound to the key, or null.
+	 */
+	public byte[] remove(String key) {
+		policyLock.lock();
+		try {
+			return removeLocked(key);
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	private byte[] removeLocked(String key) {
+		data.remove(key);
+		byte[] value = window.remove(key);
+		if (value != null) {
+			windowWeight -= weight(key, value);
+			return value;
+		}
+		value = probation.remove(key);
+		if (value != null) {
+			probationWeight -= weight(key, value);
+			return value;
+		}
+		value = protect.remove(key);
+		if (value != null)
+			protectedWeight -= weight(key, value);
+		return value;
+	}
+
+	/**
+	 * Remove all entries from the cache. Counters are not reset.
+	 */
+	public void clear() {
+		policyLock.lock();
+		try {
+			drainReadBuffer();
+			data.clear();
+			window.clear();
+			probation.clear();
+			protect.clear();
+			windowWeight = probationWeight = protectedWeight = 0;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key.
+	 * @return true iff the key is cached. The frequency of the key is not
+	 *         affected.
+	 */
+	public boolean containsKey(String key) {
+		return data.containsKey(key);
+	}
+
+	/**
+	 * @return the number of cached entries.
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * @return the number of bytes held by the cache.
+	 */
+	public long weightedSize() {
+		policyLock.lock();
+		try {
+			return weightedSizeLocked();
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	private long weightedSizeLocked() {
+		return windowWeight + probationWeight + protectedWeight;
+	}
+
+	/**
+	 * @return the maximum number of bytes held by the cache.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * @return the number of calls to {@link #get(String)} that found the key.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of calls to {@link #get(String)} that did not find
+	 *         the key.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of entries evicted, or refused admission, to keep
+	 *         the cache within its bound.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = hitCount.get();
+		long requests = hits + missCount.get();
+		return String.format(
+				"entries=%d bytes=%d/%d hits=%d misses=%d hitRate=%.3f evictions=%d",
+				size(), weightedSize(), maxWeight, hits, requests - hits,
+				requests == 0 ? 0.0 : (double) hits / requests,
+				evictionCount.get());
+	}
+
+	/**
+	 * A count-min sketch of 4-bit counters estimating how often keys have
+	 * been requested. All counters are halved every time the number of
+	 * increments reaches ten times the width of the sketch, so that the
+	 * frequencies reflect recent requests.
+	 */
+	static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85c,
+				0x85ebca6b, 0x27d4eb2f };
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(2, expectedEntries) - 1) << 1;
+			table = new byte[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			boolean added = false;
+			for (int row = 0; row < DEPTH; row++) {
+				int i = index(hash, row);
+				if (table[row][i] < MAX_COUNT) {
+					table[row][i]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				reset();
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int min = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++)
+				min = Math.min(min, table[row][index(hash, row)]);
+			return min;
+		}
+
+		private void reset() {
+			for (byte[] row : table)
+				for (int i = 0; i < row.length; i++)
+					row[i] >>= 1;
+			additions /= 2;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.cache;
+
+import it.unipi.di.acube.batframework.data.Mention;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Keys of the WAT response cache. A request is encoded canonically: the path
+ * of the API, the GET parameters sorted by name, and the fields of the JSON
+ * body sorted by name, with the spans sorted by position. The host of the
+ * API is not part of the key. The key of a request is a 128-bit hash of its
+ * canonical encoding, written as 32 hex digits, so that the same logical
+ * request always has the same key, regardless of the order in which its
+ * mentions and parameters were given.
+ * 
+ * Caches written before this scheme used the URL of the request followed by
+ * its JSON body as key; see {@link #fromLegacyKey(String)}.
+ */
+public class WatCacheKey {
+	/**
+	 * Orders mentions by position, then by length.
+	 */
+	public static final Comparator<Mention> MENTION_ORDER = new Comparator<Mention>() {
+		@Override
+		public int compare(Mention m1, Mention m2) {
+			if (m1.getPosition() != m2.getPosition())
+				return m1.getPosition() < m2.getPosition() ? -1 : 1;
+			return Integer.compare(m1.getLength(), m2.getLength());
+		}
+	};
+
+	/**
+	 * @param mentions
+	 *            some mentions.
+	 * @return the mentions, ordered by {@link #MENTION_ORDER}.
+	 */
+	public static List<Mention> sortedMentions(Collection<Mention> mentions) {
+		List<Mention> sorted = new Vector<>(mentions);
+		Collections.sort(sorted, MENTION_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * @param parameters
+	 *            GET parameters, e.g. <code>lang=en&amp;method=base</code>.
+	 * @return the parameters sorted by name, without empty ones.
+	 */
+	public static String canonicalParameters(String parameters) {
+		if (parameters == null)
+			return "";
+		List<String> sorted = new Vector<>();
+		for (String parameter : parameters.split("&"))
+			if (!parameter.isEmpty())
+				sorted.add(parameter);
+		Collections.sort(sorted);
+		StringBuilder sb = new StringBuilder();
+		for (String parameter : sorted)
+			sb.append(sb.length() == 0 ? "" : "&").append(parameter);
+		return sb.toString();
+	}
+
+	/**
+	 * @param body
+	 *            the JSON body of a request.
+	 * @return the canonical encoding of the body: its fields sorted by name,
+	 *         with spans sorted by position.
+	 * @throws JSONException
+	 *             if the body is not a valid JSON object.
+	 */
+	public static String canonicalBody(String body) throws JSONException {
+		JSONObject json = new JSONObject(body);
+		List<String> names = new Vector<>();
+		for (Iterator<?> it = json.keys(); it.hasNext();)
+			names.add((String) it.next());
+		Collections.sort(names);
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			sb.append(name).append('=');
+			if (name.equals("spans")) {
+				JSONArray spans = json.getJSONArray(name);
+				long[] sorted = new long[spans.length()];
+				for (int i = 0; i < spans.length(); i++) {
+					JSONObject span = spans.getJSONObject(i);
+					sorted[i] = ((long) span.getInt("start") << 32)
+							| (span.getInt("end") & 0xffffffffL);
+				}
+				Arrays.sort(sorted);
+				for (int i = 0; i < sorted.length; i++)
+					sb.append(i == 0 ? "" : ",").append(sorted[i] >> 32)
+							.append('-').append((int) sorted[i]);
+			} else
+				sb.append(JSONObject.quote(json.get(name).toString()));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param path
+	 *            the path of the API, e.g. <code>/tag/disambiguate</code>.
+	 * @param parameters
+	 *            the GET parameters of the request.
+	 * @param body
+	 *            the JSON body of the request.
+	 * @return the cache key of the request.
+	 * @throws JSONException
+	 *             if the body is not a valid JSON object.
+	 */
+	public static String forRequest(String path, String parameters, String body)
+			throws JSONException {
+		return BingCacheKey.hash(path + "?" + canonicalParameters(parameters)
+				+ "\n" + canonicalBody(body));
+	}
+
+	/**
+	 * @param key
+	 *            a cache key.
+	 * @return true iff the key has the form of keys returned by
+	 *         {@link #forRequest(String, String, String)}.
+	 */
+	public static boolean isHashedKey(String key) {
+		return BingCacheKey.isHashedKey(key);
+	}
+
+	/**
+	 * @param legacyKey
+	 *            a key of the old cache format, i.e. the URL of a request
+	 *            followed by its JSON body.
+	 * @return the key of the same request in the new format, or null if the
+	 *         request could not be parsed.
+	 */
+	public static String fromLegacyKey(String legacyKey) {
+		int bodyStart = legacyKey.indexOf('{');
+		if (bodyStart == -1)
+			return null;
+		try {
+			URL url = new URL(legacyKey.substring(0, bodyStart));
+			return forRequest(url.getPath(), url.getQuery(),
+					legacyKey.substring(bodyStart));
+		} catch (MalformedURLException | JSONException e) {
+			return null;
+		}
+	}
+}
@@ -25,6 +25,7 @@ import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
 import it.unipi.di.acube.batframework.utils.FreebaseApi;
 import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
 import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.SmaphConfig;
 import it.acubelab.smaph.boldfilters.EditDistanceBoldFilter;
 import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
 import it.acubelab.smaph.entityfilters.NoEntityFilter;
@@ -124,7 +125,8 @@ public class GenerateTrainingAndTest {
 			double editDistanceSpotFilterThreshold, int wikiSearchTopK,
 			String bingKey) throws FileNotFoundException,
 			ClassNotFoundException, IOException {
-		WATAnnotator wikiSense = new WATAnnotator("wikisense.mkapp.it", 80,
+		WATAnnotator wikiSense = new WATAnnotator(
+				SmaphConfig.getDefaultWatHost(), SmaphConfig.getDefaultWatPort(),
 				"base", "COMMONNESS", "jaccard", "0.6", "0.0"/* minlp */, false,
 				false, false);
 
@@ -132,6 +134,7 @@ public class GenerateTrainingAndTest {
 				new FrequencyBoldFilter((float)editDistanceSpotFilterThreshold),
 				new NoEntityFilter(), new DummyLinkBack(), true, true, true,
 				wikiSearchTopK, false, 0, false, 0, wikiApi, bingKey);
+		bingAnnotator.setBingEndpoint(SmaphConfig.getDefaultBingEndpoint());
 
 		return bingAnnotator;
 	}
@@ -212,6 +212,7 @@ public class TuneModel {
 		Locale.setDefault(Locale.US);
 		String freebKey = "<FREEBASE_KEY>";
 		String bingKey = "<BING_KEY>";
+		SmaphConfig.setConfigFile("smaph-config.xml");
 
 		WikipediaApiInterface wikiApi = new WikipediaApiInterface(
 				"benchmark/cache/wid.cache", "benchmark/cache/redirect.cache");
@@ -3,6 +3,7 @@ package it.acubelab.smaph.linkback;
 import it.unipi.di.acube.batframework.data.*;
 import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
 import it.acubelab.smaph.SmaphUtils;
+import it.acubelab.smaph.wikipedia.ResolvedEntities;
 
 import java.io.IOException;
 import java.util.*;
@@ -32,9 +33,17 @@ public class BaselineLinkBack implements LinkBack {
 		}
 	}
 
-	@Override
+	/**
+	 * Link back the entities, looking up their titles on the Wikipedia API.
+	 */
 	public HashSet<ScoredAnnotation> linkBack(String query,
 			HashMap<String[], Tag> boldsToEntities) {
+		return linkBack(query, boldsToEntities, null);
+	}
+
+	@Override
+	public HashSet<ScoredAnnotation> linkBack(String query,
+			HashMap<String[], Tag> boldsToEntities, ResolvedEntities entities) {
 
 		// If more than one bold points to the same entity, keep the bold with
 		// smallest edit distance.
@@ -49,12 +58,16 @@ public class BaselineLinkBack implements LinkBack {
 					bestDistance = minED;
 				}
 			}
-			String title = "";
-			try {
-				title = wikiApi.getTitlebyId(boldsToEntities.get(bolds).getConcept());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			int wid = boldsToEntities.get(bolds).getConcept();
+			String title = entities == null ? null : entities.getTitle(wid);
+			if (title == null && wikiApi != null)
+				try {
+					title = wikiApi.getTitlebyId(wid);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			if (title == null)
+				title = "";
 			if (bestDistance > SmaphUtils.getMinEditDist(query, title)){
 				bestDistance = SmaphUtils.getMinEditDist(query, title);
 			}
@@ -1,5 +1,6 @@
 package it.acubelab.smaph.linkback;
 
+import it.acubelab.smaph.wikipedia.ResolvedEntities;
 import it.unipi.di.acube.batframework.data.*;
 
 import java.util.*;
@@ -7,7 +8,7 @@ import java.util.*;
 public class DummyLinkBack implements LinkBack {
 
 	@Override
-	public HashSet<ScoredAnnotation> linkBack(String query, HashMap<String[], Tag> boldToEntities) {
+	public HashSet<ScoredAnnotation> linkBack(String query, HashMap<String[], Tag> boldToEntities, ResolvedEntities entities) {
 		HashSet<ScoredAnnotation> res = new HashSet<>();
 		for (Tag entity : boldToEntities.values())
 			res.add(new ScoredAnnotation(0, 1, entity.getConcept(), 1));
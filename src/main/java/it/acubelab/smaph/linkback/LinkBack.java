@@ -1,5 +1,6 @@
 package it.acubelab.smaph.linkback;
 
+import it.acubelab.smaph.wikipedia.ResolvedEntities;
 import it.unipi.di.acube.batframework.data.*;
 
 import java.util.HashMap;
@@ -7,5 +8,16 @@ import java.util.HashSet;
 import java.util.List;
 
 public interface LinkBack {
-	public HashSet<ScoredAnnotation> linkBack(String query, HashMap<String[], Tag> boldToEntities);
+	/**
+	 * @param query
+	 *            the query.
+	 * @param boldToEntities
+	 *            the accepted entities, keyed by the bolds they were found
+	 *            with.
+	 * @param entities
+	 *            the titles of the entities, as resolved for the query, or
+	 *            null if they were not resolved.
+	 * @return the annotations of the query.
+	 */
+	public HashSet<ScoredAnnotation> linkBack(String query, HashMap<String[], Tag> boldToEntities, ResolvedEntities entities);
 }
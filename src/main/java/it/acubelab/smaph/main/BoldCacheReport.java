@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.main;
+
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.utils.ReplayWikipediaApiInterface;
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.learn.GenerateTrainingAndTest;
+import it.acubelab.smaph.net.OfflineReplay;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the fraction of WAT calls that the bold cache (see
+ * {@link WATAnnotator#setBoldCache(String)}) avoids on the queries of some
+ * datasets. The queries of each dataset are processed in order, with an
+ * empty bold cache, in offline replay mode (see {@link OfflineReplay}):
+ * Bing and WAT responses are read only from the recorded caches. Queries
+ * whose responses are not recorded fail, and are not counted.
+ * 
+ * Usage: BoldCacheReport [miss-report-file [dataset...]], where datasets are
+ * among erd2014, smaph-training, smaph-test, smaph-devel. Defaults to
+ * replay-misses.txt and all datasets.
+ */
+public class BoldCacheReport {
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		String missReport = args.length > 0 ? args[0] : "replay-misses.txt";
+		List<String> datasets = args.length > 1 ? Arrays.asList(args).subList(
+				1, args.length) : Arrays.asList("erd2014", "smaph-training",
+				"smaph-test", "smaph-devel");
+
+		OfflineReplay.enable(missReport);
+		SmaphConfig.setConfigFile("smaph-config.xml");
+		WikipediaApiInterface wikiApi = new ReplayWikipediaApiInterface(
+				"wid.cache", "redirect.cache");
+		WATAnnotator.setCache("wikisense.cache");
+		SmaphAnnotator.setCache(SmaphConfig.getDefaultBingCache());
+		SmaphAnnotator annotator = GenerateTrainingAndTest
+				.getDefaultBingAnnotator(wikiApi, null, 0.7, 10,
+						SmaphConfig.getDefaultBingKey());
+
+		for (String dataset : datasets) {
+			List<String> queries = ReplayBenchmark.loadQueries(dataset, wikiApi);
+			WATAnnotator.unSetBoldCache();
+			WATAnnotator.setBoldCache(null);
+			int failed = 0;
+			for (String query : queries)
+				try {
+					annotator.warmUp(query);
+				} catch (Exception e) {
+					failed++;
+				}
+			long calls = WATAnnotator.getD2WCount();
+			long avoided = WATAnnotator.getD2WAvoidedCount();
+			System.out.printf(
+					"%s: %d queries (%d failed), %d WAT calls, %d avoided by the bold cache (%.1f%%).%n",
+					dataset, queries.size(), failed, calls, avoided,
+					calls == 0 ? 0.0 : 100.0 * avoided / calls);
+		}
+		System.out.printf("%d requests missed, see %s.%n",
+				OfflineReplay.getMissCount(), missReport);
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.main;
+
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.anchors.AnchorDictionary;
+import it.acubelab.smaph.anchors.AnchorDisambiguator;
+import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
+import it.acubelab.smaph.entityfilters.NoEntityFilter;
+import it.acubelab.smaph.linkback.DummyLinkBack;
+import it.acubelab.smaph.net.OfflineReplay;
+import it.unipi.di.acube.batframework.data.Annotation;
+import it.unipi.di.acube.batframework.data.Mention;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.utils.AnnotationException;
+import it.unipi.di.acube.batframework.utils.ReplayWikipediaApiInterface;
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares the Source 1 features of the entity filter (the s1_ features of
+ * {@link it.acubelab.smaph.entityfilters.LibSvmEntityFilter}) computed by an
+ * {@link AnchorDisambiguator} with those returned by WAT. The queries of some
+ * datasets are processed in offline replay mode (see {@link OfflineReplay}):
+ * Bing and WAT responses are read only from the recorded caches, and the
+ * bolds given to WAT are also disambiguated with the anchor dictionary. For
+ * each feature, the mean absolute difference and the correlation over the
+ * bolds annotated by both are reported, along with the fraction of bolds
+ * linked to the same entity.
+ *
+ * Usage: CompareAnchorDisambiguator dictionary-file [miss-report-file
+ * [dataset...]], where datasets are among erd2014, smaph-training,
+ * smaph-test, smaph-devel. Defaults to replay-misses.txt and all datasets.
+ */
+public class CompareAnchorDisambiguator {
+	private static final List<String> FEATURES = Arrays.asList("lp",
+			"commonness", "ambiguity", "rhoScore", "localCoherence",
+			"pageRank");
+
+	/**
+	 * The sums needed for the mean absolute difference and the correlation
+	 * of a feature.
+	 */
+	private static final class FeatureStats {
+		private long n = 0;
+		private double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0,
+				sumAbsDiff = 0;
+
+		private void add(double x, double y) {
+			n++;
+			sumX += x;
+			sumY += y;
+			sumXX += x * x;
+			sumYY += y * y;
+			sumXY += x * y;
+			sumAbsDiff += Math.abs(x - y);
+		}
+
+		private double correlation() {
+			double cov = n * sumXY - sumX * sumY;
+			double varX = n * sumXX - sumX * sumX;
+			double varY = n * sumYY - sumY * sumY;
+			return varX <= 0 || varY <= 0 ? Double.NaN : cov
+					/ Math.sqrt(varX * varY);
+		}
+	}
+
+	/**
+	 * Returns what WAT returns, after comparing it with the anchor
+	 * disambiguator.
+	 */
+	private static final class ComparingDisambiguator extends WATAnnotator {
+		private final WATAnnotator wat;
+		private final AnchorDisambiguator anchors;
+		private final Map<String, FeatureStats> stats = new HashMap<>();
+		private long bolds = 0, annotatedByWat = 0, annotatedByBoth = 0,
+				sameEntity = 0;
+
+		private ComparingDisambiguator(WATAnnotator wat,
+				AnchorDisambiguator anchors) {
+			this.wat = wat;
+			this.anchors = anchors;
+			for (String feature : FEATURES)
+				stats.put(feature, new FeatureStats());
+		}
+
+		@Override
+		public D2WResult solveD2WWithInfo(String text,
+				HashSet<Mention> mentions) throws AnnotationException {
+			D2WResult watResult = wat.solveD2WWithInfo(text, mentions);
+			compare(text, mentions, watResult,
+					anchors.solveD2WWithInfo(text, mentions));
+			return watResult;
+		}
+
+		private static Map<Mention, Integer> entities(D2WResult result) {
+			Map<Mention, Integer> entities = new HashMap<>();
+			for (Annotation a : result.getAnnotations())
+				entities.put(new Mention(a.getPosition(), a.getLength()),
+						a.getConcept());
+			return entities;
+		}
+
+		private synchronized void compare(String text,
+				HashSet<Mention> mentions, D2WResult watResult,
+				D2WResult anchorResult) {
+			Map<Mention, Integer> watEntities = entities(watResult);
+			Map<Mention, Integer> anchorEntities = entities(anchorResult);
+			for (Mention m : mentions) {
+				bolds++;
+				Integer watEntity = watEntities.get(m);
+				if (watEntity == null)
+					continue;
+				annotatedByWat++;
+				Integer anchorEntity = anchorEntities.get(m);
+				if (anchorEntity == null)
+					continue;
+				annotatedByBoth++;
+				if (anchorEntity.equals(watEntity))
+					sameEntity++;
+				String bold = text.substring(m.getPosition(), m.getPosition()
+						+ m.getLength());
+				Map<String, Double> watInfo = watResult.getMentionInfo().get(
+						bold);
+				Map<String, Double> anchorInfo = anchorResult
+						.getMentionInfo().get(bold);
+				if (watInfo == null || anchorInfo == null)
+					continue;
+				for (String feature : FEATURES)
+					if (watInfo.containsKey(feature)
+							&& anchorInfo.containsKey(feature))
+						stats.get(feature).add(watInfo.get(feature),
+								anchorInfo.get(feature));
+			}
+		}
+
+		private synchronized void printReport(String dataset) {
+			System.out.printf(
+					"%s: %d bolds, %d annotated by WAT, %d of which found in the dictionary, %.1f%% linked to the same entity.%n",
+					dataset, bolds, annotatedByWat, annotatedByBoth,
+					annotatedByBoth == 0 ? 0.0 : 100.0 * sameEntity
+							/ annotatedByBoth);
+			for (String feature : FEATURES) {
+				FeatureStats s = stats.get(feature);
+				if (s.n == 0)
+					continue;
+				System.out.printf(
+						"  s1_%-15s mean WAT=%.4f anchors=%.4f mean |diff|=%.4f correlation=%.3f%n",
+						feature, s.sumX / s.n, s.sumY / s.n,
+						s.sumAbsDiff / s.n, s.correlation());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		if (args.length < 1)
+			throw new IllegalArgumentException(
+					"Usage: CompareAnchorDisambiguator dictionary-file [miss-report-file [dataset...]]");
+		String missReport = args.length > 1 ? args[1] : "replay-misses.txt";
+		List<String> datasets = args.length > 2 ? Arrays.asList(args).subList(
+				2, args.length) : Arrays.asList("erd2014", "smaph-training",
+				"smaph-test", "smaph-devel");
+
+		OfflineReplay.enable(missReport);
+		SmaphConfig.setConfigFile("smaph-config.xml");
+		WikipediaApiInterface wikiApi = new ReplayWikipediaApiInterface(
+				"wid.cache", "redirect.cache");
+		WATAnnotator.setCache("wikisense.cache");
+		SmaphAnnotator.setCache(SmaphConfig.getDefaultBingCache());
+		WATAnnotator wat = new WATAnnotator(SmaphConfig.getDefaultWatHost(),
+				SmaphConfig.getDefaultWatPort(), "base", "COMMONNESS",
+				"jaccard", "0.6", "0.0", false, false, false);
+
+		try (AnchorDictionary dictionary = new AnchorDictionary(args[0])) {
+			AnchorDisambiguator anchors = new AnchorDisambiguator(dictionary,
+					0.0);
+			for (String dataset : datasets) {
+				ComparingDisambiguator comparing = new ComparingDisambiguator(
+						wat, anchors);
+				SmaphAnnotator annotator = new SmaphAnnotator(comparing,
+						new FrequencyBoldFilter(0.7f), new NoEntityFilter(),
+						new DummyLinkBack(), true, true, true, 10, false, 0,
+						false, 0, wikiApi, SmaphConfig.getDefaultBingKey());
+				annotator.setBingEndpoint(SmaphConfig.getDefaultBingEndpoint());
+				int failed = 0;
+				List<String> queries = ReplayBenchmark.loadQueries(dataset,
+						wikiApi);
+				for (String query : queries)
+					try {
+						annotator.warmUp(query);
+					} catch (Exception e) {
+						failed++;
+					}
+				System.out.printf("%s: %d queries (%d failed).%n", dataset,
+						queries.size(), failed);
+				comparing.printReport(dataset);
+			}
+		}
+		System.out.printf("%d requests missed, see %s.%n",
+				OfflineReplay.getMissCount(), missReport);
+	}
+}
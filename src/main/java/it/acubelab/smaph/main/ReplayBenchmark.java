@@ -0,0 +1,141 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.main;
+
+import it.unipi.di.acube.batframework.datasetPlugins.SMAPHDataset;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.unipi.di.acube.batframework.utils.ReplayWikipediaApiInterface;
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.learn.GenerateTrainingAndTest;
+import it.acubelab.smaph.net.OfflineReplay;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * Runs SMAPH on the queries of some datasets in offline replay mode (see
+ * {@link OfflineReplay}): Bing, WAT and Wikipedia responses are read only
+ * from the recorded caches, so the run is deterministic and measures the
+ * processing time of {@link SmaphAnnotator#solveSa2W(String)} alone. Each
+ * dataset is processed twice, the first time to warm up the JVM, and the
+ * throughput and latency of the second pass are printed. Queries whose
+ * responses are not all recorded fail; they are listed in the miss report.
+ * 
+ * Usage: ReplayBenchmark [miss-report-file [dataset...]], where datasets are
+ * among erd2014, smaph-training, smaph-test, smaph-devel. Defaults to
+ * replay-misses.txt, erd2014 and smaph-devel.
+ */
+public class ReplayBenchmark {
+	static List<String> loadQueries(String dataset,
+			WikipediaApiInterface wikiApi) throws Exception {
+		switch (dataset) {
+		case "erd2014":
+			List<String> queries = new Vector<>();
+			try (BufferedReader r = new BufferedReader(new InputStreamReader(
+					new FileInputStream("datasets/erd2014/Trec_beta.query.txt"),
+					"utf-8"))) {
+				String line;
+				while ((line = r.readLine()) != null) {
+					String[] fields = line.trim().split("\t", 2);
+					if (fields.length == 2)
+						queries.add(fields[1]);
+				}
+			}
+			return queries;
+		case "smaph-training":
+		case "smaph-test":
+		case "smaph-devel":
+			return new SMAPHDataset(String.format("datasets/smaph/%s.xml",
+					dataset.replace('-', '_')), wikiApi).getTextInstanceList();
+		default:
+			throw new IllegalArgumentException("Unknown dataset " + dataset);
+		}
+	}
+
+	/**
+	 * @return the latency of each query, in nanoseconds, or -1 for failed
+	 *         queries.
+	 */
+	private static long[] run(SmaphAnnotator annotator, List<String> queries) {
+		long[] latencies = new long[queries.size()];
+		for (int i = 0; i < queries.size(); i++) {
+			long start = System.nanoTime();
+			try {
+				annotator.solveSa2W(queries.get(i));
+				latencies[i] = System.nanoTime() - start;
+			} catch (Exception e) {
+				latencies[i] = -1;
+			}
+		}
+		return latencies;
+	}
+
+	private static void printStats(String dataset, long[] latencies) {
+		long[] ok = new long[latencies.length];
+		int count = 0;
+		long total = 0;
+		for (long l : latencies)
+			if (l >= 0) {
+				ok[count++] = l;
+				total += l;
+			}
+		ok = Arrays.copyOf(ok, count);
+		Arrays.sort(ok);
+		System.out.printf("%s: %d queries, %d failed.%n", dataset,
+				latencies.length, latencies.length - count);
+		if (count == 0)
+			return;
+		System.out.printf(
+				"%s: %.1f queries/s, latency mean=%.2f p50=%.2f p95=%.2f p99=%.2f max=%.2f ms%n",
+				dataset, count / (total / 1e9), total / 1e6 / count,
+				ok[(int) (0.50 * (count - 1))] / 1e6,
+				ok[(int) (0.95 * (count - 1))] / 1e6,
+				ok[(int) (0.99 * (count - 1))] / 1e6, ok[count - 1] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		String missReport = args.length > 0 ? args[0] : "replay-misses.txt";
+		List<String> datasets = args.length > 1 ? Arrays.asList(args).subList(
+				1, args.length) : Arrays.asList("erd2014", "smaph-devel");
+
+		OfflineReplay.enable(missReport);
+		SmaphConfig.setConfigFile("smaph-config.xml");
+		WikipediaApiInterface wikiApi = new ReplayWikipediaApiInterface(
+				"wid.cache", "redirect.cache");
+		WATAnnotator.setCache("wikisense.cache");
+		SmaphAnnotator.setCache(SmaphConfig.getDefaultBingCache());
+		SmaphAnnotator annotator = GenerateTrainingAndTest
+				.getDefaultBingAnnotator(wikiApi, null, 0.7, 10,
+						SmaphConfig.getDefaultBingKey());
+
+		for (String dataset : datasets) {
+			List<String> queries = loadQueries(dataset, wikiApi);
+			run(annotator, queries);
+			printStats(dataset, run(annotator, queries));
+		}
+		System.out.printf("%d requests missed, see %s.%n",
+				OfflineReplay.getMissCount(), missReport);
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.main;
+
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
+import it.acubelab.smaph.entityfilters.NoEntityFilter;
+import it.acubelab.smaph.linkback.DummyLinkBack;
+import it.acubelab.smaph.net.RateLimiter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills the Bing and WAT caches with the responses needed to annotate the
+ * queries of a query log (see {@link SmaphAnnotator#warmUp(String)}), so that
+ * a deployment starts with warm caches. Queries are issued by a pool of
+ * threads, at a bounded rate. The annotator has the same settings as the
+ * one of the REST service.
+ *
+ * Queries whose responses have been written to the caches are appended to a
+ * progress file, that is read on start: a run that was interrupted resumes
+ * from the queries not yet done. Queries that fail are reported and retried
+ * by the next run.
+ */
+public class WarmUpCaches {
+	private static final int CHECKPOINT_EVERY = 100;
+
+	private final String bingKey;
+	private final String bingEndpoint;
+	private final String watHost;
+	private final int watPort;
+	private final int threads;
+	private final RateLimiter rateLimiter;
+	private final String progressFile;
+	private final List<String> pending = new Vector<>();
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final ThreadLocal<SmaphAnnotator> annotators = new ThreadLocal<SmaphAnnotator>() {
+		@Override
+		protected SmaphAnnotator initialValue() {
+			WATAnnotator wat = new WATAnnotator(watHost, watPort, "base",
+					"COMMONNESS", "jaccard", "0.6", "0", false, false, false);
+			SmaphAnnotator ann = new SmaphAnnotator(wat,
+					new FrequencyBoldFilter(0.06f), new NoEntityFilter(),
+					new DummyLinkBack(), true, true, true, 10, false, -1,
+					false, -1, null, bingKey);
+			ann.setBingEndpoint(bingEndpoint);
+			return ann;
+		}
+	};
+
+	/**
+	 * @param bingKey
+	 *            the Bing key.
+	 * @param bingEndpoint
+	 *            the URL of the Bing Composite API.
+	 * @param watHost
+	 *            the host of the WAT API.
+	 * @param watPort
+	 *            the port of the WAT API.
+	 * @param threads
+	 *            the number of queries processed at once.
+	 * @param queriesPerSecond
+	 *            the maximum number of queries started per second.
+	 * @param progressFile
+	 *            the file listing the queries already done.
+	 */
+	public WarmUpCaches(String bingKey, String bingEndpoint, String watHost,
+			int watPort, int threads, double queriesPerSecond,
+			String progressFile) {
+		this.bingKey = bingKey;
+		this.bingEndpoint = bingEndpoint;
+		this.watHost = watHost;
+		this.watPort = watPort;
+		this.threads = threads;
+		this.rateLimiter = new RateLimiter(queriesPerSecond);
+		this.progressFile = progressFile;
+	}
+
+	/**
+	 * Read a query log. Lines are either in the TREC format (an id and the
+	 * query, separated by a tab) or plain queries. Empty lines and duplicate
+	 * queries are skipped.
+	 *
+	 * @param filename
+	 *            the query log.
+	 * @return the queries, in order of first appearance.
+	 * @throws IOException
+	 *             if the file could not be read.
+	 */
+	public static List<String> readQueries(String filename) throws IOException {
+		Set<String> queries = new LinkedHashSet<>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename), "utf-8"))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				String query = (tab < 0 ? line : line.substring(tab + 1))
+						.trim();
+				if (!query.isEmpty())
+					queries.add(query);
+			}
+		}
+		return new Vector<>(queries);
+	}
+
+	/**
+	 * @return the queries listed in the progress file.
+	 */
+	private Set<String> readProgress() throws IOException {
+		if (!new File(progressFile).exists())
+			return new HashSet<>();
+		return new HashSet<>(readQueries(progressFile));
+	}
+
+	/**
+	 * Write the caches to disk, then append the queries done since the last
+	 * checkpoint to the progress file. This way the progress file never lists
+	 * a query whose responses are not on disk.
+	 */
+	private synchronized void checkpoint() throws IOException {
+		List<String> toWrite;
+		synchronized (pending) {
+			toWrite = new Vector<>(pending);
+			pending.clear();
+		}
+		SmaphAnnotator.flush();
+		WATAnnotator.flush();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(
+				progressFile, true), "utf-8")) {
+			for (String query : toWrite)
+				w.write(query + "\n");
+		}
+	}
+
+	private void warmUp(String query) {
+		try {
+			rateLimiter.acquire();
+			annotators.get().warmUp(query);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			System.err.printf("Could not warm up query [%s]: %s%n", query, e);
+			return;
+		}
+		pending.add(query);
+		if (done.incrementAndGet() % CHECKPOINT_EVERY == 0)
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+	}
+
+	/**
+	 * Warm up the caches for the queries not done yet.
+	 *
+	 * @param queries
+	 *            the queries.
+	 * @return the number of queries that failed.
+	 * @throws IOException
+	 *             if the progress file or the caches could not be written.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the queries to be done.
+	 */
+	public int run(List<String> queries) throws IOException,
+			InterruptedException {
+		Set<String> alreadyDone = readProgress();
+		List<String> todo = new Vector<>();
+		for (String query : queries)
+			if (!alreadyDone.contains(query))
+				todo.add(query);
+		System.out.printf("%d queries, %d already done.%n", queries.size(),
+				queries.size() - todo.size());
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Thread onInterrupt = new Thread() {
+			@Override
+			public void run() {
+				executor.shutdownNow();
+				try {
+					executor.awaitTermination(10, TimeUnit.SECONDS);
+					checkpoint();
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(onInterrupt);
+
+		long start = System.currentTimeMillis();
+		for (final String query : todo)
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					warmUp(query);
+				}
+			});
+		executor.shutdown();
+		while (!executor.awaitTermination(10, TimeUnit.SECONDS))
+			System.out.printf("%d/%d queries done, %d failed.%n", done.get(),
+					todo.size(), failed.get());
+		checkpoint();
+		Runtime.getRuntime().removeShutdownHook(onInterrupt);
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.printf(
+				"%d queries done, %d failed, in %.1f s (%.1f queries/s).%n",
+				done.get(), failed.get(), seconds, done.get() / seconds);
+		return failed.get();
+	}
+
+	/**
+	 * Usage: WarmUpCaches query-file [-threads N] [-rate QUERIES_PER_SECOND]
+	 * [-wat-cache FILE] [-progress FILE]. Defaults to 8 threads, 5 queries per
+	 * second, wikisense.cache and query-file.done. The Bing key, endpoint and
+	 * cache, and the WAT host and port are read from smaph-config.xml.
+	 */
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		if (args.length < 1 || args.length % 2 == 0)
+			throw new IllegalArgumentException(
+					"Usage: WarmUpCaches query-file [-threads N] [-rate QUERIES_PER_SECOND] [-wat-cache FILE] [-progress FILE]");
+		Map<String, String> options = new HashMap<>();
+		options.put("threads", "8");
+		options.put("rate", "5");
+		options.put("wat-cache", "wikisense.cache");
+		options.put("progress", args[0] + ".done");
+		for (int i = 1; i < args.length; i += 2) {
+			String option = args[i].substring(1);
+			if (!args[i].startsWith("-") || !options.containsKey(option))
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			options.put(option, args[i + 1]);
+		}
+
+		SmaphConfig.setConfigFile("smaph-config.xml");
+		String bingCache = SmaphConfig.getDefaultBingCache();
+		if (bingCache == null)
+			throw new IllegalArgumentException(
+					"No Bing cache set in smaph-config.xml.");
+		SmaphAnnotator.setCacheMemory(SmaphConfig.getDefaultBingCacheMemory());
+		SmaphAnnotator.setCache(bingCache);
+		WATAnnotator.setCache(options.get("wat-cache"));
+
+		WarmUpCaches warmUp = new WarmUpCaches(SmaphConfig.getDefaultBingKey(),
+				SmaphConfig.getDefaultBingEndpoint(),
+				SmaphConfig.getDefaultWatHost(),
+				SmaphConfig.getDefaultWatPort(), Integer.parseInt(options
+						.get("threads")), Double.parseDouble(options
+						.get("rate")), options.get("progress"));
+		int failed = warmUp.run(readQueries(args[0]));
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A circuit breaker isolating the failures of a remote service. While the
+ * service works the breaker is closed and calls go through. After a number
+ * of consecutive failures the breaker opens: calls are refused without being
+ * issued, so that callers can fail fast or fall back to cached data. Once the
+ * breaker has been open for a while it becomes half-open and lets a single
+ * trial call through: if it succeeds the breaker closes, otherwise it opens
+ * again.
+ * 
+ * Transitions are printed and counted, see {@link #toString()}.
+ */
+public class CircuitBreaker {
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_TIME = 30000;
+	private static ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String service;
+	private final int failureThreshold;
+	private final long openTime;
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt;
+	private boolean trialInFlight = false;
+
+	private long openCount = 0;
+	private long halfOpenCount = 0;
+	private long closeCount = 0;
+	private long rejectedCount = 0;
+	private long failureCount = 0;
+	private long successCount = 0;
+
+	/**
+	 * @param service
+	 *            the name of the service.
+	 * @param failureThreshold
+	 *            the number of consecutive failures that open the breaker.
+	 * @param openTime
+	 *            how long the breaker stays open before letting a trial call
+	 *            through, in milliseconds.
+	 */
+	public CircuitBreaker(String service, int failureThreshold, long openTime) {
+		this.service = service;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * @param service
+	 *            the name of the service.
+	 * @return the breaker shared by all clients of the service. It is created
+	 *         with the default settings if it does not exist.
+	 */
+	public static CircuitBreaker forService(String service) {
+		CircuitBreaker breaker = breakers.get(service);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(service,
+					DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+			breaker = breakers.putIfAbsent(service, created);
+			if (breaker == null)
+				breaker = created;
+		}
+		return breaker;
+	}
+
+	/**
+	 * Ask permission to issue a call. If permission is granted, the outcome of
+	 * the call must be reported with {@link #recordSuccess()} or
+	 * {@link #recordFailure()}.
+	 * 
+	 * @return true iff the call can be issued.
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == State.OPEN
+				&& System.currentTimeMillis() - openedAt >= openTime)
+			transition(State.HALF_OPEN);
+		if (state == State.CLOSED)
+			return true;
+		if (state == State.HALF_OPEN && !trialInFlight) {
+			trialInFlight = true;
+			return true;
+		}
+		rejectedCount++;
+		return false;
+	}
+
+	/**
+	 * Report that a call succeeded.
+	 */
+	public synchronized void recordSuccess() {
+		successCount++;
+		consecutiveFailures = 0;
+		if (state == State.HALF_OPEN)
+			transition(State.CLOSED);
+	}
+
+	/**
+	 * Report that a call failed.
+	 */
+	public synchronized void recordFailure() {
+		failureCount++;
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && consecutiveFailures >= failureThreshold))
+			transition(State.OPEN);
+	}
+
+	private void transition(State newState) {
+		System.err.printf("Circuit breaker for %s: %s -> %s%n", service,
+				state, newState);
+		state = newState;
+		trialInFlight = false;
+		switch (newState) {
+		case OPEN:
+			openedAt = System.currentTimeMillis();
+			openCount++;
+			break;
+		case HALF_OPEN:
+			halfOpenCount++;
+			break;
+		case CLOSED:
+			closeCount++;
+			break;
+		}
+	}
+
+	/**
+	 * @return the name of the service.
+	 */
+	public String getService() {
+		return service;
+	}
+
+	/**
+	 * @return the current state of the breaker.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return how many times the breaker has opened.
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * @return how many times the breaker has become half-open.
+	 */
+	public synchronized long getHalfOpenCount() {
+		return halfOpenCount;
+	}
+
+	/**
+	 * @return how many times the breaker has closed after being half-open.
+	 */
+	public synchronized long getCloseCount() {
+		return closeCount;
+	}
+
+	/**
+	 * @return how many calls have been refused.
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return how many calls have failed.
+	 */
+	public synchronized long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * @return how many calls have succeeded.
+	 */
+	public synchronized long getSuccessCount() {
+		return successCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s: state=%s successes=%d failures=%d rejected=%d opened=%d halfOpened=%d closed=%d",
+				service, state, successCount, failureCount, rejectedCount,
+				openCount, halfOpenCount, closeCount);
+	}
+}
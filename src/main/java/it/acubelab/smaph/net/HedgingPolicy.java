@@ -0,0 +1,253 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.net;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges calls to a remote service to cut tail latency: if a call has not
+ * answered within a percentile of the latencies observed so far, a duplicate
+ * call is issued, and the first to succeed is taken. The other one is
+ * cancelled; since blocking I/O can not be interrupted, it may keep running
+ * until the service answers or the socket times out.
+ * 
+ * The extra load is capped by a budget: each call earns a fraction of a
+ * hedge, and a hedge is only issued if a whole one has been earned (up to
+ * {@link #MAX_SAVED_HEDGES} can be saved). Calls are not hedged until
+ * {@link #MIN_SAMPLES} latencies have been observed.
+ * 
+ * The latencies are those of the first attempt of each call, also when a
+ * hedge answered first, so that hedging does not cut the observed
+ * distribution short. A first attempt that is cancelled counts with the time
+ * it ran. The percentile is recomputed every {@link #UPDATE_INTERVAL}
+ * latencies, not on every call.
+ */
+public class HedgingPolicy {
+	public static final int WINDOW = 1000;
+	public static final int MIN_SAMPLES = 20;
+	public static final double MAX_SAVED_HEDGES = 10;
+	public static final int UPDATE_INTERVAL = 50;
+
+	private final double percentile;
+	private final double budget;
+	private final long[] latencies = new long[WINDOW];
+	private int samples = 0;
+	private int nextSample = 0;
+	private int samplesSinceUpdate = 0;
+	private volatile long hedgeDelay = -1;
+	private double savedHedges = 0;
+	private final ExecutorService executor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Hedged call");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final AtomicLong callCount = new AtomicLong();
+	private final AtomicLong hedgedCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	private final AtomicLong overBudgetCount = new AtomicLong();
+
+	/**
+	 * @param percentile
+	 *            the percentile of the observed latencies after which a call
+	 *            is hedged, in (0, 1), e.g. 0.95.
+	 * @param budget
+	 *            the maximum fraction of calls that are hedged, in (0, 1],
+	 *            e.g. 0.05.
+	 */
+	public HedgingPolicy(double percentile, double budget) {
+		if (percentile <= 0 || percentile >= 1)
+			throw new IllegalArgumentException(
+					"Percentile must be between 0 and 1.");
+		if (budget <= 0 || budget > 1)
+			throw new IllegalArgumentException(
+					"Budget must be between 0 and 1.");
+		this.percentile = percentile;
+		this.budget = budget;
+	}
+
+	private synchronized void recordLatency(long millis) {
+		latencies[nextSample] = millis;
+		nextSample = (nextSample + 1) % WINDOW;
+		samples = Math.min(samples + 1, WINDOW);
+		samplesSinceUpdate++;
+		if (samples == MIN_SAMPLES || samples > MIN_SAMPLES
+				&& samplesSinceUpdate >= UPDATE_INTERVAL) {
+			long[] sorted = Arrays.copyOf(latencies, samples);
+			Arrays.sort(sorted);
+			hedgeDelay = sorted[(int) (percentile * (samples - 1))];
+			samplesSinceUpdate = 0;
+		}
+	}
+
+	/**
+	 * @return how long to wait before hedging a call, in milliseconds, or -1
+	 *         if too few latencies have been observed.
+	 */
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	private synchronized void earnHedge() {
+		savedHedges = Math.min(savedHedges + budget, MAX_SAVED_HEDGES);
+	}
+
+	private synchronized boolean spendHedge() {
+		if (savedHedges < 1)
+			return false;
+		savedHedges--;
+		return true;
+	}
+
+	/**
+	 * Issue a call, hedging it if it is slow.
+	 * 
+	 * @param call
+	 *            the call. It may be run twice at once.
+	 * @return the value returned by the first successful call.
+	 * @throws Exception
+	 *             the exception thrown by the call, if all the issued calls
+	 *             failed.
+	 */
+	public <T> T call(final Callable<T> call) throws Exception {
+		callCount.incrementAndGet();
+		earnHedge();
+		long delay = getHedgeDelay();
+		final long start = System.nanoTime();
+		if (delay < 0) {
+			T result = call.call();
+			recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- start));
+			return result;
+		}
+
+		final AtomicBoolean abandoned = new AtomicBoolean(false);
+		Callable<T> first = new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				boolean succeeded = false;
+				try {
+					T result = call.call();
+					succeeded = true;
+					return result;
+				} finally {
+					if (succeeded || abandoned.get())
+						recordLatency(TimeUnit.NANOSECONDS.toMillis(System
+								.nanoTime() - start));
+				}
+			}
+		};
+		CompletionService<T> completion = new ExecutorCompletionService<>(
+				executor);
+		List<Future<T>> futures = new Vector<>();
+		futures.add(completion.submit(first));
+		try {
+			Future<T> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+			if (done == null) {
+				if (spendHedge()) {
+					hedgedCount.incrementAndGet();
+					futures.add(completion.submit(call));
+				} else
+					overBudgetCount.incrementAndGet();
+				done = completion.take();
+			}
+			T result;
+			try {
+				result = done.get();
+			} catch (ExecutionException e) {
+				if (futures.size() == 1)
+					throw unwrap(e);
+				// The other call may still succeed.
+				done = completion.take();
+				try {
+					result = done.get();
+				} catch (ExecutionException e2) {
+					throw unwrap(e2);
+				}
+			}
+			if (done != futures.get(0))
+				hedgeWinCount.incrementAndGet();
+			return result;
+		} finally {
+			abandoned.set(true);
+			for (Future<T> future : futures)
+				future.cancel(true);
+		}
+	}
+
+	private static Exception unwrap(ExecutionException e) {
+		if (e.getCause() instanceof Error)
+			throw (Error) e.getCause();
+		if (e.getCause() instanceof Exception)
+			return (Exception) e.getCause();
+		return e;
+	}
+
+	/**
+	 * @return the number of calls issued.
+	 */
+	public long getCallCount() {
+		return callCount.get();
+	}
+
+	/**
+	 * @return the number of calls that were hedged.
+	 */
+	public long getHedgedCount() {
+		return hedgedCount.get();
+	}
+
+	/**
+	 * @return the number of hedged calls where the duplicate answered first.
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	/**
+	 * @return the number of slow calls that were not hedged because the
+	 *         budget was exhausted.
+	 */
+	public long getOverBudgetCount() {
+		return overBudgetCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"percentile=%.3f budget=%.3f delay=%d ms calls=%d hedged=%d won=%d over-budget=%d",
+				percentile, budget, getHedgeDelay(), callCount.get(),
+				hedgedCount.get(), hedgeWinCount.get(), overBudgetCount.get());
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.net;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A pool of keep-alive HTTP connections shared by all the clients of remote
+ * services (Bing, WAT, ERD systems). Connections to the same host are reused
+ * across calls and threads, up to a maximum number of connections per host.
+ * Connections idle for too long are closed by a background thread.
+ *
+ * The response entity of a request executed with the shared client must
+ * always be consumed (or its content stream closed) for the connection to go
+ * back to the pool.
+ */
+public class HttpClientPool {
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+	public static final int DEFAULT_MAX_CONNECTIONS = 200;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+	private static final int IDLE_TIMEOUT = 30000;
+
+	private static int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	private static DefaultHttpClient client;
+	private static ScheduledExecutorService idleConnectionCloser;
+
+	/**
+	 * Configure the pool. The current client, if any, is shut down, and a new
+	 * one will be built on the next call to {@link #getClient()}.
+	 *
+	 * @param maxConnectionsPerHost
+	 *            the maximum number of connections open to the same host.
+	 *            Requests exceeding it wait for a connection to be released.
+	 * @param maxConnections
+	 *            the maximum number of connections open overall.
+	 * @param connectTimeout
+	 *            the timeout for opening a connection, in milliseconds (0
+	 *            means no timeout).
+	 * @param socketTimeout
+	 *            the timeout for reading data from a connection, in
+	 *            milliseconds (0 means no timeout).
+	 */
+	public static synchronized void configure(int maxConnectionsPerHost,
+			int maxConnections, int connectTimeout, int socketTimeout) {
+		HttpClientPool.maxConnectionsPerHost = maxConnectionsPerHost;
+		HttpClientPool.maxConnections = maxConnections;
+		HttpClientPool.connectTimeout = connectTimeout;
+		HttpClientPool.socketTimeout = socketTimeout;
+		shutdown();
+	}
+
+	/**
+	 * @return the shared HTTP client.
+	 */
+	public static synchronized HttpClient getClient() {
+		if (client == null) {
+			SchemeRegistry schemes = new SchemeRegistry();
+			schemes.register(new Scheme("http", PlainSocketFactory
+					.getSocketFactory(), 80));
+			schemes.register(new Scheme("https", SSLSocketFactory
+					.getSocketFactory(), 443));
+
+			HttpParams params = new BasicHttpParams();
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setContentCharset(params, "UTF-8");
+			ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(maxConnectionsPerHost));
+			HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+			HttpConnectionParams.setSoTimeout(params, socketTimeout);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			HttpConnectionParams.setTcpNoDelay(params, true);
+
+			final ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager(
+					params, schemes);
+			client = new DefaultHttpClient(manager, params);
+
+			idleConnectionCloser = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "HttpClientPool idle closer");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			idleConnectionCloser.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					manager.closeExpiredConnections();
+					manager.closeIdleConnections(IDLE_TIMEOUT,
+							TimeUnit.MILLISECONDS);
+				}
+			}, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		return client;
+	}
+
+	/**
+	 * Close all connections of the pool.
+	 */
+	public static synchronized void shutdown() {
+		if (client != null) {
+			idleConnectionCloser.shutdownNow();
+			client.getConnectionManager().shutdown();
+			client = null;
+		}
+	}
+
+	/**
+	 * Execute a request with the shared client. If the response status is not
+	 * 200, its body is printed and the entity is consumed. In offline replay
+	 * mode, no request is executed.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the response, whose status is 200. Its entity must be consumed.
+	 * @throws IOException
+	 *             if the request could not be executed.
+	 * @throws HttpStatusException
+	 *             if the response status is not 200.
+	 * @throws ReplayMissException
+	 *             if the offline replay mode is enabled.
+	 */
+	public static HttpResponse execute(HttpUriRequest request)
+			throws IOException {
+		if (OfflineReplay.isEnabled())
+			throw OfflineReplay.miss("http", request.getURI().toString());
+		HttpResponse response = getClient().execute(request);
+		int status = response.getStatusLine().getStatusCode();
+		if (status != 200) {
+			HttpEntity entity = response.getEntity();
+			String message = entity == null ? "" : EntityUtils.toString(entity);
+			System.err.printf("Got HTTP error %d. Message is: %s%n", status,
+					message);
+			throw new HttpStatusException(status);
+		}
+		return response;
+	}
+
+	/**
+	 * Execute a request with the shared client and read the response body.
+	 *
+	 * @param request
+	 *            the request.
+	 * @return the body of the response.
+	 * @throws IOException
+	 *             if the request could not be executed.
+	 * @throws HttpStatusException
+	 *             if the response status is not 200.
+	 */
+	public static String executeForString(HttpUriRequest request)
+			throws IOException {
+		HttpEntity entity = execute(request).getEntity();
+		return entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+/**
+ * Thrown when a remote service replies with an HTTP status other than 200.
+ */
+public class HttpStatusException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	private final int statusCode;
+
+	/**
+	 * @param statusCode
+	 *            the status of the reply.
+	 */
+	public HttpStatusException(int statusCode) {
+		super("Got response code:" + statusCode);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * @return the status of the reply.
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return true iff the status signals a problem of the service (5xx) or
+	 *         that the client is being throttled (429), rather than a bad
+	 *         request.
+	 */
+	public boolean isServiceFailure() {
+		return statusCode >= 500 || statusCode == 429;
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The offline replay mode. While it is enabled, remote services (Bing, WAT,
+ * the Wikipedia API) are never called: responses are served only from the
+ * recorded caches, and a request whose response is not recorded fails with a
+ * {@link ReplayMissException}. Misses are collected, so that a report of the
+ * responses to record can be written at the end of a run.
+ */
+public class OfflineReplay {
+	private static volatile boolean enabled = false;
+	private static String missReportFile = null;
+	private static Thread reportHook = null;
+	private static final Map<String, Set<String>> misses = new LinkedHashMap<>();
+
+	/**
+	 * Enable or disable the offline replay mode.
+	 * 
+	 * @param enabled
+	 *            whether the mode must be enabled.
+	 */
+	public static void setEnabled(boolean enabled) {
+		OfflineReplay.enabled = enabled;
+	}
+
+	/**
+	 * Enable the offline replay mode, and write the miss report to a file
+	 * when the JVM exits.
+	 * 
+	 * @param missReportFile
+	 *            the file the report is written to.
+	 */
+	public static synchronized void enable(String missReportFile) {
+		setEnabled(true);
+		OfflineReplay.missReportFile = missReportFile;
+		if (reportHook == null) {
+			reportHook = new Thread() {
+				@Override
+				public void run() {
+					try {
+						writeMissReport();
+					} catch (FileNotFoundException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(reportHook);
+		}
+	}
+
+	/**
+	 * @return true iff the offline replay mode is enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record a miss.
+	 * 
+	 * @param service
+	 *            the service that would have been called.
+	 * @param key
+	 *            the request whose response is missing.
+	 * @return the exception to throw.
+	 */
+	public static ReplayMissException miss(String service, String key) {
+		synchronized (misses) {
+			Set<String> keys = misses.get(service);
+			if (keys == null) {
+				keys = new LinkedHashSet<>();
+				misses.put(service, keys);
+			}
+			keys.add(key);
+		}
+		return new ReplayMissException(service, key);
+	}
+
+	/**
+	 * @return the number of distinct requests that missed, for all services.
+	 */
+	public static int getMissCount() {
+		synchronized (misses) {
+			int count = 0;
+			for (Set<String> keys : misses.values())
+				count += keys.size();
+			return count;
+		}
+	}
+
+	/**
+	 * Forget all misses.
+	 */
+	public static void clearMisses() {
+		synchronized (misses) {
+			misses.clear();
+		}
+	}
+
+	/**
+	 * Print the miss report: for each service, the number of requests that
+	 * missed, followed by one request per line.
+	 * 
+	 * @param out
+	 *            where to print the report.
+	 */
+	public static void printMissReport(PrintStream out) {
+		synchronized (misses) {
+			out.printf("Offline replay misses: %d%n", getMissCount());
+			for (Map.Entry<String, Set<String>> e : misses.entrySet()) {
+				out.printf("%s: %d%n", e.getKey(), e.getValue().size());
+				for (String key : e.getValue())
+					out.printf("\t%s%n", key);
+			}
+		}
+	}
+
+	/**
+	 * Write the miss report to the file set with {@link #enable(String)}, if
+	 * any.
+	 * 
+	 * @throws FileNotFoundException
+	 *             if the file could not be written.
+	 */
+	public static synchronized void writeMissReport()
+			throws FileNotFoundException {
+		if (missReportFile == null)
+			return;
+		try (PrintStream out = new PrintStream(missReportFile)) {
+			printMissReport(out);
+		}
+	}
+}
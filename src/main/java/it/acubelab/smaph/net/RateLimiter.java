@@ -0,0 +1,93 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of some operation (e.g. calls to a service) to a number of
+ * permits per second, shared by all threads. Permits not used while idle are
+ * saved, up to a maximum burst, and can be used at once later.
+ */
+public class RateLimiter {
+	private final long interval;
+	private final long maxSaved;
+	private long nextFree;
+
+	/**
+	 * @param permitsPerSecond
+	 *            the number of permits given per second.
+	 * @param maxBurst
+	 *            the maximum number of permits that can be given at once
+	 *            after a period of inactivity.
+	 */
+	public RateLimiter(double permitsPerSecond, int maxBurst) {
+		if (permitsPerSecond <= 0 || maxBurst < 1)
+			throw new IllegalArgumentException(
+					"Rate and burst must be positive.");
+		this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+		this.maxSaved = (maxBurst - 1) * interval;
+		this.nextFree = System.nanoTime() - maxSaved;
+	}
+
+	/**
+	 * @param permitsPerSecond
+	 *            the number of permits given per second. No burst is allowed.
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		this(permitsPerSecond, 1);
+	}
+
+	/**
+	 * Reserve the next permit.
+	 *
+	 * @return how long to wait for the permit to be valid, in nanoseconds.
+	 */
+	private synchronized long reserve(long now) {
+		if (nextFree < now - maxSaved)
+			nextFree = now - maxSaved;
+		long wait = nextFree - now;
+		nextFree += interval;
+		return wait;
+	}
+
+	/**
+	 * Get a permit, waiting until one is available.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting. The permit is
+	 *             lost.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve(System.nanoTime());
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * Get a permit if one is available right now.
+	 *
+	 * @return true iff a permit was given.
+	 */
+	public synchronized boolean tryAcquire() {
+		long now = System.nanoTime();
+		if (nextFree > now)
+			return false;
+		reserve(now);
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+/**
+ * Thrown in offline replay mode when a response is not recorded, instead of
+ * calling the remote service. See {@link OfflineReplay}.
+ */
+public class ReplayMissException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param service
+	 *            the service that would have been called.
+	 * @param key
+	 *            the request whose response is missing.
+	 */
+	public ReplayMissException(String service, String key) {
+		super(String.format("Offline replay: no recorded %s response for %s",
+				service, key));
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Issues calls to remote services through a {@link CircuitBreaker}, retrying
+ * failed calls according to a {@link RetryPolicy}.
+ */
+public class Resilience {
+	private static final Random random = new Random();
+
+	/**
+	 * Issue a call. Failures are reported to the breaker and retried while the
+	 * policy allows it. A reply signaling a bad request (see
+	 * {@link HttpStatusException#isServiceFailure()}) counts as a success for
+	 * the breaker, since the service did answer, and is not retried.
+	 * 
+	 * @param breaker
+	 *            the breaker of the service.
+	 * @param policy
+	 *            the retry policy.
+	 * @param call
+	 *            the call.
+	 * @return the value returned by the first successful attempt.
+	 * @throws CircuitOpenException
+	 *             if the breaker refused an attempt.
+	 * @throws Exception
+	 *             the exception thrown by the last attempt, if all attempts
+	 *             failed.
+	 */
+	public static <T> T call(CircuitBreaker breaker, RetryPolicy policy,
+			Callable<T> call) throws Exception {
+		for (int attempt = 1;; attempt++) {
+			if (!breaker.allowRequest())
+				throw new CircuitOpenException(breaker.getService());
+			try {
+				T result = call.call();
+				breaker.recordSuccess();
+				return result;
+			} catch (Exception e) {
+				if (e instanceof HttpStatusException
+						&& !((HttpStatusException) e).isServiceFailure()) {
+					breaker.recordSuccess();
+					throw e;
+				}
+				breaker.recordFailure();
+				if (attempt >= policy.getMaxAttempts()
+						|| !policy.isRetryable(e))
+					throw e;
+				long delay = policy.getDelay(attempt - 1, random);
+				System.err.printf(
+						"Call to %s failed (%s), attempt %d/%d. Retrying in %d ms.%n",
+						breaker.getService(), e, attempt,
+						policy.getMaxAttempts(), delay);
+				Thread.sleep(delay);
+			}
+		}
+	}
+}
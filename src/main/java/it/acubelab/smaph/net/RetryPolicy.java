@@ -0,0 +1,85 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package it.acubelab.smaph.net;
+
+import java.util.Random;
+
+/**
+ * How failed calls to a remote service are retried: up to a maximum number of
+ * attempts, waiting an exponentially growing delay with full jitter between
+ * attempts. The delay before retry n (starting from 0) is drawn uniformly
+ * from [0, min(maxDelay, baseDelay * 2^n)], so that clients failing at the
+ * same time do not retry at the same time.
+ */
+public class RetryPolicy {
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+
+	/**
+	 * @param maxAttempts
+	 *            the maximum number of attempts, including the first one.
+	 * @param baseDelay
+	 *            the upper bound of the delay before the first retry, in
+	 *            milliseconds.
+	 * @param maxDelay
+	 *            the upper bound of any delay, in milliseconds.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException(
+					"There must be at least one attempt.");
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return the maximum number of attempts, including the first one.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param retry
+	 *            the number of retries already made.
+	 * @param random
+	 *            the source of jitter.
+	 * @return the milliseconds to wait before the next retry.
+	 */
+	public long getDelay(int retry, Random random) {
+		long cap = retry < Long.numberOfLeadingZeros(baseDelay) ? Math.min(
+				maxDelay, baseDelay << retry) : maxDelay;
+		if (cap <= 0)
+			return 0;
+		return (long) (random.nextDouble() * (cap + 1));
+	}
+
+	/**
+	 * @param e
+	 *            the exception thrown by a failed attempt.
+	 * @return true iff the call may succeed if retried. Refused calls and
+	 *         replies signaling a bad request are not retried.
+	 */
+	public boolean isRetryable(Exception e) {
+		if (e instanceof CircuitOpenException)
+			return false;
+		if (e instanceof HttpStatusException)
+			return ((HttpStatusException) e).isServiceFailure();
+		return true;
+	}
+}
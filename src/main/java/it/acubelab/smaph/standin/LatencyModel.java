@@ -0,0 +1,176 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.standin;
+
+import java.util.Random;
+
+/**
+ * The distribution of the time a stand-in service waits before answering a
+ * request. A model is described by a string (see {@link #parse(String)}):
+ * <ul>
+ * <li><code>none</code>: answer immediately;</li>
+ * <li><code>constant:MS</code>: wait MS milliseconds;</li>
+ * <li><code>uniform:MIN:MAX</code>: wait a time drawn uniformly between MIN
+ * and MAX milliseconds;</li>
+ * <li><code>lognormal:MEDIAN:SIGMA[:MAX]</code>: wait a time whose logarithm
+ * is normally distributed, with median MEDIAN milliseconds and shape SIGMA,
+ * capped at MAX milliseconds if given. Real services have a long tail like
+ * this: with SIGMA=1, the 99th percentile is about ten times the median.</li>
+ * </ul>
+ */
+public class LatencyModel {
+	public static final LatencyModel NONE = new LatencyModel(Kind.CONSTANT, 0,
+			0, Double.POSITIVE_INFINITY);
+
+	private enum Kind {
+		CONSTANT, UNIFORM, LOGNORMAL
+	}
+
+	private final Kind kind;
+	private final double a;
+	private final double b;
+	private final double max;
+
+	private LatencyModel(Kind kind, double a, double b, double max) {
+		this.kind = kind;
+		this.a = a;
+		this.b = b;
+		this.max = max;
+	}
+
+	/**
+	 * @param ms
+	 *            the latency, in milliseconds.
+	 * @return a model that always waits the same time.
+	 */
+	public static LatencyModel constant(double ms) {
+		checkNonNegative(ms);
+		return new LatencyModel(Kind.CONSTANT, ms, 0, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @param min
+	 *            the minimum latency, in milliseconds.
+	 * @param max
+	 *            the maximum latency, in milliseconds.
+	 * @return a model whose latency is uniformly distributed.
+	 */
+	public static LatencyModel uniform(double min, double max) {
+		checkNonNegative(min);
+		if (max < min)
+			throw new IllegalArgumentException(
+					"Maximum latency is lower than the minimum.");
+		return new LatencyModel(Kind.UNIFORM, min, max,
+				Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @param median
+	 *            the median latency, in milliseconds.
+	 * @param sigma
+	 *            the standard deviation of the logarithm of the latency.
+	 * @param max
+	 *            the maximum latency, in milliseconds.
+	 * @return a model whose latency is log-normally distributed.
+	 */
+	public static LatencyModel lognormal(double median, double sigma,
+			double max) {
+		if (median <= 0)
+			throw new IllegalArgumentException("Median latency must be positive.");
+		checkNonNegative(sigma);
+		checkNonNegative(max);
+		return new LatencyModel(Kind.LOGNORMAL, Math.log(median), sigma, max);
+	}
+
+	private static void checkNonNegative(double value) {
+		if (value < 0 || Double.isNaN(value))
+			throw new IllegalArgumentException("Negative latency parameter: "
+					+ value);
+	}
+
+	/**
+	 * @param spec
+	 *            the description of a model, as in the class documentation.
+	 * @return the model.
+	 * @throws IllegalArgumentException
+	 *             if the description is not valid.
+	 */
+	public static LatencyModel parse(String spec) {
+		String[] fields = spec.trim().split(":");
+		try {
+			switch (fields[0]) {
+			case "none":
+				if (fields.length == 1)
+					return NONE;
+				break;
+			case "constant":
+				if (fields.length == 2)
+					return constant(Double.parseDouble(fields[1]));
+				break;
+			case "uniform":
+				if (fields.length == 3)
+					return uniform(Double.parseDouble(fields[1]),
+							Double.parseDouble(fields[2]));
+				break;
+			case "lognormal":
+				if (fields.length == 3 || fields.length == 4)
+					return lognormal(Double.parseDouble(fields[1]),
+							Double.parseDouble(fields[2]),
+							fields.length == 4 ? Double.parseDouble(fields[3])
+									: Double.POSITIVE_INFINITY);
+				break;
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid latency model: " + spec,
+					e);
+		}
+		throw new IllegalArgumentException("Invalid latency model: " + spec);
+	}
+
+	/**
+	 * @param r
+	 *            the source of randomness.
+	 * @return a latency drawn from the distribution, in milliseconds.
+	 */
+	public long sample(Random r) {
+		double ms;
+		switch (kind) {
+		case UNIFORM:
+			ms = a + r.nextDouble() * (b - a);
+			break;
+		case LOGNORMAL:
+			ms = Math.exp(a + b * r.nextGaussian());
+			break;
+		default:
+			ms = a;
+		}
+		return Math.round(Math.min(ms, max));
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case UNIFORM:
+			return String.format("uniform:%s:%s", a, b);
+		case LOGNORMAL:
+			return String.format("lognormal:%s:%s", Math.exp(a), b)
+					+ (Double.isInfinite(max) ? "" : ":" + max);
+		default:
+			return a == 0 ? "none" : String.format("constant:%s", a);
+		}
+	}
+}
@@ -0,0 +1,620 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.standin;
+
+import it.acubelab.smaph.BingResponse;
+import it.acubelab.smaph.SmaphUtils;
+import it.acubelab.smaph.cache.BingCacheKey;
+import it.acubelab.smaph.cache.CacheLog;
+import it.acubelab.smaph.cache.MigrateWatCache;
+import it.acubelab.smaph.cache.WatCacheKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for the Bing Composite API and the WAT API
+ * (<code>/tag/disambiguate</code>, <code>/tag/tag</code>,
+ * <code>/tag/spot</code>), to load-test SMAPH without calling the real
+ * services. Requests are answered from the recorded caches, if set: a Bing
+ * cache log written by {@link it.acubelab.smaph.SmaphAnnotator} and a WAT
+ * cache written by
+ * {@link it.unipi.di.acube.batframework.systemPlugins.WATAnnotator}.
+ * Requests that were not recorded get a synthetic response, deterministic for
+ * the same request, whose entities are made up (they are not real Wikipedia
+ * pages). Before answering, each request waits a latency drawn from the
+ * {@link LatencyModel} of its service, and fails with status 503 with the
+ * configured probability.
+ *
+ * Point SMAPH to the server with the <code>bing/endpoint</code> and
+ * <code>wat/host</code>, <code>wat/port</code> settings of the configuration
+ * file (see {@link it.acubelab.smaph.SmaphConfig}).
+ */
+public class StandInServer {
+	public static final String BING_PATH = "/Bing/Search/v1/Composite";
+	public static final String WAT_PATH = "/tag/";
+	private static final Pattern WORD = Pattern.compile("\\p{L}{3,}");
+	private static final String[] RELATED_SUFFIXES = { "wiki", "news",
+			"history", "images", "definition" };
+
+	static {
+		/*
+		 * Without this, the JDK server waits for delayed ACKs on keep-alive
+		 * connections, adding tens of milliseconds to every reply.
+		 */
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * The services the server stands in for.
+	 */
+	public enum Service {
+		BING, WAT
+	}
+
+	private static class ServiceState {
+		volatile LatencyModel latency = LatencyModel.NONE;
+		volatile double errorRate = 0;
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong recorded = new AtomicLong();
+		final AtomicLong synthesized = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final EnumMap<Service, ServiceState> services = new EnumMap<>(
+			Service.class);
+	private CacheLog bingCache;
+	private Map<String, byte[]> watCache = new HashMap<>();
+
+	/**
+	 * Create a server. It does not answer requests until it is started.
+	 *
+	 * @param host
+	 *            the address to bind to.
+	 * @param port
+	 *            the port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 *             if the server could not be bound.
+	 */
+	public StandInServer(String host, int port) throws IOException {
+		for (Service s : Service.values())
+			services.put(s, new ServiceState());
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext(BING_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleBing(exchange);
+			}
+		});
+		server.createContext(WAT_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleWat(exchange);
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * Start answering requests.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop the server and close the recorded Bing cache.
+	 *
+	 * @throws IOException
+	 *             if the cache could not be closed.
+	 */
+	public void stop() throws IOException {
+		server.stop(0);
+		executor.shutdownNow();
+		if (bingCache != null)
+			bingCache.close();
+	}
+
+	/**
+	 * Answer Bing requests from a recorded cache.
+	 *
+	 * @param base
+	 *            the base name of the cache log (see {@link CacheLog}).
+	 * @throws IOException
+	 *             if the log could not be opened.
+	 */
+	public void setBingCache(String base) throws IOException {
+		if (!CacheLog.exists(base))
+			throw new IOException("No cache log " + base
+					+ " (old-format caches must be migrated first).");
+		bingCache = new CacheLog(base);
+	}
+
+	/**
+	 * Answer WAT requests from a recorded cache.
+	 *
+	 * @param filename
+	 *            the file of the cache.
+	 * @throws IOException
+	 *             if the file could not be read.
+	 * @throws ClassNotFoundException
+	 *             if the file does not contain a cache.
+	 */
+	public void setWatCache(String filename) throws IOException,
+			ClassNotFoundException {
+		HashMap<String, byte[]> recorded;
+		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+				filename))) {
+			recorded = (HashMap<String, byte[]>) ois.readObject();
+		}
+		watCache = MigrateWatCache.migrate(recorded);
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @param latency
+	 *            the distribution of the time to wait before answering a
+	 *            request to the service.
+	 */
+	public void setLatency(Service service, LatencyModel latency) {
+		services.get(service).latency = latency;
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @param errorRate
+	 *            the probability that a request to the service fails with
+	 *            status 503.
+	 */
+	public void setErrorRate(Service service, double errorRate) {
+		if (errorRate < 0 || errorRate > 1)
+			throw new IllegalArgumentException(
+					"Error rate must be between 0 and 1.");
+		services.get(service).errorRate = errorRate;
+	}
+
+	/**
+	 * @return the port the server listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the URL of the stand-in Bing Composite API.
+	 */
+	public String getBingEndpoint() {
+		return String.format("http://localhost:%d%s", getPort(), BING_PATH);
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @return the number of requests received by the service.
+	 */
+	public long getRequestCount(Service service) {
+		return services.get(service).requests.get();
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @return the number of requests answered from the recorded cache.
+	 */
+	public long getRecordedCount(Service service) {
+		return services.get(service).recorded.get();
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @return the number of requests answered with a synthetic response.
+	 */
+	public long getSynthesizedCount(Service service) {
+		return services.get(service).synthesized.get();
+	}
+
+	/**
+	 * @param service
+	 *            a service.
+	 * @return the number of requests failed on purpose.
+	 */
+	public long getErrorCount(Service service) {
+		return services.get(service).errors.get();
+	}
+
+	/**
+	 * Wait the latency of a service, and decide whether the request fails.
+	 *
+	 * @return true iff the request must fail.
+	 */
+	private boolean delay(ServiceState state) throws IOException {
+		Random r = ThreadLocalRandom.current();
+		long ms = state.latency.sample(r);
+		if (ms > 0)
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		if (state.errorRate > 0 && r.nextDouble() < state.errorRate) {
+			state.errors.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private static void reply(HttpExchange exchange, int status, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes("utf-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = in.read(buf)) >= 0)
+				out.write(buf, 0, read);
+		}
+		return new String(out.toByteArray(), "utf-8");
+	}
+
+	/**
+	 * @return the value of the Query parameter of a Bing request, without
+	 *         quotes, or null if there is none.
+	 */
+	static String bingQuery(String rawQuery) throws IOException {
+		if (rawQuery == null)
+			return null;
+		for (String param : rawQuery.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq < 0 || !param.substring(0, eq).equals("Query"))
+				continue;
+			String query = URLDecoder.decode(param.substring(eq + 1), "utf-8");
+			if (query.length() >= 2 && query.startsWith("'")
+					&& query.endsWith("'"))
+				query = query.substring(1, query.length() - 1);
+			return query;
+		}
+		return null;
+	}
+
+	private void handleBing(HttpExchange exchange) throws IOException {
+		ServiceState state = services.get(Service.BING);
+		state.requests.incrementAndGet();
+		try {
+			String query = bingQuery(exchange.getRequestURI().getRawQuery());
+			if (query == null) {
+				reply(exchange, 400, "{\"error\":\"Missing Query parameter.\"}");
+				return;
+			}
+			if (delay(state)) {
+				reply(exchange, 503, "{\"error\":\"Injected failure.\"}");
+				return;
+			}
+			String response = recordedBingResponse(query);
+			if (response != null)
+				state.recorded.incrementAndGet();
+			else {
+				response = synthesizeBingResponse(query).toString();
+				state.synthesized.incrementAndGet();
+			}
+			reply(exchange, 200, response);
+		} catch (JSONException e) {
+			e.printStackTrace();
+			reply(exchange, 500, "{\"error\":\"Internal error.\"}");
+		}
+	}
+
+	private String recordedBingResponse(String query) throws IOException,
+			JSONException {
+		if (bingCache == null)
+			return null;
+		byte[] record = bingCache.get(BingCacheKey.forQuery(query));
+		if (record == null)
+			return null;
+		if (!BingResponse.isRecord(record))
+			return SmaphUtils.decompress(record);
+		BingResponse response = BingResponse.fromBytes(record);
+		return response.isValid() ? response.toJson().toString() : null;
+	}
+
+	/**
+	 * @return a Bing reply with ten results, whose descriptions contain the
+	 *         words of the query in bold. Results of queries ending with
+	 *         "wikipedia" are Wikipedia pages.
+	 */
+	static JSONObject synthesizeBingResponse(String query)
+			throws JSONException {
+		String canonical = BingCacheKey.canonicalQuery(query);
+		Random r = new Random(canonical.hashCode());
+		String[] words = canonical.split(" ");
+		boolean wikiSearch = canonical.endsWith(" wikipedia");
+		int titleWords = wikiSearch ? words.length - 1 : words.length;
+
+		JSONArray web = new JSONArray();
+		for (int i = 0; i < 10; i++) {
+			StringBuilder title = new StringBuilder();
+			StringBuilder description = new StringBuilder();
+			for (int w = 0; w < titleWords; w++) {
+				String word = words[w];
+				if (word.isEmpty())
+					continue;
+				if (title.length() > 0)
+					title.append('_');
+				title.append(Character.toUpperCase(word.charAt(0))).append(
+						word.substring(1));
+				if (r.nextInt(3) > 0)
+					description.append(BingResponse.BOLD_START).append(word)
+							.append(BingResponse.BOLD_STOP);
+				else
+					description.append(word);
+				description.append(' ');
+			}
+			description.append("is the subject of result number ")
+					.append(i + 1).append('.');
+			if (i > 0)
+				title.append("_(").append(i).append(')');
+			JSONObject result = new JSONObject();
+			result.put("Url", wikiSearch ? "http://en.wikipedia.org/wiki/"
+					+ title : "http://www.example.com/" + title);
+			result.put("Description", description.toString());
+			web.put(result);
+		}
+		JSONArray related = new JSONArray();
+		for (int i = 0; i < 3; i++)
+			related.put(new JSONObject().put(
+					"Title",
+					canonical
+							+ " "
+							+ RELATED_SUFFIXES[r
+									.nextInt(RELATED_SUFFIXES.length)]));
+		JSONObject results = new JSONObject();
+		results.put("WebTotal", String.valueOf(1000 + r.nextInt(10000000)));
+		results.put("Web", web);
+		results.put("RelatedSearch", related);
+		return new JSONObject().put("d",
+				new JSONObject().put("results", new JSONArray().put(results)));
+	}
+
+	private void handleWat(HttpExchange exchange) throws IOException {
+		ServiceState state = services.get(Service.WAT);
+		state.requests.incrementAndGet();
+		long start = System.nanoTime();
+		String body = readBody(exchange);
+		String path = exchange.getRequestURI().getRawPath();
+		String rawQuery = exchange.getRequestURI().getRawQuery();
+		String api = path.substring(WAT_PATH.length());
+		if (!api.equals("disambiguate") && !api.equals("tag")
+				&& !api.equals("spot")) {
+			reply(exchange, 404, "{\"error\":\"Unknown API.\"}");
+			return;
+		}
+		if (delay(state)) {
+			reply(exchange, 503, "{\"error\":\"Injected failure.\"}");
+			return;
+		}
+		try {
+			byte[] recorded = watCache.get(WatCacheKey.forRequest(path,
+					rawQuery, body));
+			if (recorded != null) {
+				state.recorded.incrementAndGet();
+				reply(exchange, 200, SmaphUtils.decompress(recorded));
+				return;
+			}
+			JSONObject response = synthesizeWatResponse(api, new JSONObject(
+					body));
+			response.put("time", new JSONObject().put("total",
+					(System.nanoTime() - start) / 1000000));
+			state.synthesized.incrementAndGet();
+			reply(exchange, 200, response.toString());
+		} catch (JSONException | IllegalArgumentException e) {
+			reply(exchange, 400, "{\"error\":\"Invalid request.\"}");
+		}
+	}
+
+	/**
+	 * @return a WAT reply for a request. The disambiguate API annotates the
+	 *         spans of the request; the tag and spot APIs annotate every word
+	 *         of at least three letters.
+	 */
+	static JSONObject synthesizeWatResponse(String api, JSONObject request)
+			throws JSONException {
+		String text = request.getString("text");
+		List<int[]> spans = new Vector<>();
+		JSONArray requestSpans = request.optJSONArray("spans");
+		if (api.equals("disambiguate") && requestSpans != null)
+			for (int i = 0; i < requestSpans.length(); i++) {
+				JSONObject span = requestSpans.getJSONObject(i);
+				int start = span.getInt("start");
+				int end = span.getInt("end");
+				if (start < 0 || end < start || end > text.length())
+					throw new IllegalArgumentException("Invalid span.");
+				spans.add(new int[] { start, end });
+			}
+		else if (!api.equals("disambiguate")) {
+			Matcher m = WORD.matcher(text);
+			while (m.find())
+				spans.add(new int[] { m.start(), m.end() });
+		}
+
+		JSONArray annotations = new JSONArray();
+		for (int[] span : spans)
+			annotations.put(synthesizeAnnotation(text, span[0], span[1]));
+		return new JSONObject().put(api.equals("spot") ? "spots"
+				: "annotations", annotations);
+	}
+
+	private static JSONObject synthesizeAnnotation(String text, int start,
+			int end) throws JSONException {
+		String mention = text.substring(start, end).toLowerCase(Locale.ENGLISH);
+		Random r = new Random(mention.hashCode());
+		int candidates = 1 + r.nextInt(3);
+		JSONArray ranking = new JSONArray();
+		double commonness = 1.0;
+		for (int i = 0; i < candidates; i++) {
+			double candidateCommonness = i == candidates - 1 ? commonness
+					: commonness * (0.5 + 0.5 * r.nextDouble());
+			commonness -= candidateCommonness;
+			JSONObject candidate = new JSONObject();
+			candidate.put("id", 1 + ((mention.hashCode() + 7919 * i) & 0x3ffffff));
+			candidate.put("commonness", candidateCommonness);
+			candidate.put("score", candidateCommonness * r.nextDouble());
+			candidate.put("pageRank", r.nextDouble() * 1e-4);
+			candidate.put("synonymy", r.nextInt(3));
+			ranking.put(candidate);
+		}
+		JSONObject top = ranking.getJSONObject(0);
+		JSONObject annotation = new JSONObject();
+		annotation.put("start", start);
+		annotation.put("end", end);
+		annotation.put("id", top.getInt("id"));
+		annotation.put("linkProb", r.nextDouble());
+		annotation.put("commonness", top.getDouble("commonness"));
+		annotation.put("rho", r.nextDouble());
+		annotation.put("ambiguity", candidates - 1);
+		annotation.put("localCoherence", r.nextDouble());
+		annotation.put("pageRank", top.getDouble("pageRank"));
+		annotation.put("ranking", ranking);
+		return annotation;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Service s : Service.values()) {
+			ServiceState state = services.get(s);
+			sb.append(String.format(
+					"%s: latency=%s errorRate=%.3f requests=%d recorded=%d synthesized=%d errors=%d%n",
+					s, state.latency, state.errorRate, state.requests.get(),
+					state.recorded.get(), state.synthesized.get(),
+					state.errors.get()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: StandInServer [-host HOST] [-port PORT] [-bing-cache BASE]
+	 * [-wat-cache FILE] [-bing-latency MODEL] [-wat-latency MODEL]
+	 * [-bing-errors RATE] [-wat-errors RATE]. Defaults to localhost, port
+	 * 8080, no recorded caches, no latency, no errors. Latency models are
+	 * described in {@link LatencyModel}. The counters of the server are printed
+	 * every minute and on exit.
+	 */
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		String host = "localhost";
+		int port = 8080;
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("-") || i + 1 >= args.length)
+				throw new IllegalArgumentException("Invalid argument "
+						+ args[i]);
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+		if (options.containsKey("host"))
+			host = options.remove("host");
+		if (options.containsKey("port"))
+			port = Integer.parseInt(options.remove("port"));
+		final StandInServer server = new StandInServer(host, port);
+		for (Map.Entry<String, String> option : options.entrySet())
+			switch (option.getKey()) {
+			case "bing-cache":
+				server.setBingCache(option.getValue());
+				break;
+			case "wat-cache":
+				if (!new File(option.getValue()).exists())
+					throw new IOException("No WAT cache "
+							+ option.getValue());
+				server.setWatCache(option.getValue());
+				break;
+			case "bing-latency":
+				server.setLatency(Service.BING,
+						LatencyModel.parse(option.getValue()));
+				break;
+			case "wat-latency":
+				server.setLatency(Service.WAT,
+						LatencyModel.parse(option.getValue()));
+				break;
+			case "bing-errors":
+				server.setErrorRate(Service.BING,
+						Double.parseDouble(option.getValue()));
+				break;
+			case "wat-errors":
+				server.setErrorRate(Service.WAT,
+						Double.parseDouble(option.getValue()));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option -"
+						+ option.getKey());
+			}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				System.out.print(server);
+			}
+		});
+		server.start();
+		System.out.printf("Bing endpoint: %s%n", server.getBingEndpoint());
+		System.out.printf("WAT host: %s, port: %d%n", host, server.getPort());
+		while (true) {
+			Thread.sleep(60000);
+			System.out.print(server);
+		}
+	}
+}
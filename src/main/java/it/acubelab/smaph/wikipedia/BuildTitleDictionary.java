@@ -0,0 +1,42 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.wikipedia;
+
+import java.io.IOException;
+
+/**
+ * Builds a {@link TitleDictionary} from a page dump and a redirect dump (see
+ * {@link TitleDictionary#build(String, String, String)} for the format).
+ */
+public class BuildTitleDictionary {
+	/**
+	 * Usage: BuildTitleDictionary page-dump redirect-dump dictionary-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err
+					.println("Usage: BuildTitleDictionary page-dump redirect-dump dictionary-file");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		TitleDictionary.build(args[0], args[1], args[2]);
+		try (TitleDictionary dictionary = new TitleDictionary(args[2])) {
+			System.out.printf("Wrote %s to %s in %.1f s.%n", dictionary,
+					args[2], (System.currentTimeMillis() - start) / 1000.0);
+		}
+	}
+}
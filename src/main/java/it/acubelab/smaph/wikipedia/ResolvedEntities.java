@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.wikipedia;
+
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The Wikipedia titles and IDs of the pages a query touches, resolved all at
+ * once: the titles in a single batch of title lookups, and the IDs whose
+ * title is still unknown in a single batch of ID lookups. The stages that
+ * follow read from this map instead of querying Wikipedia one page at a time.
+ * An instance is not meant to be shared between queries.
+ */
+public class ResolvedEntities {
+	private final HashMap<String, Integer> titleToId = new HashMap<>();
+	private final HashMap<Integer, String> idToTitle = new HashMap<>();
+
+	/**
+	 * Resolve the titles and IDs of a query.
+	 *
+	 * @param wikiApi
+	 *            the API to Wikipedia.
+	 * @param titles
+	 *            the titles to map to their Wikipedia ID.
+	 * @param wids
+	 *            the Wikipedia IDs to map to their title.
+	 * @return the resolved titles and IDs. The titles of the pages found for
+	 *         <code>titles</code> are resolved too.
+	 * @throws IOException
+	 *             if the lookups failed.
+	 */
+	public static ResolvedEntities resolve(WikipediaApiInterface wikiApi,
+			Collection<String> titles, Collection<Integer> wids)
+			throws IOException {
+		ResolvedEntities res = new ResolvedEntities();
+		Vector<String> titlesToFetch = new Vector<>(new LinkedHashSet<>(
+				titles));
+		Set<Integer> widsToFetch = new LinkedHashSet<>(wids);
+		try {
+			if (!titlesToFetch.isEmpty())
+				wikiApi.prefetchTitles(titlesToFetch);
+			for (String title : titlesToFetch) {
+				int wid = wikiApi.getIdByTitle(title);
+				res.titleToId.put(title, wid);
+				if (wid != -1)
+					widsToFetch.add(wid);
+			}
+			widsToFetch.remove(-1);
+			if (!widsToFetch.isEmpty())
+				wikiApi.prefetchWids(new Vector<>(widsToFetch));
+		} catch (XPathExpressionException | ParserConfigurationException
+				| SAXException e) {
+			throw new IOException(e);
+		}
+		for (int wid : widsToFetch)
+			res.idToTitle.put(wid, wikiApi.getTitlebyId(wid));
+		return res;
+	}
+
+	/**
+	 * @param title
+	 *            a title passed to
+	 *            {@link #resolve(WikipediaApiInterface, Collection, Collection)}
+	 *            .
+	 * @return the Wikipedia ID of the page, or -1 if the page does not exist
+	 *         or the title was not resolved.
+	 */
+	public int getId(String title) {
+		Integer wid = titleToId.get(title);
+		return wid == null ? -1 : wid;
+	}
+
+	/**
+	 * @param wid
+	 *            a resolved Wikipedia ID.
+	 * @return the title of the page, or null if the page does not exist or
+	 *         the ID was not resolved.
+	 */
+	public String getTitle(int wid) {
+		return idToTitle.get(wid);
+	}
+}
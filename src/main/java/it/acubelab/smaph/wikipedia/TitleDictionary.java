@@ -0,0 +1,458 @@
+/**
+ *  Copyright 2014 Marco Cornolti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package it.acubelab.smaph.wikipedia;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A read-only dictionary of the pages of Wikipedia: title to id, id to title,
+ * and the target of redirect pages. The dictionary is a file mapped in
+ * memory, so that opening it is immediate and a lookup takes a few memory
+ * accesses:
+ * <ul>
+ * <li>title to id: a minimal perfect hash of the normalized title (see
+ * {@link #normalize(String)}) gives the slot of the title, that holds the id
+ * of its page; the title of that page is compared with the requested one,
+ * since titles not in the dictionary hash to some slot too;</li>
+ * <li>id to title and redirect: an array indexed by page id gives the offset
+ * of the record of the page, that has the id of the page the page redirects
+ * to (itself, if not a redirect) and the title.</li>
+ * </ul>
+ *
+ * The perfect hash is built by hash and displace: titles are grouped in
+ * buckets by a first hash; for each bucket, from the largest, a seed is
+ * searched such that a second hash puts all its titles in free slots. Buckets
+ * with a single title store their slot directly. The dictionary is built
+ * offline from a dump (see {@link #build(String, String, String)}).
+ */
+public class TitleDictionary implements Closeable {
+	private static final int MAGIC = 0x534d5444;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int BUCKET_SIZE = 4;
+	private static final int MAX_REDIRECT_CHAIN = 10;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+	private final ByteBuffer buffer;
+	private final int titleCount;
+	private final int bucketCount;
+	private final int widCount;
+	private final int seedsStart;
+	private final int slotsStart;
+	private final int widsStart;
+
+	/**
+	 * Open a dictionary.
+	 *
+	 * @param filename
+	 *            the dictionary file.
+	 * @throws IOException
+	 *             if the file could not be read, is not a dictionary, or is
+	 *             larger than 2 GB.
+	 */
+	public TitleDictionary(String filename) throws IOException {
+		file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Title dictionary " + filename
+						+ " is larger than 2 GB.");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+				throw new IOException(filename + " is not a title dictionary.");
+			if (buffer.getInt(4) != VERSION)
+				throw new IOException("Unsupported version of title dictionary "
+						+ filename + ".");
+			titleCount = buffer.getInt(8);
+			bucketCount = buffer.getInt(12);
+			widCount = buffer.getInt(16);
+			seedsStart = HEADER_SIZE;
+			slotsStart = seedsStart + 4 * bucketCount;
+			widsStart = slotsStart + 4 * titleCount;
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param title
+	 *            a Wikipedia title.
+	 * @return the title as Wikipedia stores it: underscores are spaces, runs
+	 *         of spaces are collapsed, and the first letter is upper case.
+	 */
+	public static String normalize(String title) {
+		String t = title.replace('_', ' ').trim().replaceAll(" +", " ");
+		if (t.isEmpty())
+			return t;
+		int first = t.codePointAt(0);
+		return new StringBuilder(t.length())
+				.appendCodePoint(Character.toUpperCase(first))
+				.append(t, Character.charCount(first), t.length()).toString();
+	}
+
+	/**
+	 * @return a 64-bit hash of a normalized title (FNV-1a, then mixed).
+	 */
+	private static long fingerprint(byte[] title) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : title) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int bucket(long fingerprint, int buckets) {
+		return (int) ((fingerprint >>> 1) % buckets);
+	}
+
+	private static int slot(long fingerprint, int seed, int slots) {
+		return (int) ((mix(fingerprint + seed * 0x9e3779b97f4a7c15L) >>> 1) % slots);
+	}
+
+	/**
+	 * @return the number of titles.
+	 */
+	public int size() {
+		return titleCount;
+	}
+
+	/**
+	 * @return the offset of the record of a page, or -1 if the page is not in
+	 *         the dictionary.
+	 */
+	private int record(int wid) {
+		if (wid < 0 || wid >= widCount)
+			return -1;
+		return buffer.getInt(widsStart + 4 * wid);
+	}
+
+	private boolean titleEquals(int record, byte[] title) {
+		int length = buffer.getInt(record + 4);
+		if (length != title.length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (buffer.get(record + 8 + i) != title[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param title
+	 *            a title. It is normalized before the lookup.
+	 * @return the id of the page with that title (that may be a redirect), or
+	 *         -1 if there is no such page.
+	 */
+	public int getId(String title) {
+		if (titleCount == 0)
+			return -1;
+		byte[] key = normalize(title).getBytes(UTF8);
+		long f = fingerprint(key);
+		int seed = buffer.getInt(seedsStart + 4 * bucket(f, bucketCount));
+		int slot = seed < 0 ? -seed - 1 : slot(f, seed, titleCount);
+		int wid = buffer.getInt(slotsStart + 4 * slot);
+		int record = record(wid);
+		return record >= 0 && titleEquals(record, key) ? wid : -1;
+	}
+
+	/**
+	 * @param wid
+	 *            a page id.
+	 * @return the title of the page, or null if there is no such page.
+	 */
+	public String getTitle(int wid) {
+		int record = record(wid);
+		if (record < 0)
+			return null;
+		byte[] title = new byte[buffer.getInt(record + 4)];
+		for (int i = 0; i < title.length; i++)
+			title[i] = buffer.get(record + 8 + i);
+		return new String(title, UTF8);
+	}
+
+	/**
+	 * @param wid
+	 *            a page id.
+	 * @return the id of the page the page redirects to, following chains of
+	 *         redirects; the id itself if the page is not a redirect or its
+	 *         target is not in the dictionary; -1 if there is no such page.
+	 */
+	public int dereference(int wid) {
+		int record = record(wid);
+		return record < 0 ? -1 : buffer.getInt(record);
+	}
+
+	/**
+	 * Close the dictionary file. The memory mapping is released when the
+	 * dictionary is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Build a dictionary from a dump of the pages and one of the redirects of
+	 * Wikipedia. Each line of the page dump is a page id and its title,
+	 * separated by a tab (e.g. from the page table, in namespace 0). Each line
+	 * of the redirect dump is the id of a redirect page and the title of its
+	 * target, separated by a tab (e.g. from the redirect table). Chains of
+	 * redirects are resolved; redirects whose target is not a page, and
+	 * cycles, are left unresolved. The dumps are loaded in memory. The
+	 * dictionary is written to a temporary file that is then renamed.
+	 *
+	 * @param pageDump
+	 *            the page dump.
+	 * @param redirectDump
+	 *            the redirect dump, or null.
+	 * @param dictionaryFile
+	 *            the dictionary file to write.
+	 * @return the number of titles written.
+	 * @throws IOException
+	 *             if a dump could not be read or has a malformed line, two
+	 *             pages have the same title or id, or the dictionary could not
+	 *             be written.
+	 */
+	public static int build(String pageDump, String redirectDump,
+			String dictionaryFile) throws IOException {
+		Map<String, Integer> titleToWid = new HashMap<>();
+		Map<Integer, String> widToTitle = new HashMap<>();
+		int maxWid = -1;
+		for (String[] fields : readDump(pageDump)) {
+			int wid = parseWid(fields, pageDump);
+			String title = normalize(fields[1]);
+			if (titleToWid.put(title, wid) != null
+					|| widToTitle.put(wid, title) != null)
+				throw new IOException(String.format(
+						"Duplicate page %d [%s] in %s.", wid, title, pageDump));
+			maxWid = Math.max(maxWid, wid);
+		}
+		Map<Integer, Integer> redirects = new HashMap<>();
+		if (redirectDump != null)
+			for (String[] fields : readDump(redirectDump)) {
+				Integer target = titleToWid.get(normalize(fields[1]));
+				if (target != null)
+					redirects.put(parseWid(fields, redirectDump), target);
+			}
+
+		int n = titleToWid.size();
+		String[] titles = titleToWid.keySet().toArray(new String[n]);
+		long[] fingerprints = new long[n];
+		for (int i = 0; i < n; i++)
+			fingerprints[i] = fingerprint(titles[i].getBytes(UTF8));
+		int buckets = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+		int[] seeds = new int[buckets];
+		int[] slotWids = new int[n];
+		placeTitles(fingerprints, buckets, seeds, slotWids, titles, titleToWid);
+
+		File tmp = new File(dictionaryFile + ".building");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			int widCount = maxWid + 1;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(buckets);
+			out.writeInt(widCount);
+			for (int seed : seeds)
+				out.writeInt(seed);
+			for (int wid : slotWids)
+				out.writeInt(wid);
+			long offset = HEADER_SIZE + 4L * buckets + 4L * n + 4L * widCount;
+			for (int wid = 0; wid < widCount; wid++) {
+				String title = widToTitle.get(wid);
+				if (offset > Integer.MAX_VALUE)
+					throw new IOException(
+							"Title dictionary would be larger than 2 GB.");
+				out.writeInt(title == null ? -1 : (int) offset);
+				if (title != null)
+					offset += 8 + title.getBytes(UTF8).length;
+			}
+			for (int wid = 0; wid < widCount; wid++) {
+				String title = widToTitle.get(wid);
+				if (title == null)
+					continue;
+				byte[] bytes = title.getBytes(UTF8);
+				out.writeInt(resolve(wid, redirects));
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		if (!tmp.renameTo(new File(dictionaryFile))) {
+			new File(dictionaryFile).delete();
+			if (!tmp.renameTo(new File(dictionaryFile)))
+				throw new IOException("Could not rename " + tmp + " to "
+						+ dictionaryFile);
+		}
+		return n;
+	}
+
+	/**
+	 * Find the seeds of the perfect hash, and put the id of each title in its
+	 * slot.
+	 */
+	private static void placeTitles(long[] fingerprints, int buckets,
+			int[] seeds, int[] slotWids, String[] titles,
+			Map<String, Integer> titleToWid) throws IOException {
+		int n = fingerprints.length;
+		int[] bucketSizes = new int[buckets];
+		for (long f : fingerprints)
+			bucketSizes[bucket(f, buckets)]++;
+		// Titles grouped by bucket.
+		int[] bucketStarts = new int[buckets + 1];
+		for (int b = 0; b < buckets; b++)
+			bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+		int[] byBucket = new int[n];
+		int[] filled = new int[buckets];
+		for (int i = 0; i < n; i++) {
+			int b = bucket(fingerprints[i], buckets);
+			byBucket[bucketStarts[b] + filled[b]++] = i;
+		}
+		// Buckets by decreasing size, as a counting sort.
+		int maxSize = 0;
+		for (int size : bucketSizes)
+			maxSize = Math.max(maxSize, size);
+		int[] order = new int[buckets];
+		int k = 0;
+		for (int size = maxSize; size >= 0; size--)
+			for (int b = 0; b < buckets; b++)
+				if (bucketSizes[b] == size)
+					order[k++] = b;
+
+		BitSet taken = new BitSet(n);
+		int nextFree = 0;
+		int[] slots = new int[maxSize];
+		for (int b : order) {
+			int size = bucketSizes[b];
+			if (size == 0)
+				break;
+			int start = bucketStarts[b];
+			if (size == 1) {
+				nextFree = taken.nextClearBit(nextFree);
+				seeds[b] = -nextFree - 1;
+				taken.set(nextFree);
+				slotWids[nextFree] = titleToWid.get(titles[byBucket[start]]);
+				continue;
+			}
+			for (int seed = 0;; seed++) {
+				if (seed == Integer.MAX_VALUE)
+					throw new IOException("Could not build the perfect hash.");
+				boolean ok = true;
+				for (int j = 0; j < size && ok; j++) {
+					slots[j] = slot(fingerprints[byBucket[start + j]], seed, n);
+					if (taken.get(slots[j]))
+						ok = false;
+					for (int l = 0; l < j && ok; l++)
+						if (slots[l] == slots[j])
+							ok = false;
+				}
+				if (!ok)
+					continue;
+				seeds[b] = seed;
+				for (int j = 0; j < size; j++) {
+					taken.set(slots[j]);
+					slotWids[slots[j]] = titleToWid.get(titles[byBucket[start
+							+ j]]);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the end of the chain of redirects from a page, or the page
+	 *         itself if the chain is a cycle or too long.
+	 */
+	private static int resolve(int wid, Map<Integer, Integer> redirects) {
+		int target = wid;
+		for (int i = 0; i < MAX_REDIRECT_CHAIN; i++) {
+			Integer next = redirects.get(target);
+			if (next == null)
+				return target;
+			target = next;
+		}
+		return wid;
+	}
+
+	private static int parseWid(String[] fields, String dump)
+			throws IOException {
+		try {
+			int wid = Integer.parseInt(fields[0].trim());
+			if (wid < 0)
+				throw new NumberFormatException();
+			return wid;
+		} catch (NumberFormatException e) {
+			throw new IOException(String.format("Malformed id [%s] in %s.",
+					fields[0], dump), e);
+		}
+	}
+
+	private static List<String[]> readDump(String dump) throws IOException {
+		List<String[]> lines = new Vector<>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(dump), UTF8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = r.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty())
+					continue;
+				String[] fields = line.split("\t");
+				if (fields.length != 2 || normalize(fields[1]).isEmpty())
+					throw new IOException(String.format(
+							"Malformed line %d of %s.", lineNumber, dump));
+				lines.add(fields);
+			}
+		}
+		return lines;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d titles, %d buckets, %d ids", titleCount,
+				bucketCount, widCount);
+	}
+}
@@ -17,11 +17,14 @@ package it.cnr.isti.hpc.erd;
 
 import it.acubelab.smaph.SmaphAnnotator;
 import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.anchors.AnchorDictionary;
+import it.acubelab.smaph.anchors.AnchorDisambiguator;
 import it.acubelab.smaph.boldfilters.*;
 import it.acubelab.smaph.entityfilters.*;
 import it.acubelab.smaph.learn.GenerateModel;
 import it.acubelab.smaph.linkback.BaselineLinkBack;
 import it.acubelab.smaph.linkback.DummyLinkBack;
+import it.acubelab.smaph.wikipedia.TitleDictionary;
 import it.unipi.di.acube.batframework.problems.CandidatesSpotter;
 import it.unipi.di.acube.batframework.problems.Sa2WSystem;
 import it.unipi.di.acube.batframework.systemPlugins.TagmeAnnotator;
@@ -34,23 +37,79 @@ import java.util.*;
 
 public class Annotator {
 	public static final String SMAPH_PARAMS_FORMAT = "BING-auxAnnotator=%s&minLp=%.5f&sortBy=%s&method=%s&relatedness=%s&epsilon=%.5f&spotFilter=%s&spotFilterThreshold=%f&entityFilter=%s&svmEntityFilterModelBase=%s&emptyQueryFilter=%s&svmEmptyQueryFilterModelBase=%s&entitySources=%s";
-	private static WikipediaApiInterface wikiApi = null;
+	private static WikipediaApiInterface defaultWikiApi = null;
 	private static WikipediaToFreebase wikiToFreeb = null;
 	private static TagmeAnnotator tagme = null;
 	private static LibSvmEntityFilter libSvmEntityFilter = null;
+	private static HashMap<String, WATAnnotator> watAnnotators = new HashMap<>();
+	private static AnchorDictionary anchors = null;
+	private WikipediaApiInterface wikiApi;
 	private String bingKey;
 	private String tagmeKey;
 	private String tagmeHost;
 
+	/**
+	 * @return the Wikipedia API shared by the JVM. If a title dictionary is
+	 *         set in the configuration, it is a
+	 *         {@link LocalWikipediaApiInterface}; otherwise a
+	 *         {@link SharedWikipediaApiInterface} on the cache files, written
+	 *         in the background and when the JVM exits.
+	 */
+	public static synchronized WikipediaApiInterface getDefaultWikipediaApi() {
+		if (defaultWikiApi != null)
+			return defaultWikiApi;
+		SmaphConfig.setConfigFile("smaph-config.xml");
+		if (SmaphConfig.getDefaultTitleDictionary() != null) {
+			try {
+				defaultWikiApi = new LocalWikipediaApiInterface(
+						new TitleDictionary(
+								SmaphConfig.getDefaultTitleDictionary()));
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+			return defaultWikiApi;
+		}
+		final SharedWikipediaApiInterface shared = new SharedWikipediaApiInterface(
+				"wid.cache", "redirect.cache",
+				SharedWikipediaApiInterface.DEFAULT_FLUSH_INTERVAL);
+		Runtime.getRuntime().addShutdownHook(
+				new Thread("Wikipedia cache flush") {
+					@Override
+					public void run() {
+						try {
+							shared.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+		defaultWikiApi = shared;
+		return defaultWikiApi;
+	}
+
 	public Annotator() {
+		this(getDefaultWikipediaApi());
+	}
+
+	/**
+	 * @param wikiApi
+	 *            the Wikipedia API. It must be thread-safe if the annotator is
+	 *            used by more threads.
+	 */
+	public Annotator(WikipediaApiInterface wikiApi) {
+		this.wikiApi = wikiApi;
 		SmaphConfig.setConfigFile("smaph-config.xml");
 		bingKey = SmaphConfig.getDefaultBingKey();
 		String bingCache = SmaphConfig.getDefaultBingCache();
-		
+		SmaphAnnotator.setCacheMemory(SmaphConfig.getDefaultBingCacheMemory());
+		SmaphAnnotator.setCacheTtl(SmaphConfig.getDefaultBingCacheTtl(),
+				SmaphConfig.getDefaultBingRefreshRate());
+		SmaphAnnotator.setBingHedging(SmaphConfig.getDefaultBingHedgingPolicy());
+		WATAnnotator.setHedging(SmaphConfig.getDefaultWatHedgingPolicy());
+		SmaphConfig.initializeWatBoldCache();
+
 		try {
-			if (wikiApi == null)
-				wikiApi = new WikipediaApiInterface("wid.cache",
-						"redirect.cache");
 			if (bingCache != null)
 				SmaphAnnotator.setCache(bingCache);
 		} catch (Exception e) {
@@ -348,9 +407,37 @@ public class Annotator {
 							includeSourceAnnotatorCandidates,
 							topKannotatorCandidates);
 
-			WATAnnotator auxAnnotatorService = new WATAnnotator(
-					"wikisense.mkapp.it", 80, method, sortBy, relatedness,
-					epsilon, minLp, false, false, false);
+			// WATAnnotator is thread-safe: requests with the same parameters
+			// share one. With an anchor dictionary, WAT is not queried.
+			WATAnnotator auxAnnotatorService;
+			synchronized (Annotator.class) {
+				String anchorDictionary = SmaphConfig
+						.getDefaultAnchorDictionary();
+				String watParams = anchorDictionary != null ? "anchors&"
+						+ minLp : String.format("%s&%s&%s&%s&%s", method,
+						sortBy, relatedness, epsilon, minLp);
+				auxAnnotatorService = watAnnotators.get(watParams);
+				if (auxAnnotatorService == null) {
+					if (anchorDictionary != null) {
+						if (anchors == null)
+							try {
+								anchors = new AnchorDictionary(anchorDictionary);
+							} catch (IOException e) {
+								e.printStackTrace();
+								throw new RuntimeException(e);
+							}
+						auxAnnotatorService = new AnchorDisambiguator(anchors,
+								minLp.isEmpty() ? 0.0 : Double
+										.parseDouble(minLp));
+					} else
+						auxAnnotatorService = new WATAnnotator(
+								SmaphConfig.getDefaultWatHost(),
+								SmaphConfig.getDefaultWatPort(), method,
+								sortBy, relatedness, epsilon, minLp, false,
+								false, false);
+					watAnnotators.put(watParams, auxAnnotatorService);
+				}
+			}
 			BoldFilter spotFilter = null;
 			if (spotFilterName.equals("RankWeight"))
 				spotFilter = new RankWeightBoldFilter(spotFilterThreshold);
@@ -383,15 +470,16 @@ public class Annotator {
 				}
 			}
 
-			List<Annotation> res = annotatePure(query, textID,
-					new SmaphAnnotator(auxAnnotatorService, spotFilter,
-							entityFilter, new DummyLinkBack(),
-							includeSourceAnnotator, includeSourceNormalSearch,
-							includeSourceWikiSearch, wikiSearchPages,
-							includeSourceAnnotatorCandidates,
-							topKannotatorCandidates,
-							includeSourceRelatedSearch, topKRelatedSearch,
-							wikiApi, bingKey));
+			SmaphAnnotator smaph = new SmaphAnnotator(auxAnnotatorService,
+					spotFilter, entityFilter, new DummyLinkBack(),
+					includeSourceAnnotator, includeSourceNormalSearch,
+					includeSourceWikiSearch, wikiSearchPages,
+					includeSourceAnnotatorCandidates, topKannotatorCandidates,
+					includeSourceRelatedSearch, topKRelatedSearch, wikiApi,
+					bingKey);
+			smaph.setSearchExecutor(SmaphConfig.getDefaultSearchExecutor());
+			smaph.setBingEndpoint(SmaphConfig.getDefaultBingEndpoint());
+			List<Annotation> res = annotatePure(query, textID, smaph);
 
 			return res;
 		}
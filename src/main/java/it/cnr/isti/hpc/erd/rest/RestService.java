@@ -22,6 +22,8 @@ import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
 import it.acubelab.smaph.SmaphAnnotator;
 import it.acubelab.smaph.SmaphAnnotatorDebugger;
 import it.acubelab.smaph.SmaphConfig;
+import it.acubelab.smaph.anchors.AnchorDictionary;
+import it.acubelab.smaph.anchors.AnchorDisambiguator;
 import it.acubelab.smaph.boldfilters.EditDistanceBoldFilter;
 import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
 import it.acubelab.smaph.entityfilters.LibSvmEntityFilter;
@@ -50,6 +52,47 @@ import com.sun.jersey.multipart.FormDataParam;
 
 @Path("")
 public class RestService {
+	private static WATAnnotator watAnnotator = null;
+	private WikipediaApiInterface wikiApi;
+
+	public RestService() {
+		this(null);
+	}
+
+	/**
+	 * @param wikiApi
+	 *            the Wikipedia API used by the requests, or null to use the
+	 *            one shared by the JVM (see
+	 *            {@link Annotator#getDefaultWikipediaApi()}).
+	 */
+	public RestService(WikipediaApiInterface wikiApi) {
+		this.wikiApi = wikiApi;
+	}
+
+	/**
+	 * @return the WAT annotator shared by all requests (WATAnnotator is
+	 *         thread-safe). If an anchor dictionary is set in the
+	 *         configuration, it is an {@link AnchorDisambiguator} that does
+	 *         not query WAT.
+	 */
+	private static synchronized WATAnnotator getWatAnnotator() {
+		if (watAnnotator != null)
+			return watAnnotator;
+		SmaphConfig.initializeWatBoldCache();
+		if (SmaphConfig.getDefaultAnchorDictionary() != null)
+			try {
+				watAnnotator = new AnchorDisambiguator(new AnchorDictionary(
+						SmaphConfig.getDefaultAnchorDictionary()), 0.0);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+		else
+			watAnnotator = new WATAnnotator(SmaphConfig.getDefaultWatHost(),
+					SmaphConfig.getDefaultWatPort(), "base", "COMMONNESS",
+					"jaccard", "0.6", "0", false, false, false);
+		return watAnnotator;
+	}
 
 	@POST
 	@Path("/shortTrack")
@@ -58,7 +101,7 @@ public class RestService {
 	public String annotatePost(@FormDataParam("runID") String runId,
 			@FormDataParam("TextID") String textId,
 			@FormDataParam("Text") String text) {
-		Annotator annotator = new Annotator();
+		Annotator annotator = new Annotator(getDefaultWikiInterface());
 		List<Annotation> annotations = annotator.annotate(runId, textId, text);
 
 		return encodeAnnotations(annotations);
@@ -101,13 +144,20 @@ public class RestService {
 	}
 
 	private WikipediaApiInterface getDefaultWikiInterface() {
-		return new WikipediaApiInterface("wid.cache", "redirect.cache");
+		if (wikiApi == null)
+			wikiApi = Annotator.getDefaultWikipediaApi();
+		return wikiApi;
 	}
 
 	private SmaphAnnotator getDefaultAnnotator(WikipediaApiInterface wikiApi) {
 		SmaphConfig.setConfigFile("smaph-config.xml");
 		String bingKey = SmaphConfig.getDefaultBingKey();
 		String bingCache = SmaphConfig.getDefaultBingCache();
+		SmaphAnnotator.setCacheMemory(SmaphConfig.getDefaultBingCacheMemory());
+		SmaphAnnotator.setCacheTtl(SmaphConfig.getDefaultBingCacheTtl(),
+				SmaphConfig.getDefaultBingRefreshRate());
+		SmaphAnnotator.setBingHedging(SmaphConfig.getDefaultBingHedgingPolicy());
+		WATAnnotator.setHedging(SmaphConfig.getDefaultWatHedgingPolicy());
 		if (bingCache != null)
 			try {
 				SmaphAnnotator.setCache(bingCache);
@@ -117,15 +167,14 @@ public class RestService {
 			}
 
 		String modelBase = "models/model_1,2,3,6,7,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,33,34,35,36,37_3.80000_5.60000_0.060_0.03000000_5.00000000_ANW";
-		WATAnnotator auxAnnotatorService = new WATAnnotator(
-				"wikisense.mkapp.it", 80, "base", "COMMONNESS", "jaccard", "0.6",
-				"0", false, false, false);
-
 		try {
-			return new SmaphAnnotator(auxAnnotatorService,
+			SmaphAnnotator ann = new SmaphAnnotator(getWatAnnotator(),
 					new FrequencyBoldFilter(0.06f), new LibSvmEntityFilter(
 							modelBase), new DummyLinkBack(), true, true, true,
 					10, false, -1, false, -1, wikiApi, bingKey);
+			ann.setSearchExecutor(SmaphConfig.getDefaultSearchExecutor());
+			ann.setBingEndpoint(SmaphConfig.getDefaultBingEndpoint());
+			return ann;
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
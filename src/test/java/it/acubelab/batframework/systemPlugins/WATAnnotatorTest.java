@@ -0,0 +1,231 @@
+package it.unipi.di.acube.batframework.systemPlugins;
+
+import static org.junit.Assert.*;
+import it.acubelab.smaph.SmaphUtils;
+import it.acubelab.smaph.standin.StandInServer;
+import it.acubelab.smaph.standin.StandInServer.Service;
+import it.unipi.di.acube.batframework.data.Annotation;
+import it.unipi.di.acube.batframework.data.Mention;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator.D2WResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WATAnnotatorTest {
+	private StandInServer server;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		WATAnnotator.unSetCache();
+		server = new StandInServer("localhost", 0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+		WATAnnotator.unSetCache();
+		WATAnnotator.unSetBoldCache();
+	}
+
+	@Test
+	public void testSolveD2WWithInfo() throws Exception {
+		WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+				"base");
+		String text = "neil armstrong moon";
+		HashSet<Mention> mentions = new HashSet<>(Arrays.asList(new Mention(0,
+				14), new Mention(15, 4)));
+		D2WResult result = wat.solveD2WWithInfo(text, mentions);
+		assertEquals(2, result.getAnnotations().size());
+		assertEquals(new HashSet<>(Arrays.asList("neil armstrong", "moon")),
+				result.getMentionInfo().keySet());
+		assertTrue(result.getMentionInfo().get("moon").containsKey("rhoScore"));
+		assertEquals(0.0, result.getCandidatesInfo().get("moon").get(0)
+				.get("rank"), 0.0);
+		assertEquals(new HashSet<>(result.getAnnotations()),
+				wat.solveD2W(text, mentions));
+
+		try {
+			result.getMentionInfo().get("moon").put("rhoScore", 1.0);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			result.getAnnotations().clear();
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testSharedAnnotator() throws Exception {
+		final WATAnnotator wat = new WATAnnotator("localhost",
+				server.getPort(), "base");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<D2WResult>> results = new Vector<>();
+		for (int i = 0; i < 40; i++) {
+			final String text = "query" + i + " moon";
+			final HashSet<Mention> mentions = new HashSet<>(Arrays.asList(
+					new Mention(0, text.indexOf(' ')), new Mention(
+							text.indexOf(' ') + 1, 4)));
+			results.add(executor.submit(new Callable<D2WResult>() {
+				@Override
+				public D2WResult call() throws Exception {
+					return wat.solveD2WWithInfo(text, mentions);
+				}
+			}));
+		}
+		executor.shutdown();
+		for (int i = 0; i < 40; i++) {
+			D2WResult result = results.get(i).get();
+			// Each result only carries the info of its own query.
+			Map<String, Map<String, Double>> info = result.getMentionInfo();
+			assertEquals(new HashSet<>(Arrays.asList("query" + i, "moon")),
+					info.keySet());
+			for (Annotation a : result.getAnnotations())
+				assertTrue(a.getPosition() + a.getLength() <= ("query" + i + " moon")
+						.length());
+		}
+	}
+
+	@Test
+	public void testBoldCache() throws Exception {
+		String cacheFile = new File(folder.getRoot(), "bold.cache").getPath();
+		WATAnnotator.setBoldCache(cacheFile);
+		WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+				"base");
+		D2WResult first = wat.solveD2WWithInfo("neil armstrong moon",
+				new HashSet<>(Arrays.asList(new Mention(0, 14), new Mention(15,
+						4))));
+		assertEquals(1, server.getRequestCount(Service.WAT));
+
+		// The same bolds in another text are answered by the bold cache.
+		String text = "moon neil armstrong";
+		HashSet<Mention> mentions = new HashSet<>(Arrays.asList(new Mention(0,
+				4), new Mention(5, 14)));
+		D2WResult cached = wat.solveD2WWithInfo(text, mentions);
+		assertEquals(1, server.getRequestCount(Service.WAT));
+		assertEquals(2, WATAnnotator.getD2WCount());
+		assertEquals(1, WATAnnotator.getD2WAvoidedCount());
+		assertEquals(first.getMentionInfo(), cached.getMentionInfo());
+		assertEquals(first.getCandidatesInfo(), cached.getCandidatesInfo());
+		HashSet<Integer> firstIds = new HashSet<>(), cachedIds = new HashSet<>();
+		for (Annotation a : first.getAnnotations())
+			firstIds.add(a.getConcept());
+		for (Annotation a : cached.getAnnotations()) {
+			cachedIds.add(a.getConcept());
+			assertTrue(mentions.contains(new Mention(a.getPosition(), a
+					.getLength())));
+		}
+		assertEquals(firstIds, cachedIds);
+
+		// A bold not cached needs a call.
+		wat.solveD2WWithInfo("moon landing", new HashSet<>(Arrays.asList(
+				new Mention(0, 4), new Mention(5, 7))));
+		assertEquals(2, server.getRequestCount(Service.WAT));
+
+		// Cached bolds with other mentions need a call, since their features
+		// depend on the other mentions.
+		wat.solveD2WWithInfo("neil armstrong landing", new HashSet<>(Arrays
+				.asList(new Mention(0, 14), new Mention(15, 7))));
+		assertEquals(3, server.getRequestCount(Service.WAT));
+		wat.solveD2WWithInfo("neil armstrong", new HashSet<>(Arrays
+				.asList(new Mention(0, 14))));
+		assertEquals(4, server.getRequestCount(Service.WAT));
+		assertEquals(1, WATAnnotator.getD2WAvoidedCount());
+
+		// The bold cache is saved on flush.
+		WATAnnotator.flush();
+		WATAnnotator.unSetBoldCache();
+		WATAnnotator.setBoldCache(cacheFile);
+		assertEquals(cached.getMentionInfo(), wat.solveD2WWithInfo(text, mentions)
+				.getMentionInfo());
+		assertEquals(4, server.getRequestCount(Service.WAT));
+	}
+
+	@Test
+	public void testIdenticalRequestsHit() throws Exception {
+		String cacheFile = new File(folder.getRoot(), "wikisense.cache")
+				.getPath();
+		WATAnnotator.setCache(cacheFile);
+		WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+				"base");
+		String text = "brooks brothers clearance sale";
+		List<Mention> mentions = Arrays.asList(new Mention(0, 15),
+				new Mention(16, 9), new Mention(26, 4), new Mention(6, 8));
+		HashSet<Annotation> first = wat.solveD2W(text, new HashSet<>(mentions));
+		assertEquals(1, server.getRequestCount(Service.WAT));
+
+		// The same mentions, iterated in other orders, hit the cache.
+		for (int capacity : new int[] { 1, 3, 64, 1024 })
+			for (int shift = 0; shift < mentions.size(); shift++) {
+				HashSet<Mention> same = new HashSet<>(capacity);
+				for (int i = 0; i < mentions.size(); i++)
+					same.add(mentions.get((i + shift) % mentions.size()));
+				assertEquals(first, wat.solveD2W(text, same));
+			}
+		assertEquals(1, server.getRequestCount(Service.WAT));
+
+		// Also in another JVM, through the cache file.
+		WATAnnotator.increaseFlushCounter();
+		WATAnnotator.flush();
+		assertTrue(new File(cacheFile).exists());
+		assertFalse(new File(cacheFile + ".tmp").exists());
+		WATAnnotator.unSetCache();
+		WATAnnotator.setCache(cacheFile);
+		assertEquals(first, wat.solveD2W(text, new HashSet<>(mentions)));
+		assertEquals(1, server.getRequestCount(Service.WAT));
+	}
+
+	@Test
+	public void testLegacyCacheIsMigrated() throws Exception {
+		String text = "neil armstrong";
+		JSONObject body = new JSONObject().put(
+				"spans",
+				new JSONArray().put(new JSONObject().put("start", 5).put("end",
+						14)).put(new JSONObject().put("start", 0).put("end", 4)))
+				.put("text", text);
+		HashMap<String, byte[]> legacy = new HashMap<>();
+		legacy.put(
+				"http://wikisense.mkapp.it:80/tag/disambiguate?lang=en&method=base&bogusFilter=false&useTagger=false&useContext=false"
+						+ body,
+				SmaphUtils.compress("{\"time\":{\"total\":1},\"annotations\":[{\"start\":0,\"end\":4,\"id\":42,\"linkProb\":0.5,\"commonness\":1,\"rho\":0.3,\"ambiguity\":0,\"localCoherence\":0,\"pageRank\":0,\"ranking\":[]}]}"));
+		String cacheFile = new File(folder.getRoot(), "wikisense.cache")
+				.getPath();
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(cacheFile))) {
+			oos.writeObject(legacy);
+		}
+		WATAnnotator.setCache(cacheFile);
+		WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+				"base", "", "", "", "");
+		HashSet<Annotation> annotations = wat.solveD2W(text, new HashSet<>(
+				Arrays.asList(new Mention(0, 4), new Mention(5, 9))));
+		assertEquals(new HashSet<>(Arrays.asList(new Annotation(0, 4, 42))),
+				annotations);
+		assertEquals(0, server.getRequestCount(Service.WAT));
+	}
+}
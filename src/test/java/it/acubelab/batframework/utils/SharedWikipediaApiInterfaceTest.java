@@ -0,0 +1,188 @@
+package it.unipi.di.acube.batframework.utils;
+
+import static org.junit.Assert.*;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedWikipediaApiInterfaceTest {
+	private static final int PAGES = 1000;
+	private static final int THREADS = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Write the cache files of a {@link WikipediaApiInterface} that knows
+	 * pages "Page 1" ... "Page n", with ids 1 ... n. Odd pages are redirects
+	 * to the following page.
+	 *
+	 * @return the title cache file and the redirect cache file.
+	 */
+	public static String[] writeCaches(File dir, int pages) throws IOException {
+		BidiObjectIntHashMap<String> titles = new BidiObjectIntHashMap<>();
+		Int2IntOpenHashMap redirects = new Int2IntOpenHashMap();
+		for (int wid = 1; wid <= pages; wid++) {
+			titles.put("Page " + wid, wid);
+			redirects.put(wid, wid % 2 == 1 && wid < pages ? wid + 1 : wid);
+		}
+		String[] files = { new File(dir, "wid.cache").getPath(),
+				new File(dir, "redirect.cache").getPath() };
+		try (ObjectOutputStream out = new ObjectOutputStream(
+				new FileOutputStream(files[0]))) {
+			out.writeObject(titles);
+		}
+		try (ObjectOutputStream out = new ObjectOutputStream(
+				new FileOutputStream(files[1]))) {
+			out.writeObject(redirects);
+		}
+		return files;
+	}
+
+	@Test
+	public void testLookups() throws Exception {
+		String[] files = writeCaches(folder.getRoot(), PAGES);
+		SharedWikipediaApiInterface api = new SharedWikipediaApiInterface(
+				files[0], files[1], 60000);
+		try {
+			for (int round = 0; round < 2; round++) {
+				assertEquals(10, api.getIdByTitle("Page 10"));
+				assertEquals(10, api.getIdByTitle("Page_10"));
+				assertEquals("Page 10", api.getTitlebyId(10));
+				assertEquals(12, api.dereference(11));
+				assertTrue(api.isRedirect(11));
+				assertFalse(api.isRedirect(12));
+				api.prefetchTitles(Arrays.asList("Page 20", "Page 21"));
+				api.prefetchWids(Arrays.asList(20, 21));
+			}
+			assertEquals(5, api.getMissCount());
+			assertEquals(7, api.getHitCount());
+
+			// Prefetched pages are served by the maps.
+			assertEquals(21, api.getIdByTitle("Page 21"));
+			assertEquals("Page 20", api.getTitlebyId(20));
+			assertEquals(5, api.getMissCount());
+			assertEquals(9, api.getHitCount());
+		} finally {
+			api.close();
+		}
+	}
+
+	@Test
+	public void testMissingPages() throws Exception {
+		String[] files = writeCaches(folder.getRoot(), PAGES);
+		final AtomicInteger requests = new AtomicInteger();
+		SharedWikipediaApiInterface api = new SharedWikipediaApiInterface(
+				files[0], files[1], 60000) {
+			@Override
+			public void prefetchWids(List<Integer> wids) {
+				// A reply where all the pages are missing.
+				requests.incrementAndGet();
+			}
+		};
+		api.bidiTitle2wid.put("Missing page", -1);
+		try {
+			for (int round = 0; round < 2; round++) {
+				assertEquals(-1, api.getIdByTitle("Missing page"));
+				assertNull(api.getTitlebyId(PAGES + 1));
+			}
+			assertEquals(1, requests.get());
+			assertEquals(2, api.getMissCount());
+			assertEquals(2, api.getHitCount());
+		} finally {
+			api.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+		String[] files = writeCaches(folder.getRoot(), PAGES);
+		final SharedWikipediaApiInterface api = new SharedWikipediaApiInterface(
+				files[0], files[1], 60000);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> futures = new Vector<>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int i = 0; i < PAGES; i++) {
+							int wid = 1 + (i + thread * 97) % PAGES;
+							assertEquals(wid, api.getIdByTitle("Page " + wid));
+							assertEquals("Page " + wid, api.getTitlebyId(wid));
+							assertEquals(wid % 2 == 1 && wid < PAGES ? wid + 1
+									: wid, api.dereference(wid));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+			assertEquals(3L * THREADS * PAGES,
+					api.getHitCount() + api.getMissCount());
+			assertTrue(api.getMissCount() < 3L * THREADS * PAGES);
+			assertTrue(api.getMissCount() >= 3L * PAGES);
+		} finally {
+			executor.shutdown();
+			api.close();
+		}
+	}
+
+	@Test
+	public void testBackgroundFlush() throws Exception {
+		String[] files = writeCaches(folder.getRoot(), PAGES);
+		SharedWikipediaApiInterface api = new SharedWikipediaApiInterface(
+				files[0], files[1], 50);
+		try {
+			api.flushNow();
+			assertEquals(0, api.getFlushCount());
+
+			api.bidiTitle2wid.put("New page", PAGES + 1);
+			api.flush();
+			long end = System.currentTimeMillis() + 5000;
+			while (api.getFlushCount() == 0
+					&& System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertEquals(1, api.getFlushCount());
+		} finally {
+			api.close();
+		}
+		assertEquals(1, api.getFlushCount());
+
+		WikipediaApiInterface reloaded = new WikipediaApiInterface(files[0],
+				files[1]);
+		assertEquals(PAGES + 1, reloaded.getIdByTitle("New page"));
+		assertEquals(10, reloaded.getIdByTitle("Page 10"));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		String[] files = writeCaches(folder.getRoot(), PAGES);
+		SharedWikipediaApiInterface api = new SharedWikipediaApiInterface(
+				files[0], files[1], 60000);
+		api.bidiTitle2wid.put("New page", PAGES + 1);
+		api.flush();
+		assertEquals(0, api.getFlushCount());
+		api.close();
+		assertEquals(1, api.getFlushCount());
+		assertEquals(PAGES + 1, new WikipediaApiInterface(files[0], files[1])
+				.getIdByTitle("New page"));
+	}
+}
@@ -0,0 +1,168 @@
+package it.acubelab.smaph;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+public class BingResponseTest {
+
+	private static void assertSameResponse(BingResponse expected,
+			BingResponse actual) {
+		assertEquals(expected.isValid(), actual.isValid());
+		assertEquals(expected.getWebTotal(), actual.getWebTotal(), 0.0);
+		assertEquals(expected.getResultCount(), actual.getResultCount());
+		for (int i = 0; i < expected.getResultCount(); i++) {
+			assertEquals(expected.getUrl(i), actual.getUrl(i));
+			assertEquals(expected.getSnippet(i), actual.getSnippet(i));
+			assertEquals(expected.getBoldCount(i), actual.getBoldCount(i));
+			for (int j = 0; j < expected.getBoldCount(i); j++) {
+				assertEquals(expected.getBoldPosition(i, j),
+						actual.getBoldPosition(i, j));
+				assertEquals(expected.getBoldLength(i, j),
+						actual.getBoldLength(i, j));
+			}
+		}
+		assertEquals(expected.getRelatedSearch(), actual.getRelatedSearch());
+	}
+
+	@Test
+	public void testFromJson() throws Exception {
+		BingResponse response = BingResponse.fromJson(new JSONObject(
+				BingStubServer.RESPONSE), false);
+		assertTrue(response.isValid());
+		assertEquals(1230.0, response.getWebTotal(), 0.0);
+		assertEquals(1, response.getResultCount());
+		assertEquals("http://en.wikipedia.org/wiki/Neil_Armstrong",
+				response.getUrl(0));
+		assertEquals("Neil Armstrong was the first man on the moon.",
+				response.getSnippet(0));
+		assertEquals(2, response.getBoldCount(0));
+		assertEquals("Neil Armstrong", response.getBold(0, 0));
+		assertEquals(0, response.getBoldPosition(0, 0));
+		assertEquals("moon", response.getBold(0, 1));
+		assertEquals(40, response.getBoldPosition(0, 1));
+		assertEquals(4, response.getBoldLength(0, 1));
+		assertEquals(1, response.getRelatedSearch().size());
+		assertEquals("neil armstrong moon landing", response
+				.getRelatedSearch().get(0));
+		assertNull(response.getJson());
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		assertFalse(BingResponse.fromJson(new JSONObject("{}"), false)
+				.isValid());
+		assertFalse(BingResponse.fromJson(
+				new JSONObject(
+						"{\"d\":{\"results\":[{\"WebTotal\":\"\",\"Web\":[]}]}}"),
+				false).isValid());
+	}
+
+	@Test
+	public void testRecord() throws Exception {
+		BingResponse response = BingResponse.fromJson(new JSONObject(
+				BingStubServer.RESPONSE), true);
+		byte[] record = response.toBytes();
+		assertTrue(BingResponse.isRecord(record));
+		assertFalse(BingResponse.isRecord(SmaphUtils
+				.compress(BingStubServer.RESPONSE)));
+
+		BingResponse read = BingResponse.fromBytes(record);
+		assertSameResponse(response, read);
+		assertEquals(new JSONObject(BingStubServer.RESPONSE).toString(), read
+				.getJson().toString());
+
+		BingResponse invalid = BingResponse.fromJson(new JSONObject("{}"),
+				false);
+		assertSameResponse(invalid, BingResponse.fromBytes(invalid.toBytes()));
+	}
+
+	@Test
+	public void testFetchTime() throws Exception {
+		BingResponse response = BingResponse.fromJson(new JSONObject(
+				BingStubServer.RESPONSE), false);
+		assertEquals(0, response.getFetchTime());
+		BingResponse fetched = response.withFetchTime(1400000000000L);
+		assertEquals(1400000000000L, fetched.getFetchTime());
+		assertSameResponse(response, fetched);
+		byte[] record = fetched.toBytes();
+		assertEquals(1400000000000L, BingResponse.fromBytes(record)
+				.getFetchTime());
+
+		// Records of version 1 have no fetch time.
+		byte[] oldRecord = new byte[record.length - 8];
+		System.arraycopy(record, 0, oldRecord, 0, 3);
+		System.arraycopy(record, 11, oldRecord, 3, record.length - 11);
+		oldRecord[2] = 1;
+		BingResponse old = BingResponse.fromBytes(oldRecord);
+		assertSameResponse(response, old);
+		assertEquals(0, old.getFetchTime());
+	}
+
+	@Test
+	public void testToJson() throws Exception {
+		BingResponse response = BingResponse.fromJson(new JSONObject(
+				BingStubServer.RESPONSE), false);
+		assertEquals(new JSONObject(BingStubServer.RESPONSE).toString(),
+				response.toJson().toString());
+
+		String adjacent = "{\"d\":{\"results\":[{\"WebTotal\":\"2.5E10\",\"Web\":[{\"Url\":\"http://a\",\"Description\":\"a \\ue000b\\ue001\\ue000c\\ue001 d \\ue000e\\ue001\"},{\"Url\":\"http://b\",\"Description\":\"\"}]}]}}";
+		response = BingResponse.fromJson(new JSONObject(adjacent), false);
+		assertSameResponse(response,
+				BingResponse.fromJson(response.toJson(), false));
+
+		BingResponse invalid = BingResponse.fromJson(new JSONObject("{}"),
+				false);
+		assertFalse(BingResponse.fromJson(invalid.toJson(), false).isValid());
+	}
+
+	private static BingResponse parse(String json, boolean keepJson)
+			throws IOException {
+		return BingResponse.parse(
+				new ByteArrayInputStream(json.getBytes("utf8")), keepJson);
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		assertSameResponse(BingResponse.fromJson(new JSONObject(
+				BingStubServer.RESPONSE), false), parse(
+				BingStubServer.RESPONSE, false));
+
+		String noisy = "{\"d\":{\"__next\":\"x\",\"results\":[{\"__metadata\":{\"uri\":\"u\",\"type\":\"t\"},"
+				+ "\"ID\":\"1\",\"WebTotal\":\"42\",\"WebOffset\":\"0\",\"Image\":[{\"Url\":\"img\"}],"
+				+ "\"Web\":[{\"__metadata\":{\"uri\":\"u\"},\"ID\":\"a\",\"Title\":\"T\",\"Description\":\"a \\ue000b\\ue001\\ue000c\\ue001 d\",\"DisplayUrl\":\"x\",\"Url\":\"http://a\"},"
+				+ "{\"Url\":\"http://b\",\"Description\":\"\\\"quoted\\\" \\ue000\u00e8\\ue001\"}],"
+				+ "\"SpellingSuggestions\":[],\"RelatedSearch\":[{\"Title\":\"r1\",\"BingUrl\":\"b\"},{\"Title\":\"r2\"}]},"
+				+ "{\"WebTotal\":\"7\",\"Web\":[]}]}}";
+		BingResponse parsed = parse(noisy, true);
+		assertSameResponse(BingResponse.fromJson(new JSONObject(noisy), false),
+				parsed);
+		assertEquals(42.0, parsed.getWebTotal(), 0.0);
+		assertEquals(2, parsed.getResultCount());
+		assertEquals("http://b", parsed.getUrl(1));
+		assertEquals("\"quoted\" \u00e8", parsed.getSnippet(1));
+		assertEquals("a bc d", parsed.getSnippet(0));
+		assertEquals(2, parsed.getRelatedSearch().size());
+		assertEquals(new JSONObject(noisy).toString(), parsed.getJson()
+				.toString());
+	}
+
+	@Test
+	public void testParseInvalid() throws Exception {
+		assertFalse(parse("{}", false).isValid());
+		assertFalse(parse("{\"d\":{\"results\":[]}}", false).isValid());
+		assertFalse(parse(
+				"{\"d\":{\"results\":[{\"WebTotal\":\"\",\"Web\":[]}]}}",
+				false).isValid());
+		try {
+			parse("{\"d\":{\"results\":[{\"WebTotal\":\"1\",\"Web\":[{\"Description\":\"x\"}]}]}}",
+					false);
+			fail("A result without URL should not be accepted.");
+		} catch (IOException e) {
+		}
+	}
+}
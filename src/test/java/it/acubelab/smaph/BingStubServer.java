@@ -0,0 +1,131 @@
+package it.acubelab.smaph;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Bing Composite API. It answers every query with
+ * the same small response, after waiting a delay that depends on the query.
+ */
+public class BingStubServer {
+	public static final String RESPONSE = "{\"d\":{\"results\":[{\"WebTotal\":\"1230\",\"Web\":[{\"Url\":\"http://en.wikipedia.org/wiki/Neil_Armstrong\",\"Description\":\"\\ue000Neil Armstrong\\ue001 was the first man on the \\ue000moon\\ue001.\"}],\"RelatedSearch\":[{\"Title\":\"neil armstrong moon landing\"}]}]}}";
+	private HttpServer server;
+	private volatile String wikiSearchResponse = RESPONSE;
+	private long normalSearchDelay;
+	private long wikiSearchDelay;
+	private AtomicInteger requests = new AtomicInteger();
+	private AtomicInteger failures = new AtomicInteger();
+	private AtomicInteger inFlight = new AtomicInteger();
+	private AtomicInteger maxInFlight = new AtomicInteger();
+
+	/**
+	 * @param normalSearchDelay
+	 *            milliseconds to wait before answering a normal search.
+	 * @param wikiSearchDelay
+	 *            milliseconds to wait before answering a search whose query
+	 *            ends with "wikipedia".
+	 * @throws IOException
+	 *             if the server could not be started.
+	 */
+	public BingStubServer(long normalSearchDelay, long wikiSearchDelay)
+			throws IOException {
+		this.normalSearchDelay = normalSearchDelay;
+		this.wikiSearchDelay = wikiSearchDelay;
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				String query = URLDecoder.decode(exchange.getRequestURI()
+						.getRawQuery(), "utf8");
+				int current = inFlight.incrementAndGet();
+				for (int max = maxInFlight.get(); current > max; max = maxInFlight
+						.get())
+					if (maxInFlight.compareAndSet(max, current))
+						break;
+				try {
+					Thread.sleep(query.contains(" wikipedia'") ? BingStubServer.this.wikiSearchDelay
+							: BingStubServer.this.normalSearchDelay);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+				if (failures.getAndDecrement() > 0) {
+					exchange.sendResponseHeaders(503, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = (query.contains(" wikipedia'") ? wikiSearchResponse
+						: RESPONSE).getBytes("utf8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	/**
+	 * @return the URL of the stand-in Composite API.
+	 */
+	public String getEndpoint() {
+		return String.format("http://localhost:%d/Bing/Search/v1/Composite",
+				server.getAddress().getPort());
+	}
+
+	/**
+	 * Make the next requests fail with status 503.
+	 * 
+	 * @param count
+	 *            how many requests to fail.
+	 */
+	public void failNext(int count) {
+		failures.set(count);
+	}
+
+	/**
+	 * Answer searches whose query ends with "wikipedia" with a different
+	 * response.
+	 * 
+	 * @param response
+	 *            the response to the Wikipedia searches.
+	 */
+	public void setWikiSearchResponse(String response) {
+		wikiSearchResponse = response;
+	}
+
+	/**
+	 * @return the number of requests received so far.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the highest number of requests that were being answered at
+	 *         once since the server started or since the last call to
+	 *         {@link #resetMaxInFlight()}.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public void resetMaxInFlight() {
+		maxInFlight.set(0);
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+}
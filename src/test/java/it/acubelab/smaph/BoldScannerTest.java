@@ -0,0 +1,193 @@
+package it.acubelab.smaph;
+
+import static org.junit.Assert.*;
+import it.acubelab.smaph.BingResponse.BoldScanner;
+import it.unipi.di.acube.batframework.utils.Pair;
+
+import it.acubelab.smaph.cache.CacheLog;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class BoldScannerTest {
+	/**
+	 * Bing replies recorded one per line, with the query they answer,
+	 * including corner cases of the highlighting markers.
+	 */
+	private static final String RECORDED = "bing-responses.jsonl";
+
+	/**
+	 * A system property naming a recorded Bing cache (a cache log base name,
+	 * or a file in the old format) whose replies are also checked.
+	 */
+	private static final String BING_CACHE_PROPERTY = "smaph.test.bingCache";
+
+	private static final char[] FUZZ_ALPHABET = { 'a', 'b', ' ', '\ue000',
+			'\ue001', '\n', '\ud83c', '\udf15' };
+
+	/**
+	 * The algorithm used before the single-pass scanner, kept as a reference.
+	 * It throws an exception if a bold contains a start marker.
+	 */
+	private static String legacyExtractBolds(String description,
+			List<Pair<Integer, Integer>> bolds) {
+		String start = String.valueOf(BingResponse.BOLD_START);
+		String stop = String.valueOf(BingResponse.BOLD_STOP);
+		String snippet = "";
+		description = description.replaceAll(stop + "." + start, " ");
+		int startIdx = description.indexOf(start);
+		int stopIdx = description.indexOf(stop, startIdx);
+		int lastStop = -1;
+		while (startIdx != -1 && stopIdx != -1) {
+			String spot = description.subSequence(startIdx + 1, stopIdx)
+					.toString();
+			snippet += description.substring(lastStop + 1, startIdx);
+			bolds.add(new Pair<Integer, Integer>(snippet.length(), spot
+					.length()));
+			snippet += spot;
+			lastStop = stopIdx;
+			startIdx = description.indexOf(start, startIdx + 1);
+			stopIdx = description.indexOf(stop, startIdx + 1);
+		}
+		snippet += description.substring(lastStop + 1);
+		return snippet;
+	}
+
+	/**
+	 * @return false if the legacy algorithm fails on the description.
+	 */
+	private static boolean assertSameAsLegacy(BoldScanner scanner,
+			String description) {
+		List<Pair<Integer, Integer>> expectedBolds = new Vector<>();
+		String expectedSnippet;
+		try {
+			expectedSnippet = legacyExtractBolds(description, expectedBolds);
+		} catch (StringIndexOutOfBoundsException e) {
+			return false;
+		}
+		String snippet = scanner.scan(description);
+		int[] positions = scanner.getBoldPositions();
+		assertEquals(description, expectedSnippet, snippet);
+		assertEquals(description, expectedBolds.size() * 2, positions.length);
+		for (int i = 0; i < expectedBolds.size(); i++) {
+			assertEquals(description, (int) expectedBolds.get(i).first,
+					positions[2 * i]);
+			assertEquals(description, (int) expectedBolds.get(i).second,
+					positions[2 * i + 1]);
+		}
+		return true;
+	}
+
+	private static void addDescriptions(JSONObject reply,
+			List<String> descriptions) throws JSONException {
+		JSONArray results = reply.getJSONObject("d").getJSONArray("results");
+		for (int i = 0; i < results.length(); i++) {
+			JSONArray web = results.getJSONObject(i).optJSONArray("Web");
+			if (web != null)
+				for (int j = 0; j < web.length(); j++)
+					descriptions.add(web.getJSONObject(j).getString(
+							"Description"));
+		}
+	}
+
+	private static JSONObject gunzipJson(byte[] data) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				data))) {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = in.read(buf)) >= 0)
+				out.write(buf, 0, read);
+		}
+		return new JSONObject(new String(out.toByteArray(), "utf8"));
+	}
+
+	/**
+	 * @return the descriptions of the replies of a recorded Bing cache that
+	 *         kept the JSON replies.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<String> loadCacheDescriptions(String cache)
+			throws Exception {
+		List<String> descriptions = new Vector<>();
+		Map<String, byte[]> entries = new HashMap<>();
+		if (CacheLog.exists(cache))
+			try (CacheLog log = new CacheLog(cache)) {
+				for (String key : log.keySet())
+					entries.put(key, log.get(key));
+			}
+		else
+			try (ObjectInputStream in = new ObjectInputStream(
+					new FileInputStream(cache))) {
+				entries = (Map<String, byte[]>) in.readObject();
+			}
+		for (byte[] value : entries.values()) {
+			JSONObject reply = BingResponse.isRecord(value) ? BingResponse
+					.fromBytes(value).getJson() : gunzipJson(value);
+			if (reply != null)
+				addDescriptions(reply, descriptions);
+		}
+		return descriptions;
+	}
+
+	@Test
+	public void testRecorded() throws Exception {
+		List<String> descriptions = new Vector<>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				BoldScannerTest.class.getResourceAsStream(RECORDED), "utf8"))) {
+			String line;
+			while ((line = in.readLine()) != null)
+				if (!line.isEmpty())
+					addDescriptions(new JSONObject(line)
+							.getJSONObject("response"), descriptions);
+		}
+		assertEquals(18, descriptions.size());
+
+		BoldScanner scanner = new BoldScanner();
+		for (String description : descriptions)
+			assertTrue(description, assertSameAsLegacy(scanner, description));
+	}
+
+	@Test
+	public void testRecordedCache() throws Exception {
+		String cache = System.getProperty(BING_CACHE_PROPERTY);
+		Assume.assumeNotNull(cache);
+		BoldScanner scanner = new BoldScanner();
+		int compared = 0;
+		for (String description : loadCacheDescriptions(cache))
+			if (assertSameAsLegacy(scanner, description))
+				compared++;
+		assertTrue(compared > 0);
+	}
+
+	@Test
+	public void testRandom() {
+		BoldScanner scanner = new BoldScanner();
+		Random r = new Random(42);
+		int compared = 0;
+		for (int i = 0; i < 200000; i++) {
+			char[] description = new char[r.nextInt(20)];
+			for (int j = 0; j < description.length; j++)
+				description[j] = FUZZ_ALPHABET[r.nextInt(FUZZ_ALPHABET.length)];
+			if (assertSameAsLegacy(scanner, new String(description)))
+				compared++;
+		}
+		assertTrue(compared > 100000);
+	}
+}
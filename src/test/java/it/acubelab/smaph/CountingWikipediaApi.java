@@ -0,0 +1,165 @@
+package it.acubelab.smaph;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+
+/**
+ * A stand-in for the Wikipedia API that makes up an entity for every title
+ * and wid, and counts the requests that the real
+ * {@link WikipediaApiInterface} would send to Wikipedia: a prefetch sends a
+ * request for every 50 titles (or wids) it does not know yet, a single lookup
+ * sends a request if the title (or wid) is unknown.
+ */
+public class CountingWikipediaApi extends WikipediaApiInterface {
+	private static final int BATCH_SIZE = 50;
+	private final HashMap<String, Integer> titleToId = new HashMap<>();
+	private final HashMap<Integer, String> idToTitle = new HashMap<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger calls = new AtomicInteger();
+	private final Set<String> prefetchedTitles = new LinkedHashSet<>();
+	private final Set<Integer> prefetchedWids = new LinkedHashSet<>();
+	private final AtomicInteger prefetchCalls = new AtomicInteger();
+	private final AtomicInteger titleLookups = new AtomicInteger();
+	private final AtomicInteger idLookups = new AtomicInteger();
+
+	public CountingWikipediaApi() {
+		super(null, null);
+	}
+
+	/**
+	 * @return the made up wid of a title.
+	 */
+	public static int idOf(String title) {
+		return 1 + (normalize(title).hashCode() & 0x3ffffff);
+	}
+
+	private void learnTitle(String title) {
+		int wid = idOf(title);
+		titleToId.put(normalize(title), wid);
+		idToTitle.put(wid, normalize(title));
+	}
+
+	private void learnId(int wid) {
+		idToTitle.put(wid, "Entity " + wid);
+	}
+
+	@Override
+	public synchronized void prefetchTitles(List<String> titles) {
+		calls.incrementAndGet();
+		prefetchCalls.incrementAndGet();
+		prefetchedTitles.addAll(titles);
+		Set<String> unknown = new LinkedHashSet<>();
+		for (String title : titles)
+			if (!titleToId.containsKey(normalize(title)))
+				unknown.add(title);
+		requests.addAndGet((unknown.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+		for (String title : unknown)
+			learnTitle(title);
+	}
+
+	@Override
+	public synchronized void prefetchWids(List<Integer> wids) {
+		calls.incrementAndGet();
+		prefetchCalls.incrementAndGet();
+		prefetchedWids.addAll(wids);
+		Set<Integer> unknown = new LinkedHashSet<>();
+		for (int wid : wids)
+			if (wid != -1 && !idToTitle.containsKey(wid))
+				unknown.add(wid);
+		requests.addAndGet((unknown.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+		for (int wid : unknown)
+			learnId(wid);
+	}
+
+	@Override
+	public synchronized int getIdByTitle(String title) {
+		calls.incrementAndGet();
+		titleLookups.incrementAndGet();
+		if (!titleToId.containsKey(normalize(title))) {
+			requests.incrementAndGet();
+			learnTitle(title);
+		}
+		return titleToId.get(normalize(title));
+	}
+
+	@Override
+	public synchronized String getTitlebyId(int wid) {
+		calls.incrementAndGet();
+		idLookups.incrementAndGet();
+		if (!idToTitle.containsKey(wid)) {
+			requests.incrementAndGet();
+			learnId(wid);
+		}
+		return idToTitle.get(wid);
+	}
+
+	@Override
+	public boolean isRedirect(int wid) {
+		calls.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public int dereference(int wid) {
+		calls.incrementAndGet();
+		return wid;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * @return the number of requests that would have been sent to Wikipedia.
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the distinct titles passed to {@link #prefetchTitles(List)}.
+	 */
+	public synchronized Set<String> getPrefetchedTitles() {
+		return new LinkedHashSet<>(prefetchedTitles);
+	}
+
+	/**
+	 * @return the distinct wids passed to {@link #prefetchWids(List)}.
+	 */
+	public synchronized Set<Integer> getPrefetchedWids() {
+		return new LinkedHashSet<>(prefetchedWids);
+	}
+
+	/**
+	 * @return the number of calls to the prefetch methods.
+	 */
+	public int getPrefetchCallCount() {
+		return prefetchCalls.get();
+	}
+
+	/**
+	 * @return the number of calls to {@link #getIdByTitle(String)}.
+	 */
+	public int getTitleLookupCount() {
+		return titleLookups.get();
+	}
+
+	/**
+	 * @return the number of calls to {@link #getTitlebyId(int)}.
+	 */
+	public int getIdLookupCount() {
+		return idLookups.get();
+	}
+
+	/**
+	 * @return the number of calls to the lookup and prefetch methods.
+	 */
+	public int getCallCount() {
+		return calls.get();
+	}
+}
@@ -0,0 +1,486 @@
+package it.acubelab.smaph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import it.acubelab.smaph.SmaphAnnotator.BingSearch;
+import it.acubelab.smaph.boldfilters.NoBoldFilter;
+import it.acubelab.smaph.cache.BingCacheKey;
+import it.acubelab.smaph.cache.CacheLog;
+import it.acubelab.smaph.cache.StaleWhileRevalidate;
+import it.acubelab.smaph.entityfilters.NoEntityFilter;
+import it.acubelab.smaph.linkback.BaselineLinkBack;
+import it.acubelab.smaph.net.CircuitBreaker;
+import it.acubelab.smaph.net.CircuitOpenException;
+import it.acubelab.smaph.net.OfflineReplay;
+import it.acubelab.smaph.net.ReplayMissException;
+import it.acubelab.smaph.standin.LatencyModel;
+import it.acubelab.smaph.standin.StandInServer;
+import it.unipi.di.acube.batframework.data.ScoredAnnotation;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmaphAnnotatorTest {
+	private static final long NORMAL_SEARCH_DELAY = 400;
+	private static final long WIKI_SEARCH_DELAY = 600;
+	private static final long WAT_DELAY = 300;
+	private static final long STRESS_DELAY = 50;
+	private static final int STRESS_QUERIES_PER_THREAD = 5;
+	private static final String WIKI_SEARCH_RESPONSE = "{\"d\":{\"results\":[{\"WebTotal\":\"870\",\"Web\":[{\"Url\":\"http://en.wikipedia.org/wiki/Apollo_11\",\"Description\":\"\\ue000Apollo 11\\ue001 landed on the \\ue000moon\\ue001.\"},{\"Url\":\"http://en.wikipedia.org/wiki/Buzz_Aldrin\",\"Description\":\"\\ue000Buzz Aldrin\\ue001 was the second man on the moon.\"}],\"RelatedSearch\":[]}]}}";
+	private BingStubServer bing;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		SmaphAnnotator.unSetCache();
+	}
+
+	@After
+	public void tearDown() {
+		if (bing != null)
+			bing.stop();
+		SmaphAnnotator.unSetCache();
+	}
+
+	/**
+	 * @return an annotator that issues all three searches to the stub.
+	 */
+	private SmaphAnnotator getAnnotator() {
+		SmaphAnnotator ann = new SmaphAnnotator(null, null, null, null, true,
+				true, true, 10, false, 0, true, 5, null, "key");
+		ann.setBingEndpoint(bing.getEndpoint());
+		return ann;
+	}
+
+	/**
+	 * @return an annotator that only issues the normal search to the stub.
+	 */
+	private SmaphAnnotator getNormalSearchAnnotator() {
+		SmaphAnnotator ann = new SmaphAnnotator(null, null, null, null, true,
+				false, false, 0, false, 0, false, 0, null, "key");
+		ann.setBingEndpoint(bing.getEndpoint());
+		return ann;
+	}
+
+	@Test
+	public void testSearchBingFanOut() throws Exception {
+		bing = new BingStubServer(NORMAL_SEARCH_DELAY, WIKI_SEARCH_DELAY);
+		SmaphAnnotator ann = getAnnotator();
+
+		BingSearch[] sequential = ann.searchBing("armstrong moon", true);
+		assertEquals(1, bing.getMaxInFlight());
+
+		bing.resetMaxInFlight();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		ann.setSearchExecutor(executor);
+		BingSearch[] concurrent = ann.searchBing("armstrong landing", true);
+		executor.shutdown();
+		// The searches overlap at the stub.
+		assertTrue(bing.getMaxInFlight() > 1);
+
+		for (BingSearch[] searches : new BingSearch[][] { sequential,
+				concurrent }) {
+			assertEquals(3, searches.length);
+			assertEquals(1, searches[0].urls.size());
+			assertEquals(2, searches[0].boldsAndRanks.size());
+			assertEquals("Neil Armstrong", searches[0].boldsAndRanks.get(0).first);
+			assertEquals(1, searches[0].relatedSearch.size());
+			assertEquals(1, searches[0].snippetsToBolds.size());
+			assertEquals(1230.0, searches[1].resCountAndWebTotal.getMiddle(),
+					0.0);
+			assertNull(searches[1].relatedSearch);
+			assertEquals(1, searches[2].urls.size());
+		}
+	}
+
+	@Test
+	public void testEarlyDisambiguation() throws Exception {
+		bing = new BingStubServer(NORMAL_SEARCH_DELAY, WIKI_SEARCH_DELAY);
+		StandInServer wat = new StandInServer("localhost", 0);
+		wat.setLatency(StandInServer.Service.WAT,
+				LatencyModel.constant(WAT_DELAY));
+		wat.start();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		WATAnnotator.unSetCache();
+		try {
+			SmaphAnnotator ann = new SmaphAnnotator(new WATAnnotator(
+					"localhost", wat.getPort(), "base"), new NoBoldFilter(),
+					null, null, true, false, true, 10, false, 0, false, 0,
+					null, "key");
+			ann.setBingEndpoint(bing.getEndpoint());
+			ann.setSearchExecutor(executor);
+
+			ann.setEarlyDisambiguation(false);
+			long start = System.currentTimeMillis();
+			ann.warmUp("armstrong moon");
+			long lateTime = System.currentTimeMillis() - start;
+
+			// The stub returns the same bolds for all queries.
+			WATAnnotator.unSetCache();
+			ann.setEarlyDisambiguation(true);
+			start = System.currentTimeMillis();
+			ann.warmUp("armstrong landing");
+			long earlyTime = System.currentTimeMillis() - start;
+
+			System.out.printf("Disambiguation after the searches: %d ms, early: %d ms%n",
+					lateTime, earlyTime);
+			assertEquals(2, wat.getRequestCount(StandInServer.Service.WAT));
+			// The disambiguation starts when the normal search returns, and
+			// overlaps the Wikipedia search.
+			assertTrue(lateTime >= WIKI_SEARCH_DELAY + WAT_DELAY);
+			assertTrue(earlyTime >= NORMAL_SEARCH_DELAY + WAT_DELAY);
+			assertTrue(earlyTime < WIKI_SEARCH_DELAY + WAT_DELAY);
+		} finally {
+			executor.shutdown();
+			wat.stop();
+			WATAnnotator.unSetCache();
+		}
+	}
+
+	/**
+	 * Issue queries from many threads at once.
+	 * 
+	 * @param ann
+	 *            the annotator.
+	 * @param threads
+	 *            number of client threads.
+	 * @param queriesPerThread
+	 *            how many queries each thread issues, one after the other.
+	 * @param sameQuery
+	 *            whether all threads issue the same queries.
+	 * @return the elapsed time in milliseconds.
+	 */
+	private static long issueConcurrently(final SmaphAnnotator ann,
+			int threads, final int queriesPerThread, final boolean sameQuery)
+			throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new Vector<>();
+		long start = System.currentTimeMillis();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures.add(clients.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < queriesPerThread; i++)
+						ann.searchBing(String.format("query %d %d",
+								sameQuery ? 0 : thread, i), false);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures)
+			future.get();
+		long elapsed = System.currentTimeMillis() - start;
+		clients.shutdown();
+		return elapsed;
+	}
+
+	@Test
+	public void testQueryBingCoalescing() throws Exception {
+		bing = new BingStubServer(NORMAL_SEARCH_DELAY, NORMAL_SEARCH_DELAY);
+		SmaphAnnotator ann = getNormalSearchAnnotator();
+
+		issueConcurrently(ann, 16, 1, true);
+		assertEquals(1, bing.getRequests());
+
+		issueConcurrently(ann, 16, 1, true);
+		assertEquals(1, bing.getRequests());
+	}
+
+	@Test
+	public void testQueryBingThroughput() throws Exception {
+		bing = new BingStubServer(STRESS_DELAY, STRESS_DELAY);
+		SmaphAnnotator ann = getNormalSearchAnnotator();
+
+		for (int threads : new int[] { 1, 8, 64 }) {
+			SmaphAnnotator.unSetCache();
+			bing.resetMaxInFlight();
+			int requestsBefore = bing.getRequests();
+			long elapsed = issueConcurrently(ann, threads,
+					STRESS_QUERIES_PER_THREAD, false);
+			int queries = threads * STRESS_QUERIES_PER_THREAD;
+			System.out.printf(
+					"Bing stress test: %d threads, %d queries in %d ms (%.1f queries/s)%n",
+					threads, queries, elapsed, queries * 1000.0 / elapsed);
+			assertEquals(queries, bing.getRequests() - requestsBefore);
+
+			// Different queries must not wait for each other.
+			if (threads == 1)
+				assertEquals(1, bing.getMaxInFlight());
+			else
+				assertTrue(bing.getMaxInFlight() > 1);
+		}
+	}
+
+	@Test
+	public void testCanonicalQueries() throws Exception {
+		bing = new BingStubServer(0, 0);
+		getNormalSearchAnnotator().searchBing("Brooks Brothers  clearance",
+				false);
+		getNormalSearchAnnotator().searchBing(" brooks\tbrothers clearance",
+				false);
+		getNormalSearchAnnotator().searchBing(
+				"\uff22rooks brothers\u00a0clearance", false);
+		assertEquals(1, bing.getRequests());
+	}
+
+	@Test
+	public void testQueryBingRetry() throws Exception {
+		bing = new BingStubServer(0, 0);
+		bing.failNext(2);
+		BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+				"armstrong moon", false);
+		assertEquals(3, bing.getRequests());
+		assertEquals(1, searches[0].urls.size());
+	}
+
+	@Test
+	public void testQueryBingCircuitOpen() throws Exception {
+		bing = new BingStubServer(0, 0);
+		getNormalSearchAnnotator().searchBing("armstrong moon", false);
+		CircuitBreaker breaker = CircuitBreaker.forService(new URL(bing
+				.getEndpoint()).getAuthority());
+		for (int i = 0; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++)
+			breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		// Cached responses are still served, other queries fail fast.
+		BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+				"armstrong moon", false);
+		assertEquals(1, searches[0].urls.size());
+		try {
+			getNormalSearchAnnotator().searchBing("aldrin moon", false);
+			fail();
+		} catch (CircuitOpenException e) {
+		}
+		assertEquals(1, bing.getRequests());
+	}
+
+	@Test
+	public void testOfflineReplay() throws Exception {
+		bing = new BingStubServer(0, 0);
+		getNormalSearchAnnotator().searchBing("armstrong moon", false);
+		OfflineReplay.setEnabled(true);
+		try {
+			BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+					"Armstrong Moon", false);
+			assertEquals(1, searches[0].urls.size());
+			try {
+				getNormalSearchAnnotator().searchBing("aldrin moon", false);
+				fail();
+			} catch (ReplayMissException e) {
+			}
+			assertEquals(1, bing.getRequests());
+			assertEquals(1, OfflineReplay.getMissCount());
+		} finally {
+			OfflineReplay.setEnabled(false);
+			OfflineReplay.clearMisses();
+		}
+	}
+
+	@Test
+	public void testCachePersistence() throws Exception {
+		bing = new BingStubServer(0, 0);
+		String cacheFile = new File(folder.getRoot(), "bing.cache").getPath();
+		SmaphAnnotator.setCache(cacheFile);
+		getNormalSearchAnnotator().searchBing("armstrong moon", false);
+		assertEquals(1, bing.getRequests());
+		SmaphAnnotator.flush();
+		SmaphAnnotator.unSetCache();
+
+		SmaphAnnotator.setCache(cacheFile);
+		BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+				"armstrong moon", false);
+		assertEquals(1, bing.getRequests());
+		assertEquals(1, searches[0].urls.size());
+	}
+
+	@Test
+	public void testOldCacheImport() throws Exception {
+		bing = new BingStubServer(0, 0);
+		// Responses used to be cached as gzipped JSON, keyed by request URL.
+		HashMap<String, byte[]> oldCache = new HashMap<>();
+		oldCache.put(
+				bing.getEndpoint()
+						+ "?Sources=%27web%2Bspell%2BRelatedSearch%27&Query=%27"
+						+ URLEncoder.encode("Armstrong  Moon", "utf8")
+						+ "%27&Options=%27EnableHighlighting%27&Market=%27en-US%27&Adult=%27Off%27&$format=Json",
+				SmaphUtils.compress(BingStubServer.RESPONSE));
+
+		String oldCacheFile = new File(folder.getRoot(), "old.cache")
+				.getPath();
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(oldCacheFile))) {
+			oos.writeObject(oldCache);
+		}
+		SmaphAnnotator.setCache(oldCacheFile);
+		BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+				"armstrong moon", false);
+		assertEquals(0, bing.getRequests());
+		assertEquals(2, searches[0].boldsAndRanks.size());
+		SmaphAnnotator.unSetCache();
+
+		// Responses in the old format are converted when read.
+		assertTrue(CacheLog.exists(oldCacheFile));
+		try (CacheLog log = new CacheLog(oldCacheFile)) {
+			assertEquals(
+					Collections.singleton(BingCacheKey.forQuery("armstrong moon")),
+					log.keySet());
+			for (String key : log.keySet())
+				assertTrue(BingResponse.isRecord(log.get(key)));
+		}
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		bing = new BingStubServer(0, 0);
+		SmaphAnnotator.setCacheTtl(200, 1000);
+		try {
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			assertEquals(1, bing.getRequests());
+			Thread.sleep(300);
+
+			// The stale response is served at once, and refreshed.
+			bing.stop();
+			bing = new BingStubServer(NORMAL_SEARCH_DELAY, NORMAL_SEARCH_DELAY);
+			long start = System.currentTimeMillis();
+			BingSearch[] searches = getNormalSearchAnnotator().searchBing(
+					"armstrong moon", false);
+			assertTrue(System.currentTimeMillis() - start < NORMAL_SEARCH_DELAY);
+			assertEquals(1, searches[0].urls.size());
+			StaleWhileRevalidate refresher = SmaphAnnotator
+					.getCacheRefresher();
+			assertTrue(refresher.awaitIdle(5000));
+			assertEquals(1, bing.getRequests());
+			assertEquals(1, refresher.getSucceededCount());
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			assertEquals(1, bing.getRequests());
+			assertEquals(1, refresher.getStaleCount());
+
+			// Refreshes beyond the rate are skipped.
+			SmaphAnnotator.setCacheTtl(1, 0.001);
+			refresher = SmaphAnnotator.getCacheRefresher();
+			getNormalSearchAnnotator().searchBing("aldrin moon", false);
+			Thread.sleep(10);
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			getNormalSearchAnnotator().searchBing("aldrin moon", false);
+			assertTrue(refresher.awaitIdle(5000));
+			assertEquals(2, refresher.getStaleCount());
+			assertEquals(1, refresher.getStartedCount());
+			assertEquals(1, refresher.getSkippedCount());
+
+			// Setting the same TTL and rate keeps the refresher.
+			SmaphAnnotator.setCacheTtl(1, 0.001);
+			assertSame(refresher, SmaphAnnotator.getCacheRefresher());
+			assertEquals(2, refresher.getStaleCount());
+			SmaphAnnotator.setCacheTtl(1, 0.002);
+			assertNotSame(refresher, SmaphAnnotator.getCacheRefresher());
+		} finally {
+			SmaphAnnotator.setCacheTtl(0, 0);
+		}
+		assertNull(SmaphAnnotator.getCacheRefresher());
+	}
+
+	@Test
+	public void testStandInServer() throws Exception {
+		bing = new BingStubServer(0, 0);
+		String cacheFile = new File(folder.getRoot(), "bing.cache").getPath();
+		SmaphAnnotator.setCache(cacheFile);
+		getNormalSearchAnnotator().searchBing("armstrong moon", false);
+		SmaphAnnotator.flush();
+		SmaphAnnotator.unSetCache();
+
+		StandInServer standIn = new StandInServer("localhost", 0);
+		standIn.setBingCache(cacheFile);
+		standIn.start();
+		try {
+			SmaphAnnotator ann = getNormalSearchAnnotator();
+			ann.setBingEndpoint(standIn.getBingEndpoint());
+			BingSearch[] recorded = ann.searchBing("Armstrong moon", false);
+			assertEquals(1, recorded[0].urls.size());
+			assertEquals("Neil Armstrong", recorded[0].boldsAndRanks.get(0).first);
+			assertEquals(1, standIn.getRecordedCount(StandInServer.Service.BING));
+
+			BingSearch[] synthesized = ann.searchBing("aldrin moon", false);
+			assertEquals(10, synthesized[0].urls.size());
+			assertEquals(1,
+					standIn.getSynthesizedCount(StandInServer.Service.BING));
+			assertEquals(1, bing.getRequests());
+		} finally {
+			standIn.stop();
+		}
+	}
+
+	@Test
+	public void testBoundedMemoryCache() throws Exception {
+		bing = new BingStubServer(0, 0);
+		String cacheFile = new File(folder.getRoot(), "bing.cache").getPath();
+		SmaphAnnotator.setCacheMemory(1);
+		try {
+			SmaphAnnotator.setCache(cacheFile);
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			assertEquals(0, SmaphAnnotator.getMemoryCache().size());
+			getNormalSearchAnnotator().searchBing("armstrong moon", false);
+			assertEquals(1, bing.getRequests());
+		} finally {
+			SmaphAnnotator.setCacheMemory(SmaphAnnotator.DEFAULT_CACHE_MEMORY);
+		}
+	}
+
+	@Test
+	public void testBatchedWikipediaLookups() throws Exception {
+		bing = new BingStubServer(0, 0);
+		bing.setWikiSearchResponse(WIKI_SEARCH_RESPONSE);
+		StandInServer wat = new StandInServer("localhost", 0);
+		wat.start();
+		WATAnnotator.unSetCache();
+		try {
+			CountingWikipediaApi wikiApi = new CountingWikipediaApi();
+			SmaphAnnotator ann = new SmaphAnnotator(new WATAnnotator(
+					"localhost", wat.getPort(), "base"), new NoBoldFilter(),
+					new NoEntityFilter(), new BaselineLinkBack(wikiApi), true,
+					true, true, 10, false, 0, true, 10, wikiApi, "key");
+			ann.setBingEndpoint(bing.getEndpoint());
+
+			HashSet<ScoredAnnotation> annotations = ann
+					.solveSa2W("armstrong moon");
+			assertFalse(annotations.isEmpty());
+			// One request for the titles of all searches, one for the
+			// entities of Source 1.
+			assertEquals(2, wikiApi.getPrefetchCallCount());
+			assertEquals(2, wikiApi.getRequestCount());
+			// The only single lookups are those of the resolution, one per
+			// prefetched page: features and link-back read the resolved
+			// entities.
+			assertEquals(wikiApi.getPrefetchedTitles().size(),
+					wikiApi.getTitleLookupCount());
+			assertEquals(wikiApi.getPrefetchedWids().size(),
+					wikiApi.getIdLookupCount());
+		} finally {
+			wat.stop();
+			WATAnnotator.unSetCache();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package it.acubelab.smaph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import it.acubelab.smaph.net.HedgingPolicy;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmaphConfigTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private void writeConfig() throws Exception {
+		File config = new File(folder.getRoot(), "smaph-config.xml");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(config),
+				"utf8")) {
+			w.write("<smaph><setting name=\"hedging\">"
+					+ "<param name=\"percentile\" value=\"0.95\" />"
+					+ "<param name=\"budget\" value=\"0.05\" />"
+					+ "</setting><setting name=\"bing\">"
+					+ "<param name=\"search-threads\" value=\"4\" />"
+					+ "</setting></smaph>");
+		}
+		SmaphConfig.setConfigFile(config.getPath());
+	}
+
+	@Test
+	public void testHedgingPoliciesCreatedOnce() throws Exception {
+		writeConfig();
+
+		HedgingPolicy bing = SmaphConfig.getDefaultBingHedgingPolicy();
+		HedgingPolicy wat = SmaphConfig.getDefaultWatHedgingPolicy();
+		assertNotNull(bing);
+		assertNotNull(wat);
+		assertNotSame(bing, wat);
+		assertSame(bing, SmaphConfig.getDefaultBingHedgingPolicy());
+		assertSame(wat, SmaphConfig.getDefaultWatHedgingPolicy());
+
+		try {
+			SmaphAnnotator.setBingHedging(bing);
+			WATAnnotator.setHedging(wat);
+			SmaphAnnotator.setBingHedging(SmaphConfig
+					.getDefaultBingHedgingPolicy());
+			WATAnnotator.setHedging(SmaphConfig.getDefaultWatHedgingPolicy());
+			assertSame(bing, SmaphAnnotator.getBingHedging());
+			assertSame(wat, WATAnnotator.getHedging());
+		} finally {
+			SmaphAnnotator.setBingHedging(null);
+			WATAnnotator.setHedging(null);
+		}
+	}
+
+	@Test
+	public void testSearchExecutorShared() throws Exception {
+		writeConfig();
+		ExecutorService executor = SmaphConfig.getDefaultSearchExecutor();
+		assertSame(executor, SmaphConfig.getDefaultSearchExecutor());
+		assertEquals(4, ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+	}
+}
@@ -0,0 +1,88 @@
+package it.acubelab.smaph.anchors;
+
+import static org.junit.Assert.*;
+import it.acubelab.smaph.anchors.AnchorDictionary.Anchor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnchorDictionaryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static String buildDictionary(TemporaryFolder folder, String dump)
+			throws IOException {
+		File dumpFile = folder.newFile("anchors.tsv");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(dumpFile),
+				"utf-8")) {
+			w.write(dump);
+		}
+		String dictionary = new File(folder.getRoot(), "anchors.dict")
+				.getPath();
+		AnchorDictionary.build(dumpFile.getPath(), dictionary);
+		return dictionary;
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		String dictionary = buildDictionary(folder,
+				"Neil Armstrong\t200\t21247:90 1234:10\n"
+						+ "armstrong\t1000\t21247:30 5678:60 1234:10\n"
+						+ "\n"
+						+ "neil  armstrong\t0\t1234:20\n"
+						+ "zürich\t50\t34190:40\n"
+						+ "moon\t10\t19331:50\n");
+		try (AnchorDictionary dict = new AnchorDictionary(dictionary)) {
+			assertEquals(4, dict.size());
+			assertEquals(2, dict.getMaxAnchorWords());
+
+			// Lines with the same normalized anchor are merged.
+			Anchor neil = dict.lookup("NEIL armstrong ");
+			assertEquals("neil armstrong", neil.getText());
+			assertEquals(2, neil.getCandidateCount());
+			assertEquals(21247, neil.getCandidate(0));
+			assertEquals(1234, neil.getCandidate(1));
+			assertEquals(120, neil.getLinkCount());
+			assertEquals(200, neil.getOccurrences());
+			assertEquals(0.75, neil.getCommonness(0), 1e-9);
+			assertEquals(0.6, neil.getLinkProbability(), 1e-9);
+
+			// Candidates are by decreasing commonness.
+			Anchor armstrong = dict.lookup("armstrong");
+			assertEquals(5678, armstrong.getCandidate(0));
+			assertEquals(0.1, armstrong.getLinkProbability(), 1e-9);
+
+			assertEquals(34190, dict.lookup("Zürich").getCandidate(0));
+			// Occurrences are raised to the number of links.
+			assertEquals(1.0, dict.lookup("moon").getLinkProbability(), 1e-9);
+
+			assertNull(dict.lookup("neil"));
+			assertNull(dict.lookup("zzz"));
+			assertNull(dict.lookup(""));
+		}
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		try {
+			buildDictionary(folder, "moon\t10\n");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("line 1"));
+		}
+		File notDictionary = folder.newFile("other");
+		try {
+			new AnchorDictionary(notDictionary.getPath());
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package it.acubelab.smaph.anchors;
+
+import static org.junit.Assert.*;
+import it.unipi.di.acube.batframework.data.Annotation;
+import it.unipi.di.acube.batframework.data.Mention;
+import it.unipi.di.acube.batframework.data.MultipleAnnotation;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator.D2WResult;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnchorDisambiguatorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private AnchorDictionary dictionary;
+
+	@Before
+	public void setUp() throws Exception {
+		dictionary = new AnchorDictionary(AnchorDictionaryTest.buildDictionary(
+				folder, "neil armstrong\t200\t21247:90 1234:10\n"
+						+ "armstrong\t1000\t21247:30 5678:60 1234:10\n"
+						+ "moon\t500\t19331:50\n"
+						+ "the\t100000\t5:1\n"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dictionary.close();
+	}
+
+	@Test
+	public void testSolveD2WWithInfo() throws Exception {
+		AnchorDisambiguator disambiguator = new AnchorDisambiguator(dictionary,
+				0.0);
+		String text = "neil armstrong moon unknown";
+		HashSet<Mention> mentions = new HashSet<>(Arrays.asList(new Mention(0,
+				14), new Mention(15, 4), new Mention(20, 7)));
+		D2WResult result = disambiguator.solveD2WWithInfo(text, mentions);
+
+		assertEquals(new HashSet<>(Arrays.asList(new Annotation(0, 14, 21247),
+				new Annotation(15, 4, 19331))), result.getAnnotations());
+		assertEquals(disambiguator.solveD2W(text, mentions),
+				result.getAnnotations());
+
+		Map<String, Double> neil = result.getMentionInfo().get(
+				"neil armstrong");
+		assertEquals(0.5, neil.get("lp"), 1e-9);
+		assertEquals(0.9, neil.get("commonness"), 1e-9);
+		assertEquals(0.9, neil.get("rhoScore"), 1e-9);
+		assertEquals(0.5, neil.get("ambiguity"), 1e-9);
+		assertEquals(0.0, neil.get("localCoherence"), 1e-9);
+		assertEquals(0.0, neil.get("pageRank"), 1e-9);
+		assertFalse(result.getMentionInfo().containsKey("unknown"));
+
+		assertEquals(2, result.getCandidatesInfo().get("neil armstrong")
+				.size());
+		Map<String, Double> second = result.getCandidatesInfo()
+				.get("neil armstrong").get(1);
+		assertEquals(1234, second.get("id"), 0);
+		assertEquals(1, second.get("rank"), 0);
+		assertEquals(0.1, second.get("commonness"), 1e-9);
+
+		// The executor is not used.
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		assertEquals(result.getAnnotations(),
+				disambiguator.solveD2WAsync(text, mentions, executor).get()
+						.getAnnotations());
+	}
+
+	@Test
+	public void testGetSpottedCandidates() throws Exception {
+		AnchorDisambiguator disambiguator = new AnchorDisambiguator(dictionary,
+				0.01);
+		String text = "The Neil Armstrong, moon-landing";
+		HashMap<Mention, int[]> spots = new HashMap<>();
+		for (MultipleAnnotation a : disambiguator.getSpottedCandidates(text))
+			spots.put(new Mention(a.getPosition(), a.getLength()),
+					a.getCandidates());
+
+		// The longest anchor is taken; "the" has a low link probability.
+		assertEquals(2, spots.size());
+		assertArrayEquals(new int[] { 21247, 1234 },
+				spots.get(new Mention(4, 14)));
+		assertArrayEquals(new int[] { 19331 }, spots.get(new Mention(20, 4)));
+		assertEquals(spots.keySet(), disambiguator.getSpottedMentions(text));
+		assertEquals(2, disambiguator.solveSa2W(text).size());
+	}
+}
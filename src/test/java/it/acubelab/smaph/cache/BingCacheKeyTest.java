@@ -0,0 +1,106 @@
+package it.acubelab.smaph.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BingCacheKeyTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String legacyKey(String query) throws Exception {
+		return "https://api.datamarket.azure.com/Bing/Search/v1/Composite?Sources=%27web%2Bspell%2BRelatedSearch%27&Query=%27"
+				+ URLEncoder.encode(query, "utf8")
+				+ "%27&Options=%27EnableHighlighting%27&Market=%27en-US%27&Adult=%27Off%27&$format=Json";
+	}
+
+	@Test
+	public void testCanonicalQuery() {
+		assertEquals("brooks brothers clearance",
+				BingCacheKey.canonicalQuery("Brooks Brothers  clearance"));
+		assertEquals("brooks brothers clearance",
+				BingCacheKey.canonicalQuery("\tbrooks\nbrothers　clearance "));
+		assertEquals("brooks brothers clearance",
+				BingCacheKey.canonicalQuery("Ｂrooks brothers clearance"));
+		assertEquals("café", BingCacheKey.canonicalQuery("Café"));
+		assertEquals("münchen wikipedia",
+				BingCacheKey.canonicalQuery("MÜNCHEN wikipedia"));
+	}
+
+	@Test
+	public void testForQuery() {
+		String key = BingCacheKey.forQuery("Brooks Brothers  clearance");
+		assertEquals(32, key.length());
+		assertTrue(BingCacheKey.isHashedKey(key));
+		assertEquals(key, BingCacheKey.forQuery("brooks brothers clearance"));
+		assertFalse(key.equals(BingCacheKey.forQuery("brooks brothers")));
+		assertFalse(BingCacheKey.isHashedKey("http://x"));
+	}
+
+	@Test
+	public void testFromLegacyKey() throws Exception {
+		for (String query : new String[] { "Brooks Brothers  clearance",
+				"neil armstrong wikipedia", "rock 'n' roll", "a&b=c %27",
+				"東京 tower" })
+			assertEquals(query, BingCacheKey.forQuery(query),
+					BingCacheKey.fromLegacyKey(legacyKey(query)));
+		assertNull(BingCacheKey.fromLegacyKey("http://www.example.com/"));
+	}
+
+	@Test
+	public void testMigrateLog() throws Exception {
+		String base = new File(folder.getRoot(), "bing.cache").getPath();
+		try (CacheLog log = new CacheLog(base)) {
+			log.append(legacyKey("Armstrong Moon"), new byte[] { 1 });
+			log.flush();
+			log.append(legacyKey("armstrong moon"), new byte[] { 2 });
+			log.append(BingCacheKey.forQuery("aldrin"), new byte[] { 3 });
+			log.append("http://www.example.com/", new byte[] { 4 });
+			assertTrue(MigrateBingCache.needsMigration(log));
+		}
+		MigrateBingCache.main(new String[] { base });
+
+		try (CacheLog log = new CacheLog(base)) {
+			assertEquals(
+					new HashSet<>(Arrays.asList(
+							BingCacheKey.forQuery("armstrong moon"),
+							BingCacheKey.forQuery("aldrin"))), log.keySet());
+			assertArrayEquals(new byte[] { 2 },
+					log.get(BingCacheKey.forQuery("armstrong moon")));
+			assertArrayEquals(new byte[] { 3 },
+					log.get(BingCacheKey.forQuery("aldrin")));
+			assertFalse(MigrateBingCache.needsMigration(log));
+		}
+	}
+
+	@Test
+	public void testMigrateOldCache() throws Exception {
+		String base = new File(folder.getRoot(), "bing.cache").getPath();
+		HashMap<String, byte[]> oldCache = new HashMap<>();
+		oldCache.put(legacyKey("armstrong moon"), new byte[] { 1 });
+		oldCache.put(legacyKey("aldrin"), new byte[] { 2 });
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(base))) {
+			oos.writeObject(oldCache);
+		}
+		MigrateBingCache.main(new String[] { base });
+
+		try (CacheLog log = new CacheLog(base)) {
+			assertEquals(2, log.size());
+			assertArrayEquals(new byte[] { 1 },
+					log.get(BingCacheKey.forQuery("armstrong moon")));
+			assertArrayEquals(new byte[] { 2 },
+					log.get(BingCacheKey.forQuery("aldrin")));
+		}
+	}
+}
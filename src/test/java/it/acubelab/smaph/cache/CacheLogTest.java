@@ -0,0 +1,256 @@
+package it.acubelab.smaph.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheLogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String base() {
+		return new File(folder.getRoot(), "bing.cache").getPath();
+	}
+
+	private File lastSegment() {
+		File[] segments = folder.getRoot().listFiles();
+		File last = null;
+		for (File f : segments)
+			if (f.getName().endsWith(".log")
+					&& (last == null || f.getName().compareTo(last.getName()) > 0))
+				last = f;
+		return last;
+	}
+
+	@Test
+	public void testAppendAndReopen() throws Exception {
+		String base = base();
+		assertFalse(CacheLog.exists(base));
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1, 2, 3 });
+		log.append("b", new byte[] { 4 });
+		log.append("a", new byte[] { 5, 6 });
+		log.close();
+
+		assertTrue(CacheLog.exists(base));
+		log = new CacheLog(base);
+		assertEquals(2, log.size());
+		assertArrayEquals(new byte[] { 5, 6 }, log.get("a"));
+		assertArrayEquals(new byte[] { 4 }, log.get("b"));
+		assertNull(log.get("c"));
+		log.close();
+	}
+
+	@Test
+	public void testPendingRecordsAreReadable() throws Exception {
+		CacheLog log = new CacheLog(base());
+		for (int i = 0; i < 1000; i++)
+			log.append("k" + i, new byte[] { (byte) i });
+		for (int i = 0; i < 1000; i++)
+			assertArrayEquals(new byte[] { (byte) i }, log.get("k" + i));
+		log.flush();
+		assertEquals(1000, log.size());
+		log.close();
+	}
+
+	@Test
+	public void testTruncatedTail() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1, 2, 3 });
+		log.append("b", new byte[] { 4, 5, 6 });
+		log.close();
+
+		File segment = lastSegment();
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.setLength(raf.length() - 2);
+		}
+
+		log = new CacheLog(base);
+		assertEquals(1, log.size());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, log.get("a"));
+		assertFalse(log.containsKey("b"));
+		log.append("c", new byte[] { 7 });
+		log.close();
+
+		log = new CacheLog(base);
+		assertEquals(2, log.size());
+		assertArrayEquals(new byte[] { 7 }, log.get("c"));
+		log.close();
+	}
+
+	@Test
+	public void testCorruptRecord() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1, 2, 3 });
+		log.append("b", new byte[] { 4, 5, 6 });
+		log.close();
+
+		// A record corrupted by a crash is not covered by a saved index.
+		for (File f : folder.getRoot().listFiles())
+			if (f.getName().endsWith(".idx"))
+				f.delete();
+		File segment = lastSegment();
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(raf.length() - 6);
+			raf.write(42);
+		}
+
+		log = new CacheLog(base);
+		assertEquals(1, log.size());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, log.get("a"));
+		log.close();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		for (int i = 0; i < 100; i++)
+			log.append("k" + (i % 10), new byte[] { (byte) i });
+		log.close();
+		long before = lastSegment().length();
+
+		CacheLog.compact(base);
+
+		assertTrue(lastSegment().length() < before);
+		log = new CacheLog(base);
+		assertEquals(10, log.size());
+		for (int i = 0; i < 10; i++)
+			assertArrayEquals(new byte[] { (byte) (90 + i) }, log.get("k" + i));
+		log.close();
+	}
+
+	@Test
+	public void testIndexAndUnindexedTail() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1 });
+		log.append("b", new byte[] { 2 });
+		log.close();
+		assertTrue(new File(base + ".0.idx").exists());
+
+		// Records appended after the index was saved, and never indexed
+		// because the log is not closed.
+		CacheLog crashed = new CacheLog(base);
+		crashed.append("b", new byte[] { 3 });
+		crashed.append("c", new byte[] { 4 });
+		crashed.flush();
+
+		log = new CacheLog(base);
+		assertEquals(3, log.size());
+		assertArrayEquals(new byte[] { 1 }, log.get("a"));
+		assertArrayEquals(new byte[] { 3 }, log.get("b"));
+		assertArrayEquals(new byte[] { 4 }, log.get("c"));
+		log.close();
+		crashed.close();
+	}
+
+	@Test
+	public void testInvalidIndex() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1 });
+		log.close();
+		try (RandomAccessFile raf = new RandomAccessFile(base + ".0.idx", "rw")) {
+			raf.seek(raf.length() - 1);
+			int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last + 1);
+		}
+		log = new CacheLog(base);
+		assertArrayEquals(new byte[] { 1 }, log.get("a"));
+		log.close();
+	}
+
+	@Test
+	public void testFailedWrite() throws Exception {
+		String base = base();
+		CacheLog log = new CacheLog(base);
+		log.append("a", new byte[] { 1 });
+		log.flush();
+
+		// A directory in place of the next segment makes the writer fail.
+		File blocker = new File(base + ".1.log");
+		assertTrue(blocker.mkdir());
+		log.append("b", new byte[] { 2 });
+		try {
+			log.flush();
+			fail();
+		} catch (IOException e) {
+		}
+		assertFalse(log.containsKey("b"));
+		assertTrue(blocker.delete());
+
+		// The error is reported once, and later records are written.
+		log.flush();
+		log.append("c", new byte[] { 3 });
+		log.flush();
+		log.close();
+
+		log = new CacheLog(base);
+		assertEquals(2, log.size());
+		assertArrayEquals(new byte[] { 1 }, log.get("a"));
+		assertNull(log.get("b"));
+		assertArrayEquals(new byte[] { 3 }, log.get("c"));
+		log.close();
+	}
+
+	@Test
+	public void testSharedLog() throws Exception {
+		// Two logs open on the same files behave like two processes.
+		String base = base();
+		final CacheLog first = new CacheLog(base);
+		final CacheLog second = new CacheLog(base);
+		Thread[] writers = new Thread[2];
+		for (int t = 0; t < 2; t++) {
+			final CacheLog log = t == 0 ? first : second;
+			final String prefix = "p" + t + "-";
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 500; i++)
+						log.append(prefix + i, new byte[] { (byte) i });
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+		first.flush();
+		second.flush();
+
+		// Records of the other log become visible in the background...
+		long end = System.currentTimeMillis() + 10 * CacheLog.REFRESH_INTERVAL;
+		while (first.size() < 1000 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals(1000, first.size());
+		// ...or at once, on refresh.
+		second.refresh();
+		assertEquals(1000, second.size());
+		for (int i = 0; i < 500; i++) {
+			assertArrayEquals(new byte[] { (byte) i }, first.get("p1-" + i));
+			assertArrayEquals(new byte[] { (byte) i }, second.get("p0-" + i));
+		}
+
+		second.append("p0-0", new byte[] { 42 });
+		second.flush();
+		first.refresh();
+		assertArrayEquals(new byte[] { 42 }, first.get("p0-0"));
+		first.close();
+		second.close();
+
+		CacheLog log = new CacheLog(base);
+		assertEquals(1000, log.size());
+		assertArrayEquals(new byte[] { 42 }, log.get("p0-0"));
+		assertArrayEquals(new byte[] { 7 }, log.get("p1-7"));
+		log.close();
+	}
+}
@@ -0,0 +1,81 @@
+package it.acubelab.smaph.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares the time needed to open a Bing cache in the old format (a
+ * serialized HashMap) and in the {@link CacheLog} format, on a synthetic
+ * cache. Usage: CacheStartupBenchmark [entries [value-size]]. Defaults to 1M
+ * entries of 512 bytes; run with enough heap to hold the whole old-format
+ * cache (e.g. -Xmx3g).
+ */
+public class CacheStartupBenchmark {
+	private static final String URL_PREFIX = "https://api.datamarket.azure.com/Bing/Search/v1/Composite?Sources=%27web%2Bspell%2BRelatedSearch%27&Query=%27";
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		File dir = Files.createTempDirectory("cache-benchmark").toFile();
+		String oldCache = new File(dir, "bing.cache").getPath();
+		String newCache = new File(dir, "bing.cachelog").getPath();
+		Random r = new Random(0);
+
+		System.out.printf("Generating %d entries of %d bytes...%n", entries,
+				valueSize);
+		HashMap<String, byte[]> map = new HashMap<>();
+		try (CacheLog log = new CacheLog(newCache)) {
+			for (int i = 0; i < entries; i++) {
+				byte[] value = new byte[valueSize];
+				r.nextBytes(value);
+				String key = URL_PREFIX + "query+" + i + "%27";
+				map.put(key, value);
+				log.append(key, value);
+				if (i % 100000 == 0)
+					log.flush();
+			}
+		}
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(oldCache))) {
+			oos.writeObject(map);
+		}
+		map = null;
+		System.gc();
+
+		long start = System.nanoTime();
+		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+				oldCache))) {
+			map = (HashMap<String, byte[]>) ois.readObject();
+		}
+		long oldOpen = System.nanoTime() - start;
+		String someKey = URL_PREFIX + "query+" + (entries / 2) + "%27";
+		if (map.get(someKey) == null)
+			throw new RuntimeException("Missing key in old cache.");
+		map = null;
+		System.gc();
+
+		start = System.nanoTime();
+		CacheLog log = new CacheLog(newCache);
+		long newOpen = System.nanoTime() - start;
+		start = System.nanoTime();
+		if (log.get(someKey) == null)
+			throw new RuntimeException("Missing key in cache log.");
+		long firstGet = System.nanoTime() - start;
+		log.close();
+
+		System.out.printf("Serialized HashMap: %.0f ms to open.%n",
+				oldOpen / 1e6);
+		System.out.printf("Cache log: %.0f ms to open, %.2f ms for the first lookup.%n",
+				newOpen / 1e6, firstGet / 1e6);
+
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,122 @@
+package it.acubelab.smaph.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+	private static final int VALUE_SIZE = 1000;
+
+	private static byte[] value(int i) {
+		byte[] v = new byte[VALUE_SIZE];
+		v[0] = (byte) i;
+		return v;
+	}
+
+	@Test
+	public void testGetPut() {
+		TinyLfuCache cache = new TinyLfuCache(100000);
+		assertNull(cache.get("a"));
+		cache.put("a", value(1));
+		assertEquals(1, cache.get("a")[0]);
+		cache.put("a", value(2));
+		assertEquals(2, cache.get("a")[0]);
+		assertEquals(1, cache.size());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(value(2)[0], cache.remove("a")[0]);
+		assertFalse(cache.containsKey("a"));
+		assertEquals(0, cache.weightedSize());
+	}
+
+	@Test
+	public void testWeightBound() {
+		long maxWeight = 50 * TinyLfuCache.weight("k0", value(0));
+		TinyLfuCache cache = new TinyLfuCache(maxWeight);
+		for (int i = 0; i < 1000; i++) {
+			cache.put("k" + i, value(i));
+			assertTrue(cache.weightedSize() <= maxWeight);
+		}
+		assertTrue(cache.size() <= 50);
+		assertTrue(cache.getEvictionCount() >= 950);
+
+		cache.put("huge", new byte[(int) maxWeight]);
+		assertFalse(cache.containsKey("huge"));
+	}
+
+	@Test
+	public void testEntryNearMaxWeight() {
+		long maxWeight = 1000 * TinyLfuCache.weight("k0", value(0));
+		TinyLfuCache cache = new TinyLfuCache(maxWeight);
+		cache.put("small", value(0));
+		// Pushes the small entry out of the window, while the main segments
+		// hold nothing that could be evicted to make room for it.
+		byte[] heavy = new byte[(int) (maxWeight - TinyLfuCache.weight("heavy",
+				new byte[0]))];
+		cache.put("heavy", heavy);
+		assertTrue(cache.weightedSize() <= maxWeight);
+		assertSame(heavy, cache.get("heavy"));
+		assertFalse(cache.containsKey("small"));
+
+		cache.put("other", value(1));
+		assertTrue(cache.weightedSize() <= maxWeight);
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		long maxWeight = 200 * TinyLfuCache.weight("k000", value(0));
+		final TinyLfuCache cache = new TinyLfuCache(maxWeight);
+		Thread[] threads = new Thread[8];
+		final AtomicReference<AssertionError> error = new AtomicReference<>();
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for (int i = 0; i < 20000; i++) {
+						int k = r.nextInt(500);
+						byte[] v = cache.get("k" + k);
+						if (v == null)
+							cache.put("k" + k, value(k));
+						else if (v[0] != (byte) k)
+							error.set(new AssertionError("Wrong value for k"
+									+ k));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		if (error.get() != null)
+			throw error.get();
+		assertTrue(cache.weightedSize() <= maxWeight);
+		assertTrue(cache.size() <= 200);
+		assertEquals(8 * 20000, cache.getHitCount() + cache.getMissCount());
+	}
+
+	@Test
+	public void testScanResistance() {
+		long maxWeight = 100 * TinyLfuCache.weight("hot00", value(0));
+		TinyLfuCache cache = new TinyLfuCache(maxWeight);
+		for (int round = 0; round < 5; round++)
+			for (int i = 0; i < 50; i++)
+				if (cache.get(String.format("hot%02d", i)) == null)
+					cache.put(String.format("hot%02d", i), value(i));
+
+		for (int i = 0; i < 10000; i++)
+			if (cache.get("cold" + i) == null)
+				cache.put("cold" + i, value(i));
+
+		int hotCached = 0;
+		for (int i = 0; i < 50; i++)
+			if (cache.containsKey(String.format("hot%02d", i)))
+				hotCached++;
+		assertTrue("Only " + hotCached + " hot keys survived a scan",
+				hotCached >= 45);
+	}
+}
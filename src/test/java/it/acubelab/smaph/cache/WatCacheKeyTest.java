@@ -0,0 +1,84 @@
+package it.acubelab.smaph.cache;
+
+import static org.junit.Assert.*;
+import it.unipi.di.acube.batframework.data.Mention;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+public class WatCacheKeyTest {
+	private static String body(String text, int... spans) throws Exception {
+		JSONObject body = new JSONObject();
+		if (spans.length > 0) {
+			JSONArray json = new JSONArray();
+			for (int i = 0; i < spans.length; i += 2)
+				json.put(new JSONObject().put("start", spans[i]).put("end",
+						spans[i + 1]));
+			body.put("spans", json);
+		}
+		return body.put("text", text).toString();
+	}
+
+	@Test
+	public void testCanonicalParameters() {
+		assertEquals("a=1&b=2&c=3", WatCacheKey.canonicalParameters("c=3&a=1&&b=2"));
+		assertEquals("", WatCacheKey.canonicalParameters(null));
+	}
+
+	@Test
+	public void testSortedMentions() {
+		List<Mention> sorted = WatCacheKey.sortedMentions(Arrays.asList(
+				new Mention(15, 4), new Mention(0, 14), new Mention(0, 4)));
+		assertEquals(Arrays.asList(new Mention(0, 4), new Mention(0, 14),
+				new Mention(15, 4)), sorted);
+	}
+
+	@Test
+	public void testForRequest() throws Exception {
+		String text = "neil armstrong moon";
+		String key = WatCacheKey.forRequest("/tag/disambiguate",
+				"lang=en&method=base", body(text, 0, 14, 15, 19));
+		assertTrue(WatCacheKey.isHashedKey(key));
+		assertEquals(key, WatCacheKey.forRequest("/tag/disambiguate",
+				"method=base&lang=en", body(text, 15, 19, 0, 14)));
+		assertFalse(key.equals(WatCacheKey.forRequest("/tag/disambiguate",
+				"lang=en&method=base", body(text, 0, 14))));
+		assertFalse(key.equals(WatCacheKey.forRequest("/tag/tag",
+				"lang=en&method=base", body(text, 0, 14, 15, 19))));
+		assertFalse(key.equals(WatCacheKey.forRequest("/tag/disambiguate",
+				"lang=en&method=base", body("Neil armstrong moon", 0, 14, 15,
+						19))));
+	}
+
+	@Test
+	public void testFromLegacyKey() throws Exception {
+		String body = body("neil armstrong moon", 15, 19, 0, 14);
+		assertEquals(WatCacheKey.forRequest("/tag/disambiguate",
+				"lang=en&method=base", body),
+				WatCacheKey.fromLegacyKey("http://wikisense.mkapp.it:80/tag/disambiguate?method=base&lang=en"
+						+ body));
+		assertNull(WatCacheKey.fromLegacyKey("http://wikisense.mkapp.it/tag/spot"));
+		assertNull(WatCacheKey.fromLegacyKey("http://x/tag/spot{not json"));
+	}
+
+	@Test
+	public void testMigrate() throws Exception {
+		String body = body("armstrong");
+		HashMap<String, byte[]> cache = new HashMap<>();
+		cache.put("http://wikisense.mkapp.it/tag/spot?lang=en" + body,
+				new byte[] { 1 });
+		cache.put("garbage", new byte[] { 2 });
+		assertTrue(MigrateWatCache.needsMigration(cache));
+		HashMap<String, byte[]> migrated = MigrateWatCache.migrate(cache);
+		assertEquals(1, migrated.size());
+		assertArrayEquals(new byte[] { 1 }, migrated.get(WatCacheKey
+				.forRequest("/tag/spot", "lang=en", body)));
+		assertFalse(MigrateWatCache.needsMigration(migrated));
+		assertEquals(migrated, MigrateWatCache.migrate(migrated));
+	}
+}
@@ -0,0 +1,90 @@
+package it.acubelab.smaph.main;
+
+import static org.junit.Assert.*;
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.standin.StandInServer;
+import it.acubelab.smaph.standin.StandInServer.Service;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WarmUpCachesTest {
+	private StandInServer server;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		SmaphAnnotator.unSetCache();
+		WATAnnotator.unSetCache();
+		server = new StandInServer("localhost", 0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+		SmaphAnnotator.unSetCache();
+		WATAnnotator.unSetCache();
+	}
+
+	private WarmUpCaches getWarmUp(String progressFile) {
+		return new WarmUpCaches("key", server.getBingEndpoint(), "localhost",
+				server.getPort(), 4, 100, progressFile);
+	}
+
+	@Test
+	public void testWarmUp() throws Exception {
+		File queryFile = folder.newFile("queries.txt");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(queryFile),
+				"utf-8")) {
+			w.write("TREC-1\tneil armstrong moon\n");
+			w.write("TREC-2\tbrooks brothers clearance\n\n");
+			w.write("the beatles\n");
+			w.write("TREC-3\tneil armstrong moon\n");
+		}
+		List<String> queries = WarmUpCaches.readQueries(queryFile.getPath());
+		assertEquals(Arrays.asList("neil armstrong moon",
+				"brooks brothers clearance", "the beatles"), queries);
+
+		String bingCache = new File(folder.getRoot(), "bing.cache").getPath();
+		String watCache = new File(folder.getRoot(), "wikisense.cache")
+				.getPath();
+		String progress = new File(folder.getRoot(), "queries.done").getPath();
+		SmaphAnnotator.setCache(bingCache);
+		WATAnnotator.setCache(watCache);
+
+		assertEquals(0, getWarmUp(progress).run(queries));
+		// A normal search and a Wikipedia search per query.
+		assertEquals(6, server.getRequestCount(Service.BING));
+		assertEquals(3, server.getRequestCount(Service.WAT));
+		assertTrue(new File(watCache).exists());
+		assertEquals(3, WarmUpCaches.readQueries(progress).size());
+
+		// Queries already done are skipped.
+		assertEquals(0, getWarmUp(progress).run(queries));
+		assertEquals(6, server.getRequestCount(Service.BING));
+
+		// Without progress, the responses are read from the caches.
+		SmaphAnnotator.unSetCache();
+		WATAnnotator.unSetCache();
+		SmaphAnnotator.setCache(bingCache);
+		WATAnnotator.setCache(watCache);
+		new File(progress).delete();
+		assertEquals(0, getWarmUp(progress).run(queries));
+		assertEquals(6, server.getRequestCount(Service.BING));
+		assertEquals(3, server.getRequestCount(Service.WAT));
+	}
+}
@@ -0,0 +1,95 @@
+package it.acubelab.smaph.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that answers "ok", unless a fault has been scheduled
+ * for the next request: an HTTP error status, or a delay.
+ */
+public class FaultInjectingServer {
+	public static final String BODY = "ok";
+	private HttpServer server;
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private ConcurrentLinkedQueue<int[]> faults = new ConcurrentLinkedQueue<>();
+	private AtomicInteger requests = new AtomicInteger();
+
+	public FaultInjectingServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				int[] fault = faults.poll();
+				int status = 200;
+				if (fault != null) {
+					status = fault[0];
+					try {
+						Thread.sleep(fault[1]);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				byte[] body = (status == 200 ? BODY : "error").getBytes("utf8");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Make the next requests fail.
+	 * 
+	 * @param count
+	 *            how many requests to fail.
+	 * @param status
+	 *            the status to reply with.
+	 */
+	public void failNext(int count, int status) {
+		for (int i = 0; i < count; i++)
+			faults.add(new int[] { status, 0 });
+	}
+
+	/**
+	 * Delay the reply to the next request.
+	 * 
+	 * @param millis
+	 *            the delay.
+	 */
+	public void delayNext(int millis) {
+		faults.add(new int[] { 200, millis });
+	}
+
+	/**
+	 * @return the URL of the server.
+	 */
+	public String getUrl() {
+		return String.format("http://localhost:%d/", server.getAddress()
+				.getPort());
+	}
+
+	/**
+	 * @return the number of requests received so far.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+}
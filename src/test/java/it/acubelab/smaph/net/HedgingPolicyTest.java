@@ -0,0 +1,135 @@
+package it.acubelab.smaph.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HedgingPolicyTest {
+
+	/**
+	 * A call whose first attempt is slow (or fails), and whose later attempts
+	 * answer at once.
+	 */
+	private static class SlowFirstCall implements Callable<Integer> {
+		private final AtomicInteger attempts = new AtomicInteger();
+		private final boolean fail;
+
+		public SlowFirstCall(boolean fail) {
+			this.fail = fail;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			int attempt = attempts.incrementAndGet();
+			if (attempt == 1) {
+				if (fail) {
+					Thread.sleep(100);
+					throw new IOException("First attempt failed.");
+				}
+				Thread.sleep(2000);
+			}
+			return attempt;
+		}
+	}
+
+	private static void warmUp(HedgingPolicy hedging) throws Exception {
+		for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++)
+			hedging.call(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					Thread.sleep(5);
+					return 0;
+				}
+			});
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		HedgingPolicy hedging = new HedgingPolicy(0.9, 1);
+		// No hedging before enough latencies are observed.
+		assertEquals(-1, hedging.getHedgeDelay());
+		warmUp(hedging);
+		assertEquals(0, hedging.getHedgedCount());
+		assertTrue(hedging.getHedgeDelay() >= 5);
+
+		long start = System.currentTimeMillis();
+		assertEquals(2, (int) hedging.call(new SlowFirstCall(false)));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, hedging.getHedgedCount());
+		assertEquals(1, hedging.getHedgeWinCount());
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+		HedgingPolicy hedging = new HedgingPolicy(0.5, 0.05);
+		warmUp(hedging);
+		// 21 calls earned one hedge.
+		assertEquals(2, (int) hedging.call(new SlowFirstCall(false)));
+		long start = System.currentTimeMillis();
+		assertEquals(1, (int) hedging.call(new SlowFirstCall(false)));
+		assertTrue(System.currentTimeMillis() - start >= 2000);
+		assertEquals(1, hedging.getHedgedCount());
+		assertEquals(1, hedging.getOverBudgetCount());
+	}
+
+	@Test
+	public void testFirstAttemptLatencyRecorded() throws Exception {
+		HedgingPolicy hedging = new HedgingPolicy(0.5, 1);
+		warmUp(hedging);
+		long warmDelay = hedging.getHedgeDelay();
+		for (int i = 0; i < HedgingPolicy.UPDATE_INTERVAL; i++)
+			hedging.call(new Callable<Integer>() {
+				private final AtomicInteger attempts = new AtomicInteger();
+
+				@Override
+				public Integer call() throws Exception {
+					int attempt = attempts.incrementAndGet();
+					if (attempt == 1) {
+						// Like blocking I/O, ignores the cancellation.
+						long end = System.currentTimeMillis() + 200;
+						while (System.currentTimeMillis() < end)
+							try {
+								Thread.sleep(end - System.currentTimeMillis());
+							} catch (InterruptedException e) {
+							}
+					}
+					return attempt;
+				}
+			});
+		assertEquals(HedgingPolicy.UPDATE_INTERVAL, hedging.getHedgeWinCount());
+
+		// The slow first attempts count, not the hedges that won.
+		long end = System.currentTimeMillis() + 5000;
+		while (hedging.getHedgeDelay() < 200
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertTrue(warmDelay < 200);
+		assertTrue(hedging.getHedgeDelay() >= 200);
+	}
+
+	@Test
+	public void testFailedAttempt() throws Exception {
+		HedgingPolicy hedging = new HedgingPolicy(0.5, 1);
+		warmUp(hedging);
+		// The first attempt fails after the hedge is sent.
+		assertEquals(2, (int) hedging.call(new SlowFirstCall(true)));
+
+		// A failure is thrown if all attempts fail.
+		try {
+			hedging.call(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					Thread.sleep(50);
+					throw new IOException("Failed.");
+				}
+			});
+			fail();
+		} catch (IOException e) {
+			assertEquals("Failed.", e.getMessage());
+		}
+	}
+}
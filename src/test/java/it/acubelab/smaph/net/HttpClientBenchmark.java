@@ -0,0 +1,122 @@
+package it.acubelab.smaph.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.client.methods.HttpGet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the throughput of requests to a local stub server issued with a
+ * new HttpURLConnection per call (without keep-alive, as the old clients of
+ * remote services did) and with the shared {@link HttpClientPool}. The stub
+ * delays the first request of each connection to simulate the handshakes of
+ * a remote HTTPS service. Usage: HttpClientBenchmark [threads
+ * [requests-per-thread [handshake-ms]]]. Defaults to 8 threads issuing 500
+ * requests each, with a 30 ms handshake.
+ */
+public class HttpClientBenchmark {
+	private interface Call {
+		void call(String url) throws IOException;
+	}
+
+	private static double run(int threads, final int requests,
+			final String url, final Call call) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < requests; i++)
+							call.call(url);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread t : workers)
+			t.join();
+		return threads * requests / ((System.nanoTime() - start) / 1e9);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		final long handshake = args.length > 2 ? Long.parseLong(args[2]) : 30;
+		final Set<InetSocketAddress> connections = Collections
+				.synchronizedSet(new HashSet<InetSocketAddress>());
+		final byte[] body = new byte[2048];
+		// Without this, the stub answers keep-alive requests after a delayed
+		// ACK, as it writes headers and body separately.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				"localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (connections.add(exchange.getRemoteAddress()))
+					try {
+						Thread.sleep(handshake);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+		String url = String.format("http://localhost:%d/", server.getAddress()
+				.getPort());
+
+		Call perCall = new Call() {
+			@Override
+			public void call(String url) throws IOException {
+				HttpURLConnection connection = (HttpURLConnection) new URL(url)
+						.openConnection();
+				connection.setRequestProperty("Connection", "close");
+				try (InputStream in = connection.getInputStream()) {
+					while (in.read(body.clone()) != -1)
+						;
+				}
+			}
+		};
+		Call pooled = new Call() {
+			@Override
+			public void call(String url) throws IOException {
+				HttpClientPool.executeForString(new HttpGet(url));
+			}
+		};
+
+		// Warm up both clients.
+		run(threads, requests / 10, url, perCall);
+		run(threads, requests / 10, url, pooled);
+
+		System.out.printf("Connection per call: %.0f requests/s%n",
+				run(threads, requests, url, perCall));
+		System.out.printf("Pooled client: %.0f requests/s%n",
+				run(threads, requests, url, pooled));
+		HttpClientPool.shutdown();
+		server.stop(0);
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,123 @@
+package it.acubelab.smaph.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpClientPoolTest {
+	private HttpServer server;
+	private Set<Integer> clientPorts = Collections
+			.synchronizedSet(new HashSet<Integer>());
+	private AtomicInteger concurrent = new AtomicInteger();
+	private AtomicInteger maxConcurrent = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				int c = concurrent.incrementAndGet();
+				synchronized (maxConcurrent) {
+					maxConcurrent.set(Math.max(maxConcurrent.get(), c));
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				concurrent.decrementAndGet();
+				int status = exchange.getRequestURI().getPath()
+						.equals("/error") ? 500 : 200;
+				byte[] body = "hello".getBytes("utf8");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		HttpClientPool.configure(HttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				HttpClientPool.DEFAULT_MAX_CONNECTIONS,
+				HttpClientPool.DEFAULT_CONNECT_TIMEOUT,
+				HttpClientPool.DEFAULT_SOCKET_TIMEOUT);
+	}
+
+	private String url(String path) {
+		return String.format("http://localhost:%d%s", server.getAddress()
+				.getPort(), path);
+	}
+
+	@Test
+	public void testConnectionReuse() throws Exception {
+		for (int i = 0; i < 20; i++)
+			assertEquals("hello",
+					HttpClientPool.executeForString(new HttpGet(url("/" + i))));
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testMaxConnectionsPerHost() throws Exception {
+		HttpClientPool.configure(4, 100,
+				HttpClientPool.DEFAULT_CONNECT_TIMEOUT,
+				HttpClientPool.DEFAULT_SOCKET_TIMEOUT);
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 5; i++)
+							HttpClientPool.executeForString(new HttpGet(url("/")));
+					} catch (Exception e) {
+						e.printStackTrace();
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+		assertTrue(maxConcurrent.get() <= 4);
+		assertTrue(clientPorts.size() <= 4);
+	}
+
+	@Test
+	public void testErrorStatus() throws Exception {
+		try {
+			HttpClientPool.executeForString(new HttpGet(url("/error")));
+			fail();
+		} catch (RuntimeException e) {
+		}
+		// The connection went back to the pool despite the error.
+		assertEquals("hello",
+				HttpClientPool.executeForString(new HttpGet(url("/"))));
+		assertEquals(1, clientPorts.size());
+	}
+}
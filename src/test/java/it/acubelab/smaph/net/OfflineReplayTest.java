@@ -0,0 +1,53 @@
+package it.acubelab.smaph.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Test;
+
+public class OfflineReplayTest {
+	@After
+	public void tearDown() {
+		OfflineReplay.setEnabled(false);
+		OfflineReplay.clearMisses();
+	}
+
+	@Test
+	public void testNoHttpRequests() throws Exception {
+		FaultInjectingServer server = new FaultInjectingServer();
+		try {
+			OfflineReplay.setEnabled(true);
+			try {
+				HttpClientPool.executeForString(new HttpGet(server.getUrl()));
+				fail();
+			} catch (ReplayMissException e) {
+			}
+			assertEquals(0, server.getRequests());
+
+			OfflineReplay.setEnabled(false);
+			assertEquals(FaultInjectingServer.BODY,
+					HttpClientPool.executeForString(new HttpGet(server.getUrl())));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testMissReport() throws Exception {
+		OfflineReplay.miss("bing", "armstrong moon");
+		OfflineReplay.miss("bing", "armstrong moon");
+		OfflineReplay.miss("bing", "aldrin");
+		OfflineReplay.miss("wat", "http://wat/tag {}");
+		assertEquals(3, OfflineReplay.getMissCount());
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		OfflineReplay.printMissReport(new PrintStream(report, true, "utf-8"));
+		assertEquals(String.format("Offline replay misses: 3%n" + "bing: 2%n"
+				+ "\tarmstrong moon%n" + "\taldrin%n" + "wat: 1%n"
+				+ "\thttp://wat/tag {}%n"), report.toString("utf-8"));
+	}
+}
@@ -0,0 +1,34 @@
+package it.acubelab.smaph.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	@Test
+	public void testAcquire() throws Exception {
+		RateLimiter limiter = new RateLimiter(50);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 11; i++)
+			limiter.acquire();
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed >= 190);
+		assertTrue(elapsed < 1000);
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		RateLimiter limiter = new RateLimiter(1, 3);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+
+		limiter = new RateLimiter(20);
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		Thread.sleep(60);
+		assertTrue(limiter.tryAcquire());
+	}
+}
@@ -0,0 +1,179 @@
+package it.acubelab.smaph.net;
+
+import static org.junit.Assert.*;
+
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResilienceTest {
+	private static final RetryPolicy FAST_RETRY = new RetryPolicy(3, 10, 50);
+	private FaultInjectingServer server;
+	private Callable<String> get;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FaultInjectingServer();
+		get = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return HttpClientPool.executeForString(new HttpGet(server
+						.getUrl()));
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		HttpClientPool.configure(HttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				HttpClientPool.DEFAULT_MAX_CONNECTIONS,
+				HttpClientPool.DEFAULT_CONNECT_TIMEOUT,
+				HttpClientPool.DEFAULT_SOCKET_TIMEOUT);
+	}
+
+	@Test
+	public void testBackoffDelays() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		Random r = new Random(0);
+		boolean jittered = false;
+		for (int retry = 0; retry < 100; retry++) {
+			long cap = Math.min(1000, retry < 20 ? 100L << retry : 1000);
+			for (int i = 0; i < 100; i++) {
+				long delay = policy.getDelay(retry, r);
+				assertTrue(delay >= 0 && delay <= cap);
+				jittered |= delay != policy.getDelay(retry, r);
+			}
+		}
+		assertTrue(jittered);
+		assertFalse(policy.isRetryable(new HttpStatusException(404)));
+		assertTrue(policy.isRetryable(new HttpStatusException(503)));
+		assertTrue(policy.isRetryable(new HttpStatusException(429)));
+		assertFalse(policy.isRetryable(new CircuitOpenException("s")));
+	}
+
+	@Test
+	public void testRetryUntilSuccess() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test", 5, 60000);
+		server.failNext(2, 503);
+		assertEquals(FaultInjectingServer.BODY,
+				Resilience.call(breaker, FAST_RETRY, get));
+		assertEquals(3, server.getRequests());
+		assertEquals(2, breaker.getFailureCount());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		server.failNext(3, 500);
+		try {
+			Resilience.call(breaker, FAST_RETRY, get);
+			fail();
+		} catch (HttpStatusException e) {
+			assertEquals(500, e.getStatusCode());
+		}
+		assertEquals(6, server.getRequests());
+	}
+
+	@Test
+	public void testBadRequestNotRetried() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 60000);
+		server.failNext(1, 400);
+		try {
+			Resilience.call(breaker, FAST_RETRY, get);
+			fail();
+		} catch (HttpStatusException e) {
+			assertEquals(400, e.getStatusCode());
+		}
+		assertEquals(1, server.getRequests());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		HttpClientPool.configure(HttpClientPool.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				HttpClientPool.DEFAULT_MAX_CONNECTIONS,
+				HttpClientPool.DEFAULT_CONNECT_TIMEOUT, 500);
+		CircuitBreaker breaker = new CircuitBreaker("test", 5, 60000);
+		server.delayNext(2000);
+		assertEquals(FaultInjectingServer.BODY,
+				Resilience.call(breaker, FAST_RETRY, get));
+		assertEquals(1, breaker.getFailureCount());
+
+		server.delayNext(2000);
+		try {
+			Resilience.call(breaker, new RetryPolicy(1, 0, 0), get);
+			fail();
+		} catch (SocketTimeoutException e) {
+		}
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test", 3, 200);
+		server.failNext(3, 503);
+		try {
+			Resilience.call(breaker, FAST_RETRY, get);
+			fail();
+		} catch (HttpStatusException e) {
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(1, breaker.getOpenCount());
+
+		// While open, calls fail fast without reaching the service.
+		for (int i = 0; i < 10; i++)
+			try {
+				Resilience.call(breaker, FAST_RETRY, get);
+				fail();
+			} catch (CircuitOpenException e) {
+			}
+		assertEquals(3, server.getRequests());
+		assertEquals(10, breaker.getRejectedCount());
+
+		// A failed trial call opens the breaker again.
+		Thread.sleep(250);
+		server.failNext(1, 503);
+		try {
+			Resilience.call(breaker, FAST_RETRY, get);
+			fail();
+		} catch (CircuitOpenException e) {
+		}
+		assertEquals(4, server.getRequests());
+		assertEquals(1, breaker.getHalfOpenCount());
+		assertEquals(2, breaker.getOpenCount());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		// A successful trial call closes it.
+		Thread.sleep(250);
+		assertEquals(FaultInjectingServer.BODY,
+				Resilience.call(breaker, FAST_RETRY, get));
+		assertEquals(2, breaker.getHalfOpenCount());
+		assertEquals(1, breaker.getCloseCount());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testSingleTrialWhenHalfOpen() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1, 0);
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testSharedBreakers() {
+		assertSame(CircuitBreaker.forService("a"),
+				CircuitBreaker.forService("a"));
+		assertNotSame(CircuitBreaker.forService("a"),
+				CircuitBreaker.forService("b"));
+	}
+}
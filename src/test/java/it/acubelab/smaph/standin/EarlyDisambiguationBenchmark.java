@@ -0,0 +1,87 @@
+package it.acubelab.smaph.standin;
+
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
+import it.acubelab.smaph.entityfilters.NoEntityFilter;
+import it.acubelab.smaph.linkback.DummyLinkBack;
+import it.acubelab.smaph.main.WarmUpCaches;
+import it.acubelab.smaph.standin.StandInServer.Service;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the latency of the searches and disambiguation of a query (see
+ * {@link SmaphAnnotator#warmUp(String)}) with and without early
+ * disambiguation (see {@link SmaphAnnotator#setEarlyDisambiguation(boolean)}
+ * ), against a stand-in server with the given latencies. Caches are emptied
+ * before each run, so that every request reaches the server. Usage:
+ * EarlyDisambiguationBenchmark [query-file [bing-latency [wat-latency]]].
+ * Defaults to the ERD 2014 queries, lognormal:300:0.5 for Bing and
+ * lognormal:150:0.5 for WAT.
+ */
+public class EarlyDisambiguationBenchmark {
+	private static long[] run(SmaphAnnotator annotator, List<String> queries)
+			throws Exception {
+		SmaphAnnotator.unSetCache();
+		WATAnnotator.unSetCache();
+		long[] latencies = new long[queries.size()];
+		for (int i = 0; i < queries.size(); i++) {
+			long start = System.nanoTime();
+			annotator.warmUp(queries.get(i));
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void print(String name, long[] latencies) {
+		long total = 0;
+		for (long l : latencies)
+			total += l;
+		int n = latencies.length;
+		System.out.printf("%s: mean=%.1f p50=%.1f p99=%.1f ms%n", name, total
+				/ 1e6 / n, latencies[(int) (0.50 * (n - 1))] / 1e6,
+				latencies[(int) (0.99 * (n - 1))] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		List<String> queries = WarmUpCaches.readQueries(args.length > 0 ? args[0]
+				: "datasets/erd2014/Trec_beta.query.txt");
+		StandInServer server = new StandInServer("localhost", 0);
+		server.setLatency(Service.BING, LatencyModel.parse(args.length > 1 ? args[1]
+				: "lognormal:300:0.5"));
+		server.setLatency(Service.WAT, LatencyModel.parse(args.length > 2 ? args[2]
+				: "lognormal:150:0.5"));
+		server.start();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+					"base", "COMMONNESS", "jaccard", "0.6", "0", false, false,
+					false);
+			SmaphAnnotator annotator = new SmaphAnnotator(wat,
+					new FrequencyBoldFilter(0.06f), new NoEntityFilter(),
+					new DummyLinkBack(), true, true, true, 10, false, -1, true,
+					10, null, "key");
+			annotator.setBingEndpoint(server.getBingEndpoint());
+			annotator.setSearchExecutor(executor);
+
+			// Warm up the JVM.
+			annotator.setEarlyDisambiguation(true);
+			run(annotator, queries.subList(0, Math.min(10, queries.size())));
+
+			annotator.setEarlyDisambiguation(false);
+			print("after all searches", run(annotator, queries));
+			annotator.setEarlyDisambiguation(true);
+			print("early", run(annotator, queries));
+		} finally {
+			executor.shutdownNow();
+			server.stop();
+		}
+	}
+}
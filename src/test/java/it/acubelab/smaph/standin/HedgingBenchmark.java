@@ -0,0 +1,109 @@
+package it.acubelab.smaph.standin;
+
+import it.acubelab.smaph.SmaphAnnotator;
+import it.acubelab.smaph.boldfilters.FrequencyBoldFilter;
+import it.acubelab.smaph.entityfilters.NoEntityFilter;
+import it.acubelab.smaph.linkback.DummyLinkBack;
+import it.acubelab.smaph.main.WarmUpCaches;
+import it.acubelab.smaph.net.HedgingPolicy;
+import it.acubelab.smaph.standin.StandInServer.Service;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the latency of the searches and disambiguation of a query (see
+ * {@link SmaphAnnotator#warmUp(String)}) with and without hedged calls to Bing
+ * and WAT (see {@link HedgingPolicy}), against a stand-in server with
+ * heavy-tailed latencies. Caches are emptied before each run, so that every
+ * request reaches the server. Usage: HedgingBenchmark [query-file
+ * [percentile [budget [latency]]]]. Defaults to the ERD 2014 queries, 0.95,
+ * 0.05 and lognormal:100:1 for both services.
+ */
+public class HedgingBenchmark {
+	private static long[] run(SmaphAnnotator annotator, List<String> queries,
+			int rounds) throws Exception {
+		long[] latencies = new long[queries.size() * rounds];
+		for (int r = 0; r < rounds; r++) {
+			SmaphAnnotator.unSetCache();
+			WATAnnotator.unSetCache();
+			for (int i = 0; i < queries.size(); i++) {
+				long start = System.nanoTime();
+				annotator.warmUp(queries.get(i));
+				latencies[r * queries.size() + i] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void print(String name, long[] latencies) {
+		long total = 0;
+		for (long l : latencies)
+			total += l;
+		int n = latencies.length;
+		System.out.printf("%s: mean=%.1f p50=%.1f p99=%.1f max=%.1f ms%n",
+				name, total / 1e6 / n, latencies[(int) (0.50 * (n - 1))] / 1e6,
+				latencies[(int) (0.99 * (n - 1))] / 1e6,
+				latencies[n - 1] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		List<String> queries = WarmUpCaches.readQueries(args.length > 0 ? args[0]
+				: "datasets/erd2014/Trec_beta.query.txt");
+		double percentile = args.length > 1 ? Double.parseDouble(args[1])
+				: 0.95;
+		double budget = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		LatencyModel latency = LatencyModel.parse(args.length > 3 ? args[3]
+				: "lognormal:100:1");
+		StandInServer server = new StandInServer("localhost", 0);
+		server.setLatency(Service.BING, latency);
+		server.setLatency(Service.WAT, latency);
+		server.start();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			WATAnnotator wat = new WATAnnotator("localhost", server.getPort(),
+					"base", "COMMONNESS", "jaccard", "0.6", "0", false, false,
+					false);
+			SmaphAnnotator annotator = new SmaphAnnotator(wat,
+					new FrequencyBoldFilter(0.06f), new NoEntityFilter(),
+					new DummyLinkBack(), true, true, true, 10, false, -1, true,
+					10, null, "key");
+			annotator.setBingEndpoint(server.getBingEndpoint());
+			annotator.setSearchExecutor(executor);
+			HedgingPolicy bingHedging = new HedgingPolicy(percentile, budget);
+			HedgingPolicy watHedging = new HedgingPolicy(percentile, budget);
+
+			// Warm up the JVM and the observed latencies.
+			SmaphAnnotator.setBingHedging(bingHedging);
+			WATAnnotator.setHedging(watHedging);
+			run(annotator, queries.subList(0, Math.min(20, queries.size())), 1);
+
+			SmaphAnnotator.setBingHedging(null);
+			WATAnnotator.setHedging(null);
+			long bingStart = server.getRequestCount(Service.BING);
+			long watStart = server.getRequestCount(Service.WAT);
+			print("not hedged", run(annotator, queries, 3));
+			long bingRequests = server.getRequestCount(Service.BING) - bingStart;
+			long watRequests = server.getRequestCount(Service.WAT) - watStart;
+
+			SmaphAnnotator.setBingHedging(bingHedging);
+			WATAnnotator.setHedging(watHedging);
+			print("hedged", run(annotator, queries, 3));
+			System.out.printf("Bing: %s%nWAT: %s%n", bingHedging, watHedging);
+			System.out.printf("Requests: Bing %d -> %d, WAT %d -> %d%n",
+					bingRequests, server.getRequestCount(Service.BING)
+							- bingStart - bingRequests, watRequests,
+					server.getRequestCount(Service.WAT) - watStart
+							- watRequests);
+		} finally {
+			executor.shutdownNow();
+			server.stop();
+		}
+	}
+}
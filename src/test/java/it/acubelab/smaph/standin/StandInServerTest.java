@@ -0,0 +1,170 @@
+package it.acubelab.smaph.standin;
+
+import static org.junit.Assert.*;
+import it.acubelab.smaph.BingResponse;
+import it.acubelab.smaph.SmaphUtils;
+import it.acubelab.smaph.net.HttpClientPool;
+import it.acubelab.smaph.net.HttpStatusException;
+import it.acubelab.smaph.standin.StandInServer.Service;
+import it.unipi.di.acube.batframework.data.Annotation;
+import it.unipi.di.acube.batframework.data.Mention;
+import it.unipi.di.acube.batframework.systemPlugins.WATAnnotator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.apache.http.client.methods.HttpGet;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StandInServerTest {
+	private StandInServer server;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		WATAnnotator.unSetCache();
+		server = new StandInServer("localhost", 0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+		WATAnnotator.unSetCache();
+	}
+
+	private WATAnnotator getWatAnnotator() {
+		return new WATAnnotator("localhost", server.getPort(), "base");
+	}
+
+	private BingResponse getBing(String query) throws Exception {
+		HttpGet request = new HttpGet(server.getBingEndpoint() + "?Query=%27"
+				+ query.replace(" ", "+") + "%27&$format=Json");
+		try (InputStream in = HttpClientPool.execute(request).getEntity()
+				.getContent()) {
+			return BingResponse.parse(in, false);
+		}
+	}
+
+	@Test
+	public void testLatencyModel() {
+		Random r = new Random(0);
+		assertEquals(0, LatencyModel.parse("none").sample(r));
+		assertEquals(25, LatencyModel.parse("constant:25").sample(r));
+		LatencyModel uniform = LatencyModel.parse("uniform:10:20");
+		LatencyModel lognormal = LatencyModel.parse("lognormal:50:1");
+		LatencyModel capped = LatencyModel.parse("lognormal:50:1:200");
+		long[] samples = new long[10000];
+		for (int i = 0; i < samples.length; i++) {
+			long u = uniform.sample(r);
+			assertTrue(u >= 10 && u <= 20);
+			assertTrue(capped.sample(r) <= 200);
+			samples[i] = lognormal.sample(r);
+		}
+		Arrays.sort(samples);
+		assertEquals(50, samples[samples.length / 2], 5);
+		assertTrue(samples[(int) (samples.length * 0.99)] > 300);
+
+		for (String invalid : new String[] { "", "constant", "uniform:20:10",
+				"lognormal:0:1", "gaussian:1:2", "constant:x" })
+			try {
+				LatencyModel.parse(invalid);
+				fail(invalid);
+			} catch (IllegalArgumentException e) {
+			}
+	}
+
+	@Test
+	public void testSynthesizedBing() throws Exception {
+		server.start();
+		BingResponse response = getBing("neil armstrong");
+		assertTrue(response.isValid());
+		assertEquals(10, response.getResultCount());
+		assertTrue(response.getBoldCount(0) > 0);
+		assertEquals(3, response.getRelatedSearch().size());
+		assertEquals(response.getSnippet(3), getBing("neil armstrong")
+				.getSnippet(3));
+
+		BingResponse wikiSearch = getBing("neil armstrong wikipedia");
+		assertEquals("http://en.wikipedia.org/wiki/Neil_Armstrong",
+				wikiSearch.getUrl(0));
+		assertEquals(3, server.getSynthesizedCount(Service.BING));
+	}
+
+	@Test
+	public void testSynthesizedWat() throws Exception {
+		server.start();
+		String text = "neil armstrong moon";
+		HashSet<Mention> mentions = new HashSet<>(Arrays.asList(new Mention(0,
+				14), new Mention(15, 4)));
+		HashSet<Annotation> annotations = getWatAnnotator().solveD2W(text,
+				mentions);
+		assertEquals(2, annotations.size());
+		WATAnnotator.unSetCache();
+		assertEquals(annotations, getWatAnnotator().solveD2W(text, mentions));
+
+		HashSet<Mention> spotted = getWatAnnotator().getSpottedMentions(
+				"the first man on the moon");
+		assertEquals(
+				new HashSet<>(Arrays.asList(new Mention(0, 3), new Mention(4,
+						5), new Mention(10, 3), new Mention(17, 3),
+						new Mention(21, 4))), spotted);
+		assertEquals(5, getWatAnnotator().solveSa2W("the first man on the moon")
+				.size());
+		assertEquals(4, server.getSynthesizedCount(Service.WAT));
+	}
+
+	@Test
+	public void testRecordedWat() throws Exception {
+		String text = "armstrong";
+		HashMap<String, byte[]> recorded = new HashMap<>();
+		recorded.put("http://wikisense.mkapp.it:80/tag/spot?lang=en"
+				+ new JSONObject().put("text", text),
+				SmaphUtils.compress("{\"spots\":[{\"start\":0,\"end\":4,\"ranking\":[]}]}"));
+		String cacheFile = new File(folder.getRoot(), "wikisense.cache")
+				.getPath();
+		try (ObjectOutputStream oos = new ObjectOutputStream(
+				new FileOutputStream(cacheFile))) {
+			oos.writeObject(recorded);
+		}
+		server.setWatCache(cacheFile);
+		server.start();
+
+		assertEquals(new HashSet<>(Arrays.asList(new Mention(0, 4))),
+				getWatAnnotator().getSpottedMentions(text));
+		assertEquals(1, server.getRecordedCount(Service.WAT));
+		assertEquals(0, server.getSynthesizedCount(Service.WAT));
+	}
+
+	@Test
+	public void testLatencyAndErrors() throws Exception {
+		server.setLatency(Service.WAT, LatencyModel.constant(300));
+		server.setErrorRate(Service.BING, 1.0);
+		server.start();
+
+		long start = System.currentTimeMillis();
+		getWatAnnotator().getSpottedMentions("armstrong");
+		assertTrue(System.currentTimeMillis() - start >= 300);
+
+		try {
+			getBing("armstrong");
+			fail();
+		} catch (HttpStatusException e) {
+			assertEquals(503, e.getStatusCode());
+		}
+		assertEquals(1, server.getErrorCount(Service.BING));
+		assertEquals(0, server.getErrorCount(Service.WAT));
+	}
+}
@@ -0,0 +1,135 @@
+package it.acubelab.smaph.standin;
+
+import it.acubelab.smaph.wikipedia.ResolvedEntities;
+import it.unipi.di.acube.batframework.utils.SharedWikipediaApiInterface;
+import it.unipi.di.acube.batframework.utils.SharedWikipediaApiInterfaceTest;
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the latency of the Wikipedia lookups of a REST request when every
+ * request builds its own {@link WikipediaApiInterface} from the cache files
+ * and when all requests share a {@link SharedWikipediaApiInterface}. A
+ * request resolves the pages of a query (see {@link ResolvedEntities}) and
+ * looks up the titles of its annotations, as
+ * {@link it.cnr.isti.hpc.erd.rest.RestService} does. All pages are in the
+ * cache files, so that no request reaches Wikipedia. Usage:
+ * WikipediaApiBenchmark [cached-pages [threads [requests-per-thread]]].
+ * Defaults to 200000, 4 and 20.
+ */
+public class WikipediaApiBenchmark {
+	private static final int TITLES_PER_REQUEST = 20;
+	private static final int WIDS_PER_REQUEST = 10;
+	private static final int ANNOTATIONS_PER_REQUEST = 5;
+
+	private interface ApiFactory {
+		WikipediaApiInterface get();
+	}
+
+	private static void request(WikipediaApiInterface api, Random r,
+			int pages) throws Exception {
+		List<String> titles = new Vector<>();
+		for (int i = 0; i < TITLES_PER_REQUEST; i++)
+			titles.add("Page " + (1 + r.nextInt(pages)));
+		List<Integer> wids = new Vector<>();
+		for (int i = 0; i < WIDS_PER_REQUEST; i++)
+			wids.add(1 + r.nextInt(pages));
+		ResolvedEntities.resolve(api, titles, wids);
+		for (int i = 0; i < ANNOTATIONS_PER_REQUEST; i++)
+			api.getTitlebyId(wids.get(i));
+	}
+
+	private static long[] run(final ApiFactory factory, int threads,
+			final int requests, final int pages) throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		List<Future<long[]>> futures = new Vector<>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures.add(clients.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() throws Exception {
+					Random r = new Random(thread);
+					long[] latencies = new long[requests];
+					for (int i = 0; i < requests; i++) {
+						long start = System.nanoTime();
+						request(factory.get(), r, pages);
+						latencies[i] = System.nanoTime() - start;
+					}
+					return latencies;
+				}
+			}));
+		}
+		long[] latencies = new long[threads * requests];
+		for (int t = 0; t < threads; t++)
+			System.arraycopy(futures.get(t).get(), 0, latencies, t * requests,
+					requests);
+		clients.shutdown();
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void print(String name, long[] latencies) {
+		long total = 0;
+		for (long l : latencies)
+			total += l;
+		int n = latencies.length;
+		System.out.printf("%s: mean=%.3f p50=%.3f p99=%.3f max=%.3f ms%n",
+				name, total / 1e6 / n, latencies[(int) (0.50 * (n - 1))] / 1e6,
+				latencies[(int) (0.99 * (n - 1))] / 1e6,
+				latencies[n - 1] / 1e6);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		final int pages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		File dir = Files.createTempDirectory("wikipedia-benchmark").toFile();
+		final String[] files = SharedWikipediaApiInterfaceTest.writeCaches(
+				dir, pages);
+		System.out.printf("Cache files: %d + %d bytes, %d pages.%n",
+				new File(files[0]).length(), new File(files[1]).length(),
+				pages);
+
+		ApiFactory perRequest = new ApiFactory() {
+			@Override
+			public WikipediaApiInterface get() {
+				return new WikipediaApiInterface(files[0], files[1]);
+			}
+		};
+		final SharedWikipediaApiInterface shared = new SharedWikipediaApiInterface(
+				files[0], files[1],
+				SharedWikipediaApiInterface.DEFAULT_FLUSH_INTERVAL);
+		ApiFactory sharedApi = new ApiFactory() {
+			@Override
+			public WikipediaApiInterface get() {
+				return shared;
+			}
+		};
+
+		// Warm up the JIT.
+		run(perRequest, threads, 2, pages);
+		run(sharedApi, threads, requests, pages);
+
+		print("Per-request interface", run(perRequest, threads, requests, pages));
+		print("Shared interface", run(sharedApi, threads, requests, pages));
+		System.out.printf("Shared interface: %s%n", shared);
+
+		shared.close();
+		for (String file : files)
+			new File(file).delete();
+		dir.delete();
+	}
+}
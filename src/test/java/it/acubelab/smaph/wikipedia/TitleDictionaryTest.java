@@ -0,0 +1,115 @@
+package it.acubelab.smaph.wikipedia;
+
+import static org.junit.Assert.*;
+import it.unipi.di.acube.batframework.utils.LocalWikipediaApiInterface;
+import it.unipi.di.acube.batframework.utils.WikipediaApiInterface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TitleDictionaryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String write(String name, String content) throws IOException {
+		File f = folder.newFile(name);
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "utf-8")) {
+			w.write(content);
+		}
+		return f.getPath();
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		String pages = write("pages.tsv", "21247\tNeil_Armstrong\n"
+				+ "100\tArmstrong (astronaut)\n" + "101\tNeil A. Armstrong\n"
+				+ "19331\tMoon\n" + "34190\tZürich\n" + "7\tLoop A\n"
+				+ "8\tLoop B\n" + "9\tBroken\n");
+		String redirects = write("redirects.tsv", "100\tNeil A. Armstrong\n"
+				+ "101\tNeil Armstrong\n" + "7\tLoop B\n" + "8\tLoop A\n"
+				+ "9\tNo such page\n");
+		String dictionaryFile = new File(folder.getRoot(), "titles.dict")
+				.getPath();
+		assertEquals(8, TitleDictionary.build(pages, redirects, dictionaryFile));
+
+		try (TitleDictionary dict = new TitleDictionary(dictionaryFile)) {
+			assertEquals(8, dict.size());
+			assertEquals(21247, dict.getId("Neil Armstrong"));
+			assertEquals(21247, dict.getId("neil_Armstrong "));
+			assertEquals(34190, dict.getId("zürich"));
+			assertEquals(-1, dict.getId("Neil armstrong"));
+			assertEquals(-1, dict.getId("Mars"));
+			assertEquals(-1, dict.getId(""));
+
+			assertEquals("Neil Armstrong", dict.getTitle(21247));
+			assertEquals("Zürich", dict.getTitle(34190));
+			assertNull(dict.getTitle(5));
+			assertNull(dict.getTitle(-3));
+			assertNull(dict.getTitle(1000000));
+
+			// Chains of redirects are resolved.
+			assertEquals(21247, dict.dereference(100));
+			assertEquals(21247, dict.dereference(101));
+			assertEquals(19331, dict.dereference(19331));
+			// Cycles and broken redirects are not.
+			assertEquals(7, dict.dereference(7));
+			assertEquals(9, dict.dereference(9));
+			assertEquals(-1, dict.dereference(5));
+
+			WikipediaApiInterface api = new LocalWikipediaApiInterface(dict);
+			api.prefetchTitles(Arrays.asList("Mars"));
+			assertEquals(100, api.getIdByTitle("Armstrong_(astronaut)"));
+			assertTrue(api.isRedirect(100));
+			assertFalse(api.isRedirect(21247));
+			assertEquals("Moon", api.getTitlebyId(19331));
+			assertEquals(-1, api.getIdByTitle("Mars"));
+		}
+	}
+
+	@Test
+	public void testPerfectHash() throws Exception {
+		StringBuilder pages = new StringBuilder();
+		int n = 20000;
+		for (int i = 0; i < n; i++)
+			pages.append(i * 3 + 1).append("\tPage ").append(i).append('\n');
+		String dictionaryFile = new File(folder.getRoot(), "titles.dict")
+				.getPath();
+		TitleDictionary.build(write("pages.tsv", pages.toString()), null,
+				dictionaryFile);
+		try (TitleDictionary dict = new TitleDictionary(dictionaryFile)) {
+			for (int i = 0; i < n; i++) {
+				assertEquals(i * 3 + 1, dict.getId("Page " + i));
+				assertEquals("Page " + i, dict.getTitle(i * 3 + 1));
+			}
+			assertEquals(-1, dict.getId("Page " + n));
+		}
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		String dictionaryFile = new File(folder.getRoot(), "titles.dict")
+				.getPath();
+		try {
+			TitleDictionary.build(write("dup.tsv", "1\tMoon\n2\tmoon\n"), null,
+					dictionaryFile);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Duplicate"));
+		}
+		try {
+			TitleDictionary.build(write("bad.tsv", "x\tMoon\n"), null,
+					dictionaryFile);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}